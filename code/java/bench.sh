@@ -0,0 +1,36 @@
+#! /bin/bash
+MODE=${1:-all}
+DATA=${2:-../data}
+PORT=${BENCH_PORT:-5433}
+BENCH=/tmp/$USER/benchDB
+
+# Runs the benchmarks against a scratch cluster seeded from $DATA.
+# When $DATA is a number it is a DataGenerator scale factor and the data
+# is generated into the cluster with COPY instead of read from CSV files.
+# Results are appended to bench-results.json.
+# Example: source ./bench.sh throughput ../data
+#          source ./bench.sh throughput 100
+
+echo "Starting scratch cluster in $BENCH on port $PORT"
+rm -rf $BENCH
+mkdir -p $BENCH/sockets
+initdb -D $BENCH/data > /dev/null
+pg_ctl -o "-c unix_socket_directories=$BENCH/sockets -p $PORT -c max_connections=200" -D $BENCH/data -l $BENCH/logfile -w start
+
+echo "Seeding from $DATA"
+createdb -h localhost -p $PORT bench
+psql -q -h localhost -p $PORT bench < ../sql/create.sql
+if [[ $DATA =~ ^[0-9]+(\.[0-9]+)?$ ]]; then
+	java -Xmx2g -cp lib/*:bin/ DataGenerator $DATA --copy bench $PORT $USER
+else
+	./load.sh bench $PORT $USER $DATA
+fi
+psql -q -h localhost -p $PORT bench < ../sql/triggers.sql
+for f in ../sql/migrations/*.sql; do
+	psql -q -h localhost -p $PORT bench < $f
+done
+java -cp lib/*:bin/ PartitionManager bench $PORT $USER maintain > /dev/null
+
+java -Xmx2g -cp lib/*:bin/ Benchmark bench $PORT $USER $MODE
+
+pg_ctl -D $BENCH/data -w stop
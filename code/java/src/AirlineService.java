@@ -0,0 +1,377 @@
+/*
+ * Headless operations of the airline application.
+ *
+ * Every menu operation is available here as a typed method that neither
+ * reads input nor shows dialogs, so it can be driven by the Swing UI, by
+ * tools, or by many threads at once.  The service keeps no per-call state;
+ * connections come from the pool one call at a time, so it is safe to share
+ * one instance between threads.
+ *
+ * Invalid arguments raise IllegalArgumentException; database failures raise
+ * SQLException.
+ */
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class AirlineService {
+
+	/*
+	 * SQL issued by the operations.  Values are always bound to the '?'
+	 * markers so each statement text is prepared once per connection.
+	 * New rows get their id from the IdAllocator, bound as the first value.
+	 */
+	static final String SQL_ADD_PLANE =
+		"INSERT INTO Plane(id, make, model, age, seats) VALUES (?, ?, ?, ?, ?)";
+	static final String SQL_ADD_PILOT =
+		"INSERT INTO Pilot(id, fullname, nationality) VALUES (?, ?, ?)";
+	// the Flight and its FlightInfo row are inserted by one statement, so
+	// a flight is never left without a pilot and plane
+	static final String SQL_ADD_FLIGHT =
+		"WITH f AS (" +
+		"INSERT INTO Flight(fnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_airport, departure_airport) " +
+		"VALUES (?, ?, ?, ?, ?, ?, ?, ?) RETURNING fnum) " +
+		"INSERT INTO FlightInfo(fiid, flight_id, pilot_id, plane_id) SELECT fnum, fnum, ?, ? FROM f";
+	static final String SQL_ADD_CUSTOMER =
+		"INSERT INTO Customer(id, fname, lname, gtype, dob, address, phone, zipcode) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+	static final String SQL_ADD_TECHNICIAN =
+		"INSERT INTO Technician(id, full_name) VALUES (?, ?)";
+	// options 7 and 8 read the counters kept by sql/migrations/002_repair_rollups.sql
+	static final String SQL_REPAIRS_PER_PLANE =
+		"SELECT plane_id, repairs FROM repairs_per_plane ORDER BY repairs DESC";
+	static final String SQL_REPAIRS_PER_YEAR =
+		"SELECT year, repairs FROM repairs_per_year ORDER BY repairs";
+	// the seat of a confirmed reservation is given back by
+	// sql/migrations/005_waitlist.sql, which also wakes the WaitlistPromoter
+	static final String SQL_CANCEL_RESERVATION =
+		"DELETE FROM Reservation WHERE rnum = ?";
+	static final String SQL_PASSENGERS_WITH_STATUS =
+		"SELECT COUNT(*) FROM Reservation r WHERE r.fid = ? AND r.status = ?";
+
+	static {
+		Metrics.name(SQL_ADD_PLANE, "addPlane");
+		Metrics.name(SQL_ADD_PILOT, "addPilot");
+		Metrics.name(SQL_ADD_FLIGHT, "addFlight");
+		Metrics.name(SQL_ADD_CUSTOMER, "addCustomer");
+		Metrics.name(SQL_ADD_TECHNICIAN, "addTechnician");
+		Metrics.name(SQL_REPAIRS_PER_PLANE, "repairsPerPlane");
+		Metrics.name(SQL_REPAIRS_PER_YEAR, "repairsPerYear");
+		Metrics.name(SQL_CANCEL_RESERVATION, "cancelReservation");
+		Metrics.name(SQL_PASSENGERS_WITH_STATUS, "passengersWithStatus");
+		Metrics.name(SeatCache.SQL_LOAD, "availableSeats");
+		Metrics.name(RouteGraph.SQL_LOAD, "loadRoutes");
+		Metrics.name(AssignmentIndex.SQL_LOAD, "loadAssignments");
+		Metrics.name(AssignmentIndex.SQL_LOAD_FLIGHT, "refreshAssignments");
+	}
+
+	private final DBproject _esql;
+	//loaded by the first route search, then kept current by addFlight
+	private volatile RouteGraph _routes = null;
+
+	public AirlineService(DBproject esql) {
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to add a plane.  (menu 1)
+	 *
+	 * @return the new plane's id
+	 */
+	public int addPlane(String make, String model, int age, int seats) throws SQLException {
+		checkPlane(make, model, age, seats);
+		return insert(IdAllocator.PLANE, SQL_ADD_PLANE, make, model, age, seats);
+	}
+
+	/**
+	 * Method to add a pilot.  (menu 2)
+	 *
+	 * @return the new pilot's id
+	 */
+	public int addPilot(String fullName, String nationality) throws SQLException {
+		checkPilot(fullName, nationality);
+		return insert(IdAllocator.PILOT, SQL_ADD_PILOT, fullName, nationality);
+	}
+
+	/**
+	 * Method to add a flight flown by the given pilot and plane.  (menu 3)
+	 * The pilot and plane must not be flying another flight, or be
+	 * scheduled for one, on overlapping days (see AssignmentIndex).
+	 *
+	 * @return the new flight number
+	 */
+	public int addFlight(int cost, int numSold, int numStops, Date departure, Date arrival,
+			String arrivalAirport, String departureAirport, int pilotId, int planeId) throws SQLException {
+		if (cost <= 0) throw new IllegalArgumentException("cost must be positive");
+		if (numSold < 0 || numStops < 0) throw new IllegalArgumentException("counts must not be negative");
+		if (departure == null || arrival == null) throw new IllegalArgumentException("dates are required");
+		if (arrival.before(departure)) throw new IllegalArgumentException("arrival is before departure");
+		requireText("arrival airport", arrivalAirport);
+		requireText("departure airport", departureAirport);
+		int fnum = this._esql.ids().next(IdAllocator.FLIGHT);
+		AssignmentIndex assignments = this._esql.assignments();
+		AssignmentIndex.Conflict busy = assignments.reserve(fnum, pilotId, planeId, departure, arrival);
+		if (busy != null) {
+			throw new IllegalArgumentException(busy.resource + " " + busy.id + " already flies flight " + busy.other
+				+ " from " + busy.from + " to " + busy.to);
+		}
+		try{
+			insert(fnum, SQL_ADD_FLIGHT, cost, numSold, numStops, departure, arrival,
+				arrivalAirport, departureAirport, pilotId, planeId);
+		}catch (SQLException e){
+			assignments.release(fnum);
+			throw e;
+		}
+		RouteGraph routes = this._routes;
+		if (routes == null) {
+			// a load running now may have read the flights before this one
+			// committed; wait for it.  A load starting later reads it anyway.
+			synchronized (this) {
+				routes = this._routes;
+			}
+		}
+		if (routes != null) routes.addFlight(fnum, departureAirport, arrivalAirport, departure, arrival, cost);
+		return fnum;
+	}
+
+	/**
+	 * Method to add a technician.  (menu 4)
+	 *
+	 * @return the new technician's id
+	 */
+	public int addTechnician(String fullName) throws SQLException {
+		checkTechnician(fullName);
+		return insert(IdAllocator.TECHNICIAN, SQL_ADD_TECHNICIAN, fullName);
+	}
+
+	/**
+	 * Method to add a customer.
+	 *
+	 * @param gender 'M' or 'F'
+	 * @return the new customer's id
+	 */
+	public int addCustomer(String fname, String lname, char gender, Date dob,
+			String address, String phone, String zipcode) throws SQLException {
+		gender = Character.toUpperCase(gender);
+		checkCustomer(fname, lname, gender, dob);
+		return insert(IdAllocator.CUSTOMER, SQL_ADD_CUSTOMER, fname, lname, gender, dob, address, phone, zipcode);
+	}
+
+	/**
+	 * Method to book a seat for a customer; the customer is waitlisted when
+	 * the flight is full.  (menu 5)  With dbproject.booking.coalesce set,
+	 * concurrent bookings on a flight are made in batches (BookingCoalescer).
+	 *
+	 * @return the reservation created
+	 */
+	public Booking bookFlight(int cid, int fnum) throws SQLException {
+		BookingCoalescer coalescer = this._esql.bookingCoalescer();
+		if (coalescer != null) return coalescer.book(cid, fnum);
+		return this._esql.bookingEngine().book(cid, fnum);
+	}
+
+	/**
+	 * Method to cancel a reservation.  A confirmed seat goes to the oldest
+	 * waitlisted passenger of the flight.
+	 *
+	 * @return false when there is no reservation with that number
+	 */
+	public boolean cancelReservation(int rnum) throws SQLException {
+		return this._esql.executeUpdate(SQL_CANCEL_RESERVATION, rnum) > 0;
+	}
+
+	/**
+	 * Method to get the free seats of a flight departing on a date.  (menu 6)
+	 *
+	 * @return plane seats minus seats sold
+	 * @throws IllegalArgumentException when the flight does not depart on that date
+	 */
+	public int availableSeats(int fnum, Date departure) throws SQLException {
+		int available = this._esql.seatCache().available(fnum, departure);
+		if (available == SeatCache.WRONG_DATE) {
+			throw new IllegalArgumentException("Flight " + fnum + " does not depart on " + departure);
+		}
+		return available;
+	}
+
+	/**
+	 * Method to count repairs per plane, most repaired first.  (menu 7)
+	 */
+	public List<KeyCount> repairsPerPlane() throws SQLException {
+		return counts(SQL_REPAIRS_PER_PLANE);
+	}
+
+	/**
+	 * Method to count repairs per year, fewest first.  (menu 8)
+	 */
+	public List<KeyCount> repairsPerYear() throws SQLException {
+		return counts(SQL_REPAIRS_PER_YEAR);
+	}
+
+	/**
+	 * Method to open the repairs per plane as a table read a page at a
+	 * time, most repaired first.  (menu 7)
+	 *
+	 * @return the report with its first page read
+	 */
+	public ReportTableModel repairsPerPlaneReport() throws SQLException {
+		return new ReportTableModel(this._esql, "repairs_per_plane", new String[] { "plane_id", "repairs" },
+			new String[] { "Plane", "Number of repairs" }, 0, 1, false).load();
+	}
+
+	/**
+	 * Method to open the repairs per year as a table read a page at a
+	 * time, fewest first.  (menu 8)
+	 *
+	 * @return the report with its first page read
+	 */
+	public ReportTableModel repairsPerYearReport() throws SQLException {
+		return new ReportTableModel(this._esql, "repairs_per_year", new String[] { "year", "repairs" },
+			new String[] { "Year", "Repairs" }, 0, 1, true).load();
+	}
+
+	/**
+	 * Method to count the reservations of a flight with a status.  (menu 9)
+	 *
+	 * @param status 'W', 'C' or 'R'
+	 */
+	public int passengersWithStatus(int fnum, char status) throws SQLException {
+		status = Character.toUpperCase(status);
+		checkStatus(status);
+		List<List<String>> rows = this._esql.executeReportQuery(SQL_PASSENGERS_WITH_STATUS, fnum, status);
+		return Integer.parseInt(rows.get(0).get(0));
+	}
+
+	/**
+	 * Method to find the connection that arrives first.
+	 *
+	 * @param notBefore the first day the trip may start
+	 * @param maxStops connections allowed (0 for direct flights only)
+	 * @return the itinerary, or null when the airports are not connected
+	 */
+	public Itinerary earliestArrival(String from, String to, Date notBefore, int maxStops) throws SQLException {
+		checkRoute(from, to, notBefore, maxStops);
+		return routes().earliestArrival(from, to, notBefore, maxStops);
+	}
+
+	/**
+	 * Method to find the cheapest connection.
+	 *
+	 * @param notBefore the first day the trip may start
+	 * @param maxStops connections allowed (0 for direct flights only)
+	 * @return the itinerary, or null when the airports are not connected
+	 */
+	public Itinerary cheapestRoute(String from, String to, Date notBefore, int maxStops) throws SQLException {
+		checkRoute(from, to, notBefore, maxStops);
+		return routes().cheapest(from, to, notBefore, maxStops);
+	}
+
+	/**
+	 * @return the flight graph used by route searches, loaded on first use
+	 */
+	public RouteGraph routes() throws SQLException {
+		RouteGraph routes = this._routes;
+		if (routes != null) return routes;
+		synchronized (this) {
+			if (this._routes == null) {
+				routes = new RouteGraph();
+				routes.load(this._esql);
+				this._routes = routes;
+			}
+			return this._routes;
+		}
+	}
+
+	/**
+	 * Method to start a batch of inserts that runs as one transaction, for
+	 * loading many rows at once.
+	 *
+	 * @return an empty batch
+	 */
+	public InsertBatch newBatch() {
+		return new InsertBatch(this._esql.pool(), this._esql.resultCache());
+	}
+
+	/*
+	 * Inserts one row with the next id of a sequence and returns the id.
+	 */
+	private int insert(String sequence, String sql, Object... values) throws SQLException {
+		return insert(this._esql.ids().next(sequence), sql, values);
+	}
+
+	private int insert(int id, String sql, Object... values) throws SQLException {
+		Object[] params = new Object[values.length + 1];
+		params[0] = id;
+		System.arraycopy(values, 0, params, 1, values.length);
+		this._esql.executeUpdate(sql, params);
+		return id;
+	}
+
+	/*
+	 * The counts are streamed rather than read as strings, and kept in the
+	 * ResultCache like the results of executeReportQuery.
+	 */
+	@SuppressWarnings("unchecked")
+	private List<KeyCount> counts(String sql) throws SQLException {
+		ResultCache cache = this._esql.resultCache();
+		// KeyCount.class keeps the entry apart from a string result of the same query
+		ResultCache.Ticket ticket = cache.begin(sql, KeyCount.class);
+		if (ticket != null && ticket.hit() != null) return (List<KeyCount>) ticket.hit();
+		final List<KeyCount> result = new ArrayList<KeyCount>();
+		this._esql.executeReportQueryStreaming(sql, new RowHandler() {
+			public void row(Row row) throws SQLException {
+				result.add(new KeyCount(row.getInt(1), row.getInt(2)));
+			}
+		});
+		List<KeyCount> counts = Collections.unmodifiableList(result);
+		cache.finish(ticket, counts, counts.size());
+		return counts;
+	}
+
+	/*
+	 * Argument checks shared with InsertBatch.
+	 */
+	static void checkPlane(String make, String model, int age, int seats) {
+		requireText("make", make);
+		requireText("model", model);
+		if (age < 0) throw new IllegalArgumentException("age must not be negative");
+		if (seats <= 0 || seats >= 500) throw new IllegalArgumentException("seats must be between 1 and 499");
+	}
+
+	static void checkPilot(String fullName, String nationality) {
+		requireText("name", fullName);
+		requireText("nationality", nationality);
+	}
+
+	static void checkTechnician(String fullName) {
+		requireText("name", fullName);
+	}
+
+	static void checkCustomer(String fname, String lname, char gender, Date dob) {
+		requireText("first name", fname);
+		requireText("last name", lname);
+		if (gender != 'M' && gender != 'F') throw new IllegalArgumentException("gender must be M or F");
+		if (dob == null) throw new IllegalArgumentException("date of birth is required");
+	}
+
+	static void checkRoute(String from, String to, Date notBefore, int maxStops) {
+		requireText("departure airport", from);
+		requireText("arrival airport", to);
+		if (notBefore == null) throw new IllegalArgumentException("date is required");
+		if (maxStops < 0) throw new IllegalArgumentException("stops must not be negative");
+	}
+
+	static void checkStatus(char status) {
+		if (status != 'W' && status != 'C' && status != 'R') {
+			throw new IllegalArgumentException("status must be W, C or R");
+		}
+	}
+
+	private static void requireText(String field, String value) {
+		if (value == null || value.trim().isEmpty()) {
+			throw new IllegalArgumentException(field + " is required");
+		}
+	}
+}
@@ -0,0 +1,832 @@
+/*
+ * In-memory columnar copy of the booking and repair tables for analytics.
+ *
+ * Questions over all of Reservation (the status breakdown of every flight,
+ * load factor per airport pair, repair frequency per plane make and model)
+ * are too expensive to ask the OLTP tables again and again.  Here the
+ * columns they need are streamed once into primitive arrays:
+ *
+ *   reservations  flight (index into the flights), status        5 bytes a row
+ *   repairs       plane (index into the planes), repair code     5 bytes a row
+ *   flights       fnum, num_sold, route, departure day, plane
+ *   planes        seats, type (make and model)
+ *
+ * Airport codes, makes and models are dictionary encoded, as are the
+ * airport pairs (routes) and make / model pairs (plane types), so a group
+ * by is an index into a dense array of counters.  An aggregation splits
+ * the rows into ranges that fork-join workers scan in tight loops, each
+ * into counters of its own, which are then added up.  The number of
+ * ranges shrinks when there are many groups, so the partial counters
+ * together stay below MAX_PARTIAL_CELLS.
+ *
+ * refresh() reads only the Reservation and Repairs rows with ids above the
+ * highest loaded one, less dbproject.analytics.overlapIds: ids are leased
+ * in blocks (IdAllocator), so a row can commit after rows with higher ids.
+ * Ids already loaded are skipped.  Flight, FlightInfo and Plane are small
+ * and num_sold changes with every booking, so they are read in full.  A
+ * refresh does not see status changes and cancellations of reservations
+ * already loaded, nor rows that commit more than overlapIds below the
+ * highest id; load() reads everything again.  Each table is read in a
+ * statement of its own, on a replica when one is configured.
+ *
+ * Like RouteGraph, queries read an immutable snapshot and never wait for a
+ * refresh.  The reservation and repair arrays are only appended to, so
+ * snapshots share them; a snapshot ignores rows past its own size.
+ *
+ * Run from the command line it loads the snapshot and prints the three
+ * reports, then refreshes and prints them again every
+ * dbproject.analytics.refreshSeconds.
+ *
+ * Settings (system properties, see Config):
+ *   dbproject.analytics.threads         fork-join workers (default: number of cores)
+ *   dbproject.analytics.overlapIds      ids below the highest one re-read by a refresh (default 10000)
+ *   dbproject.analytics.top             rows printed per report (default 10)
+ *   dbproject.analytics.refreshSeconds  refresh interval of the command line, 0 to run once (default 0)
+ */
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+public class AnalyticsSnapshot {
+	static final String SQL_RESERVATIONS =
+		"SELECT rnum, fid, status FROM Reservation WHERE rnum > ?";
+	static final String SQL_REPAIRS =
+		"SELECT rid, plane_id, repair_code FROM Repairs WHERE rid > ?";
+	static final String SQL_FLIGHTS =
+		"SELECT f.fnum, f.num_sold, f.departure_airport, f.arrival_airport, f.actual_departure_date, i.plane_id " +
+		"FROM Flight f LEFT JOIN FlightInfo i ON i.flight_id = f.fnum";
+	static final String SQL_PLANES =
+		"SELECT id, make, model, seats FROM Plane";
+
+	static {
+		Metrics.name(SQL_RESERVATIONS, "analyticsReservations");
+		Metrics.name(SQL_REPAIRS, "analyticsRepairs");
+		Metrics.name(SQL_FLIGHTS, "analyticsFlights");
+		Metrics.name(SQL_PLANES, "analyticsPlanes");
+	}
+
+	//reservation status by code; NULL is the last one
+	private static final String STATUSES = "WCR";
+	private static final String[] REPAIR_CODES = { "MJ", "MN", "SV" };
+	//counters of all partial aggregates of one query together
+	private static final long MAX_PARTIAL_CELLS = 1L << 24;
+	//fewer rows are not worth a task of their own
+	private static final int MIN_LEAF_ROWS = 1 << 14;
+
+	/*
+	 * Strings numbered densely in order of appearance.  Only ever appended
+	 * to, so snapshots share the values array.
+	 */
+	static final class Dictionary {
+		private final Map<String, Integer> _codes = new HashMap<String, Integer>();
+		String[] values = new String[16];
+
+		int encode(String value) {
+			value = value == null ? "" : value.trim();
+			Integer code = this._codes.get(value);
+			if (code == null) {
+				code = this._codes.size();
+				this._codes.put(value, code);
+				if (code == this.values.length) this.values = Arrays.copyOf(this.values, code * 2);
+				this.values[code] = value;
+			}
+			return code;
+		}
+
+		int size() {
+			return this._codes.size();
+		}
+	}
+
+	/*
+	 * Pairs of codes (departure and arrival airport, make and model)
+	 * numbered densely, appended to like Dictionary.
+	 */
+	static final class PairDictionary {
+		private final Map<Long, Integer> _codes = new HashMap<Long, Integer>();
+		int[] first = new int[0];
+		int[] second = new int[0];
+
+		int encode(int a, int b) {
+			Long key = ((long) a << 32) | (b & 0xffffffffL);
+			Integer code = this._codes.get(key);
+			if (code == null) {
+				code = this._codes.size();
+				this._codes.put(key, code);
+				this.first = fit(this.first, code, -1);
+				this.second = fit(this.second, code, -1);
+				this.first[code] = a;
+				this.second[code] = b;
+			}
+			return code;
+		}
+
+		int size() {
+			return this._codes.size();
+		}
+	}
+
+	/*
+	 * The ids loaded so far that lie within overlap of the highest one, so
+	 * a refresh can re-read them and skip the rows it already has.  ids
+	 * [0, sorted) are sorted; the rest were added by the running refresh.
+	 */
+	static final class IdWindow {
+		final int overlap;
+		long max = Long.MIN_VALUE;
+		int[] ids = new int[64];
+		int size = 0;
+		int sorted = 0;
+
+		IdWindow(int overlap) {
+			this.overlap = overlap;
+		}
+
+		/**
+		 * @return the id after which a refresh reads
+		 */
+		int from() {
+			return this.max == Long.MIN_VALUE ? Integer.MIN_VALUE : (int) Math.max(Integer.MIN_VALUE, this.max - this.overlap);
+		}
+
+		boolean has(int id) {
+			return Arrays.binarySearch(this.ids, 0, this.sorted, id) >= 0;
+		}
+
+		void add(int id) {
+			if (id > this.max) this.max = id;
+			if (this.size == this.ids.length) {
+				prune(this.sorted);
+				if (this.size > this.ids.length / 2) this.ids = Arrays.copyOf(this.ids, this.ids.length * 2);
+			}
+			this.ids[this.size++] = id;
+		}
+
+		/*
+		 * Drops the ids from index start on that are below the window.  The
+		 * running refresh still reads the ids of the window it started with,
+		 * so the sorted ones stay until seal().
+		 */
+		void prune(int start) {
+			long low = from();
+			int kept = start;
+			for (int i = start; i < this.size; ++i) {
+				if (this.ids[i] >= low) this.ids[kept++] = this.ids[i];
+			}
+			this.size = kept;
+		}
+
+		void seal() {
+			prune(0);
+			Arrays.sort(this.ids, 0, this.size);
+			this.sorted = this.size;
+		}
+	}
+
+	/*
+	 * The tables at one point in time.  Arrays shared with later snapshots
+	 * are only written past this snapshot's sizes.
+	 */
+	static final class Snapshot {
+		final int reservations;
+		final int[] reservationFlight;
+		final byte[] reservationStatus;
+		final int repairs;
+		final int[] repairPlane;
+		final byte[] repairCode;
+		final int flights;
+		final int[] flightNum;
+		final int[] flightSold;
+		final int[] flightRoute;
+		final int[] flightDay;
+		final int[] flightPlane;
+		final int planes;
+		final int[] planeSeats;
+		final int[] planeType;
+		final String[] airports;
+		final int airportCount;
+		final int routes;
+		final int[] routeFrom;
+		final int[] routeTo;
+		final String[] makes;
+		final String[] models;
+		final int types;
+		final int[] typeMake;
+		final int[] typeModel;
+
+		Snapshot(AnalyticsSnapshot a, int[][] flights, int[][] planes) {
+			this.reservations = a._reservations;
+			this.reservationFlight = a._reservationFlight;
+			this.reservationStatus = a._reservationStatus;
+			this.repairs = a._repairs;
+			this.repairPlane = a._repairPlane;
+			this.repairCode = a._repairCode;
+			this.flights = a._flightIndex.size();
+			this.flightNum = a._flightNum;
+			this.flightSold = flights[0];
+			this.flightRoute = flights[1];
+			this.flightDay = flights[2];
+			this.flightPlane = flights[3];
+			this.planes = a._planeIndex.size();
+			this.planeSeats = planes[0];
+			this.planeType = planes[1];
+			this.airports = a._airports.values;
+			this.airportCount = a._airports.size();
+			this.routes = a._routes.size();
+			this.routeFrom = a._routes.first;
+			this.routeTo = a._routes.second;
+			this.makes = a._makes.values;
+			this.models = a._models.values;
+			this.types = a._types.size();
+			this.typeMake = a._types.first;
+			this.typeModel = a._types.second;
+		}
+	}
+
+	/*
+	 * The loop of one aggregation: adds rows [from, to) into acc.
+	 */
+	interface Kernel {
+		void accumulate(Snapshot s, int from, int to, long[] acc);
+	}
+
+	/*
+	 * Aggregates a range of rows, splitting it in halves down to
+	 * threshold rows.
+	 */
+	static final class Aggregate extends RecursiveTask<long[]> {
+		private static final long serialVersionUID = 1L;
+
+		final Snapshot snapshot;
+		final Kernel kernel;
+		final int from;
+		final int to;
+		final int groups;
+		final int threshold;
+
+		Aggregate(Snapshot snapshot, Kernel kernel, int from, int to, int groups, int threshold) {
+			this.snapshot = snapshot;
+			this.kernel = kernel;
+			this.from = from;
+			this.to = to;
+			this.groups = groups;
+			this.threshold = threshold;
+		}
+
+		protected long[] compute() {
+			if (this.to - this.from <= this.threshold) {
+				long[] acc = new long[this.groups];
+				this.kernel.accumulate(this.snapshot, this.from, this.to, acc);
+				return acc;
+			}
+			int mid = (this.from + this.to) >>> 1;
+			Aggregate left = new Aggregate(this.snapshot, this.kernel, this.from, mid, this.groups, this.threshold);
+			left.fork();
+			long[] acc = new Aggregate(this.snapshot, this.kernel, mid, this.to, this.groups, this.threshold).compute();
+			long[] other = left.join();
+			for (int g = 0; g < acc.length; ++g) acc[g] += other[g];
+			return acc;
+		}
+	}
+
+	/**
+	 * Reservations of one flight by status.
+	 */
+	public static final class FlightStatus {
+		private final int _fnum;
+		private final long[] _counts;
+
+		FlightStatus(int fnum, long[] counts) {
+			this._fnum = fnum;
+			this._counts = counts;
+		}
+
+		public int fnum() {
+			return this._fnum;
+		}
+
+		public long waitlisted() {
+			return this._counts[0];
+		}
+
+		public long confirmed() {
+			return this._counts[1];
+		}
+
+		public long reserved() {
+			return this._counts[2];
+		}
+
+		public long total() {
+			return this._counts[0] + this._counts[1] + this._counts[2] + this._counts[3];
+		}
+
+		public String toString() {
+			return this._fnum + "\t" + this._counts[0] + "\t" + this._counts[1] + "\t" + this._counts[2];
+		}
+	}
+
+	/**
+	 * Seats sold and offered on the flights between two airports.
+	 */
+	public static final class RouteLoad {
+		private final String _from;
+		private final String _to;
+		private final long _flights;
+		private final long _sold;
+		private final long _seats;
+
+		RouteLoad(String from, String to, long flights, long sold, long seats) {
+			this._from = from;
+			this._to = to;
+			this._flights = flights;
+			this._sold = sold;
+			this._seats = seats;
+		}
+
+		public String from() {
+			return this._from;
+		}
+
+		public String to() {
+			return this._to;
+		}
+
+		public long flights() {
+			return this._flights;
+		}
+
+		public long sold() {
+			return this._sold;
+		}
+
+		public long seats() {
+			return this._seats;
+		}
+
+		/**
+		 * @return seats sold over seats offered
+		 */
+		public double loadFactor() {
+			return this._seats == 0 ? 0.0 : (double) this._sold / this._seats;
+		}
+
+		public String toString() {
+			return String.format("%s\t%s\t%d\t%d\t%d\t%.3f", this._from, this._to, this._flights, this._sold,
+				this._seats, loadFactor());
+		}
+	}
+
+	/**
+	 * Repairs of the planes of one make and model.
+	 */
+	public static final class ModelRepairs {
+		private final String _make;
+		private final String _model;
+		private final long _planes;
+		private final long _repairs;
+
+		ModelRepairs(String make, String model, long planes, long repairs) {
+			this._make = make;
+			this._model = model;
+			this._planes = planes;
+			this._repairs = repairs;
+		}
+
+		public String make() {
+			return this._make;
+		}
+
+		public String model() {
+			return this._model;
+		}
+
+		public long planes() {
+			return this._planes;
+		}
+
+		public long repairs() {
+			return this._repairs;
+		}
+
+		public double perPlane() {
+			return this._planes == 0 ? 0.0 : (double) this._repairs / this._planes;
+		}
+
+		public String toString() {
+			return String.format("%s\t%s\t%d\t%d\t%.2f", this._make, this._model, this._planes, this._repairs, perPlane());
+		}
+	}
+
+	private final ForkJoinPool _pool;
+	private final int _overlap;
+	private volatile Snapshot _snapshot = null;
+
+	/*
+	 * What has been read so far; written by load() and refresh() only.
+	 */
+	private Map<Integer, Integer> _flightIndex;
+	private Map<Integer, Integer> _planeIndex;
+	private int[] _flightNum;
+	private Dictionary _airports;
+	private Dictionary _makes;
+	private Dictionary _models;
+	private PairDictionary _routes;
+	private PairDictionary _types;
+	private IdWindow _reservationIds;
+	private IdWindow _repairIds;
+	private int _reservations;
+	private int[] _reservationFlight;
+	private byte[] _reservationStatus;
+	private int _repairs;
+	private int[] _repairPlane;
+	private byte[] _repairCode;
+
+	private volatile long _refreshes = 0;
+	private volatile long _lastRefreshNanos = 0;
+
+	public AnalyticsSnapshot() {
+		this._pool = new ForkJoinPool(Math.max(1, Config.getInt("analytics.threads",
+			Runtime.getRuntime().availableProcessors())));
+		this._overlap = Math.max(0, Config.getInt("analytics.overlapIds", 10000));
+		clear();
+		this._snapshot = new Snapshot(this, new int[4][0], new int[2][0]);
+	}
+
+	private void clear() {
+		this._flightIndex = new HashMap<Integer, Integer>();
+		this._planeIndex = new HashMap<Integer, Integer>();
+		this._flightNum = new int[0];
+		this._airports = new Dictionary();
+		this._makes = new Dictionary();
+		this._models = new Dictionary();
+		this._routes = new PairDictionary();
+		this._types = new PairDictionary();
+		this._reservationIds = new IdWindow(this._overlap);
+		this._repairIds = new IdWindow(this._overlap);
+		this._reservations = 0;
+		this._reservationFlight = new int[0];
+		this._reservationStatus = new byte[0];
+		this._repairs = 0;
+		this._repairPlane = new int[0];
+		this._repairCode = new byte[0];
+	}
+
+	/**
+	 * Method to replace the snapshot with everything in the database.
+	 *
+	 * @param esql the database to read from
+	 * @return number of reservations and repairs loaded
+	 * @throws java.sql.SQLException when the tables cannot be read
+	 */
+	public synchronized long load(DBproject esql) throws SQLException {
+		clear();
+		return refresh(esql);
+	}
+
+	/**
+	 * Method to add the reservations and repairs inserted since the last
+	 * refresh, and re-read the flights and planes.
+	 *
+	 * @param esql the database to read from
+	 * @return number of reservations and repairs added
+	 * @throws java.sql.SQLException when the tables cannot be read
+	 */
+	public synchronized long refresh(DBproject esql) throws SQLException {
+		long start = System.nanoTime();
+		long before = (long) this._reservations + this._repairs;
+		try{
+			readReservations(esql);
+			readRepairs(esql);
+		}finally{
+			this._reservationIds.seal();
+			this._repairIds.seal();
+		}
+		int[][] flights = readFlights(esql);
+		int[][] planes = readPlanes(esql);
+		this._snapshot = new Snapshot(this, flights, planes);
+		++this._refreshes;
+		this._lastRefreshNanos = System.nanoTime() - start;
+		return (long) this._reservations + this._repairs - before;
+	}
+
+	private void readReservations(DBproject esql) throws SQLException {
+		final IdWindow ids = this._reservationIds;
+		esql.executeReportQueryStreaming(SQL_RESERVATIONS, new RowHandler() {
+			public void row(Row row) throws SQLException {
+				int rnum = row.getInt(1);
+				if (ids.has(rnum)) return;
+				int i = _reservations;
+				if (i == _reservationFlight.length) {
+					int capacity = Math.max(1024, i + (i >> 1));
+					_reservationFlight = Arrays.copyOf(_reservationFlight, capacity);
+					_reservationStatus = Arrays.copyOf(_reservationStatus, capacity);
+				}
+				_reservationFlight[i] = flight(row.getInt(2));
+				_reservationStatus[i] = code(STATUSES, row.getChar(3));
+				_reservations = i + 1;
+				ids.add(rnum);
+			}
+		}, ids.from());
+	}
+
+	private void readRepairs(DBproject esql) throws SQLException {
+		final IdWindow ids = this._repairIds;
+		esql.executeReportQueryStreaming(SQL_REPAIRS, new RowHandler() {
+			public void row(Row row) throws SQLException {
+				int rid = row.getInt(1);
+				if (ids.has(rid)) return;
+				int i = _repairs;
+				if (i == _repairPlane.length) {
+					int capacity = Math.max(1024, i + (i >> 1));
+					_repairPlane = Arrays.copyOf(_repairPlane, capacity);
+					_repairCode = Arrays.copyOf(_repairCode, capacity);
+				}
+				_repairPlane[i] = plane(row.getInt(2));
+				_repairCode[i] = repairCode(row.getString(3));
+				_repairs = i + 1;
+				ids.add(rid);
+			}
+		}, ids.from());
+	}
+
+	/*
+	 * Sold, route, departure day and plane of every flight, new arrays each
+	 * time.  Flights only known from their reservations keep -1.
+	 */
+	private int[][] readFlights(DBproject esql) throws SQLException {
+		final int[][] cols = { new int[0], new int[0], new int[0], new int[0] };
+		esql.executeReportQueryStreaming(SQL_FLIGHTS, new RowHandler() {
+			public void row(Row row) throws SQLException {
+				int f = flight(row.getInt(1));
+				for (int k = 0; k < cols.length; ++k) cols[k] = fit(cols[k], f, -1);
+				cols[0][f] = row.getInt(2);
+				cols[1][f] = _routes.encode(_airports.encode(row.getString(3)), _airports.encode(row.getString(4)));
+				cols[2][f] = (int) row.getEpochDay(5);
+				cols[3][f] = row.getObject(6) == null ? -1 : plane(row.getInt(6));
+			}
+		});
+		return exact(cols, this._flightIndex.size());
+	}
+
+	/*
+	 * Seats and type of every plane, new arrays each time.
+	 */
+	private int[][] readPlanes(DBproject esql) throws SQLException {
+		final int[][] cols = { new int[0], new int[0] };
+		esql.executeReportQueryStreaming(SQL_PLANES, new RowHandler() {
+			public void row(Row row) throws SQLException {
+				int p = plane(row.getInt(1));
+				for (int k = 0; k < cols.length; ++k) cols[k] = fit(cols[k], p, -1);
+				cols[0][p] = row.getInt(4);
+				cols[1][p] = _types.encode(_makes.encode(row.getString(2)), _models.encode(row.getString(3)));
+			}
+		});
+		return exact(cols, this._planeIndex.size());
+	}
+
+	private int flight(int fnum) {
+		Integer f = this._flightIndex.get(fnum);
+		if (f == null) {
+			f = this._flightIndex.size();
+			this._flightIndex.put(fnum, f);
+			this._flightNum = fit(this._flightNum, f, 0);
+			this._flightNum[f] = fnum;
+		}
+		return f;
+	}
+
+	private int plane(int id) {
+		Integer p = this._planeIndex.get(id);
+		if (p == null) {
+			p = this._planeIndex.size();
+			this._planeIndex.put(id, p);
+		}
+		return p;
+	}
+
+	private static byte code(String codes, char c) {
+		int i = codes.indexOf(c);
+		return (byte) (i < 0 ? codes.length() : i);
+	}
+
+	private static byte repairCode(String code) {
+		int i = code == null ? -1 : Arrays.asList(REPAIR_CODES).indexOf(code.trim().toUpperCase());
+		return (byte) (i < 0 ? REPAIR_CODES.length : i);
+	}
+
+	/*
+	 * a, or a copy long enough for index with the new cells set to empty.
+	 */
+	private static int[] fit(int[] a, int index, int empty) {
+		if (index < a.length) return a;
+		int[] b = Arrays.copyOf(a, Math.max(index + 1, Math.max(16, a.length * 2)));
+		Arrays.fill(b, a.length, b.length, empty);
+		return b;
+	}
+
+	private static int[][] exact(int[][] cols, int size) {
+		for (int k = 0; k < cols.length; ++k) {
+			cols[k] = Arrays.copyOf(fit(cols[k], size - 1, -1), size);
+		}
+		return cols;
+	}
+
+	/*
+	 * Runs a kernel over rows [0, rows) on the fork-join pool.
+	 */
+	private long[] aggregate(Snapshot s, int rows, int groups, Kernel kernel) {
+		long leaves = Math.max(1, Math.min(this._pool.getParallelism() * 4L, MAX_PARTIAL_CELLS / Math.max(1, groups)));
+		int threshold = (int) Math.max(MIN_LEAF_ROWS, (rows + leaves - 1) / leaves);
+		return this._pool.invoke(new Aggregate(s, kernel, 0, rows, groups, threshold));
+	}
+
+	/**
+	 * Method to count the reservations of every flight by status.
+	 *
+	 * @return one entry per flight with reservations, by flight number
+	 */
+	public List<FlightStatus> statusByFlight() {
+		Snapshot s = this._snapshot;
+		long[] counts = aggregate(s, s.reservations, s.flights * 4, new Kernel() {
+			public void accumulate(Snapshot s, int from, int to, long[] acc) {
+				int[] flight = s.reservationFlight;
+				byte[] status = s.reservationStatus;
+				for (int i = from; i < to; ++i) {
+					++acc[(flight[i] << 2) + status[i]];
+				}
+			}
+		});
+		List<FlightStatus> result = new ArrayList<FlightStatus>();
+		for (int f = 0; f < s.flights; ++f) {
+			long[] c = Arrays.copyOfRange(counts, f << 2, (f << 2) + 4);
+			if (c[0] + c[1] + c[2] + c[3] > 0) result.add(new FlightStatus(s.flightNum[f], c));
+		}
+		Collections.sort(result, new Comparator<FlightStatus>() {
+			public int compare(FlightStatus a, FlightStatus b) {
+				return Integer.compare(a.fnum(), b.fnum());
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Method to compute the load factor of every airport pair over the
+	 * flights departing in a range of days.  Flights without a plane are
+	 * left out.
+	 *
+	 * @param from first departure day, or null for no limit
+	 * @param to last departure day, or null for no limit
+	 * @return one entry per airport pair, highest load factor first
+	 */
+	public List<RouteLoad> loadFactorByRoute(Date from, Date to) {
+		Snapshot s = this._snapshot;
+		final int first = from == null ? Integer.MIN_VALUE : (int) from.toLocalDate().toEpochDay();
+		final int last = to == null ? Integer.MAX_VALUE : (int) to.toLocalDate().toEpochDay();
+		long[] sums = aggregate(s, s.flights, s.routes * 3, new Kernel() {
+			public void accumulate(Snapshot s, int from, int to, long[] acc) {
+				int[] route = s.flightRoute, day = s.flightDay, plane = s.flightPlane, sold = s.flightSold;
+				int[] seats = s.planeSeats;
+				for (int i = from; i < to; ++i) {
+					int r = route[i], p = plane[i];
+					if (r < 0 || p < 0 || day[i] < first || day[i] > last) continue;
+					int g = r * 3;
+					++acc[g];
+					acc[g + 1] += sold[i];
+					acc[g + 2] += Math.max(0, seats[p]);
+				}
+			}
+		});
+		List<RouteLoad> result = new ArrayList<RouteLoad>();
+		for (int r = 0; r < s.routes; ++r) {
+			if (sums[r * 3] == 0) continue;
+			result.add(new RouteLoad(s.airports[s.routeFrom[r]], s.airports[s.routeTo[r]],
+				sums[r * 3], sums[r * 3 + 1], sums[r * 3 + 2]));
+		}
+		Collections.sort(result, new Comparator<RouteLoad>() {
+			public int compare(RouteLoad a, RouteLoad b) {
+				return Double.compare(b.loadFactor(), a.loadFactor());
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Method to count the repairs of the planes of every make and model.
+	 *
+	 * @param code repair code (MJ, MN or SV), or null for every repair
+	 * @return one entry per make and model, most repairs per plane first
+	 */
+	public List<ModelRepairs> repairsByModel(String code) {
+		Snapshot s = this._snapshot;
+		final int wanted = code == null ? -1 : repairCode(code);
+		if (wanted == REPAIR_CODES.length) throw new IllegalArgumentException("repair code must be MJ, MN or SV");
+		long[] repairs = aggregate(s, s.repairs, s.types, new Kernel() {
+			public void accumulate(Snapshot s, int from, int to, long[] acc) {
+				int[] plane = s.repairPlane, type = s.planeType;
+				byte[] codes = s.repairCode;
+				for (int i = from; i < to; ++i) {
+					if (wanted >= 0 && codes[i] != wanted) continue;
+					int t = type[plane[i]];
+					if (t >= 0) ++acc[t];
+				}
+			}
+		});
+		long[] planes = new long[s.types];
+		for (int p = 0; p < s.planes; ++p) {
+			if (s.planeType[p] >= 0) ++planes[s.planeType[p]];
+		}
+		List<ModelRepairs> result = new ArrayList<ModelRepairs>();
+		for (int t = 0; t < s.types; ++t) {
+			result.add(new ModelRepairs(s.makes[s.typeMake[t]], s.models[s.typeModel[t]], planes[t], repairs[t]));
+		}
+		Collections.sort(result, new Comparator<ModelRepairs>() {
+			public int compare(ModelRepairs a, ModelRepairs b) {
+				return Double.compare(b.perPlane(), a.perPlane());
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * @return a one line summary of the snapshot
+	 */
+	public String stats() {
+		Snapshot s = this._snapshot;
+		return String.format("analytics snapshot: %d reservations, %d repairs, %d flights, %d planes, %d airports, "
+			+ "%d routes, %d plane types, %d refreshes, last %.1f ms, %d workers",
+			s.reservations, s.repairs, s.flights, s.planes, s.airportCount, s.routes, s.types,
+			this._refreshes, this._lastRefreshNanos / 1e6, this._pool.getParallelism());
+	}
+
+	/**
+	 * Method to stop the fork-join workers.
+	 */
+	public void close() {
+		this._pool.shutdown();
+	}
+
+	private static void print(String title, List<?> rows, String header, int top, long nanos) {
+		System.out.printf("%n%s (%d rows, %.1f ms)%n%s%n", title, rows.size(), nanos / 1e6, header);
+		for (int i = 0; i < Math.min(top, rows.size()); ++i) System.out.println(rows.get(i));
+	}
+
+	private static void report(AnalyticsSnapshot snapshot, int top) {
+		long start = System.nanoTime();
+		List<FlightStatus> status = new ArrayList<FlightStatus>(snapshot.statusByFlight());
+		long nanos = System.nanoTime() - start;
+		Collections.sort(status, new Comparator<FlightStatus>() {
+			public int compare(FlightStatus a, FlightStatus b) {
+				return Long.compare(b.total(), a.total());
+			}
+		});
+		print("Reservation status per flight, busiest first", status, "fnum\tW\tC\tR", top, nanos);
+
+		start = System.nanoTime();
+		List<RouteLoad> routes = snapshot.loadFactorByRoute(null, null);
+		print("Load factor per airport pair", routes, "from\tto\tflights\tsold\tseats\tload", top,
+			System.nanoTime() - start);
+
+		start = System.nanoTime();
+		List<ModelRepairs> models = snapshot.repairsByModel(null);
+		print("Repairs per plane make and model", models, "make\tmodel\tplanes\trepairs\tper plane", top,
+			System.nanoTime() - start);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] AnalyticsSnapshot <dbname> <port> <user>");
+			return;
+		}
+		Class.forName("org.postgresql.Driver");
+		int top = Math.max(0, Config.getInt("analytics.top", 10));
+		long every = Config.getLong("analytics.refreshSeconds", 0);
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		AnalyticsSnapshot snapshot = new AnalyticsSnapshot();
+		try{
+			long start = System.nanoTime();
+			long rows = snapshot.load(esql);
+			System.out.printf("Loaded %d rows in %.0f ms%n%s%n", rows, (System.nanoTime() - start) / 1e6, snapshot.stats());
+			while (true) {
+				report(snapshot, top);
+				if (every <= 0) break;
+				Thread.sleep(every * 1000);
+				start = System.nanoTime();
+				rows = snapshot.refresh(esql);
+				System.out.printf("%nRefreshed: %d new rows in %.0f ms%n", rows, (System.nanoTime() - start) / 1e6);
+			}
+		}finally{
+			snapshot.close();
+			esql.cleanup();
+		}
+	}
+}
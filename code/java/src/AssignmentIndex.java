@@ -0,0 +1,433 @@
+/*
+ * In-memory index of when each pilot and plane is busy, used to refuse
+ * double bookings.
+ *
+ * A flight ties up its pilot and plane (FlightInfo) from its
+ * actual_departure_date to its actual_arrival_date, and again for every
+ * Schedule row of the flight.  Each pilot and each plane has a Timeline of
+ * these intervals: arrays sorted by start day, with a running maximum of
+ * the end days, so an overlap query is a binary search followed by a short
+ * walk back that stops as soon as no earlier interval can reach the query.
+ * Checking a new flight takes microseconds instead of a scan of every
+ * assignment in SQL.
+ *
+ * The columns are dates, so intervals are whole days and include both
+ * their first and last day: a same-day flight is busy on that day.  Two
+ * intervals conflict when they share a day, including a flight that
+ * leaves on the day another one lands; the dates cannot tell whether
+ * such flights overlap in time.  Intervals of the same flight never
+ * conflict with each other.
+ *
+ * The index is loaded on first use and kept current two ways:
+ *   - AirlineService.addFlight reserves the new flight's interval before
+ *     inserting it, and gives it back when the insert fails;
+ *   - the triggers in sql/migrations/009_assignment_notify.sql send the
+ *     flight number on channel assignment_change when a Flight's dates, a
+ *     FlightInfo row or a Schedule row change.  That flight is re-read
+ *     before the next check; after a listener reconnect, or a burst of more
+ *     than 1000 changes, everything is.
+ *
+ * Each process has its own index, so two instances adding conflicting
+ * flights at the same moment can both succeed.  audit() reloads everything
+ * and finds every such conflict in one sweep; SchemaCheck runs it as its
+ * "assignments" mode.
+ */
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AssignmentIndex implements NotificationHandler {
+	static final String CHANNEL = "assignment_change";
+	static final String SQL_LOAD =
+		"SELECT i.flight_id, i.pilot_id, i.plane_id, f.actual_departure_date, f.actual_arrival_date " +
+		"FROM FlightInfo i INNER JOIN Flight f ON f.fnum = i.flight_id " +
+		"UNION ALL " +
+		"SELECT i.flight_id, i.pilot_id, i.plane_id, s.departure_time, s.arrival_time " +
+		"FROM Schedule s INNER JOIN FlightInfo i ON i.flight_id = s.flightNum";
+	static final String SQL_LOAD_FLIGHT =
+		"SELECT i.flight_id, i.pilot_id, i.plane_id, f.actual_departure_date, f.actual_arrival_date " +
+		"FROM FlightInfo i INNER JOIN Flight f ON f.fnum = i.flight_id WHERE i.flight_id = ? " +
+		"UNION ALL " +
+		"SELECT i.flight_id, i.pilot_id, i.plane_id, s.departure_time, s.arrival_time " +
+		"FROM Schedule s INNER JOIN FlightInfo i ON i.flight_id = s.flightNum WHERE i.flight_id = ?";
+
+	//past this many changed flights, reloading everything is cheaper
+	private static final int MAX_REFRESH = 1000;
+
+	/*
+	 * The busy intervals of one pilot or plane, ordered by start day.
+	 * Never modified once built.
+	 */
+	static final class Timeline {
+		static final Timeline EMPTY = new Timeline(new int[0], new int[0], new int[0]);
+
+		final int[] start, end, fnum;
+		//maxEnd[i] is the latest end of intervals 0..i
+		final int[] maxEnd;
+
+		Timeline(int[] start, int[] end, int[] fnum) {
+			this.start = start;
+			this.end = end;
+			this.fnum = fnum;
+			this.maxEnd = new int[start.length];
+			int max = Integer.MIN_VALUE;
+			for (int i = 0; i < start.length; ++i) this.maxEnd[i] = max = Math.max(max, end[i]);
+		}
+
+		/**
+		 * @return position of an interval of another flight sharing a day
+		 *         with [from, to], or -1 when there is none
+		 */
+		int overlapping(int from, int to, int self) {
+			int i = firstAfter(this.start, to) - 1;
+			for (; i >= 0 && this.maxEnd[i] >= from; --i) {
+				if (this.end[i] >= from && this.fnum[i] != self) return i;
+			}
+			return -1;
+		}
+
+		Timeline with(int from, int to, int flight) {
+			int at = firstAfter(this.start, from);
+			int n = this.start.length;
+			int[] s = new int[n + 1], e = new int[n + 1], f = new int[n + 1];
+			System.arraycopy(this.start, 0, s, 0, at);
+			System.arraycopy(this.end, 0, e, 0, at);
+			System.arraycopy(this.fnum, 0, f, 0, at);
+			s[at] = from;
+			e[at] = to;
+			f[at] = flight;
+			System.arraycopy(this.start, at, s, at + 1, n - at);
+			System.arraycopy(this.end, at, e, at + 1, n - at);
+			System.arraycopy(this.fnum, at, f, at + 1, n - at);
+			return new Timeline(s, e, f);
+		}
+
+		Timeline without(int flight) {
+			int n = this.start.length, k = 0;
+			int[] s = new int[n], e = new int[n], f = new int[n];
+			for (int i = 0; i < n; ++i) {
+				if (this.fnum[i] == flight) continue;
+				s[k] = this.start[i];
+				e[k] = this.end[i];
+				f[k++] = this.fnum[i];
+			}
+			return k == n ? this : new Timeline(Arrays.copyOf(s, k), Arrays.copyOf(e, k), Arrays.copyOf(f, k));
+		}
+
+		/*
+		 * First position whose start is greater than day.
+		 */
+		private static int firstAfter(int[] start, int day) {
+			int lo = 0, hi = start.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (start[mid] <= day) lo = mid + 1;
+				else hi = mid;
+			}
+			return lo;
+		}
+	}
+
+	/*
+	 * Two flights that tie up the same pilot or plane on overlapping days.
+	 */
+	public static final class Conflict {
+		public final String resource;
+		public final int id;
+		public final int fnum;
+		public final int other;
+		public final LocalDate from;
+		public final LocalDate to;
+
+		Conflict(String resource, int id, int fnum, int other, int from, int to) {
+			this.resource = resource;
+			this.id = id;
+			this.fnum = fnum;
+			this.other = other;
+			this.from = LocalDate.ofEpochDay(from);
+			this.to = LocalDate.ofEpochDay(to);
+		}
+
+		public String toString() {
+			return this.resource + " " + this.id + ": flight " + this.fnum + " overlaps flight " + this.other
+				+ " from " + this.from + " to " + this.to;
+		}
+	}
+
+	private final DBproject _esql;
+
+	//written by the listener thread, read on the next check, so the
+	//listener never waits for a load
+	private final ConcurrentLinkedQueue<String> _notes = new ConcurrentLinkedQueue<String>();
+	private final AtomicInteger _pending = new AtomicInteger();
+	private volatile boolean _loaded = false;
+	private volatile boolean _loading = false;
+	private volatile boolean _reload = false;
+
+	//the rest guarded by this
+	private Map<Integer, Timeline> _pilots = new HashMap<Integer, Timeline>();
+	private Map<Integer, Timeline> _planes = new HashMap<Integer, Timeline>();
+	//flight number to { pilot, plane }
+	private Map<Integer, int[]> _flights = new HashMap<Integer, int[]>();
+	//flights changed in the database since they were read
+	private final Set<Integer> _stale = new HashSet<Integer>();
+	//flights inserted by reserve(), whose own insert notification is expected
+	private final Set<Integer> _own = new HashSet<Integer>();
+
+	private long _checks = 0;
+	private long _rejected = 0;
+	private long _refreshed = 0;
+	private long _loads = 0;
+
+	public AssignmentIndex(DBproject esql) {
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to find what keeps a pilot or plane from flying a new flight.
+	 *
+	 * @param fnum the new flight's number, or -1
+	 * @return the first conflict found, or null when both are free
+	 * @throws java.sql.SQLException when the index cannot be loaded or refreshed
+	 */
+	public synchronized Conflict check(int fnum, int pilotId, int planeId, Date departure, Date arrival) throws SQLException {
+		current();
+		++this._checks;
+		int from = (int) departure.toLocalDate().toEpochDay(), to = (int) arrival.toLocalDate().toEpochDay();
+		Conflict c = conflict("pilot", this._pilots, pilotId, fnum, from, to);
+		if (c == null) c = conflict("plane", this._planes, planeId, fnum, from, to);
+		if (c != null) ++this._rejected;
+		return c;
+	}
+
+	/**
+	 * Method to check a new flight and, when its pilot and plane are free,
+	 * enter it at once, so a concurrent check already sees it.  Call
+	 * release() if the flight is not inserted after all.
+	 *
+	 * @return the first conflict found, or null when the flight was entered
+	 * @throws java.sql.SQLException when the index cannot be loaded or refreshed
+	 */
+	public synchronized Conflict reserve(int fnum, int pilotId, int planeId, Date departure, Date arrival) throws SQLException {
+		Conflict c = check(fnum, pilotId, planeId, departure, arrival);
+		if (c == null) {
+			add(fnum, pilotId, planeId, (int) departure.toLocalDate().toEpochDay(), (int) arrival.toLocalDate().toEpochDay());
+			this._own.add(fnum);
+		}
+		return c;
+	}
+
+	/**
+	 * Method to take back a flight entered by reserve().
+	 */
+	public synchronized void release(int fnum) {
+		remove(fnum);
+		this._own.remove(fnum);
+	}
+
+	/**
+	 * Method to reload every assignment and list all conflicts among them,
+	 * each pair of flights once per pilot or plane.
+	 *
+	 * @return the conflicts, ordered by pilots then planes
+	 * @throws java.sql.SQLException when the assignments cannot be read
+	 */
+	public synchronized List<Conflict> audit() throws SQLException {
+		load();
+		List<Conflict> conflicts = new ArrayList<Conflict>();
+		sweep("pilot", this._pilots, conflicts);
+		sweep("plane", this._planes, conflicts);
+		return conflicts;
+	}
+
+	/*
+	 * One pass over each timeline, keeping the intervals that have not
+	 * ended before the current start.
+	 */
+	private static void sweep(String resource, Map<Integer, Timeline> timelines, List<Conflict> out) {
+		Integer[] ids = timelines.keySet().toArray(new Integer[0]);
+		Arrays.sort(ids);
+		int[] active = new int[16];
+		Set<Long> reported = new HashSet<Long>();
+		for (Integer id : ids) {
+			Timeline t = timelines.get(id);
+			int n = 0;
+			reported.clear();
+			for (int i = 0; i < t.start.length; ++i) {
+				int k = 0;
+				for (int j = 0; j < n; ++j) {
+					int a = active[j];
+					if (t.end[a] < t.start[i]) continue;
+					active[k++] = a;
+					if (t.fnum[a] == t.fnum[i] || t.start[a] > t.end[i]) continue;
+					int lo = Math.min(t.fnum[a], t.fnum[i]), hi = Math.max(t.fnum[a], t.fnum[i]);
+					if (reported.add(((long) lo << 32) | (hi & 0xffffffffL))) {
+						out.add(new Conflict(resource, id, t.fnum[a], t.fnum[i], t.start[i], Math.min(t.end[a], t.end[i])));
+					}
+				}
+				if (k == active.length) active = Arrays.copyOf(active, k * 2);
+				active[k++] = i;
+				n = k;
+			}
+		}
+	}
+
+	public void notified(String payload) {
+		if (!this._loaded && !this._loading) return;
+		if (this._pending.incrementAndGet() > MAX_REFRESH) this._reload = true;
+		else this._notes.add(payload);
+	}
+
+	public void reset() {
+		this._reload = true;
+	}
+
+	/**
+	 * @return a one line summary of the index counters
+	 */
+	public synchronized String stats() {
+		return String.format("assignment index: %d flights, %d pilots, %d planes, %d checks, %d rejected, %d refreshed, %d loads",
+			this._flights.size(), this._pilots.size(), this._planes.size(), this._checks, this._rejected,
+			this._refreshed, this._loads);
+	}
+
+	private static Conflict conflict(String resource, Map<Integer, Timeline> timelines, int id, int fnum, int from, int to) {
+		Timeline t = timelines.get(id);
+		if (t == null) return null;
+		int i = t.overlapping(from, to, fnum);
+		if (i < 0) return null;
+		return new Conflict(resource, id, fnum, t.fnum[i], Math.max(from, t.start[i]), Math.min(to, t.end[i]));
+	}
+
+	/*
+	 * Loads the index, or re-reads the flights changed since.
+	 */
+	private void current() throws SQLException {
+		for (String payload; (payload = this._notes.poll()) != null; ) {
+			this._pending.decrementAndGet();
+			try{
+				Integer fnum = Integer.valueOf(payload);
+				if (!this._own.remove(fnum)) this._stale.add(fnum);
+			}catch (NumberFormatException e){
+				this._reload = true;
+			}
+		}
+		if (!this._loaded || this._reload || this._stale.size() > MAX_REFRESH) {
+			load();
+			return;
+		}
+		if (this._stale.isEmpty()) return;
+		for (Integer fnum : this._stale.toArray(new Integer[0])) {
+			remove(fnum);
+			this._esql.executeQueryStreaming(SQL_LOAD_FLIGHT, new RowHandler() {
+				public void row(Row row) throws SQLException {
+					long from = row.getEpochDay(4), to = row.getEpochDay(5);
+					if (from == Long.MIN_VALUE || to == Long.MIN_VALUE || to < from) return;
+					add(row.getInt(1), row.getInt(2), row.getInt(3), (int) from, (int) to);
+				}
+			}, fnum, fnum);
+			this._stale.remove(fnum);
+			++this._refreshed;
+		}
+	}
+
+	private void load() throws SQLException {
+		// changes notified from here on may be missing from the snapshot
+		// and are re-read by the next check
+		this._loading = true;
+		this._reload = false;
+		this._notes.clear();
+		this._pending.set(0);
+		this._stale.clear();
+		this._own.clear();
+		try{
+			read();
+		}finally{
+			this._loading = false;
+		}
+		this._loaded = true;
+		++this._loads;
+	}
+
+	private void read() throws SQLException {
+		final int[][] cols = { new int[1024], new int[1024], new int[1024], new int[1024], new int[1024] };
+		final int[] n = { 0 };
+		this._esql.executeQueryStreaming(SQL_LOAD, new RowHandler() {
+			public void row(Row row) throws SQLException {
+				long from = row.getEpochDay(4), to = row.getEpochDay(5);
+				if (from == Long.MIN_VALUE || to == Long.MIN_VALUE || to < from) return;
+				int i = n[0]++;
+				if (i == cols[0].length) {
+					for (int k = 0; k < cols.length; ++k) cols[k] = Arrays.copyOf(cols[k], i * 2);
+				}
+				cols[0][i] = row.getInt(1);
+				cols[1][i] = row.getInt(2);
+				cols[2][i] = row.getInt(3);
+				cols[3][i] = (int) from;
+				cols[4][i] = (int) to;
+			}
+		});
+		int size = n[0];
+		Map<Integer, int[]> flights = new HashMap<Integer, int[]>();
+		for (int i = 0; i < size; ++i) flights.put(cols[0][i], new int[] { cols[1][i], cols[2][i] });
+		this._pilots = timelines(cols[1], cols, size);
+		this._planes = timelines(cols[2], cols, size);
+		this._flights = flights;
+	}
+
+	/*
+	 * Groups the rows by pilot or plane into timelines.
+	 */
+	private static Map<Integer, Timeline> timelines(final int[] owner, final int[][] cols, int size) {
+		Integer[] boxed = new Integer[size];
+		for (int i = 0; i < size; ++i) boxed[i] = i;
+		Arrays.sort(boxed, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int c = Integer.compare(owner[a], owner[b]);
+				return c != 0 ? c : Integer.compare(cols[3][a], cols[3][b]);
+			}
+		});
+		Map<Integer, Timeline> timelines = new HashMap<Integer, Timeline>();
+		for (int first = 0; first < size; ) {
+			int last = first;
+			while (last < size && owner[boxed[last]] == owner[boxed[first]]) ++last;
+			int[] start = new int[last - first], end = new int[last - first], fnum = new int[last - first];
+			for (int i = first; i < last; ++i) {
+				start[i - first] = cols[3][boxed[i]];
+				end[i - first] = cols[4][boxed[i]];
+				fnum[i - first] = cols[0][boxed[i]];
+			}
+			timelines.put(owner[boxed[first]], new Timeline(start, end, fnum));
+			first = last;
+		}
+		return timelines;
+	}
+
+	private void add(int fnum, int pilotId, int planeId, int from, int to) {
+		this._flights.put(fnum, new int[] { pilotId, planeId });
+		Timeline t = this._pilots.get(pilotId);
+		this._pilots.put(pilotId, (t == null ? Timeline.EMPTY : t).with(from, to, fnum));
+		t = this._planes.get(planeId);
+		this._planes.put(planeId, (t == null ? Timeline.EMPTY : t).with(from, to, fnum));
+	}
+
+	private void remove(int fnum) {
+		int[] assigned = this._flights.remove(fnum);
+		if (assigned == null) return;
+		Timeline t = this._pilots.get(assigned[0]);
+		if (t != null) this._pilots.put(assigned[0], t.without(fnum));
+		t = this._planes.get(assigned[1]);
+		if (t != null) this._planes.put(assigned[1], t.without(fnum));
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * Runs menu operations off the Swing event thread.
+ *
+ * The menu used to call the database directly from its ActionListener, so
+ * the window froze for every round trip and one slow report held up
+ * everything behind it.  Now a menu operation reads its input on the event
+ * thread and hands the database work to submit().  The work runs on a
+ * small thread pool, and its result (or error) is passed back to the
+ * event thread with SwingUtilities.invokeLater.
+ *
+ * At most dbproject.ui.maxInFlight operations may be queued or running.
+ * Past that, submit() refuses new work at once rather than letting clicks
+ * pile up behind a slow database.  A status label shows what is running.
+ * cancelAll() abandons the running operations: their results are
+ * discarded and their threads interrupted, which ends any wait for a
+ * pooled connection.  A statement already sent to the server still runs
+ * to completion there.
+ *
+ * Settings (system properties, see Config):
+ *   dbproject.ui.threads      worker threads (default 4)
+ *   dbproject.ui.maxInFlight  operations queued or running at once (default 8)
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import javax.swing.JLabel;
+import javax.swing.SwingUtilities;
+
+public class AsyncDispatcher {
+
+	/*
+	 * One submitted operation.
+	 */
+	static final class Operation {
+		final String name;
+		final CompletableFuture<?> result;
+		volatile Future<?> task;
+
+		Operation(String name, CompletableFuture<?> result) {
+			this.name = name;
+			this.result = result;
+		}
+	}
+
+	private final ExecutorService _workers;
+	private final Semaphore _inFlight;
+	private final int _maxInFlight;
+	private final List<Operation> _running = new CopyOnWriteArrayList<Operation>();
+	//shows errors and rejections; called on the event thread
+	private final Consumer<Throwable> _onError;
+	private volatile JLabel _status = null;
+
+	/**
+	 * @param onError shows a failed operation's error; called on the event thread
+	 */
+	public AsyncDispatcher(Consumer<Throwable> onError) {
+		this._onError = onError;
+		this._maxInFlight = Math.max(1, Config.getInt("ui.maxInFlight", 8));
+		this._inFlight = new Semaphore(this._maxInFlight);
+		final AtomicInteger n = new AtomicInteger();
+		this._workers = Executors.newFixedThreadPool(Math.max(1, Config.getInt("ui.threads", 4)), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ui-worker-" + n.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Method to set the label that shows the running operations.
+	 */
+	public void setStatusLabel(JLabel status) {
+		this._status = status;
+		updateStatus();
+	}
+
+	/**
+	 * Method to run database work off the event thread.  Call it from the
+	 * event thread.
+	 *
+	 * @param name shown in the status label while the work runs
+	 * @param work the database work; must not touch Swing components
+	 * @param onResult receives the work's result on the event thread, unless
+	 *        the operation was cancelled
+	 * @return the pending result; cancel(true) abandons the operation.  It
+	 *         fails with RejectedExecutionException when too many
+	 *         operations are in flight
+	 */
+	public <T> CompletableFuture<T> submit(String name, final Callable<T> work, final Consumer<? super T> onResult) {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		if (!this._inFlight.tryAcquire()) {
+			RejectedExecutionException e = new RejectedExecutionException(
+				this._maxInFlight + " operations are already running; wait for one to finish");
+			result.completeExceptionally(e);
+			onEventThread(this._onError, e);
+			return result;
+		}
+		final Operation op = new Operation(name, result);
+		this._running.add(op);
+		updateStatus();
+
+		result.whenComplete(new BiConsumer<T, Throwable>() {
+			public void accept(final T value, final Throwable error) {
+				_running.remove(op);
+				_inFlight.release();
+				updateStatus();
+				if (result.isCancelled()) {
+					Future<?> task = op.task;
+					if (task != null) task.cancel(true);
+					return;
+				}
+				if (error != null) onEventThread(_onError, error);
+				else onEventThread(onResult, value);
+			}
+		});
+		try{
+			op.task = this._workers.submit(new Runnable() {
+				public void run() {
+					if (result.isDone()) return;
+					try{
+						result.complete(work.call());
+					}catch (Throwable e){
+						result.completeExceptionally(e);
+					}
+				}
+			});
+		}catch (RejectedExecutionException e){
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+	/**
+	 * Method to cancel every queued or running operation.
+	 *
+	 * @return number of operations cancelled
+	 */
+	public int cancelAll() {
+		int n = 0;
+		for (Operation op : new ArrayList<Operation>(this._running)) {
+			if (op.result.cancel(true)) ++n;
+		}
+		return n;
+	}
+
+	/**
+	 * @return number of operations queued or running
+	 */
+	public int inFlight() {
+		return this._running.size();
+	}
+
+	/**
+	 * Method to cancel everything and stop the worker threads.
+	 */
+	public void shutdown() {
+		cancelAll();
+		this._workers.shutdownNow();
+	}
+
+	private void updateStatus() {
+		final JLabel status = this._status;
+		if (status == null) return;
+		List<Operation> running = new ArrayList<Operation>(this._running);
+		final String text = running.isEmpty() ? "Ready"
+			: running.size() == 1 ? "Running: " + running.get(0).name + "..."
+			: "Running " + running.size() + " operations...";
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				status.setText(text);
+			}
+		});
+	}
+
+	private static <T> void onEventThread(final Consumer<? super T> consumer, final T value) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				consumer.accept(value);
+			}
+		});
+	}
+}
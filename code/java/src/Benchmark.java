@@ -0,0 +1,497 @@
+/*
+ * Benchmarks for the DBproject data-access paths.
+ *
+ * Modes:
+ *   book            latency of a single booking, one thread
+ *   throughput      booking throughput at 1, 8 and 64 threads
+ *                   (override with -Ddbproject.bench.threads=1,4,16)
+ *   reports         latency of the repair reports (menu 7 and 8)
+ *   materialize     throughput of reading Reservation through
+ *                   executeQueryAndReturnResult versus executeQueryStreaming
+ *   insert          customers inserted one per call (AirlineService.addCustomer)
+ *                   versus dbproject.bench.batchRows per InsertBatch; each
+ *                   insert.batch op inserts that many rows
+ *   hotflight       bookings on a single flight at every thread count,
+ *                   one transaction per booking (BookingEngine.book) versus
+ *                   batched per flight (BookingCoalescer); the flight is
+ *                   dbproject.bench.hotFlight, by default the one with the
+ *                   largest plane, and its num_sold is reset and its
+ *                   waitlisted reservations deleted while it runs, so every
+ *                   booking competes for a free seat
+ *   all             book, throughput, reports, materialize and insert
+ *   memory [table]  reads a whole table (default Reservation) once through
+ *                   executeQueryAndReturnResult and once through
+ *                   executeQueryStreaming, and reports rows, time, peak heap
+ *                   growth and GC activity for each
+ *
+ * Timed modes run dbproject.bench.warmupSec seconds of warm-up (default 5)
+ * followed by dbproject.bench.measureSec seconds of measurement (default 10)
+ * and append their results as JSON to dbproject.bench.out (default
+ * bench-results.json), one object per benchmark, so runs can be compared
+ * over time.  Booking benchmarks write reservations; run them against a
+ * scratch database (see bench.sh).  The ResultCache is off unless
+ * dbproject.resultCache.maxRows is set, so reads measure the database and
+ * not cache hits.
+ *
+ * Example: java -Xmx2g -cp lib/*:bin/ Benchmark flightDB 5432 user all
+ */
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+public class Benchmark {
+
+	/*
+	 * Samples heap usage on a background thread and keeps the peak.
+	 */
+	static class HeapSampler extends Thread {
+		private final MemoryMXBean _memory = ManagementFactory.getMemoryMXBean();
+		private volatile boolean _running = true;
+		private volatile long _peak;
+
+		HeapSampler() {
+			super("heap-sampler");
+			setDaemon(true);
+			this._peak = used();
+		}
+
+		long used() {
+			return this._memory.getHeapMemoryUsage().getUsed();
+		}
+
+		public void run() {
+			while (this._running) {
+				this._peak = Math.max(this._peak, used());
+				try{
+					Thread.sleep(2);
+				}catch (InterruptedException e){
+					return;
+				}
+			}
+		}
+
+		long finish() {
+			this._running = false;
+			interrupt();
+			this._peak = Math.max(this._peak, used());
+			return this._peak;
+		}
+	}
+
+	/*
+	 * Measures one run of a read path.
+	 */
+	interface Reader {
+		long read() throws SQLException;
+	}
+
+	static void measureMemory(String label, Reader reader) {
+		System.gc();
+		HeapSampler sampler = new HeapSampler();
+		long base = sampler.used();
+		long gcCount = gcCount(), gcMillis = gcMillis();
+		sampler.start();
+		long start = System.nanoTime();
+		String outcome;
+		try{
+			outcome = reader.read() + " rows";
+		}catch (OutOfMemoryError e){
+			outcome = "OutOfMemoryError";
+		}catch (SQLException e){
+			outcome = "failed: " + e.getMessage();
+		}
+		double secs = (System.nanoTime() - start) / 1e9;
+		long peak = sampler.finish();
+		System.out.printf("%-12s %-20s %8.2f s  peak heap +%,d KB  %d GCs (%d ms)%n",
+			label, outcome, secs, Math.max(0, peak - base) / 1024,
+			gcCount() - gcCount, gcMillis() - gcMillis);
+	}
+
+	static long gcCount() {
+		long n = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) n += gc.getCollectionCount();
+		return n;
+	}
+
+	static long gcMillis() {
+		long n = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) n += gc.getCollectionTime();
+		return n;
+	}
+
+	static void memory(final DBproject esql, String table) {
+		if (!table.matches("[A-Za-z_][A-Za-z0-9_]*")) throw new IllegalArgumentException("Invalid table " + table);
+		final String query = "SELECT * FROM " + table;
+
+		measureMemory("materialize", new Reader() {
+			public long read() throws SQLException {
+				List<List<String>> rows = esql.executeQueryAndReturnResult(query);
+				return rows.size();
+			}
+		});
+
+		measureMemory("stream", new Reader() {
+			public long read() throws SQLException {
+				final long[] checksum = new long[1];
+				long rows = esql.executeQueryStreaming(query, new RowHandler() {
+					public void row(Row row) throws SQLException {
+						checksum[0] += row.getInt(1);
+					}
+				});
+				return rows;
+			}
+		});
+	}
+
+	/*
+	 * One timed operation.  thread is the index of the calling thread.
+	 */
+	interface Op {
+		void run(int thread, SplittableRandom random) throws Exception;
+	}
+
+	/*
+	 * Outcome of one timed benchmark.
+	 */
+	static class Result {
+		String name;
+		int threads;
+		long ops;
+		long errors;
+		double seconds;
+		long[] latencies; //nanoseconds, sorted
+
+		double throughput() {
+			return this.ops / this.seconds;
+		}
+
+		double percentileMicros(double p) {
+			if (this.latencies.length == 0) return 0;
+			int i = (int) Math.ceil(p / 100.0 * this.latencies.length) - 1;
+			return this.latencies[Math.max(0, Math.min(i, this.latencies.length - 1))] / 1e3;
+		}
+
+		double meanMicros() {
+			if (this.latencies.length == 0) return 0;
+			double sum = 0;
+			for (long l : this.latencies) sum += l;
+			return sum / this.latencies.length / 1e3;
+		}
+
+		String toJson() {
+			return String.format(Locale.ROOT,
+				"{\"benchmark\": \"%s\", \"threads\": %d, \"ops\": %d, \"errors\": %d, \"seconds\": %.3f, "
+				+ "\"throughput\": %.2f, \"throughputUnit\": \"ops/s\", \"latencyUnit\": \"us\", "
+				+ "\"mean\": %.1f, \"p50\": %.1f, \"p90\": %.1f, \"p99\": %.1f, \"p999\": %.1f, \"max\": %.1f, "
+				+ "\"timestamp\": %d}",
+				this.name, this.threads, this.ops, this.errors, this.seconds, throughput(),
+				meanMicros(), percentileMicros(50), percentileMicros(90), percentileMicros(99),
+				percentileMicros(99.9), percentileMicros(100), System.currentTimeMillis());
+		}
+
+		public String toString() {
+			return String.format("%-28s %3d thr %10.1f ops/s  mean %9.1f us  p50 %9.1f  p99 %9.1f  p99.9 %9.1f  max %9.1f  (%d errors)",
+				this.name, this.threads, throughput(), meanMicros(), percentileMicros(50), percentileMicros(99),
+				percentileMicros(99.9), percentileMicros(100), this.errors);
+		}
+	}
+
+	/*
+	 * Latencies of one thread, in a growable primitive array.
+	 */
+	static class Samples {
+		long[] values = new long[1 << 12];
+		int size = 0;
+		long errors = 0;
+
+		void add(long nanos) {
+			if (this.size == this.values.length) this.values = Arrays.copyOf(this.values, this.size * 2);
+			this.values[this.size++] = nanos;
+		}
+	}
+
+	static final long WARMUP_NANOS = Config.getLong("bench.warmupSec", 5) * 1000000000L;
+	static final long MEASURE_NANOS = Config.getLong("bench.measureSec", 10) * 1000000000L;
+
+	/**
+	 * Method to run an operation on a number of threads for the warm-up and
+	 * measurement periods and collect the measured latencies.
+	 */
+	static Result measure(final String name, final int threads, final Op op) throws InterruptedException {
+		final Samples[] samples = new Samples[threads];
+		final long start = System.nanoTime();
+		final long measureFrom = start + WARMUP_NANOS;
+		final long end = measureFrom + MEASURE_NANOS;
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; ++t) {
+			final int thread = t;
+			samples[t] = new Samples();
+			workers[t] = new Thread(new Runnable() {
+				public void run() {
+					SplittableRandom random = new SplittableRandom(thread * 0x9E3779B97F4A7C15L + 1);
+					Samples mine = samples[thread];
+					long now;
+					while ((now = System.nanoTime()) < end) {
+						boolean failed = false;
+						try{
+							op.run(thread, random);
+						}catch (Exception e){
+							failed = true;
+						}
+						long done = System.nanoTime();
+						if (now >= measureFrom) {
+							if (failed) ++mine.errors;
+							else mine.add(done - now);
+						}
+					}
+				}
+			}, name + "-" + t);
+			workers[t].start();
+		}
+		for (Thread w : workers) w.join();
+
+		Result r = new Result();
+		r.name = name;
+		r.threads = threads;
+		r.seconds = MEASURE_NANOS / 1e9;
+		int total = 0;
+		for (Samples s : samples) total += s.size;
+		r.latencies = new long[total];
+		int at = 0;
+		for (Samples s : samples) {
+			System.arraycopy(s.values, 0, r.latencies, at, s.size);
+			at += s.size;
+			r.errors += s.errors;
+		}
+		Arrays.sort(r.latencies);
+		r.ops = total;
+		System.out.println(r);
+		return r;
+	}
+
+	/*
+	 * Flights that have a plane assigned, and the customer ids, so bookings
+	 * can pick valid keys at random.
+	 */
+	static int[] ids(DBproject esql, String query) throws SQLException {
+		final int[][] ids = { new int[1024] };
+		final int[] n = { 0 };
+		esql.executeQueryStreaming(query, new RowHandler() {
+			public void row(Row row) throws SQLException {
+				if (n[0] == ids[0].length) ids[0] = Arrays.copyOf(ids[0], n[0] * 2);
+				ids[0][n[0]++] = row.getInt(1);
+			}
+		});
+		if (n[0] == 0) throw new SQLException("No rows for " + query);
+		return Arrays.copyOf(ids[0], n[0]);
+	}
+
+	static Op booking(DBproject esql) throws SQLException {
+		final AirlineService service = esql.service();
+		final int[] flights = ids(esql, "SELECT flight_id FROM FlightInfo");
+		final int[] customers = ids(esql, "SELECT id FROM Customer");
+		return new Op() {
+			public void run(int thread, SplittableRandom random) throws Exception {
+				service.bookFlight(customers[random.nextInt(customers.length)], flights[random.nextInt(flights.length)]);
+			}
+		};
+	}
+
+	static int[] threadCounts() {
+		String[] parts = Config.getString("bench.threads", "1,8,64").split(",");
+		int[] counts = new int[parts.length];
+		for (int i = 0; i < parts.length; ++i) counts[i] = Integer.parseInt(parts[i].trim());
+		return counts;
+	}
+
+	static void book(DBproject esql, List<Result> results) throws Exception {
+		results.add(measure("book.latency", 1, booking(esql)));
+	}
+
+	static void throughput(DBproject esql, List<Result> results) throws Exception {
+		Op op = booking(esql);
+		for (int threads : threadCounts()) {
+			results.add(measure("book.throughput", threads, op));
+		}
+	}
+
+	static void hotFlight(final DBproject esql, List<Result> results) throws Exception {
+		List<List<String>> rows = esql.executeQueryAndReturnResult(
+			"SELECT i.flight_id, p.seats FROM FlightInfo i INNER JOIN Plane p ON p.id = i.plane_id "
+			+ "ORDER BY p.seats DESC, i.flight_id LIMIT 1");
+		if (rows.isEmpty()) throw new SQLException("No flight has a plane assigned");
+		final int fnum = Config.getInt("bench.hotFlight", Integer.parseInt(rows.get(0).get(0)));
+		rows = esql.executeQueryAndReturnResult(
+			"SELECT p.seats FROM FlightInfo i INNER JOIN Plane p ON p.id = i.plane_id WHERE i.flight_id = ?", fnum);
+		if (rows.isEmpty()) throw new SQLException("Flight " + fnum + " has no plane assigned");
+		final int halfFull = Integer.parseInt(rows.get(0).get(0)) / 2;
+		final int[] customers = ids(esql, "SELECT id FROM Customer");
+		final BookingEngine engine = esql.bookingEngine();
+		final BookingCoalescer coalescer = new BookingCoalescer(engine);
+
+		// keeps seats free and the waitlist empty: a booking is waitlisted
+		// without updating the row while the flight is full or has
+		// waitlisted passengers, and a batch that fills the flight leaves some
+		final String reset =
+			"WITH w AS (DELETE FROM Reservation WHERE fid = ? AND status = 'W') "
+			+ "UPDATE Flight SET num_sold = 0 WHERE fnum = ? AND num_sold > ?";
+		esql.executeUpdate(reset, fnum, fnum, -1);
+		Thread resetter = new Thread(new Runnable() {
+			public void run() {
+				while (!Thread.currentThread().isInterrupted()) {
+					try{
+						esql.executeUpdate(reset, fnum, fnum, halfFull);
+						Thread.sleep(1);
+					}catch (SQLException e){
+						System.err.println("reset failed: " + e.getMessage());
+					}catch (InterruptedException e){
+						return;
+					}
+				}
+			}
+		}, "hot-flight-reset");
+		resetter.setDaemon(true);
+		resetter.start();
+		try{
+			for (int threads : threadCounts()) {
+				Result single = measure("book.hot.single", threads, new Op() {
+					public void run(int thread, SplittableRandom random) throws Exception {
+						engine.book(customers[random.nextInt(customers.length)], fnum);
+					}
+				});
+				results.add(single);
+				Result batched = measure("book.hot.coalesced", threads, new Op() {
+					public void run(int thread, SplittableRandom random) throws Exception {
+						coalescer.book(customers[random.nextInt(customers.length)], fnum);
+					}
+				});
+				results.add(batched);
+				System.out.printf("flight %d, %d threads: coalesced %.1fx bookings/s%n",
+					fnum, threads, batched.throughput() / single.throughput());
+			}
+			System.out.println(coalescer.stats());
+		}finally{
+			resetter.interrupt();
+			resetter.join();
+			coalescer.close();
+		}
+	}
+
+	static void reports(DBproject esql, List<Result> results) throws Exception {
+		final AirlineService service = esql.service();
+		results.add(measure("report.repairsPerPlane", 1, new Op() {
+			public void run(int thread, SplittableRandom random) throws Exception {
+				service.repairsPerPlane();
+			}
+		}));
+		results.add(measure("report.repairsPerYear", 1, new Op() {
+			public void run(int thread, SplittableRandom random) throws Exception {
+				service.repairsPerYear();
+			}
+		}));
+	}
+
+	static void materialize(final DBproject esql, List<Result> results) throws Exception {
+		final String query = "SELECT rnum, cid, fid, status FROM Reservation";
+		results.add(measure("read.materialize", 1, new Op() {
+			public void run(int thread, SplittableRandom random) throws Exception {
+				esql.executeQueryAndReturnResult(query);
+			}
+		}));
+		results.add(measure("read.stream", 1, new Op() {
+			public void run(int thread, SplittableRandom random) throws Exception {
+				final long[] sum = new long[1];
+				esql.executeQueryStreaming(query, new RowHandler() {
+					public void row(Row row) throws SQLException {
+						sum[0] += row.getInt(1) + row.getInt(2) + row.getInt(3) + row.getChar(4);
+					}
+				});
+			}
+		}));
+	}
+
+	static void insert(DBproject esql, List<Result> results) throws Exception {
+		final AirlineService service = esql.service();
+		final int rows = Math.max(1, Config.getInt("bench.batchRows", 1000));
+		final java.sql.Date dob = java.sql.Date.valueOf("1980-01-01");
+		Result single = measure("insert.row", 1, new Op() {
+			public void run(int thread, SplittableRandom random) throws Exception {
+				service.addCustomer("Bench", "Customer", 'F', dob, "1 Main Street", "5550000000", "92521");
+			}
+		});
+		results.add(single);
+		Result batch = measure("insert.batch" + rows, 1, new Op() {
+			public void run(int thread, SplittableRandom random) throws Exception {
+				InsertBatch b = service.newBatch();
+				for (int i = 0; i < rows; ++i) {
+					b.addCustomer("Bench", "Customer", 'F', dob, "1 Main Street", "5550000000", "92521");
+				}
+				b.execute();
+			}
+		});
+		results.add(batch);
+		System.out.printf("batch speedup: %.1fx rows/s%n", batch.throughput() * rows / single.throughput());
+	}
+
+	static void writeResults(List<Result> results) throws IOException {
+		if (results.isEmpty()) return;
+		String file = Config.getString("bench.out", "bench-results.json");
+		PrintWriter out = new PrintWriter(new FileWriter(file, true));
+		try{
+			for (Result r : results) out.println(r.toJson());
+		}finally{
+			out.close();
+		}
+		System.out.println("Results appended to " + file);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println("Usage: java [-classpath <classpath>] Benchmark"
+				+ " <dbname> <port> <user> book|throughput|hotflight|reports|materialize|insert|all|memory [table]");
+			return;
+		}
+		Class.forName("org.postgresql.Driver");
+		int maxThreads = 1;
+		for (int t : threadCounts()) maxThreads = Math.max(maxThreads, t);
+		if (System.getProperty("dbproject.pool.maxSize") == null) {
+			System.setProperty("dbproject.pool.maxSize", String.valueOf(maxThreads));
+		}
+		if (System.getProperty("dbproject.resultCache.maxRows") == null) {
+			System.setProperty("dbproject.resultCache.maxRows", "0");
+		}
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		List<Result> results = new ArrayList<Result>();
+		try{
+			String mode = args[3];
+			boolean all = mode.equals("all");
+			if (mode.equals("memory")) {
+				memory(esql, args.length > 4 ? args[4] : "Reservation");
+			} else if (mode.equals("hotflight")) {
+				hotFlight(esql, results);
+			} else if (!all && !mode.equals("book") && !mode.equals("throughput")
+					&& !mode.equals("reports") && !mode.equals("materialize") && !mode.equals("insert")) {
+				System.err.println("Unknown mode: " + mode);
+			} else {
+				if (all || mode.equals("book")) book(esql, results);
+				if (all || mode.equals("throughput")) throughput(esql, results);
+				if (all || mode.equals("reports")) reports(esql, results);
+				if (all || mode.equals("materialize")) materialize(esql, results);
+				if (all || mode.equals("insert")) insert(esql, results);
+			}
+			writeResults(results);
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
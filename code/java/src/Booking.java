@@ -0,0 +1,60 @@
+/*
+ * Outcome of booking a seat on a flight.
+ */
+
+public class Booking {
+	public static final char CONFIRMED = 'C';
+	public static final char WAITLISTED = 'W';
+
+	private final int _rnum;
+	private final int _cid;
+	private final int _fnum;
+	private final char _status;
+
+	public Booking(int rnum, int cid, int fnum, char status) {
+		this._rnum = rnum;
+		this._cid = cid;
+		this._fnum = fnum;
+		this._status = status;
+	}
+
+	/**
+	 * @return the reservation number assigned to the booking
+	 */
+	public int rnum() {
+		return this._rnum;
+	}
+
+	/**
+	 * @return the id of the customer who booked
+	 */
+	public int cid() {
+		return this._cid;
+	}
+
+	/**
+	 * @return the flight number booked
+	 */
+	public int fnum() {
+		return this._fnum;
+	}
+
+	/**
+	 * @return the reservation status, 'C' or 'W'
+	 */
+	public char status() {
+		return this._status;
+	}
+
+	/**
+	 * @return true when a seat was sold, false when the customer was waitlisted
+	 */
+	public boolean isConfirmed() {
+		return this._status == CONFIRMED;
+	}
+
+	public String toString() {
+		return "Reservation #" + this._rnum + " on flight " + this._fnum
+			+ (isConfirmed() ? " (confirmed)" : " (waitlisted)");
+	}
+}
@@ -0,0 +1,246 @@
+/*
+ * Books seats on busy flights in batches.
+ *
+ * Every booking updates its flight's num_sold, so concurrent bookings on
+ * one flight queue up on that row's lock and run one after another, each
+ * a transaction of its own.  Here bookings are queued per flight instead.
+ * The first booking on an idle flight starts a window of
+ * dbproject.booking.windowMicros; when it closes (or
+ * dbproject.booking.maxBatch bookings are waiting) a worker books the
+ * queued customers with BookingEngine.bookAll: one transaction, one
+ * num_sold update and one multi-row Reservation insert.  Bookings that
+ * arrive while a batch runs form the next batch, which starts as soon as
+ * the previous one commits.
+ *
+ * Callers still block in book() until their own reservation exists and get
+ * their own result.  Within a batch, seats go to the earliest requests.
+ * When a batch is rejected for an integrity violation (e.g. one customer
+ * does not exist), nothing of it was written, so its bookings are retried
+ * one by one with BookingEngine.book and only the bad one fails.  Any other
+ * error fails the whole batch: the statement may have committed before the
+ * error, and booking again would make duplicate reservations.
+ *
+ * Settings (system properties, see Config):
+ *   dbproject.booking.coalesce      book through this class (default false)
+ *   dbproject.booking.windowMicros  wait for more bookings on a flight (default 1000)
+ *   dbproject.booking.maxBatch      most bookings per transaction (default 64)
+ *   dbproject.booking.threads       workers running batches (default 4)
+ */
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BookingCoalescer {
+
+	/*
+	 * One caller waiting for its booking.
+	 */
+	static final class Request {
+		final int cid;
+		final CompletableFuture<Booking> result = new CompletableFuture<Booking>();
+
+		Request(int cid) {
+			this.cid = cid;
+		}
+	}
+
+	/*
+	 * The bookings waiting for one flight; also its lock.  A queue is
+	 * dropped from the map once drained, and closed so no booking is
+	 * added to it after that.
+	 */
+	static final class FlightQueue {
+		final int fnum;
+		final ArrayDeque<Request> waiting = new ArrayDeque<Request>();
+		//a drain is scheduled or running
+		boolean scheduled = false;
+		boolean running = false;
+		boolean closed = false;
+
+		FlightQueue(int fnum) {
+			this.fnum = fnum;
+		}
+	}
+
+	private final BookingEngine _engine;
+	private final long _windowMicros;
+	private final int _maxBatch;
+	private final ScheduledExecutorService _workers;
+	private final ConcurrentHashMap<Integer, FlightQueue> _queues = new ConcurrentHashMap<Integer, FlightQueue>();
+
+	private final AtomicLong _bookings = new AtomicLong();
+	private final AtomicLong _batches = new AtomicLong();
+	private final AtomicLong _retried = new AtomicLong();
+
+	public BookingCoalescer(BookingEngine engine) {
+		this._engine = engine;
+		this._windowMicros = Math.max(0, Config.getLong("booking.windowMicros", 1000));
+		this._maxBatch = Math.max(1, Config.getInt("booking.maxBatch", 64));
+		final AtomicInteger n = new AtomicInteger();
+		this._workers = Executors.newScheduledThreadPool(Math.max(1, Config.getInt("booking.threads", 4)), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "booking-batch-" + n.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Method to book a seat for a customer, together with the other
+	 * bookings on the same flight that arrive within the window.
+	 *
+	 * @param cid the customer id
+	 * @param fnum the flight number
+	 * @return the reservation that was created
+	 * @throws java.sql.SQLException when the customer or flight does not exist
+	 *         or the booking fails
+	 */
+	public Booking book(int cid, int fnum) throws SQLException {
+		Request request = new Request(cid);
+		while (true) {
+			FlightQueue q = this._queues.get(fnum);
+			if (q == null) {
+				FlightQueue created = new FlightQueue(fnum);
+				q = this._queues.putIfAbsent(fnum, created);
+				if (q == null) q = created;
+			}
+			synchronized (q) {
+				if (q.closed) continue;
+				q.waiting.add(request);
+				if (!q.scheduled) {
+					q.scheduled = true;
+					schedule(q, this._windowMicros);
+				} else if (q.waiting.size() == this._maxBatch && !q.running) {
+					// full before the window closed; the delayed drain finds nothing
+					schedule(q, 0);
+				}
+			}
+			break;
+		}
+		this._bookings.incrementAndGet();
+		try{
+			return request.result.get();
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a booking on flight " + fnum
+				+ "; it may still be made", "57014");
+		}catch (ExecutionException e){
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException) throw (SQLException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new SQLException(cause);
+		}
+	}
+
+	private void schedule(final FlightQueue q, long delayMicros) {
+		this._workers.schedule(new Runnable() {
+			public void run() {
+				drain(q);
+			}
+		}, delayMicros, TimeUnit.MICROSECONDS);
+	}
+
+	/*
+	 * Books one batch of the flight's queue, then schedules the next batch
+	 * or retires the queue.
+	 */
+	private void drain(FlightQueue q) {
+		Request[] batch;
+		synchronized (q) {
+			if (q.running || q.waiting.isEmpty()) return;
+			q.running = true;
+			batch = new Request[Math.min(q.waiting.size(), this._maxBatch)];
+			for (int i = 0; i < batch.length; ++i) batch[i] = q.waiting.poll();
+		}
+		try{
+			run(q.fnum, batch);
+		}finally{
+			synchronized (q) {
+				q.running = false;
+				if (!q.waiting.isEmpty()) {
+					schedule(q, 0);
+				} else {
+					q.scheduled = false;
+					q.closed = true;
+					this._queues.remove(q.fnum, q);
+				}
+			}
+		}
+	}
+
+	private void run(int fnum, Request[] batch) {
+		this._batches.incrementAndGet();
+		int[] cids = new int[batch.length];
+		for (int i = 0; i < batch.length; ++i) cids[i] = batch[i].cid;
+		try{
+			Booking[] bookings = this._engine.bookAll(fnum, cids);
+			for (int i = 0; i < batch.length; ++i) batch[i].result.complete(bookings[i]);
+			return;
+		}catch (SQLException e){
+			if (batch.length == 1 || !isIntegrityViolation(e)) {
+				for (Request r : batch) r.result.completeExceptionally(e);
+				return;
+			}
+		}catch (RuntimeException e){
+			for (Request r : batch) r.result.completeExceptionally(e);
+			return;
+		}
+		// the statement was rejected, so nothing of the batch was written;
+		// find the bad booking
+		this._retried.addAndGet(batch.length);
+		for (Request r : batch) {
+			try{
+				r.result.complete(this._engine.book(r.cid, fnum));
+			}catch (SQLException e){
+				r.result.completeExceptionally(e);
+			}catch (RuntimeException e){
+				r.result.completeExceptionally(e);
+			}
+		}
+	}
+
+	/*
+	 * Class 23 errors reject the statement before it commits; after any
+	 * other error the batch may or may not have been written.
+	 */
+	private static boolean isIntegrityViolation(SQLException e) {
+		String state = e.getSQLState();
+		return state != null && state.startsWith("23");
+	}
+
+	/**
+	 * @return a one line summary of the batching counters
+	 */
+	public String stats() {
+		long batches = this._batches.get();
+		return String.format("booking coalescer: %d bookings in %d batches (%.1f per batch), %d retried singly",
+			this._bookings.get(), batches, batches == 0 ? 0.0 : (double) this._bookings.get() / batches,
+			this._retried.get());
+	}
+
+	/**
+	 * Method to stop the workers.  Bookings still queued fail.
+	 */
+	public void close() {
+		this._workers.shutdownNow();
+		for (FlightQueue q : this._queues.values()) {
+			synchronized (q) {
+				for (Request r : q.waiting) {
+					r.result.completeExceptionally(new SQLException("Booking coalescer closed", "57P01"));
+				}
+				q.waiting.clear();
+				q.closed = true;
+			}
+		}
+	}
+}
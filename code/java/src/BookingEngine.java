@@ -0,0 +1,193 @@
+/*
+ * Books seats with a single atomic statement.
+ *
+ * The seat check, the num_sold increment and the Reservation insert are one
+ * data-modifying CTE, so a booking costs one round trip.  The UPDATE only
+ * matches the flight while num_sold < seats.  When two bookers race for the
+ * last seat, the second one blocks on the Flight row lock and PostgreSQL
+ * re-checks that condition against the committed row before updating.  It
+ * therefore finds the flight full and is waitlisted, so seats are never
+ * oversold.  While the flight has waitlisted passengers, a new booking is
+ * waitlisted too, even when a cancellation has just freed a seat: that
+ * seat belongs to the oldest waitlisted passenger, whom the
+ * WaitlistPromoter confirms shortly after.  The check reads the statement's
+ * snapshot, so it may still see passengers a promotion is confirming; a
+ * trigger in sql/migrations/005_waitlist.sql wakes the promoter for such a
+ * booking when the flight has free seats.  The reservation number comes
+ * from the IdAllocator, and RETURNING reports the status and the new
+ * num_sold.  A booking that sold seats drops the flight from the seat
+ * cache rather than storing num_sold: the trigger's notification of a
+ * later booking may already be there.
+ *
+ * bookAll() books several customers on one flight the same way, in one
+ * statement: the flight row is locked once, num_sold grows by the seats
+ * granted, and the reservations are inserted together, confirmed in the
+ * order given until the seats run out.  BookingCoalescer uses it to turn
+ * concurrent bookings on a busy flight into one row update per batch.
+ */
+
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+public class BookingEngine {
+	static final String SQL_BOOK =
+		"WITH sold AS ( " +
+		"UPDATE Flight f SET num_sold = f.num_sold + 1 " +
+		"FROM FlightInfo i, Plane p " +
+		"WHERE f.fnum = ? AND i.flight_id = f.fnum AND p.id = i.plane_id AND f.num_sold < p.seats " +
+		"AND NOT EXISTS (SELECT 1 FROM Reservation w WHERE w.fid = f.fnum AND w.status = 'W') " +
+		"RETURNING f.num_sold) " +
+		"INSERT INTO Reservation(rnum, cid, fid, status) " +
+		"SELECT ?, ?, ?, CASE WHEN EXISTS (SELECT 1 FROM sold) THEN 'C' ELSE 'W' END " +
+		"RETURNING status, (SELECT num_sold FROM sold)";
+	// FOR UPDATE re-reads num_sold after waiting for the lock, so granted
+	// is computed from the committed count
+	static final String SQL_BOOK_BATCH =
+		"WITH f AS ( " +
+		"SELECT f.fnum, f.num_sold, p.seats FROM Flight f " +
+		"INNER JOIN FlightInfo i ON i.flight_id = f.fnum INNER JOIN Plane p ON p.id = i.plane_id " +
+		"WHERE f.fnum = ? FOR UPDATE OF f), " +
+		"sold AS ( " +
+		"UPDATE Flight g SET num_sold = g.num_sold + LEAST(?, f.seats - f.num_sold) " +
+		"FROM f WHERE g.fnum = f.fnum AND f.num_sold < f.seats " +
+		"AND NOT EXISTS (SELECT 1 FROM Reservation w WHERE w.fid = f.fnum AND w.status = 'W') " +
+		"RETURNING g.num_sold, LEAST(?, f.seats - f.num_sold) AS granted) " +
+		"INSERT INTO Reservation(rnum, cid, fid, status) " +
+		"SELECT r.rnum, r.cid, ?, CASE WHEN r.ord <= COALESCE((SELECT granted FROM sold), 0) THEN 'C' ELSE 'W' END " +
+		"FROM unnest(?::int[], ?::int[]) WITH ORDINALITY AS r(rnum, cid, ord) " +
+		"RETURNING rnum, status, (SELECT num_sold FROM sold)";
+
+	static {
+		Metrics.name(SQL_BOOK, "bookFlight");
+		Metrics.name(SQL_BOOK_BATCH, "bookFlightBatch");
+	}
+
+	private final ConnectionPool _pool;
+	//flights drop out of it when seats are sold here
+	private final SeatCache _seats;
+	//reservation numbers
+	private final IdAllocator _ids;
+	//told about every booking, so reports read their own writes; may be null
+	private final ReplicaRouter _replicas;
+	//told about every booking, so cached reports are not used after it; may be null
+	private final ResultCache _results;
+
+	public BookingEngine(ConnectionPool pool, SeatCache seats, IdAllocator ids, ReplicaRouter replicas,
+			ResultCache results) {
+		this._pool = pool;
+		this._seats = seats;
+		this._ids = ids;
+		this._replicas = replicas;
+		this._results = results;
+	}
+
+	/**
+	 * Method to book a seat for a customer.  The customer is confirmed when
+	 * the flight still has a free seat and waitlisted otherwise.
+	 *
+	 * @param cid the customer id
+	 * @param fnum the flight number
+	 * @return the reservation that was created
+	 * @throws java.sql.SQLException when the customer or flight does not exist
+	 *         or the statement fails
+	 */
+	public Booking book(int cid, int fnum) throws SQLException {
+		int rnum = this._ids.next(IdAllocator.RESERVATION);
+		long start = System.nanoTime();
+		boolean failed = true;
+		PooledConnection conn = this._pool.borrow();
+		try{
+			PreparedStatement stmt = conn.prepare(SQL_BOOK);
+			stmt.setInt(1, fnum);
+			stmt.setInt(2, rnum);
+			stmt.setInt(3, cid);
+			stmt.setInt(4, fnum);
+			ResultSet rs = stmt.executeQuery();
+			try{
+				if (!rs.next()) throw new SQLException("Booking returned no reservation");
+				Booking booking = new Booking(rnum, cid, fnum, rs.getString(1).charAt(0));
+				if (booking.isConfirmed()) this._seats.invalidate(fnum);
+				if (this._replicas != null) this._replicas.noteWrite(conn);
+				if (this._results != null) this._results.changed("Reservation");
+				failed = false;
+				return booking;
+			}finally{
+				rs.close();
+			}
+		}catch (SQLException e){
+			conn.failed(e);
+			throw e;
+		}finally{
+			this._pool.release(conn);
+			Metrics.record(SQL_BOOK, start, failed ? 0 : 1, failed);
+		}
+	}
+
+	/**
+	 * Method to book seats for several customers on one flight in one
+	 * transaction.  Customers are confirmed in the given order while the
+	 * flight has free seats and waitlisted after that.  Either every
+	 * reservation is made or none is.
+	 *
+	 * @param fnum the flight number
+	 * @param cids the customer ids, in booking order
+	 * @return the reservations, in the order of cids
+	 * @throws java.sql.SQLException when a customer or the flight does not
+	 *         exist or the statement fails
+	 */
+	public Booking[] bookAll(int fnum, int[] cids) throws SQLException {
+		int n = cids.length;
+		Integer[] rnums = new Integer[n], boxed = new Integer[n];
+		Map<Integer, Integer> position = new HashMap<Integer, Integer>();
+		for (int i = 0; i < n; ++i) {
+			rnums[i] = this._ids.next(IdAllocator.RESERVATION);
+			boxed[i] = cids[i];
+			position.put(rnums[i], i);
+		}
+		long start = System.nanoTime();
+		boolean failed = true;
+		PooledConnection conn = this._pool.borrow();
+		try{
+			PreparedStatement stmt = conn.prepare(SQL_BOOK_BATCH);
+			Array rnumArray = conn.connection().createArrayOf("integer", rnums);
+			Array cidArray = conn.connection().createArrayOf("integer", boxed);
+			stmt.setInt(1, fnum);
+			stmt.setInt(2, n);
+			stmt.setInt(3, n);
+			stmt.setInt(4, fnum);
+			stmt.setArray(5, rnumArray);
+			stmt.setArray(6, cidArray);
+			Booking[] bookings = new Booking[n];
+			int sold = -1, rows = 0;
+			ResultSet rs = stmt.executeQuery();
+			try{
+				while (rs.next()) {
+					int rnum = rs.getInt(1);
+					int i = position.get(rnum);
+					bookings[i] = new Booking(rnum, cids[i], fnum, rs.getString(2).charAt(0));
+					int s = rs.getInt(3);
+					if (!rs.wasNull()) sold = s;
+					++rows;
+				}
+			}finally{
+				rs.close();
+			}
+			if (rows != n) throw new SQLException("Batch booking returned " + rows + " of " + n + " reservations");
+			if (sold >= 0) this._seats.invalidate(fnum);
+			if (this._replicas != null) this._replicas.noteWrite(conn);
+			if (this._results != null) this._results.changed("Reservation");
+			failed = false;
+			return bookings;
+		}catch (SQLException e){
+			conn.failed(e);
+			throw e;
+		}finally{
+			this._pool.release(conn);
+			Metrics.record(SQL_BOOK_BATCH, start, failed ? 0 : n, failed);
+		}
+	}
+}
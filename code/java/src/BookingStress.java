@@ -0,0 +1,119 @@
+/*
+ * Concurrency stress check for BookingEngine.
+ *
+ * Fires many simultaneous bookings at one flight and verifies that no seat
+ * was oversold: the number of confirmations handed out must equal the free
+ * seats the flight had (or the number of bookings, if fewer), and num_sold
+ * must never exceed the plane's capacity.  Exits with status 1 on violation.
+ * With -Ddbproject.booking.coalesce=true the bookings go through the
+ * BookingCoalescer, which checks the batched path the same way.
+ *
+ * A flight that already has waitlisted passengers is refused (status 2):
+ * every new booking on it is waitlisted behind them.  The promoter's
+ * startup sweep is kept off, and seats it hands out during the run are
+ * counted apart from the bookings' own confirmations.
+ *
+ * Example: java -cp lib/*:bin/ BookingStress flightDB 5432 user 10 3 64 50
+ *          (64 threads x 50 bookings for customer 3 on flight 10, which
+ *          has no waitlisted passengers in the shipped data)
+ */
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BookingStress {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 5) {
+			System.err.println("Usage: java [-classpath <classpath>] BookingStress"
+				+ " <dbname> <port> <user> <fnum> <cid> [threads] [bookingsPerThread]");
+			return;
+		}
+		Class.forName("org.postgresql.Driver");
+		final int fnum = Integer.parseInt(args[3]);
+		final int cid = Integer.parseInt(args[4]);
+		final int threads = args.length > 5 ? Integer.parseInt(args[5]) : 64;
+		final int perThread = args.length > 6 ? Integer.parseInt(args[6]) : 20;
+
+		System.setProperty("dbproject.pool.maxSize", String.valueOf(threads));
+		System.setProperty("dbproject.waitlist.sweepOnStart", "false");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		final BookingEngine engine = esql.bookingEngine();
+		final BookingCoalescer coalescer = esql.bookingCoalescer();
+
+		int waiting = waitlisted(esql, fnum);
+		if (waiting > 0) {
+			System.err.println("Flight " + fnum + " has " + waiting + " waitlisted reservations, so every booking"
+				+ " would be waitlisted; pick a flight without any");
+			esql.cleanup();
+			System.exit(2);
+		}
+		int[] before = seatsAndSold(esql, fnum);
+		long promotedBefore = esql.waitlistPromoter().promoted();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicInteger confirmed = new AtomicInteger();
+		final AtomicInteger waitlisted = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+
+		for (int t = 0; t < threads; ++t) {
+			new Thread(new Runnable() {
+				public void run() {
+					try{
+						start.await();
+						for (int i = 0; i < perThread; ++i) {
+							try{
+								Booking b = coalescer != null ? coalescer.book(cid, fnum) : engine.book(cid, fnum);
+								if (b.isConfirmed()) confirmed.incrementAndGet();
+								else waitlisted.incrementAndGet();
+							}catch (SQLException e){
+								failed.incrementAndGet();
+								System.err.println(e.getMessage());
+							}
+						}
+					}catch (InterruptedException e){
+						Thread.currentThread().interrupt();
+					}finally{
+						done.countDown();
+					}
+				}
+			}, "booker-" + t).start();
+		}
+
+		long t0 = System.nanoTime();
+		start.countDown();
+		done.await();
+		double secs = (System.nanoTime() - t0) / 1e9;
+		int[] after = seatsAndSold(esql, fnum);
+		long promoted = esql.waitlistPromoter().promoted() - promotedBefore;
+		esql.cleanup();
+
+		int total = threads * perThread;
+		int expected = Math.max(0, Math.min(before[0] - before[1], total - failed.get()));
+		System.out.printf("flight %d: %d seats, sold %d -> %d%n", fnum, before[0], before[1], after[1]);
+		System.out.printf("%d bookings in %.2f s (%.0f/s): %d confirmed, %d waitlisted, %d failed, %d promoted%n",
+			total, secs, total / secs, confirmed.get(), waitlisted.get(), failed.get(), promoted);
+
+		boolean ok = after[1] <= after[0]
+			&& confirmed.get() == expected
+			&& after[1] - before[1] == confirmed.get() + promoted;
+		System.out.println(ok ? "OK: no oversell" : "FAILED: seat accounting is inconsistent");
+		System.exit(ok ? 0 : 1);
+	}
+
+	private static int[] seatsAndSold(DBproject esql, int fnum) throws SQLException {
+		List<List<String>> rows = esql.executeQueryAndReturnResult(
+			"SELECT p.seats, f.num_sold FROM Flight f JOIN FlightInfo i ON i.flight_id = f.fnum "
+			+ "JOIN Plane p ON p.id = i.plane_id WHERE f.fnum = ?", fnum);
+		if (rows.isEmpty()) throw new SQLException("Flight " + fnum + " has no plane assigned");
+		return new int[] { Integer.parseInt(rows.get(0).get(0)), Integer.parseInt(rows.get(0).get(1)) };
+	}
+
+	private static int waitlisted(DBproject esql, int fnum) throws SQLException {
+		List<List<String>> rows = esql.executeQueryAndReturnResult(
+			"SELECT count(*) FROM Reservation WHERE fid = ? AND status = 'W'", fnum);
+		return Integer.parseInt(rows.get(0).get(0));
+	}
+}
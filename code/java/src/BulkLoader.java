@@ -0,0 +1,224 @@
+/*
+ * Streams the CSV data files into the database over the JDBC connection
+ * using the PostgreSQL COPY protocol (CopyManager).
+ *
+ * Unlike the server-side COPY ... FROM 'file' in sql/load.sql, the files
+ * only have to be readable by the client, and nothing is staged on the
+ * database host.  Tables that do not reference each other are loaded in
+ * parallel, one pooled connection each, in foreign key order:
+ *
+ *   1. Customer, Pilot, Plane, Technician
+ *   2. Flight
+ *   3. Reservation, FlightInfo, Repairs, Schedule
+ *
+ * Load the data after sql/create.sql but before sql/triggers.sql, since the
+ * insert triggers would otherwise replace the ids taken from the files.
+ *
+ * Example: java -cp lib/*:bin/ BulkLoader flightDB 5432 user ../data
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+
+public class BulkLoader {
+
+	/*
+	 * One CSV file and the table it is copied into.
+	 */
+	static class Table {
+		final String name;
+		final String file;
+		final String columns;
+
+		Table(String name, String file, String columns) {
+			this.name = name;
+			this.file = file;
+			this.columns = columns;
+		}
+	}
+
+	/*
+	 * Tables grouped by foreign key level; every level only references the
+	 * levels before it, so the tables inside one level load in parallel.
+	 */
+	static final Table[][] LEVELS = {
+		{
+			new Table("Customer", "customer.csv", "id, fname, lname, gtype, dob, address, phone, zipcode"),
+			new Table("Pilot", "pilots.csv", "id, fullname, nationality"),
+			new Table("Plane", "planes.csv", "id, make, model, age, seats"),
+			new Table("Technician", "technician.csv", "id, full_name"),
+		},
+		{
+			new Table("Flight", "flights.csv",
+				"fnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_airport, departure_airport"),
+		},
+		{
+			new Table("Reservation", "reservation.csv", "rnum, cid, fid, status"),
+			new Table("FlightInfo", "flightinfo.csv", "fiid, flight_id, pilot_id, plane_id"),
+			new Table("Repairs", "repairs.csv", "rid, repair_date, repair_code, pilot_id, plane_id, technician_id"),
+			new Table("Schedule", "schedule.csv", "id, flightNum, departure_time, arrival_time"),
+		},
+	};
+
+	/*
+	 * Rows copied into one table and how long it took.
+	 */
+	public static class Result {
+		public final String table;
+		public final long rows;
+		public final long nanos;
+
+		Result(String table, long rows, long nanos) {
+			this.table = table;
+			this.rows = rows;
+			this.nanos = nanos;
+		}
+
+		public double rowsPerSecond() {
+			return this.nanos == 0 ? 0 : this.rows * 1e9 / this.nanos;
+		}
+
+		public String toString() {
+			return String.format("%-12s %12d rows %9.2f s %12.0f rows/s",
+				this.table, this.rows, this.nanos / 1e9, rowsPerSecond());
+		}
+	}
+
+	private final ConnectionPool _pool;
+
+	public BulkLoader(ConnectionPool pool) {
+		this._pool = pool;
+	}
+
+	/**
+	 * Method to load every CSV file found in a directory.  Files that are
+	 * missing are skipped.  A level only starts once the previous level has
+	 * finished, and the first failure stops the load.
+	 *
+	 * @param dir the directory holding customer.csv, flights.csv, ...
+	 * @return per table row counts and timings, in load order
+	 * @throws java.sql.SQLException when a COPY fails
+	 * @throws java.io.IOException when a file cannot be read
+	 */
+	public List<Result> load(final File dir) throws SQLException, IOException {
+		List<Result> results = new ArrayList<Result>();
+		int width = 0;
+		for (Table[] level : LEVELS) width = Math.max(width, level.length);
+		ExecutorService workers = Executors.newFixedThreadPool(Math.min(width, this._pool.maxSize()));
+		try{
+			for (Table[] level : LEVELS) {
+				List<Future<Result>> pending = new ArrayList<Future<Result>>();
+				for (final Table table : level) {
+					final File file = new File(dir, table.file);
+					if (!file.isFile()) {
+						System.err.println("Skipping " + table.name + ": " + file + " not found");
+						continue;
+					}
+					pending.add(workers.submit(new Callable<Result>() {
+						public Result call() throws Exception {
+							return copy(table, file);
+						}
+					}));
+				}
+				for (Future<Result> f : pending) {
+					results.add(await(f));
+				}
+			}
+		}finally{
+			workers.shutdownNow();
+		}
+		return results;
+	}
+
+	/**
+	 * Method to stream one CSV file into its table.
+	 *
+	 * @param table the target table
+	 * @param file the CSV file
+	 * @return the row count and elapsed time
+	 * @throws java.sql.SQLException when the COPY fails
+	 * @throws java.io.IOException when the file cannot be read
+	 */
+	Result copy(Table table, File file) throws SQLException, IOException {
+		PooledConnection conn = this._pool.borrow();
+		try{
+			// customer.csv writes dates as month/day/year; SET LOCAL keeps the
+			// setting from leaking to the connection's next borrower
+			conn.connection().setAutoCommit(false);
+			Statement stmt = conn.connection().createStatement();
+			stmt.execute("SET LOCAL DateStyle = 'ISO, MDY'");
+			stmt.close();
+
+			CopyManager copier = new CopyManager(conn.connection().unwrap(BaseConnection.class));
+			String sql = "COPY " + table.name + " (" + table.columns + ") FROM STDIN WITH DELIMITER ','";
+			Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
+			long start = System.nanoTime();
+			try{
+				long rows = copier.copyIn(sql, in, 1 << 16);
+				conn.connection().commit();
+				return new Result(table.name, rows, System.nanoTime() - start);
+			}finally{
+				in.close();
+			}
+		}catch (SQLException e){
+			conn.failed(e);
+			throw new SQLException("Loading " + table.name + " from " + file + " failed: " + e.getMessage(),
+				e.getSQLState(), e);
+		}finally{
+			this._pool.release(conn);
+		}
+	}
+
+	private static Result await(Future<Result> f) throws SQLException, IOException {
+		try{
+			return f.get();
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while loading");
+		}catch (ExecutionException e){
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException) throw (SQLException) cause;
+			if (cause instanceof IOException) throw (IOException) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] BulkLoader"
+				+ " <dbname> <port> <user> [dataDir]");
+			return;
+		}
+		Class.forName("org.postgresql.Driver");
+		File dir = new File(args.length > 3 ? args[3] : "../data");
+
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try{
+			long start = System.nanoTime();
+			long rows = 0;
+			for (Result r : new BulkLoader(esql.pool()).load(dir)) {
+				System.out.println(r);
+				rows += r.rows;
+			}
+			double secs = (System.nanoTime() - start) / 1e9;
+			System.out.printf("%-12s %12d rows %9.2f s %12.0f rows/s%n", "total", rows, secs, rows / secs);
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
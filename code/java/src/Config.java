@@ -0,0 +1,76 @@
+/*
+ * Runtime settings for the airline application.
+ *
+ * Every tunable is read from a Java system property prefixed with
+ * "dbproject." so it can be given on the command line, e.g.
+ *
+ *     java -Ddbproject.pool.maxSize=32 -cp lib/*:bin/ DBproject ...
+ */
+
+public final class Config {
+
+	private static final String PREFIX = "dbproject.";
+
+	private Config() {
+	}
+
+	/**
+	 * Method to read a string setting.
+	 *
+	 * @param name the setting name without the "dbproject." prefix
+	 * @param def the value used when the setting is absent
+	 * @return the configured value or the default
+	 */
+	public static String getString(String name, String def) {
+		String value = System.getProperty(PREFIX + name);
+		return (value == null || value.trim().isEmpty()) ? def : value.trim();
+	}
+
+	/**
+	 * Method to read an integer setting.
+	 *
+	 * @param name the setting name without the "dbproject." prefix
+	 * @param def the value used when the setting is absent or malformed
+	 * @return the configured value or the default
+	 */
+	public static int getInt(String name, int def) {
+		String value = getString(name, null);
+		if (value == null) return def;
+		try {
+			return Integer.parseInt(value);
+		}catch (NumberFormatException e){
+			System.err.println("Ignoring invalid value for " + PREFIX + name + ": " + value);
+			return def;
+		}
+	}
+
+	/**
+	 * Method to read a long setting.
+	 *
+	 * @param name the setting name without the "dbproject." prefix
+	 * @param def the value used when the setting is absent or malformed
+	 * @return the configured value or the default
+	 */
+	public static long getLong(String name, long def) {
+		String value = getString(name, null);
+		if (value == null) return def;
+		try {
+			return Long.parseLong(value);
+		}catch (NumberFormatException e){
+			System.err.println("Ignoring invalid value for " + PREFIX + name + ": " + value);
+			return def;
+		}
+	}
+
+	/**
+	 * Method to read a boolean setting.
+	 *
+	 * @param name the setting name without the "dbproject." prefix
+	 * @param def the value used when the setting is absent
+	 * @return the configured value or the default
+	 */
+	public static boolean getBoolean(String name, boolean def) {
+		String value = getString(name, null);
+		return value == null ? def : Boolean.parseBoolean(value);
+	}
+}
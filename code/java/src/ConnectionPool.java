@@ -0,0 +1,244 @@
+/*
+ * Bounded pool of PostgreSQL connections shared by every DBproject operation.
+ *
+ * Settings (system properties, see Config):
+ *   dbproject.pool.minSize          connections kept open while idle (default 2)
+ *   dbproject.pool.maxSize          upper bound on open connections (default 16)
+ *   dbproject.pool.borrowTimeoutMs  how long borrow() waits for a free connection (default 5000)
+ *   dbproject.pool.idleTimeoutMs    idle connections above minSize are closed after this (default 60000)
+ *   dbproject.pool.validateAfterMs  connections idle longer than this are validated on borrow (default 1000)
+ *   dbproject.pool.reWriteBatchedInserts  let the driver send batched INSERTs as multi-row
+ *                                   statements (default true, see InsertBatch)
+ */
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConnectionPool {
+	private final String _url;
+	private final Properties _properties;
+	private final int _minSize;
+	private final int _maxSize;
+	private final long _borrowTimeoutMs;
+	private final long _idleTimeoutNanos;
+	private final long _validateAfterNanos;
+
+	//idle connections, most recently used first
+	private final LinkedBlockingDeque<PooledConnection> _idle = new LinkedBlockingDeque<PooledConnection>();
+	//one permit per connection that may still be handed out
+	private final Semaphore _permits;
+	//number of physical connections currently open (idle + borrowed)
+	private final AtomicInteger _open = new AtomicInteger();
+	private final ScheduledExecutorService _evictor;
+	private volatile boolean _closed = false;
+
+	/**
+	 * Creates the pool and opens the minimum number of connections so that
+	 * a bad URL or missing server is reported immediately.
+	 *
+	 * @param url the JDBC connection URL
+	 * @param user the database user
+	 * @param passwd the database password
+	 * @throws java.sql.SQLException when the initial connections cannot be opened
+	 */
+	public ConnectionPool(String url, String user, String passwd) throws SQLException {
+		this._url = url;
+		this._properties = new Properties();
+		this._properties.setProperty("user", user);
+		this._properties.setProperty("password", passwd);
+		this._properties.setProperty("reWriteBatchedInserts",
+			String.valueOf(Config.getBoolean("pool.reWriteBatchedInserts", true)));
+
+		this._maxSize = Math.max(1, Config.getInt("pool.maxSize", 16));
+		this._minSize = Math.min(this._maxSize, Math.max(0, Config.getInt("pool.minSize", 2)));
+		this._borrowTimeoutMs = Config.getLong("pool.borrowTimeoutMs", 5000);
+		this._idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Config.getLong("pool.idleTimeoutMs", 60000));
+		this._validateAfterNanos = TimeUnit.MILLISECONDS.toNanos(Config.getLong("pool.validateAfterMs", 1000));
+		this._permits = new Semaphore(this._maxSize, true);
+
+		for (int i = 0; i < this._minSize; ++i) {
+			this._idle.offerFirst(open());
+		}
+
+		this._evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "pool-evictor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long period = Math.max(1000, TimeUnit.NANOSECONDS.toMillis(this._idleTimeoutNanos) / 2);
+		this._evictor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				evictIdle();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Method to take a connection out of the pool.  Waits at most
+	 * dbproject.pool.borrowTimeoutMs for one to become free.  Every borrowed
+	 * connection must be handed back with release().
+	 *
+	 * @return a connection that is not in use by any other thread
+	 * @throws java.sql.SQLException when no connection could be obtained in time
+	 */
+	public PooledConnection borrow() throws SQLException {
+		if (this._closed) throw new SQLException("Connection pool is closed", "08003");
+		long start = System.nanoTime();
+		try{
+			if (!this._permits.tryAcquire(this._borrowTimeoutMs, TimeUnit.MILLISECONDS)) {
+				Metrics.POOL_TIMEOUTS.incrementAndGet();
+				throw new SQLException("Timed out after " + this._borrowTimeoutMs
+					+ " ms waiting for a database connection", "08001");
+			}
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a database connection", "08001");
+		}
+
+		try{
+			PooledConnection conn;
+			while ((conn = this._idle.pollFirst()) != null) {
+				if (isUsable(conn)) break;
+				discard(conn);
+			}
+			if (conn == null) conn = open();
+			Metrics.POOL_WAIT.record(System.nanoTime() - start);
+			return conn;
+		}catch (SQLException e){
+			this._permits.release();
+			throw e;
+		}catch (RuntimeException e){
+			this._permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Method to hand a borrowed connection back to the pool.  Connections
+	 * that failed or were closed by the caller are dropped instead.
+	 *
+	 * @param conn the connection obtained from borrow()
+	 */
+	public void release(PooledConnection conn) {
+		if (conn == null) return;
+		try{
+			if (this._closed || conn.isBroken() || conn.connection().isClosed()) {
+				discard(conn);
+				return;
+			}
+			Connection c = conn.connection();
+			if (!c.getAutoCommit()) {
+				c.rollback();
+				c.setAutoCommit(true);
+			}
+			conn.touch();
+			this._idle.offerFirst(conn);
+		}catch (SQLException e){
+			discard(conn);
+		}finally{
+			this._permits.release();
+		}
+	}
+
+	/**
+	 * Method to open a connection that is not managed by the pool, for
+	 * long-lived uses such as LISTEN that would otherwise pin a pooled
+	 * connection.  The caller closes it.
+	 *
+	 * @return a new connection with the pool's URL and credentials
+	 * @throws java.sql.SQLException when the connection cannot be opened
+	 */
+	public Connection openDedicated() throws SQLException {
+		return DriverManager.getConnection(this._url, this._properties);
+	}
+
+	/**
+	 * @return number of physical connections currently open
+	 */
+	public int openConnections() {
+		return this._open.get();
+	}
+
+	/**
+	 * @return number of open connections that are not borrowed
+	 */
+	public int idleConnections() {
+		return this._idle.size();
+	}
+
+	/**
+	 * @return the maximum number of connections the pool will open
+	 */
+	public int maxSize() {
+		return this._maxSize;
+	}
+
+	/**
+	 * Method to close every idle connection and stop the evictor.
+	 * Connections still borrowed are closed when they are released.
+	 */
+	public void close() {
+		this._closed = true;
+		this._evictor.shutdownNow();
+		PooledConnection conn;
+		while ((conn = this._idle.pollFirst()) != null) {
+			discard(conn);
+		}
+	}
+
+	private PooledConnection open() throws SQLException {
+		Connection c = DriverManager.getConnection(this._url, this._properties);
+		this._open.incrementAndGet();
+		return new PooledConnection(c);
+	}
+
+	private void discard(PooledConnection conn) {
+		conn.close();
+		this._open.decrementAndGet();
+	}
+
+	private boolean isUsable(PooledConnection conn) {
+		if (conn.isBroken()) return false;
+		if (System.nanoTime() - conn.lastUsed() < this._validateAfterNanos) return true;
+		try{
+			return conn.connection().isValid(2);
+		}catch (SQLException e){
+			return false;
+		}
+	}
+
+	/*
+	 * Closes connections that sat idle longer than the idle timeout while
+	 * more than minSize connections are open, then tops the pool back up
+	 * to minSize.  The deque is ordered most recent first, so the oldest
+	 * connections are at the tail.
+	 */
+	private void evictIdle() {
+		long now = System.nanoTime();
+		Iterator<PooledConnection> it = this._idle.descendingIterator();
+		while (it.hasNext() && this._open.get() > this._minSize) {
+			PooledConnection conn = it.next();
+			if (now - conn.lastUsed() < this._idleTimeoutNanos) break;
+			if (this._idle.removeLastOccurrence(conn)) discard(conn);
+		}
+		try{
+			while (!this._closed && this._open.get() < this._minSize) {
+				this._idle.offerLast(open());
+			}
+		}catch (SQLException e){
+			System.err.println("Unable to refill connection pool: " + e.getMessage());
+		}
+	}
+}
@@ -16,6 +16,8 @@ import java.text.SimpleDateFormat;
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
+import java.sql.Types;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -27,6 +29,8 @@ import java.net.SocketException;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
 import javax.swing.*;
 
 
@@ -45,9 +49,34 @@ import javax.naming.event.NamingExceptionEvent;
  */
 
 public class DBproject {
-	//reference to physical database connection
-	private Connection _connection = null;
+	private static final Object[] NO_PARAMS = new Object[0];
+	private static final int STREAM_FETCH_SIZE = Config.getInt("stream.fetchSize", 1000);
+
+	//pool of physical database connections shared by all operations
+	private ConnectionPool _pool = null;
+	//LISTENs for change notifications on its own connection
+	private NotificationListener _listener = null;
+	//free seats per flight, kept current by bookings and notifications
+	private SeatCache _seats = null;
+	//books seats against the pool in one atomic statement
+	private BookingEngine _bookings = null;
+	//batches concurrent bookings per flight; null unless dbproject.booking.coalesce
+	private BookingCoalescer _coalescer = null;
+	//confirms waitlisted passengers when seats free up
+	private WaitlistPromoter _waitlist = null;
+	//leases ids for new rows in blocks
+	private IdAllocator _ids = null;
+	//busy days of each pilot and plane, loaded by the first addFlight
+	private AssignmentIndex _assignments = null;
+	//routes report queries to replicas; null when none are configured
+	private ReplicaRouter _replicas = null;
+	//results of queries over versioned tables, kept until the tables change
+	private ResultCache _results = null;
+	//headless operations used by the menu
+	private AirlineService _service = null;
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+	//runs the menu operations off the event thread; set by main
+	static AsyncDispatcher ui = null;
 	
 	public DBproject(String dbname, String dbport, String user, String passwd) throws SQLException {
 		System.out.print("Connecting to database...");
@@ -56,8 +85,23 @@ public class DBproject {
 			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
 			System.out.println ("Connection URL: " + url + "\n");
 			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
+			// opens the connection pool
+	        this._pool = new ConnectionPool(url, user, passwd);
+	        Metrics.start(this._pool);
+	        this._replicas = ReplicaRouter.fromConfig(this._pool, dbname, user, passwd);
+	        this._ids = new IdAllocator(this._pool);
+	        this._listener = new NotificationListener(this._pool);
+	        this._results = new ResultCache(this, this._replicas != null);
+	        this._listener.listen(ResultCache.CHANNEL, this._results);
+	        this._seats = new SeatCache(this, Config.getInt("seatCache.size", 4096));
+	        this._listener.listen(SeatCache.CHANNEL, this._seats);
+	        this._bookings = new BookingEngine(this._pool, this._seats, this._ids, this._replicas, this._results);
+	        if (Config.getBoolean("booking.coalesce", false)) this._coalescer = new BookingCoalescer(this._bookings);
+	        this._waitlist = new WaitlistPromoter(this._pool, this._results);
+	        this._listener.listen(WaitlistPromoter.CHANNEL, this._waitlist);
+	        this._assignments = new AssignmentIndex(this);
+	        this._listener.listen(AssignmentIndex.CHANNEL, this._assignments);
+	        this._service = new AirlineService(this);
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -74,14 +118,41 @@ public class DBproject {
 	 * @throws java.sql.SQLException when update failed
 	 * */
 	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		// issues the update instruction
-		stmt.executeUpdate (sql);
+		executeUpdate (sql, NO_PARAMS);
+	}//end executeUpdate
 
-		// close the instruction
-	    stmt.close ();
+	/**
+	 * Method to execute a parameterized update SQL statement.  The statement
+	 * is taken from the connection's prepared statement cache and the
+	 * parameters are bound to its '?' markers in order.
+	 * 
+	 * @param sql the input SQL string with '?' parameter markers
+	 * @param params the values bound to the parameter markers
+	 * @return the number of rows affected
+	 * @throws java.sql.SQLException when update failed
+	 * */
+	public int executeUpdate (String sql, Object... params) throws SQLException { 
+		long start = System.nanoTime ();
+		long rows = -1;
+		PooledConnection conn = this._pool.borrow ();
+		try{
+			// gets a prepared statement object and binds the parameters
+			PreparedStatement stmt = conn.prepare (sql);
+			bind (stmt, params);
+
+			// issues the update instruction
+			int count = stmt.executeUpdate ();
+			if (this._replicas != null && count > 0) this._replicas.noteWrite (conn);
+			if (this._results != null) this._results.wrote (sql);
+			rows = count;
+			return count;
+		}catch (SQLException e){
+			conn.failed (e);
+			throw e;
+		}finally{
+			this._pool.release (conn);
+			Metrics.record (sql, start, rows, rows < 0);
+		}
 	}//end executeUpdate
 
 	/**
@@ -90,41 +161,55 @@ public class DBproject {
 	 * standard out.
 	 * 
 	 * @param query the input query string
+	 * @param params the values bound to the query's '?' markers
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
-			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		long start = System.nanoTime ();
+		long rows = -1;
+		PooledConnection conn = this._pool.borrow ();
+		try{
+			//gets a prepared statement object and binds the parameters
+			PreparedStatement stmt = conn.prepare (query);
+			bind (stmt, params);
+
+			//issues the query instruction
+			ResultSet rs = stmt.executeQuery ();
+
+			/*
+			 *  obtains the metadata object for the returned result set.  The metadata
+			 *  contains row and column info.
+			 */
+			ResultSetMetaData rsmd = rs.getMetaData ();
+			int numCol = rsmd.getColumnCount ();
+			int rowCount = 0;
+			
+			//iterates through the result set and output them to standard out.
+			boolean outputHeader = true;
+			while (rs.next()){
+				if(outputHeader){
+					for(int i = 1; i <= numCol; i++){
+						System.out.print(rsmd.getColumnName(i) + "\t");
+				    }
+				    System.out.println();
+				    outputHeader = false;
+				}
+				for (int i=1; i<=numCol; ++i)
+					System.out.print (rs.getString (i) + "\t");
+				System.out.println ();
+				++rowCount;
+			}//end while
+			rs.close ();
+			rows = rowCount;
+			return rowCount;
+		}catch (SQLException e){
+			conn.failed (e);
+			throw e;
+		}finally{
+			this._pool.release (conn);
+			Metrics.record (query, start, rows, rows < 0);
+		}
 	}
 	
 	/**
@@ -137,33 +222,230 @@ public class DBproject {
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
-		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
-	 
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata 
-		 * contains row and column info. 
-		*/ 
-		ResultSetMetaData rsmd = rs.getMetaData (); 
-		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
-	 
-		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
-		List<List<String>> result  = new ArrayList<List<String>>(); 
-		while (rs.next()){
-			List<String> record = new ArrayList<String>(); 
-			for (int i=1; i<=numCol; ++i) 
-				record.add(rs.getString (i)); 
-			result.add(record); 
-		}//end while 
-		stmt.close (); 
-		return result; 
+		return executeQueryAndReturnResult (query, NO_PARAMS);
 	}//end executeQueryAndReturnResult
+
+	/**
+	 * Method to execute a parameterized query SQL instruction (i.e. SELECT).
+	 * This method issues the query to the DBMS and returns the results as
+	 * a list of records. Each record in turn is a list of attribute values.
+	 * Results of queries over versioned tables come from the ResultCache
+	 * while the tables are unchanged, and cannot be modified.
+	 * 
+	 * @param query the input query string with '?' parameter markers
+	 * @param params the values bound to the parameter markers
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException { 
+		ResultCache.Ticket ticket = this._results == null ? null : this._results.begin (query, params);
+		if (ticket != null && ticket.hit () != null) return cached (ticket);
+		return store (ticket, queryAndReturnResult (this._pool, query, params));
+	}//end executeQueryAndReturnResult
+
+	/**
+	 * Method to execute a read-only report query like
+	 * executeQueryAndReturnResult, on a replica when one is fresh enough
+	 * and on the primary otherwise (see ReplicaRouter).
+	 * 
+	 * @param query the input query string with '?' parameter markers
+	 * @param params the values bound to the parameter markers
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeReportQuery (String query, Object... params) throws SQLException { 
+		ResultCache.Ticket ticket = this._results == null ? null : this._results.begin (query, params);
+		if (ticket != null && ticket.hit () != null) return cached (ticket);
+		ConnectionPool replica = this._replicas == null ? null : this._replicas.choose ();
+		if (replica != null){
+			try{
+				return store (ticket, queryAndReturnResult (replica, query, params));
+			}catch (SQLException e){
+				if (!ReplicaRouter.isConnectionError (e)) throw e;
+				this._replicas.failed (replica, e);
+			}
+		}//end if
+		return store (ticket, queryAndReturnResult (this._pool, query, params));
+	}//end executeReportQuery
+
+	@SuppressWarnings("unchecked")
+	private static List<List<String>> cached (ResultCache.Ticket ticket) { 
+		return (List<List<String>>) ticket.hit ();
+	}//end cached
+
+	private List<List<String>> store (ResultCache.Ticket ticket, List<List<String>> rows) { 
+		if (ticket == null) return rows;
+		rows = ResultCache.freeze (rows);
+		this._results.finish (ticket, rows, rows.size ());
+		return rows;
+	}//end store
+
+	private List<List<String>> queryAndReturnResult (ConnectionPool pool, String query, Object[] params) throws SQLException { 
+		long start = System.nanoTime ();
+		long rows = -1;
+		PooledConnection conn = pool.borrow ();
+		try{
+			//gets a prepared statement object and binds the parameters
+			PreparedStatement stmt = conn.prepare (query); 
+			bind (stmt, params);
+			
+			//issues the query instruction 
+			ResultSet rs = stmt.executeQuery (); 
+		 
+			/*
+			 * obtains the metadata object for the returned result set.  The metadata 
+			 * contains row and column info. 
+			*/ 
+			ResultSetMetaData rsmd = rs.getMetaData (); 
+			int numCol = rsmd.getColumnCount (); 
+		 
+			//iterates through the result set and saves the data returned by the query. 
+			List<List<String>> result  = new ArrayList<List<String>>(); 
+			while (rs.next()){
+				List<String> record = new ArrayList<String>(); 
+				for (int i=1; i<=numCol; ++i) 
+					record.add(rs.getString (i)); 
+				result.add(record); 
+			}//end while 
+			rs.close (); 
+			rows = result.size ();
+			return result; 
+		}catch (SQLException e){
+			conn.failed (e);
+			throw e;
+		}finally{
+			pool.release (conn);
+			Metrics.record (query, start, rows, rows < 0);
+		}
+	}//end queryAndReturnResult
 	
+	/**
+	 * Method to execute a parameterized query SQL instruction (i.e. SELECT)
+	 * and stream its rows to a handler instead of collecting them.  The
+	 * query runs in a transaction with a fetch size, so the driver reads
+	 * the result through a server-side cursor, fetchSize rows at a time.
+	 * Memory use stays flat however many rows the query returns.
+	 * 
+	 * @param query the input query string with '?' parameter markers
+	 * @param fetchSize number of rows fetched per round trip
+	 * @param handler receives each row
+	 * @param params the values bound to the parameter markers
+	 * @return the number of rows streamed
+	 * @throws java.sql.SQLException when failed to execute the query or the
+	 *         handler aborted it
+	 */
+	public long executeQueryStreaming (String query, int fetchSize, RowHandler handler, Object... params) throws SQLException {
+		return queryStreaming (this._pool, query, fetchSize, handler, params);
+	}//end executeQueryStreaming
+
+	/**
+	 * Method to stream a read-only report query like executeQueryStreaming,
+	 * on a replica when one is fresh enough and on the primary otherwise
+	 * (see ReplicaRouter).  A replica that fails before the first row is
+	 * retried on the primary.
+	 * 
+	 * @param query the input query string with '?' parameter markers
+	 * @param fetchSize number of rows fetched per round trip
+	 * @param handler receives each row
+	 * @param params the values bound to the parameter markers
+	 * @return the number of rows streamed
+	 * @throws java.sql.SQLException when failed to execute the query or the
+	 *         handler aborted it
+	 */
+	public long executeReportQueryStreaming (String query, int fetchSize, final RowHandler handler, Object... params) throws SQLException {
+		ConnectionPool replica = this._replicas == null ? null : this._replicas.choose ();
+		if (replica != null){
+			final long[] delivered = new long[1];
+			try{
+				return queryStreaming (replica, query, fetchSize, new RowHandler() {
+					public void row (Row row) throws SQLException {
+						++delivered[0];
+						handler.row (row);
+					}
+				}, params);
+			}catch (SQLException e){
+				// rows already handed over cannot be taken back
+				if (delivered[0] > 0 || !ReplicaRouter.isConnectionError (e)) throw e;
+				this._replicas.failed (replica, e);
+			}
+		}//end if
+		return queryStreaming (this._pool, query, fetchSize, handler, params);
+	}//end executeReportQueryStreaming
+
+	/**
+	 * Method to stream a read-only report query with the default fetch size
+	 * (dbproject.stream.fetchSize, 1000 rows).
+	 * 
+	 * @param query the input query string with '?' parameter markers
+	 * @param handler receives each row
+	 * @param params the values bound to the parameter markers
+	 * @return the number of rows streamed
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public long executeReportQueryStreaming (String query, RowHandler handler, Object... params) throws SQLException {
+		return executeReportQueryStreaming (query, STREAM_FETCH_SIZE, handler, params);
+	}
+
+	private long queryStreaming (ConnectionPool pool, String query, int fetchSize, RowHandler handler, Object[] params) throws SQLException {
+		long start = System.nanoTime ();
+		long rows = -1;
+		PooledConnection conn = pool.borrow ();
+		PreparedStatement stmt = null;
+		try{
+			// cursors only exist inside a transaction
+			conn.connection ().setAutoCommit (false);
+
+			//gets a prepared statement object and binds the parameters
+			stmt = conn.prepare (query);
+			bind (stmt, params);
+			stmt.setFetchSize (fetchSize);
+
+			//issues the query instruction and hands every row to the handler
+			ResultSet rs = stmt.executeQuery ();
+			Row row = new Row (rs);
+			long rowCount = 0;
+			try{
+				while (rs.next ()){
+					handler.row (row);
+					++rowCount;
+				}//end while
+			}finally{
+				rs.close ();
+			}
+			conn.connection ().commit ();
+			rows = rowCount;
+			return rowCount;
+		}catch (SQLException e){
+			conn.failed (e);
+			throw e;
+		}finally{
+			// the statement stays cached, so put back the default fetch size
+			if (stmt != null) {
+				try{
+					stmt.setFetchSize (0);
+				}catch (SQLException e){
+					// ignored.
+				}
+			}
+			pool.release (conn);
+			Metrics.record (query, start, rows, rows < 0);
+		}
+	}//end queryStreaming
+
+	/**
+	 * Method to stream a query with the default fetch size
+	 * (dbproject.stream.fetchSize, 1000 rows).
+	 * 
+	 * @param query the input query string with '?' parameter markers
+	 * @param handler receives each row
+	 * @param params the values bound to the parameter markers
+	 * @return the number of rows streamed
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public long executeQueryStreaming (String query, RowHandler handler, Object... params) throws SQLException {
+		return executeQueryStreaming (query, STREAM_FETCH_SIZE, handler, params);
+	}
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the number of results
@@ -173,51 +455,206 @@ public class DBproject {
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		int rowCount = 0;
+		return executeQuery (query, NO_PARAMS);
+	}
 
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	/**
+	 * Method to execute a parameterized query SQL instruction (i.e. SELECT).
+	 * This method issues the query to the DBMS and returns the number of results
+	 * 
+	 * @param query the input query string with '?' parameter markers
+	 * @param params the values bound to the parameter markers
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQuery (String query, Object... params) throws SQLException {
+		long start = System.nanoTime ();
+		long rows = -1;
+		PooledConnection conn = this._pool.borrow ();
+		try{
+			//gets a prepared statement object and binds the parameters
+			PreparedStatement stmt = conn.prepare (query);
+			bind (stmt, params);
+
+			//issues the query instruction
+			ResultSet rs = stmt.executeQuery ();
+
+			int rowCount = 0;
+
+			//iterates through the result set and count nuber of results.
+			if(rs.next()){
+				rowCount++;
+			}//end while
+			rs.close ();
+			rows = rowCount;
+			return rowCount;
+		}catch (SQLException e){
+			conn.failed (e);
+			throw e;
+		}finally{
+			this._pool.release (conn);
+			Metrics.record (query, start, rows, rows < 0);
+		}
 	}
 	
 	/**
 	 * Method to fetch the last value from sequence. This
 	 * method issues the query to the DBMS and returns the current 
-	 * value of sequence used for autogenerated keys
+	 * value of sequence used for autogenerated keys.
+	 *
+	 * currval() is bound to the session that called nextval(), so pass the
+	 * borrowed connection that ran the insert, before releasing it.
 	 * 
+	 * @param conn the connection that called nextval() on the sequence
 	 * @param sequence name of the DB sequence
 	 * @return current value of a sequence
-	 * @throws java.sql.SQLException when failed to execute the query
+	 * @throws java.sql.SQLException when failed to execute the query, e.g.
+	 *         nextval() was not called on this connection
 	 */
 	
-	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+	public int getCurrSeqVal(PooledConnection conn, String sequence) throws SQLException {
+		String query = "SELECT currval(?::regclass)";
+		long start = System.nanoTime ();
+		long rows = -1;
+		try{
+			PreparedStatement stmt = conn.prepare (query);
+			stmt.setString (1, sequence);
+			
+			ResultSet rs = stmt.executeQuery ();
+			int value = -1;
+			if (rs.next()) value = rs.getInt(1);
+			rs.close ();
+			rows = value < 0 ? 0 : 1;
+			return value;
+		}catch (SQLException e){
+			conn.failed (e);
+			throw e;
+		}finally{
+			Metrics.record (query, start, rows, rows < 0);
+		}
+	}
+
+	/**
+	 * @return the connection pool behind this object, for tools that need
+	 *         direct access to a connection (e.g. COPY)
+	 */
+	ConnectionPool pool() {
+		return this._pool;
+	}
+
+	/**
+	 * @return the headless operations of the application
+	 */
+	public AirlineService service() {
+		return this._service;
+	}
+
+	/**
+	 * @return the cache of free seats per flight
+	 */
+	public SeatCache seatCache() {
+		return this._seats;
+	}
+
+	/**
+	 * @return the allocator of ids for new rows
+	 */
+	public IdAllocator ids() {
+		return this._ids;
+	}
+
+	/**
+	 * @return the index of pilot and plane assignments
+	 */
+	public AssignmentIndex assignments() {
+		return this._assignments;
+	}
+
+	/**
+	 * @return the cache of query results
+	 */
+	public ResultCache resultCache() {
+		return this._results;
+	}
+
+	/**
+	 * @return the engine used to book seats
+	 */
+	public BookingEngine bookingEngine() {
+		return this._bookings;
+	}
+
+	/**
+	 * @return the batching front end of the booking engine, or null when
+	 *         bookings go to the engine one by one
+	 */
+	public BookingCoalescer bookingCoalescer() {
+		return this._coalescer;
+	}
+
+	/**
+	 * @return the engine that promotes waitlisted reservations
+	 */
+	public WaitlistPromoter waitlistPromoter() {
+		return this._waitlist;
+	}
+
+	/**
+	 * Method to bind parameter values to a prepared statement.  Dates are
+	 * sent as SQL DATE values and characters as one letter strings; every
+	 * other value is handed to the driver as is.
+	 *
+	 * @param stmt the statement to bind to
+	 * @param params the values for the statement's '?' markers, in order
+	 * @throws java.sql.SQLException when a value cannot be bound
+	 */
+	static void bind(PreparedStatement stmt, Object[] params) throws SQLException {
+		for (int i = 0; i < params.length; ++i) {
+			Object p = params[i];
+			if (p == null) {
+				stmt.setNull(i + 1, Types.NULL);
+			} else if (p instanceof Integer) {
+				stmt.setInt(i + 1, (Integer) p);
+			} else if (p instanceof java.sql.Date) {
+				stmt.setDate(i + 1, (java.sql.Date) p);
+			} else if (p instanceof Date) {
+				stmt.setDate(i + 1, new java.sql.Date(((Date) p).getTime()));
+			} else if (p instanceof Character) {
+				stmt.setString(i + 1, p.toString());
+			} else {
+				stmt.setObject(i + 1, p);
+			}
+		}
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to close the connection pool if it is open.
 	 */
 	public void cleanup(){
-		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
-		}catch (SQLException e){
-	         // ignored.
-		}//end try
+		if (this._listener != null){
+			this._listener.close ();
+		}//end if
+		if (this._waitlist != null){
+			this._waitlist.close ();
+			System.out.println(this._waitlist.stats());
+		}//end if
+		if (this._coalescer != null){
+			this._coalescer.close ();
+			System.out.println(this._coalescer.stats());
+		}//end if
+		if (this._replicas != null){
+			System.out.println(this._replicas.stats());
+			this._replicas.close ();
+		}//end if
+		if (this._pool != null){
+			Metrics.stop ();
+			System.out.print(Metrics.report());
+			System.out.println(StatementCache.stats());
+			System.out.println(this._seats.stats());
+			System.out.println(this._assignments.stats());
+			System.out.println(this._results.stats());
+			this._pool.close ();
+		}//end if
 	}//end cleanup
 
 
@@ -254,13 +691,20 @@ public class DBproject {
 			String user = args[2];
 			
 			esql = new DBproject (dbname, dbport, user, "");
+			// passengers may have been waiting for seats freed while no promoter ran
+			esql.waitlistPromoter ().reset ();
+			ui = new AsyncDispatcher(new Consumer<Throwable>() {
+				public void accept(Throwable e) {
+					showError(e instanceof Exception ? (Exception) e : new Exception(e));
+				}
+			});
 
 			// HERE
 			JFrame f = new JFrame("Airline Application"); 
 			String[] test = {"1. Add Plane", "2. Add Pilot", "3. Add Flight", "4. Add Technician", "5. Book Flight",
 			 "6. List number of available seats for a given flight",
 			  "7. List total number of repairs per plane in descending order", "8. List total number of repairs per year in ascending order",
-			   "9. Find total number of passengers with a given status"};
+			   "9. Find total number of passengers with a given status", "10. Cancel Reservation", "11. Find Route"};
 			
 			JComboBox cb = new JComboBox();
 				
@@ -323,6 +767,12 @@ public class DBproject {
 					else if(selected.toString().equals("9. Find total number of passengers with a given status")){
 						FindPassengersCountWithStatus(esql2); 
 					}
+					else if(selected.toString().equals("10. Cancel Reservation")){
+						CancelReservation(esql2); 
+					}
+					else if(selected.toString().equals("11. Find Route")){
+						FindRoute(esql2); 
+					}
 				}
 			});
 
@@ -333,21 +783,37 @@ public class DBproject {
 			
 			exitButton.addActionListener(new ActionListener() {
 				public void actionPerformed(ActionEvent e) {
+					ui.shutdown ();
 					System.out.print("Disconnecting from database...");
 					esql2.cleanup ();
 					System.out.println("Done\n\nBye !");
 					f.dispose();
 				}
 			});
-			exitButton.setBounds(70, 110, 60, 50);
+			exitButton.setBounds(105, 100, 70, 40);
+
+			// abandons whatever the menu is still waiting for
+			JButton cancelButton = new JButton("Cancel");
+			cancelButton.addActionListener(new ActionListener() {
+				public void actionPerformed(ActionEvent e) {
+					ui.cancelAll ();
+				}
+			});
+			cancelButton.setBounds(25, 100, 75, 40);
+
+			JLabel status = new JLabel("Ready", SwingConstants.CENTER);
+			status.setBounds(5, 150, 190, 20);
+			ui.setStatusLabel(status);
 
 
 			f.add(cb);
 			f.add(exitButton);
+			f.add(cancelButton);
+			f.add(status);
 			
 			f.setVisible(true);   
 			f.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-			f.setSize(200,200);
+			f.setSize(200,220);
 			f.setVisible(true);
 			f.setResizable(false);
 			f.setLocationRelativeTo(null);
@@ -386,10 +852,17 @@ public class DBproject {
 		return input;
 	}//end readChoice
 
-	public static void AddPlane(DBproject esql) {//1
+	/*
+	 * The menu operations below only collect input and show results; the
+	 * work itself is done by AirlineService.  They run on the event thread,
+	 * so the database calls go through async() and their results are shown
+	 * when they arrive.
+	 */
+
+	public static void AddPlane(final DBproject esql) {//1
 		
-		String make, model, query;
-		int age, seats;
+		final String make, model;
+		final int age, seats;
 
 		JTextField f1 = new JTextField();
 		JTextField f2 = new JTextField();
@@ -399,30 +872,32 @@ public class DBproject {
 
 		Object[] fields = {" ", "Make", f1, "Model", f2, "Age", f3, "Seats", f4};
 	
-		JOptionPane.showConfirmDialog(null, fields, "About Plane ..", JOptionPane.OK_CANCEL_OPTION);
-
-		make = "'" + f1.getText() + "'";
-		model = "'" + f2.getText() + "'";
-		age = Integer.parseInt(f3.getText().toString());
-		seats = Integer.parseInt(f4.getText().toString());
-		
-		query = "INSERT INTO Plane(make, model, age, seats) VALUES(" + 
-			make  + ", " +  model  + ", " + age + ", " + seats + ")";
+		if (JOptionPane.showConfirmDialog(null, fields, "About Plane ..", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) return;
 
 		try {
-			esql.executeUpdate(query);
-			JOptionPane.showMessageDialog(null, 
-				"Plane Added !", "Message",
-				JOptionPane.INFORMATION_MESSAGE);
+			make = f1.getText();
+			model = f2.getText();
+			age = Integer.parseInt(f3.getText().trim());
+			seats = Integer.parseInt(f4.getText().trim());
 	    }
 	    catch (Exception e) {
-		System.err.println(e.getMessage());
+			showError(e);
+			return;
 	    }
-
-
+		async("Add plane", new Callable<Integer>() {
+			public Integer call() throws Exception {
+				return esql.service().addPlane(make, model, age, seats);
+			}
+		}, new Consumer<Integer>() {
+			public void accept(Integer id) {
+				JOptionPane.showMessageDialog(null, 
+					"Plane Added ! (id " + id + ")", "Message",
+					JOptionPane.INFORMATION_MESSAGE);
+			}
+		});
 	}
-        
-	public static void AddPilot(DBproject esql) {//2
+
+	public static void AddPilot(final DBproject esql) {//2
 	  
 		JTextField f1 = new JTextField();
 		JTextField f2 = new JTextField();
@@ -430,37 +905,24 @@ public class DBproject {
 
 		Object[] fields = {" ", "Name", f1, "Nationality", f2};
 	
-		JOptionPane.showConfirmDialog(null, fields, "About Pilot ..", JOptionPane.OK_CANCEL_OPTION);
-
-		String pilotName = "'" + f1.getText() + "'";
-		String pilotNationality = "'" + f2.getText() + "'";
-
-		String query = "INSERT INTO Pilot(fullname, nationality) VALUES (" + pilotName + "," + pilotNationality + ");";
+		if (JOptionPane.showConfirmDialog(null, fields, "About Pilot ..", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) return;
 
-		try {
-			if (!(pilotName.equals("''")) && !(pilotNationality.equals("''"))) {
-				esql.executeUpdate(query);
-		    	JOptionPane.showMessageDialog(null, "Pilot Added", "Message", JOptionPane.INFORMATION_MESSAGE);
+		final String name = f1.getText(), nationality = f2.getText();
+		async("Add pilot", new Callable<Integer>() {
+			public Integer call() throws Exception {
+				return esql.service().addPilot(name, nationality);
 			}
-			else {
-				JOptionPane.showMessageDialog(null, "invalid input", "ERROR", JOptionPane.ERROR_MESSAGE);
-			}	
-
-	    }
-	    catch (Exception e) {
-		System.err.println(e.getMessage());
-	    }
+		}, new Consumer<Integer>() {
+			public void accept(Integer id) {
+				JOptionPane.showMessageDialog(null, "Pilot Added (id " + id + ")", "Message", JOptionPane.INFORMATION_MESSAGE);
+			}
+		});
 	}
 
 
-	public static void AddFlight(DBproject esql) {//3
+	public static void AddFlight(final DBproject esql) {//3
 		// Given a pilot, plane and flight, adds a flight in the DB
 
-		Date departureDate = null, arrivalDate = null;
-		int pilotId, planeId, costOfFlight, numberOfSold, numberOfStops;
-		String actualDepartureDate, actualArrivalDate, airportArrival, airportDeparture, getId, query;
-		
-
 		JTextField f1 = new JTextField();
 		JTextField f2 = new JTextField();
 		JTextField f3 = new JTextField();
@@ -469,407 +931,355 @@ public class DBproject {
 		JTextField f6 = new JTextField();
 		JTextField f7 = new JTextField();
 		JTextField f8 = new JTextField();
+		JTextField f9 = new JTextField();
 		
 
 		Object[] fields = {" ", "Cost", f1, "Number Sold", f2, "Number of Stops", f3, "Actual Departure Date (MM-dd-yyyy)", f4, 
-		"Actual Arrival Date (MM-dd-yyyy)", f5, "Airport Arrival", f6, "Airport Departure", f7};
-	
-		
-		try{
-			try {
-				JOptionPane.showConfirmDialog(null, fields, "About Flight ..", JOptionPane.OK_CANCEL_OPTION);
-				actualDepartureDate = f4.getText().toString();
-				actualArrivalDate = f5.getText().toString();
+		"Actual Arrival Date (MM-dd-yyyy)", f5, "Airport Arrival", f6, "Airport Departure", f7, "Pilot ID", f8, "Plane ID", f9};
 	
-				departureDate = new SimpleDateFormat("MM-dd-yyyy").parse(actualDepartureDate);
-				arrivalDate = new SimpleDateFormat("MM-dd-yyyy").parse(actualArrivalDate);
-
-				// System.out.println(departureDate.getClass().getName());
-			} catch (Exception e){
-				JOptionPane.showMessageDialog(null, "date error");
-			} 
+		if (JOptionPane.showConfirmDialog(null, fields, "About Flight ..", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) return;
 
-			costOfFlight = Integer.parseInt(f1.getText().toString());
-			numberOfSold = Integer.parseInt(f2.getText().toString());
-			numberOfStops = Integer.parseInt(f3.getText().toString());
-		
-			airportArrival = "'" + f6.getText() + "'";
-			airportDeparture = "'" + f7.getText() + "'";
-			
-			query = "INSERT INTO Flight(cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_airport, departure_airport) VALUES(" + 
-				costOfFlight  + ", " +  numberOfSold  + ", " + numberOfStops + ", " + "'" +
-				departureDate + "'" + ", " + "'" + arrivalDate + "'" + ", " +
-				airportArrival +  ", " + airportDeparture + "); ";
-			
-			try {
-				esql.executeUpdate(query);
+		final int cost, numSold, numStops, pilotId, planeId;
+		final java.sql.Date departure, arrival;
+		final String arrivalAirport = f6.getText(), departureAirport = f7.getText();
+		try {
+			cost = Integer.parseInt(f1.getText().trim());
+			numSold = Integer.parseInt(f2.getText().trim());
+			numStops = Integer.parseInt(f3.getText().trim());
+			departure = parseDate(f4.getText());
+			arrival = parseDate(f5.getText());
+			pilotId = Integer.parseInt(f8.getText().trim());
+			planeId = Integer.parseInt(f9.getText().trim());
+		}
+		catch (Exception e) {
+			showError(e);
+			return;
+		}
+		async("Add flight", new Callable<Integer>() {
+			public Integer call() throws Exception {
+				return esql.service().addFlight(cost, numSold, numStops, departure, arrival,
+					arrivalAirport, departureAirport, pilotId, planeId);
+			}
+		}, new Consumer<Integer>() {
+			public void accept(Integer fnum) {
 				JOptionPane.showMessageDialog(null, 
-					"Plane Added", "Message",
+					"Flight Added (flight #" + fnum + ")", "Message",
 					JOptionPane.INFORMATION_MESSAGE);
 			}
-			catch (Exception e) {
-			System.err.println(e.getMessage());
-			}
-
-			JTextField ff1 = new JTextField();
-			JTextField ff2 = new JTextField();
-		
-			Object[] fields1 = {" ", "Pilot ID", ff1, "Plane ID", ff2};
-		
-			JOptionPane.showConfirmDialog(null, fields1, " .. ", JOptionPane.OK_CANCEL_OPTION);
-
-			pilotId = Integer.parseInt(ff1.getText().toString());
-			planeId = Integer.parseInt(ff2.getText().toString());
-
-			getId = "SELECT Flight.fnum FROM Flight WHERE Flight.actual_departure_date = " + 
-			"'" + departureDate + "'" + 
-			" AND Flight.actual_arrival_date = " + 
-			"'" + arrivalDate + "'" + "; ";
-			
-			try{
-			
-				List<List<String>> record = esql.executeQueryAndReturnResult(getId);
-				String s = record.get(0).get(0);
-				int id = Integer.parseInt(s);
-
-				String query0 = "INSERT INTO FlightInfo VALUES (" + 
-				id + ", " + id + ", " +
-				pilotId + ", " + planeId + ");";
-
-				esql.executeUpdate(query0);
-			
-			}catch (Exception e){
-				JOptionPane.showMessageDialog(null, "error");
-			}
-		
-	}catch(Exception e){
-		JOptionPane.showMessageDialog(null, "canceled");
+		});
 	}
-}
-	
-
-
 
-	public static int AddCustomer(DBproject esql){ //Add Customer
-
-		
-		String fname, lname, address, phone, zipcode, query, query2, birthDate;
-		char gtype;
-		Date dob = null;
-		int cid = 0;
 
+	/*
+	 * Asks for a new customer's details.
+	 *
+	 * @return the form's fields, or null when it was cancelled
+	 */
+	static JTextField[] CustomerForm(){ //Add Customer
 
-		JTextField f1 = new JTextField();
-		JTextField f2 = new JTextField();
-		JTextField f3 = new JTextField();
-		JTextField f4 = new JTextField();
-		JTextField f5 = new JTextField();
-		JTextField f6 = new JTextField();
-		JTextField f7 = new JTextField();
-		JTextField f8 = new JTextField();
-		
+		JTextField[] f = new JTextField[7];
+		for (int i = 0; i < f.length; ++i) f[i] = new JTextField();
 
-		Object[] fields = {" ", "First Name", f1, "Last Name", f2, "Gender: (M,F)", f3, "DOB (MM-dd-yyyy)", f4, 
-		"Address", f5, "Phone Number", f6, "Zip Code", f7};
+		Object[] fields = {" ", "First Name", f[0], "Last Name", f[1], "Gender: (M,F)", f[2], "DOB (MM-dd-yyyy)", f[3], 
+		"Address", f[4], "Phone Number", f[5], "Zip Code", f[6]};
 	
-	
-
-		try {
-			JOptionPane.showConfirmDialog(null, fields, "About Flight ..", JOptionPane.OK_CANCEL_OPTION);
-			birthDate = f4.getText().toString();
-			dob = new SimpleDateFormat("MM-dd-yyyy").parse(birthDate);
-		
-
-			fname = "'" + f1.getText().toString() + "'";
-			lname = "'" + f2.getText().toString() + "'";
-			gtype = f3.getText().charAt(0);
-			address = "'" + f5.getText().toString() + "'";
-			phone = "'" + f6.getText().toString() + "'";
-			zipcode = "'" + f7.getText().toString() + "'";
-
-
-			query = "INSERT INTO Customer(fname, lname, gtype, dob, address, phone, zipcode) VALUES(" +
-			fname + ", " + lname + ", " + "'" + gtype + "', " + "'" + dob + "', " + address + ", " +
-			phone + ", " + zipcode + ");";  
-			
-			esql.executeUpdate(query);
-
-			query2 = "SELECT Customer.id FROM Customer WHERE fname = " + fname + " AND lname = " + lname + 
-			"AND dob = '" + dob + "';";
-
-
-			List<List<String>> customerId = esql.executeQueryAndReturnResult(query2);
-
-			
-			String s = customerId.get(0).get(0);
-			cid = Integer.parseInt(s);
-
-		} catch(Exception e){
-			System.err.println(e.getMessage());
-		} 
-			 
-
-		return cid;
-
+		if (JOptionPane.showConfirmDialog(null, fields, "About Customer ..", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) return null;
+		return f;
 	} // END CUSTOMER
 
 
-	public static void AddTechnician(DBproject esql) {//4
+	public static void AddTechnician(final DBproject esql) {//4
 	    
-		
 		JTextField f1 = new JTextField();
 		
 		Object[] fields = {" ", "Name", f1};
 	
-		JOptionPane.showConfirmDialog(null, fields, "About Technician ..", JOptionPane.OK_CANCEL_OPTION);
+		if (JOptionPane.showConfirmDialog(null, fields, "About Technician ..", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) return;
 
-		String techName = "'" + f1.getText().toString() + "'";
-		
-		String query = "INSERT INTO Technician(full_name) VALUES (" 
-		+ techName + ");";
-
-		try {
-			if (!techName.equals("''")) {
-				esql.executeUpdate(query);
+		final String name = f1.getText();
+		async("Add technician", new Callable<Integer>() {
+			public Integer call() throws Exception {
+				return esql.service().addTechnician(name);
+			}
+		}, new Consumer<Integer>() {
+			public void accept(Integer id) {
 				JOptionPane.showMessageDialog(null, 
-					"Technician Added", "Message",
+					"Technician Added (id " + id + ")", "Message",
 					JOptionPane.INFORMATION_MESSAGE);
 			}
-			else {
-					JOptionPane.showMessageDialog(null, 
-					"invalid input", "ERROR",
-					JOptionPane.ERROR_MESSAGE);
-			}
-	    }
-	    catch (Exception e) {
-		System.err.println(e.getMessage());
-	    }
-
+		});
 	}
 
-	public static void BookFlight(DBproject esql) {//5
+	public static void BookFlight(final DBproject esql) {//5
 		
 		// Given a customer and a flight that he/she wants to book, add a reservation to the DB
 
-		
-		int fnum, customerId = 0;
-		String query; 
-		char status;
-		
-		/*
-		System.out.println("OPTIONS : ");
-		System.out.println(" --------- ");
-		System.out.println("1. Enter Customer ID ");
-		System.out.println("2. Create New Customer ");
-		*/
-		JTextField f1 = new JTextField();
-		JButton yesButton = new JButton("Yes ");
-		JButton noButton = new JButton("No ");
-		Object[] fields = {" ", "Create new customer ? ", yesButton, noButton};
-	
-	
+		final int choice = JOptionPane.showConfirmDialog(null, "Create new customer ?", "Book Flight", JOptionPane.YES_NO_CANCEL_OPTION);
+		if (choice != JOptionPane.YES_OPTION && choice != JOptionPane.NO_OPTION) return;
 
-		final DBproject esql2 = esql;
-		yesButton.addActionListener(new ActionListener() {
-			public void actionPerformed(ActionEvent e) {
-				JOptionPane.getRootFrame().dispose(); 
-				int customerId = 0, fnum;
-				String query; 
-				char status;
-				
-				customerId = AddCustomer(esql2);
-				JOptionPane.getRootFrame().dispose(); 
-				JTextField f1 = new JTextField();
+		JTextField[] customer = null;
+		JTextField f1 = new JTextField();
+		JTextField f2 = new JTextField();
+		Object[] fields;
+		if (choice == JOptionPane.YES_OPTION) {
+			customer = CustomerForm();
+			if (customer == null) return;
+			fields = new Object[] {" ", "Flight #", f1};
+		} else {
+			fields = new Object[] {" ", "Flight #", f1, "Customer ID", f2};
+		}
 
-				try{
-				
-					Object[] fields = {" ", "Flight #", f1};
-				
-					JOptionPane.showConfirmDialog(null, fields, "Book Flight", JOptionPane.OK_CANCEL_OPTION);
-
-					fnum = Integer.parseInt(f1.getText().toString());
-					
-					
-					query = "SELECT p.seats - f.num_sold FROM ((FlightInfo i INNER JOIN Flight f ON i.flight_id = f.fnum) " +  
-						"INNER JOIN Plane p ON p.id = i.plane_id) WHERE f.fnum = " + fnum + ";";
-						List<List<String>> availableSeats = esql.executeQueryAndReturnResult(query);
-						String s = availableSeats.get(0).get(0);
-						int available = Integer.parseInt(s);
-			
-						if (available > 0){
-							status = 'C';
-							String query3 = "UPDATE Flight SET num_sold = num_sold + 1 WHERE fnum = " + fnum + "; ";
-							esql.executeUpdate(query3);
-						} else{
-							status = 'W';
-						}
-
-						String query2 = "INSERT into Reservation(cid, fid, status) VALUES(" +
-						customerId + ", " + fnum + ", " + "'" + status + "');";
-					
-						
-						esql.executeUpdate(query2);
-						JOptionPane.showMessageDialog(null, 
-							"Booked Flight", "Message",
-							JOptionPane.INFORMATION_MESSAGE);
-			}
-		catch(Exception ex){
-			System.err.println(ex.getMessage());
-		}	
+		if (JOptionPane.showConfirmDialog(null, fields, "Book Flight", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) return;
 
+		final int fnum, cid;
+		final String fname, lname, address, phone, zipcode;
+		final char gender;
+		final java.sql.Date dob;
+		try{
+			fnum = Integer.parseInt(f1.getText().trim());
+			if (customer == null) {
+				cid = Integer.parseInt(f2.getText().trim());
+				fname = lname = address = phone = zipcode = null;
+				gender = ' ';
+				dob = null;
+			} else {
+				cid = 0;
+				fname = customer[0].getText();
+				lname = customer[1].getText();
+				String g = customer[2].getText().trim();
+				gender = g.isEmpty() ? ' ' : g.charAt(0);
+				dob = parseDate(customer[3].getText());
+				address = customer[4].getText();
+				phone = customer[5].getText();
+				zipcode = customer[6].getText();
 			}
-		});
-		noButton.addActionListener(new ActionListener() {
-			public void actionPerformed(ActionEvent e) {
-				JOptionPane.getRootFrame().dispose();   
-				int fnum, customerId = 0;
-				String query; 
-				char status;
-
-				JTextField f1 = new JTextField();
-				JTextField f2 = new JTextField();
-				JTextField f3 = new JTextField();
-				JTextField f4 = new JTextField();
-				
-				try{
-				
-					Object[] fields = {" ", "Flight #", f1, "Customer ID", f2};
-				
-					JOptionPane.showConfirmDialog(null, fields, "Book Flight", JOptionPane.OK_CANCEL_OPTION);
-
-					fnum = Integer.parseInt(f1.getText().toString());
-					customerId = Integer.parseInt(f2.getText().toString());
-					
-					query = "SELECT p.seats - f.num_sold FROM ((FlightInfo i INNER JOIN Flight f ON i.flight_id = f.fnum) " +  
-						"INNER JOIN Plane p ON p.id = i.plane_id) WHERE f.fnum = " + fnum + ";";
-						List<List<String>> availableSeats = esql.executeQueryAndReturnResult(query);
-						String s = availableSeats.get(0).get(0);
-						int available = Integer.parseInt(s);
-			
-						if (available > 0){
-							status = 'C';
-							String query3 = "UPDATE Flight SET num_sold = num_sold + 1 WHERE fnum = " + fnum + "; ";
-							esql.executeUpdate(query3);
-						} else{
-							status = 'W';
-						}
-
-						String query2 = "INSERT into Reservation(cid, fid, status) VALUES(" +
-						customerId + ", " + fnum + ", " + "'" + status + "');";
-					
-						
-						esql.executeUpdate(query2);
-						JOptionPane.showMessageDialog(null, 
-							"Booked Flight", "Message",
-							JOptionPane.INFORMATION_MESSAGE);
-			}
-		catch(Exception ex){
-			System.err.println(ex.getMessage());
 		}
+		catch(Exception e){
+			showError(e);
+			return;
 		}
-	});
-
-		JOptionPane.showConfirmDialog(null, fields, "Book Flight", JOptionPane.OK_CANCEL_OPTION);
-		
-		
+		async("Book flight", new Callable<Booking>() {
+			public Booking call() throws Exception {
+				int customerId = cid;
+				if (fname != null) {
+					customerId = esql.service().addCustomer(fname, lname, gender, dob, address, phone, zipcode);
+				}
+				return esql.service().bookFlight(customerId, fnum);
+			}
+		}, new Consumer<Booking>() {
+			public void accept(Booking booking) {
+				JOptionPane.showMessageDialog(null, 
+					"Booked Flight\n" + booking, "Message",
+					JOptionPane.INFORMATION_MESSAGE);
+			}
+		});
 	}
 
-	public static void ListNumberOfAvailableSeats(DBproject esql) {//6
+	public static void ListNumberOfAvailableSeats(final DBproject esql) {//6
 		// For flight number and date, find the number of availalbe seats (i.e. total plane capacity minus booked seats )
 	    String fNumber = JOptionPane.showInputDialog("Enter flight number");
-	    System.out.println("Enter departure date");
-	    String dDate = "'" + JOptionPane.showInputDialog("Enter departure date (YYYY-MM-DD)") + "'";
-	    String query = "SELECT p.seats - f.num_sold "
-		+ "FROM ((flightinfo i INNER JOIN flight f ON i.flight_id = f.fnum) "
-		+ "INNER JOIN plane p ON p.id = i.plane_id) "
-		+ "WHERE f.fnum = " + fNumber + " AND f.actual_departure_date = " + dDate +";";
+	    if (fNumber == null) return;
+	    String dDate = JOptionPane.showInputDialog("Enter departure date (YYYY-MM-DD)");
+	    if (dDate == null) return;
 
+		final int fnum;
+		final java.sql.Date departure;
 	    try {
-			JOptionPane.showMessageDialog(null, "Available seats: " 
-				+ esql.executeQueryAndReturnResult(query).get(0).get(0),
-				"Number of available seats", JOptionPane.INFORMATION_MESSAGE);
+			fnum = Integer.parseInt(fNumber.trim());
+			departure = java.sql.Date.valueOf(dDate.trim());
 	    }
 	    catch (Exception e) {
-			System.err.println(e.getMessage());
+			showError(e);
+			return;
 	    }
+		async("Available seats", new Callable<Integer>() {
+			public Integer call() throws Exception {
+				return esql.service().availableSeats(fnum, departure);
+			}
+		}, new Consumer<Integer>() {
+			public void accept(Integer seats) {
+				JOptionPane.showMessageDialog(null, "Available seats: " + seats,
+					"Number of available seats", JOptionPane.INFORMATION_MESSAGE);
+			}
+		});
 	}
 
 
-	public static void ListsTotalNumberOfRepairsPerPlane(DBproject esql) {//7
+	public static void ListsTotalNumberOfRepairsPerPlane(final DBproject esql) {//7
 		// Count number of repairs per planes and list them in descending order
-		String query = "SELECT r.plane_id, count(r.plane_id)" + 
-		"from Repairs r " +
-		"group by r.plane_id " + 
-		"order by count(r.plane_id) desc; ";
+		async("Repairs per plane", new Callable<ReportTableModel>() {
+			public ReportTableModel call() throws Exception {
+				return esql.service().repairsPerPlaneReport();
+			}
+		}, new Consumer<ReportTableModel>() {
+			public void accept(ReportTableModel report) {
+				showReport("Repair List", report);
+			}
+		});
+	}
 
-	    try {
-			List<List<String>> res = esql.executeQueryAndReturnResult(query);
-			String m = "Plane\tnumber of repairs\n";
-			for (int i = 0; i < res.size(); ++i) {
-				for (int j = 0; j < res.get(i).size(); ++j) {
-					m += res.get(i).get(j) + "\t";
-				}
-				m += "\n";
+
+	public static void ListTotalNumberOfRepairsPerYear(final DBproject esql) {//8
+		// Count repairs per year and list them in ascending order
+		async("Repairs per year", new Callable<ReportTableModel>() {
+			public ReportTableModel call() throws Exception {
+				return esql.service().repairsPerYearReport();
 			}
-			JTextArea textArea = new JTextArea(m);
-			JScrollPane scrollPane = new JScrollPane(textArea);
-			textArea.setLineWrap(true);
-			textArea.setWrapStyleWord(true);
-			scrollPane.setPreferredSize(new Dimension(300, 400));
-			JOptionPane.showMessageDialog (null, scrollPane, "Repair List", JOptionPane.INFORMATION_MESSAGE);
+		}, new Consumer<ReportTableModel>() {
+			public void accept(ReportTableModel report) {
+				showReport("Number of Repair per Year", report);
+			}
+		});
+	}
+	
+	public static void FindPassengersCountWithStatus(final DBproject esql) {//9
+		// Find how many passengers there are with a status (i.e. W,C,R) and list that number.
+	    String flightNum = JOptionPane.showInputDialog("Enter flight number");
+	    if (flightNum == null) return;
+	    String status = JOptionPane.showInputDialog("Enter status (W, C or R)");
+	    if (status == null) return;
+		
+		final int fnum;
+		final char code;
+	    try {
+			fnum = Integer.parseInt(flightNum.trim());
+			status = status.trim();
+			code = status.isEmpty() ? ' ' : status.charAt(0);
 	    }
 	    catch (Exception e) {
-			JOptionPane.showMessageDialog(null, e.getMessage(), "ERROR", JOptionPane.ERROR_MESSAGE);
+			showError(e);
+			return;
 	    }
+		async("Passengers with status", new Callable<Integer>() {
+			public Integer call() throws Exception {
+				return esql.service().passengersWithStatus(fnum, code);
+			}
+		}, new Consumer<Integer>() {
+			public void accept(Integer count) {
+				JOptionPane.showMessageDialog(null, 
+					"Number passenger: " + count,
+					"Passenger with status",
+					JOptionPane.INFORMATION_MESSAGE);
+			}
+		});
 	}
 
+	public static void CancelReservation(final DBproject esql) {//10
+		// Cancel a reservation; its seat goes to the waitlist
+	    String rNumber = JOptionPane.showInputDialog("Enter reservation number");
+	    if (rNumber == null) return;
 
-	public static void ListTotalNumberOfRepairsPerYear(DBproject esql) {//8
-		// Count repairs per year and list them in ascending order
-
-		String query = "SELECT EXTRACT(YEAR FROM r.repair_date), COUNT(EXTRACT(YEAR FROM r.repair_date)) "
-		+ "FROM Repairs r "
-		+ "GROUP BY EXTRACT(YEAR FROM r.repair_date) "
-		+ "ORDER BY COUNT(EXTRACT(YEAR FROM r.repair_date));";
-
-
+		final int rnum;
 	    try {
-			List<List<String>> res = esql.executeQueryAndReturnResult(query);
-			String m = "Year\tRepair\n";
-			for (int i = 0; i < res.size(); ++i) {
-				for (int j = 0; j < res.get(i).size(); ++j) {
-					m += res.get(i).get(j) + "\t";
-				}
-				m += "\n";
-			}
-			JTextArea textArea = new JTextArea(m);
-			JScrollPane scrollPane = new JScrollPane(textArea);
-			textArea.setLineWrap(true);
-			textArea.setWrapStyleWord(true);
-			scrollPane.setPreferredSize(new Dimension(300, 400));			
-			JOptionPane.showMessageDialog (null, scrollPane, "Number of Repair per Year", JOptionPane.INFORMATION_MESSAGE);
+			rnum = Integer.parseInt(rNumber.trim());
 	    }
 	    catch (Exception e) {
-			JOptionPane.showMessageDialog(null, e.getMessage(), "ERROR", JOptionPane.ERROR_MESSAGE);
+			showError(e);
+			return;
 	    }
+		async("Cancel reservation", new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				return esql.service().cancelReservation(rnum);
+			}
+		}, new Consumer<Boolean>() {
+			public void accept(Boolean cancelled) {
+				String message = cancelled ? "Reservation " + rnum + " cancelled" : "No reservation " + rnum;
+				JOptionPane.showMessageDialog(null, message, "Cancel reservation", JOptionPane.INFORMATION_MESSAGE);
+			}
+		});
 	}
-	
-	public static void FindPassengersCountWithStatus(DBproject esql) {//9
-		// Find how many passengers there are with a status (i.e. W,C,R) and list that number.
-	    String flightNum = JOptionPane.showInputDialog("Enter flight number");
-	    String status = "'" + JOptionPane.showInputDialog("Enter status") + "'";
 
-	    String query = "SELECT COUNT(r.status) FROM Reservation r WHERE r.fid = ";
-	    query += flightNum + "GROUP BY r.status HAVING r.status = " + status + ";";
-		
+	public static void FindRoute(final DBproject esql) {//11
+		// Find the earliest arriving and the cheapest connection between two airports
+		JTextField f1 = new JTextField();
+		JTextField f2 = new JTextField();
+		JTextField f3 = new JTextField();
+		JTextField f4 = new JTextField(String.valueOf(Config.getInt("route.maxStops", 2)));
+
+		Object[] fields = {" ", "From (airport code)", f1, "To (airport code)", f2,
+			"Not before (YYYY-MM-DD)", f3, "Max stops", f4};
+
+		if (JOptionPane.showConfirmDialog(null, fields, "Find Route", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) return;
+
+		final String from = f1.getText(), to = f2.getText();
+		final java.sql.Date notBefore;
+		final int maxStops;
 	    try {
-			JOptionPane.showMessageDialog(null, 
-				"Number passenger: " + esql.executeQueryAndReturnResult(query).get(0).get(0),
-				"Passenger with status",
-				JOptionPane.INFORMATION_MESSAGE);
+			notBefore = java.sql.Date.valueOf(f3.getText().trim());
+			maxStops = Integer.parseInt(f4.getText().trim());
 	    }
 	    catch (Exception e) {
-		System.err.println(e.getMessage());
+			showError(e);
+			return;
 	    }
+		async("Find route", new Callable<String>() {
+			public String call() throws Exception {
+				Itinerary earliest = esql.service().earliestArrival(from, to, notBefore, maxStops);
+				Itinerary cheapest = esql.service().cheapestRoute(from, to, notBefore, maxStops);
+				return earliest == null ? "No connection with at most " + maxStops + " stop(s)"
+					: "Earliest arrival\n" + earliest + "\nCheapest\n" + cheapest;
+			}
+		}, new Consumer<String>() {
+			public void accept(String message) {
+				JTextArea textArea = new JTextArea(message);
+				textArea.setEditable(false);
+				JOptionPane.showMessageDialog(null, new JScrollPane(textArea), "Routes", JOptionPane.INFORMATION_MESSAGE);
+			}
+		});
+	}
+
+	/*
+	 * Runs the database side of a menu operation on the dispatcher, or
+	 * inline when there is none.  onResult runs on the event thread; errors
+	 * are shown with showError.
+	 */
+	static <T> void async(String name, Callable<T> work, Consumer<? super T> onResult) {
+		if (ui != null) {
+			ui.submit(name, work, onResult);
+			return;
+		}
+		try{
+			onResult.accept(work.call());
+		}catch (Exception e){
+			showError(e);
+		}
+	}
+
+	/*
+	 * Parses the MM-dd-yyyy dates typed into the forms.
+	 */
+	static java.sql.Date parseDate(String text) throws java.text.ParseException {
+		SimpleDateFormat format = new SimpleDateFormat("MM-dd-yyyy");
+		format.setLenient(false);
+		return new java.sql.Date(format.parse(text.trim()).getTime());
 	}
-}
\ No newline at end of file
+
+	/*
+	 * Shows a report in a table that reads its rows as they are scrolled
+	 * into view; clicking a column header sorts by it.
+	 */
+	static void showReport(String title, ReportTableModel report) {
+		report.setErrorHandler(new Consumer<Throwable>() {
+			public void accept(Throwable e) {
+				showError(e instanceof Exception ? (Exception) e : new Exception(e));
+			}
+		});
+		JTable table = new JTable(report);
+		report.sortOnHeaderClick(table);
+		JScrollPane scrollPane = new JScrollPane(table);
+		scrollPane.setPreferredSize(new Dimension(300, 400));
+		try{
+			JOptionPane.showMessageDialog (null, scrollPane, title, JOptionPane.INFORMATION_MESSAGE);
+		}finally{
+			report.close();
+		}
+	}
+
+	static void showError(Exception e) {
+		String message = e instanceof NumberFormatException ? "invalid number: " + e.getMessage()
+			: e instanceof java.text.ParseException ? "invalid date: " + e.getMessage()
+			: e.getMessage();
+		System.err.println(message);
+		JOptionPane.showMessageDialog(null, message, "ERROR", JOptionPane.ERROR_MESSAGE);
+	}
+}
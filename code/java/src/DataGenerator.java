@@ -0,0 +1,474 @@
+/*
+ * Synthetic data generator for the airline schema.
+ *
+ * Writes the nine tables in the same CSV formats as code/data at a scale
+ * factor: scale 1 produces about the shipped row counts (250 customers,
+ * 67 planes, 2000 flights, 9999 reservations, ...) and every count grows
+ * linearly with it, so scale 30000 yields roughly 300 million reservations.
+ *
+ * Keys are dense (0 .. n-1) and every foreign key points at an existing row.
+ * Traffic is skewed the way real bookings are: reservations pick flights
+ * and customers from a Zipf distribution, and flights pick airports from
+ * one, so a few flights and airports are hot.  The hot ids are scattered
+ * over the key space rather than being the lowest ones.
+ *
+ * Rows are produced in chunks by a pool of worker threads and written as
+ * soon as a chunk is full, so memory use depends on the number of threads
+ * and the chunk size, not on the scale.  The only per-row state kept is
+ * the seat count of each plane (4 bytes per plane).  Output goes either to
+ * CSV files in a directory or straight into the tables through COPY, in
+ * foreign key order (load before sql/triggers.sql, as with BulkLoader).
+ *
+ * Settings (system properties, see Config):
+ *   dbproject.gen.threads  worker threads (default: available processors)
+ *   dbproject.gen.seed     random seed (default 166)
+ *   dbproject.gen.skew     Zipf exponent for flights/customers/airports (default 1.0)
+ *
+ * Examples:
+ *   java -cp lib/*:bin/ DataGenerator 100 /tmp/data100
+ *   java -cp lib/*:bin/ DataGenerator 100 --copy flightDB 5432 user
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+
+public class DataGenerator {
+
+	static final int CHUNK_ROWS = 16384;
+	static final long DAY_MS = 24L * 3600 * 1000;
+	// 2013-01-01 .. 2016-12-31, the span of the shipped data
+	static final long FIRST_DAY = 15706;
+	static final int DAYS = 1461;
+
+	static final String[] FIRST_NAMES = { "Armand", "Alberto", "Wyatt", "Maria", "Linh", "Priya", "Omar",
+		"Chen", "Sofia", "Kenji", "Amara", "Lucas", "Fatima", "Noah", "Elena", "Ravi", "Grace", "Mateo" };
+	static final String[] LAST_NAMES = { "Enderle", "Scarlett", "Ruoff", "Nguyen", "Garcia", "Smith", "Khan",
+		"Tanaka", "Rossi", "Okafor", "Muller", "Silva", "Kowalski", "Haddad", "Ivanova", "Patel" };
+	static final String[] STREETS = { "Chapel Drive", "Bald Hill Street", "Campfire Ave.", "Main Street",
+		"Oak Lane", "University Ave.", "Canyon Crest Drive" };
+	static final String[] CITIES = { "Melbourne", "Baton Rouge", "Cockeysville", "Riverside", "Austin",
+		"Portland", "Columbus" };
+	static final String[] STATES = { "FL", "LA", "MD", "CA", "TX", "OR", "OH" };
+	static final String[] COUNTRIES = { "Australia", "Morocco", "India", "France", "Brazil", "Japan",
+		"Nigeria", "Canada", "Germany", "Mexico" };
+	static final String[][] MODELS = {
+		{ "Airbus", "AirbusA300" }, { "Airbus", "AirbusA310" }, { "Airbus", "AirbusA320" },
+		{ "Airbus", "AirbusA330" }, { "Boeing", "Boeing737" }, { "Boeing", "Boeing747" },
+		{ "Boeing", "Boeing777" }, { "Bombadier", "CRJ900" }, { "Embraer", "E190" }, { "Yak", "YakovlevYak-40" } };
+	static final String[] REPAIR_CODES = { "MJ", "MN", "SV" };
+	static final String STATUSES = "CWR";
+
+	final double _scale;
+	final long _seed = Config.getLong("gen.seed", 166);
+	final double _skew = Double.parseDouble(Config.getString("gen.skew", "1.0"));
+	final int _threads = Math.max(1, Config.getInt("gen.threads", Runtime.getRuntime().availableProcessors()));
+
+	final int _customers, _pilots, _planes, _technicians, _flights, _airports;
+	final long _reservations, _repairs;
+	//seat capacity of every plane; needed so num_sold never exceeds it
+	final int[] _seats;
+
+	DataGenerator(double scale) {
+		this._scale = scale;
+		this._customers = count(250);
+		this._pilots = count(250);
+		this._planes = count(67);
+		this._technicians = count(250);
+		this._flights = count(2000);
+		this._reservations = Math.max(1, Math.round(9999 * scale));
+		this._repairs = Math.max(1, Math.round(549 * scale));
+		if (this._reservations > Integer.MAX_VALUE || this._flights == Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("scale too large for INTEGER keys");
+		}
+		this._airports = Math.max(20, (int) (200 * Math.sqrt(scale)));
+		this._seats = new int[this._planes];
+		SplittableRandom random = new SplittableRandom(this._seed);
+		for (int i = 0; i < this._planes; ++i) this._seats[i] = 100 + random.nextInt(350);
+	}
+
+	private int count(int base) {
+		return (int) Math.max(1, Math.min(Integer.MAX_VALUE - 1, Math.round(base * this._scale)));
+	}
+
+	/*
+	 * Destination of one table's rows.  write() may be called from several
+	 * threads; each call carries whole rows.
+	 */
+	interface Sink {
+		void write(byte[] data, int length) throws IOException, SQLException;
+		void close() throws IOException, SQLException;
+	}
+
+	static class FileSink implements Sink {
+		private final OutputStream _out;
+
+		FileSink(File file) throws IOException {
+			this._out = new BufferedOutputStream(new FileOutputStream(file), 1 << 20);
+		}
+
+		public synchronized void write(byte[] data, int length) throws IOException {
+			this._out.write(data, 0, length);
+		}
+
+		public void close() throws IOException {
+			this._out.close();
+		}
+	}
+
+	static class CopySink implements Sink {
+		private final ConnectionPool _pool;
+		private final PooledConnection _conn;
+		private final CopyIn _copy;
+
+		CopySink(ConnectionPool pool, BulkLoader.Table table) throws SQLException {
+			this._pool = pool;
+			this._conn = pool.borrow();
+			try{
+				// SET LOCAL ends with the transaction, so the setting does not
+				// leak to the connection's next borrower
+				this._conn.connection().setAutoCommit(false);
+				java.sql.Statement stmt = this._conn.connection().createStatement();
+				stmt.execute("SET LOCAL DateStyle = 'ISO, MDY'");
+				stmt.close();
+				CopyManager copier = new CopyManager(this._conn.connection().unwrap(BaseConnection.class));
+				this._copy = copier.copyIn("COPY " + table.name + " (" + table.columns + ") FROM STDIN WITH DELIMITER ','");
+			}catch (SQLException e){
+				pool.release(this._conn);
+				throw e;
+			}
+		}
+
+		public synchronized void write(byte[] data, int length) throws SQLException {
+			this._copy.writeToCopy(data, 0, length);
+		}
+
+		public void close() throws SQLException {
+			try{
+				this._copy.endCopy();
+				this._conn.connection().commit();
+			}finally{
+				this._pool.release(this._conn);
+			}
+		}
+	}
+
+	/*
+	 * Produces the rows [from, to) of one table into a buffer.
+	 */
+	interface RowWriter {
+		void row(long id, SplittableRandom random, StringBuilder out);
+	}
+
+	/*
+	 * One table to generate: its BulkLoader description, row count and row
+	 * producer.
+	 */
+	class Job {
+		final BulkLoader.Table table;
+		final long rows;
+		final RowWriter writer;
+
+		Job(String name, long rows, RowWriter writer) {
+			this.table = tableNamed(name);
+			this.rows = rows;
+			this.writer = writer;
+		}
+	}
+
+	static BulkLoader.Table tableNamed(String name) {
+		for (BulkLoader.Table[] level : BulkLoader.LEVELS) {
+			for (BulkLoader.Table t : level) if (t.name.equals(name)) return t;
+		}
+		throw new IllegalArgumentException(name);
+	}
+
+	/*
+	 * Jobs grouped in the same foreign key levels as BulkLoader.LEVELS.
+	 */
+	List<List<Job>> jobs() {
+		List<List<Job>> levels = new ArrayList<List<Job>>();
+		List<Job> first = new ArrayList<Job>();
+		first.add(new Job("Customer", this._customers, new RowWriter() {
+			public void row(long id, SplittableRandom r, StringBuilder out) {
+				out.append(id).append(',').append(pick(FIRST_NAMES, r)).append(',').append(pick(LAST_NAMES, r))
+					.append(',').append(r.nextBoolean() ? 'M' : 'F').append(',')
+					.append(1 + r.nextInt(12)).append('/').append(1 + r.nextInt(28)).append('/').append(1930 + r.nextInt(75))
+					.append(',').append(1 + r.nextInt(9999)).append(' ').append(pick(STREETS, r)).append(' ').append(pick(CITIES, r))
+					.append(',').append(1000000000L + (r.nextLong() & Long.MAX_VALUE) % 9000000000L)
+					.append(", ").append(pick(STATES, r)).append(' ').append(10000 + r.nextInt(89999)).append('\n');
+			}
+		}));
+		first.add(new Job("Pilot", this._pilots, new RowWriter() {
+			public void row(long id, SplittableRandom r, StringBuilder out) {
+				out.append(id).append(',').append(pick(FIRST_NAMES, r)).append(' ').append(pick(LAST_NAMES, r))
+					.append(',').append(pick(COUNTRIES, r)).append('\n');
+			}
+		}));
+		first.add(new Job("Plane", this._planes, new RowWriter() {
+			public void row(long id, SplittableRandom r, StringBuilder out) {
+				String[] model = MODELS[r.nextInt(MODELS.length)];
+				out.append(id).append(',').append(model[0]).append(',').append(model[1]).append(',')
+					.append(1 + r.nextInt(30)).append(',').append(_seats[(int) id]).append('\n');
+			}
+		}));
+		first.add(new Job("Technician", this._technicians, new RowWriter() {
+			public void row(long id, SplittableRandom r, StringBuilder out) {
+				out.append(id).append(',').append(pick(FIRST_NAMES, r)).append(' ').append(pick(LAST_NAMES, r)).append('\n');
+			}
+		}));
+		levels.add(first);
+
+		List<Job> second = new ArrayList<Job>();
+		second.add(new Job("Flight", this._flights, new RowWriter() {
+			public void row(long id, SplittableRandom r, StringBuilder out) {
+				int fnum = (int) id;
+				int seats = _seats[planeOf(fnum)];
+				int from = scatter(zipf(_airports, r), _airports);
+				int to = scatter(zipf(_airports, r), _airports);
+				if (to == from) to = (to + 1) % _airports;
+				long departure = departureMinute(fnum);
+				long arrival = departure + 60 + r.nextInt(14 * 60);
+				out.append(fnum).append(',').append(100 + r.nextInt(900)).append(',').append(r.nextInt(seats + 1))
+					.append(',').append(r.nextInt(4)).append(',');
+				timestamp(departure, out);
+				out.append(',');
+				timestamp(arrival, out);
+				out.append(',');
+				airport(to, out);
+				out.append(',');
+				airport(from, out);
+				out.append('\n');
+			}
+		}));
+		levels.add(second);
+
+		List<Job> third = new ArrayList<Job>();
+		third.add(new Job("Reservation", this._reservations, new RowWriter() {
+			public void row(long id, SplittableRandom r, StringBuilder out) {
+				out.append(id).append(',').append(scatter(zipf(_customers, r), _customers))
+					.append(',').append(scatter(zipf(_flights, r), _flights))
+					.append(',').append(STATUSES.charAt(r.nextInt(3))).append('\n');
+			}
+		}));
+		third.add(new Job("FlightInfo", this._flights, new RowWriter() {
+			public void row(long id, SplittableRandom r, StringBuilder out) {
+				out.append(id).append(',').append(id).append(',').append(r.nextInt(_pilots))
+					.append(',').append(planeOf((int) id)).append('\n');
+			}
+		}));
+		third.add(new Job("Repairs", this._repairs, new RowWriter() {
+			public void row(long id, SplittableRandom r, StringBuilder out) {
+				out.append(id).append(',');
+				date(FIRST_DAY + r.nextInt(DAYS), out);
+				out.append(',').append(REPAIR_CODES[r.nextInt(3)]).append(',').append(r.nextInt(_pilots))
+					.append(',').append(scatter(zipf(_planes, r), _planes)).append(',').append(r.nextInt(_technicians)).append('\n');
+			}
+		}));
+		third.add(new Job("Schedule", this._flights, new RowWriter() {
+			public void row(long id, SplittableRandom r, StringBuilder out) {
+				long departure = departureMinute((int) id) - 30 + r.nextInt(61);
+				out.append(id).append(',').append(id).append(',');
+				timestamp(departure, out);
+				out.append(',');
+				timestamp(departure + 60 + r.nextInt(14 * 60), out);
+				out.append('\n');
+			}
+		}));
+		levels.add(third);
+		return levels;
+	}
+
+	/**
+	 * Method to generate every table.  Levels run one after another so a
+	 * COPY target never references rows that are not loaded yet; the
+	 * tables of a level and the chunks of each table run in parallel.
+	 *
+	 * @param sinkFor opens the destination of a table
+	 */
+	void generate(SinkFactory sinkFor) throws Exception {
+		ExecutorService workers = Executors.newFixedThreadPool(this._threads);
+		try{
+			for (List<Job> level : jobs()) {
+				List<Future<?>> pending = new ArrayList<Future<?>>();
+				List<Sink> sinks = new ArrayList<Sink>();
+				List<Long> started = new ArrayList<Long>();
+				for (final Job job : level) {
+					final Sink sink = sinkFor.open(job.table);
+					sinks.add(sink);
+					started.add(System.nanoTime());
+					for (long from = 0; from < job.rows; from += CHUNK_ROWS) {
+						final long lo = from, hi = Math.min(job.rows, from + CHUNK_ROWS);
+						pending.add(workers.submit(new Callable<Void>() {
+							public Void call() throws Exception {
+								writeChunk(job, lo, hi, sink);
+								return null;
+							}
+						}));
+					}
+				}
+				for (Future<?> f : pending) {
+					try{
+						f.get();
+					}catch (ExecutionException e){
+						throw (Exception) e.getCause();
+					}
+				}
+				for (int i = 0; i < level.size(); ++i) {
+					sinks.get(i).close();
+					double secs = (System.nanoTime() - started.get(i)) / 1e9;
+					System.out.printf("%-12s %12d rows %9.2f s%n", level.get(i).table.name, level.get(i).rows, secs);
+				}
+			}
+		}finally{
+			workers.shutdownNow();
+		}
+	}
+
+	/*
+	 * Chunks draw from their own random stream, derived from the table and
+	 * the chunk start, so the output does not depend on thread scheduling.
+	 */
+	void writeChunk(Job job, long from, long to, Sink sink) throws Exception {
+		SplittableRandom random = new SplittableRandom(this._seed ^ (job.table.name.hashCode() * 0x9E3779B97F4A7C15L) ^ from);
+		StringBuilder out = new StringBuilder((int) (to - from) * 48);
+		for (long id = from; id < to; ++id) job.writer.row(id, random, out);
+		byte[] bytes = out.toString().getBytes(StandardCharsets.UTF_8);
+		sink.write(bytes, bytes.length);
+	}
+
+	interface SinkFactory {
+		Sink open(BulkLoader.Table table) throws Exception;
+	}
+
+	/*
+	 * Each flight flies one plane, chosen by a hash so the assignment needs
+	 * no table.
+	 */
+	int planeOf(int fnum) {
+		long h = (fnum + 1) * 0x9E3779B97F4A7C15L;
+		return (int) ((h >>> 33) % this._planes);
+	}
+
+	long departureMinute(int fnum) {
+		long h = (fnum + 7) * 0xC2B2AE3D27D4EB4FL;
+		return (FIRST_DAY + (h >>> 35) % DAYS) * 1440 + (h >>> 20 & 0x7FF) % 1440;
+	}
+
+	/*
+	 * Zipf distributed rank in [0, n) by inverting the continuous power law;
+	 * close enough to the discrete distribution for generating skew.
+	 */
+	int zipf(int n, SplittableRandom r) {
+		double u = r.nextDouble();
+		double x;
+		if (Math.abs(this._skew - 1.0) < 1e-9) {
+			x = Math.exp(u * Math.log(n + 1.0)) - 1.0;
+		} else {
+			double a = 1.0 - this._skew;
+			x = Math.pow((Math.pow(n + 1.0, a) - 1.0) * u + 1.0, 1.0 / a) - 1.0;
+		}
+		return Math.min(n - 1, (int) x);
+	}
+
+	/*
+	 * Spreads ranks over the key space with a fixed bijection on [0, n).
+	 */
+	static int scatter(int rank, int n) {
+		long step = 2654435761L % n;
+		while (gcd(step, n) != 1) ++step;
+		return (int) ((rank * step + 12345) % n);
+	}
+
+	static long gcd(long a, long b) {
+		while (b != 0) {
+			long t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+
+	static String pick(String[] values, SplittableRandom r) {
+		return values[r.nextInt(values.length)];
+	}
+
+	/*
+	 * Airport codes are five capital letters, derived from the airport index.
+	 */
+	static void airport(int index, StringBuilder out) {
+		long v = index * 2654435761L % 11881376; // 26^5
+		for (int i = 0; i < 5; ++i) {
+			out.append((char) ('A' + v % 26));
+			v /= 26;
+		}
+	}
+
+	static void date(long epochDay, StringBuilder out) {
+		out.append(java.time.LocalDate.ofEpochDay(epochDay));
+	}
+
+	static void timestamp(long epochMinute, StringBuilder out) {
+		date(epochMinute / 1440, out);
+		int minute = (int) (epochMinute % 1440);
+		out.append(' ');
+		if (minute / 60 < 10) out.append('0');
+		out.append(minute / 60).append(':');
+		if (minute % 60 < 10) out.append('0');
+		out.append(minute % 60);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: java [-classpath <classpath>] DataGenerator <scale> <outputDir>");
+			System.err.println("       java [-classpath <classpath>] DataGenerator <scale> --copy <dbname> <port> <user>");
+			return;
+		}
+		DataGenerator gen = new DataGenerator(Double.parseDouble(args[0]));
+		System.out.printf("scale %s: %d customers, %d planes, %d flights, %d reservations, %d airports, %d threads%n",
+			args[0], gen._customers, gen._planes, gen._flights, gen._reservations, gen._airports, gen._threads);
+		long start = System.nanoTime();
+
+		if (args[1].equals("--copy")) {
+			if (args.length < 5) {
+				System.err.println("--copy needs <dbname> <port> <user>");
+				return;
+			}
+			Class.forName("org.postgresql.Driver");
+			final DBproject esql = new DBproject(args[2], args[3], args[4], "");
+			try{
+				gen.generate(new SinkFactory() {
+					public Sink open(BulkLoader.Table table) throws Exception {
+						return new CopySink(esql.pool(), table);
+					}
+				});
+			}finally{
+				esql.cleanup();
+			}
+		} else {
+			final File dir = new File(args[1]);
+			if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+			gen.generate(new SinkFactory() {
+				public Sink open(BulkLoader.Table table) throws Exception {
+					return new FileSink(new File(dir, table.file));
+				}
+			});
+		}
+		System.out.printf("done in %.1f s%n", (System.nanoTime() - start) / 1e9);
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Concurrent histogram of non-negative long values (usually nanoseconds).
+ *
+ * Buckets are log-linear as in HdrHistogram: values below 32 get a bucket
+ * each, and every power of two above that is split into 32 equal buckets,
+ * so a value is reported within about 3% of what was recorded.  The whole
+ * range of long fits in 1888 counters.  record() does a few bit operations
+ * and atomic increments; it never allocates or locks, so it can sit on
+ * every database call.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class Histogram {
+	private static final int SUB_BITS = 5;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+	private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong _count = new AtomicLong();
+	private final AtomicLong _sum = new AtomicLong();
+	private final AtomicLong _max = new AtomicLong();
+
+	/**
+	 * Method to record one value.  Negative values count as 0.
+	 */
+	public void record(long value) {
+		if (value < 0) value = 0;
+		this._counts.incrementAndGet(index(value));
+		this._count.incrementAndGet();
+		this._sum.addAndGet(value);
+		long max;
+		while (value > (max = this._max.get()) && !this._max.compareAndSet(max, value)) {
+		}
+	}
+
+	static int index(long value) {
+		if (value < SUB_COUNT) return (int) value;
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		int shift = msb - SUB_BITS;
+		return (shift + 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+	}
+
+	/*
+	 * Largest value that falls into a bucket.
+	 */
+	static long highest(int index) {
+		if (index < SUB_COUNT) return index;
+		int shift = index / SUB_COUNT - 1;
+		long sub = index % SUB_COUNT + SUB_COUNT;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	/**
+	 * @return number of values recorded
+	 */
+	public long count() {
+		return this._count.get();
+	}
+
+	/**
+	 * @return sum of the values recorded
+	 */
+	public long sum() {
+		return this._sum.get();
+	}
+
+	/**
+	 * @return largest value recorded, 0 when empty
+	 */
+	public long max() {
+		return this._max.get();
+	}
+
+	/**
+	 * @return mean of the values recorded, 0 when empty
+	 */
+	public double mean() {
+		long n = count();
+		return n == 0 ? 0.0 : (double) sum() / n;
+	}
+
+	/**
+	 * Method to estimate a percentile.  Values recorded while this runs
+	 * may or may not be counted.
+	 *
+	 * @param p the percentile, between 0 and 100
+	 * @return the upper end of the bucket holding the percentile, capped at
+	 *         max(); 0 when empty
+	 */
+	public long percentile(double p) {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; ++i) total += this._counts.get(i);
+		if (total == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(p / 100.0 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			seen += this._counts.get(i);
+			if (seen >= rank) return Math.min(highest(i), max());
+		}
+		return max();
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Hands out ids for new rows without a round trip per row.
+ *
+ * Ids still come from the sequences of sql/triggers.sql, but are leased in
+ * blocks: when a sequence's block is used up, one query takes its next
+ * dbproject.id.blockSize values, and they are handed out from memory.
+ * Inserts then carry their id, so the caller knows the key without
+ * RETURNING or a lookup, and the row-level id triggers are gone
+ * (sql/migrations/008_client_ids.sql).
+ *
+ * A sequence hands every value out once, so ids stay unique across any
+ * number of application instances and tools sharing the database.  They
+ * are not in insert order across instances, and the unused rest of each
+ * block is lost when the application exits, leaving gaps.
+ *
+ * Settings (system properties, see Config):
+ *   dbproject.id.blockSize  ids leased per round trip (default 100)
+ */
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class IdAllocator {
+	static final String SQL_RESERVE_IDS =
+		"SELECT nextval(CAST(? AS regclass)) FROM generate_series(1, ?)";
+
+	public static final String PLANE = "plane_number_seq";
+	public static final String PILOT = "pilot_number_seq";
+	public static final String FLIGHT = "flight_number_seq";
+	public static final String CUSTOMER = "customer_number_seq";
+	public static final String TECHNICIAN = "technician_number_seq";
+	public static final String RESERVATION = "reservation_number_seq";
+
+	/*
+	 * The leased ids of one sequence not handed out yet; also its lock.
+	 */
+	static final class Block {
+		int[] ids = new int[0];
+		int next = 0;
+	}
+
+	private final ConnectionPool _pool;
+	private final int _blockSize;
+	private final ConcurrentHashMap<String, Block> _blocks = new ConcurrentHashMap<String, Block>();
+
+	public IdAllocator(ConnectionPool pool) {
+		this._pool = pool;
+		this._blockSize = Math.max(1, Config.getInt("id.blockSize", 100));
+	}
+
+	/**
+	 * Method to take the next id of a sequence.  Leases a new block when
+	 * the current one is used up; other threads wanting the same sequence
+	 * wait for it.
+	 *
+	 * @param sequence name of the DB sequence, e.g. IdAllocator.PLANE
+	 * @return an id no other caller or instance will get
+	 * @throws java.sql.SQLException when a new block cannot be leased
+	 */
+	public int next(String sequence) throws SQLException {
+		Block block = this._blocks.get(sequence);
+		if (block == null) {
+			Block created = new Block();
+			block = this._blocks.putIfAbsent(sequence, created);
+			if (block == null) block = created;
+		}
+		synchronized (block) {
+			if (block.next == block.ids.length) {
+				block.ids = lease(sequence);
+				block.next = 0;
+			}
+			return block.ids[block.next++];
+		}
+	}
+
+	private int[] lease(String sequence) throws SQLException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		PooledConnection conn = this._pool.borrow();
+		try{
+			int[] ids = reserve(conn, sequence, this._blockSize);
+			failed = false;
+			return ids;
+		}catch (SQLException e){
+			conn.failed(e);
+			throw e;
+		}finally{
+			this._pool.release(conn);
+			Metrics.recordOperation("leaseIds", start, failed ? 0 : this._blockSize, failed);
+		}
+	}
+
+	/**
+	 * Method to reserve values of a sequence with one query.  The values
+	 * are taken whether or not the caller's transaction commits.
+	 *
+	 * @param conn the connection to use
+	 * @param sequence name of the DB sequence
+	 * @param count number of values wanted
+	 * @return count distinct values of the sequence
+	 * @throws java.sql.SQLException when the sequence does not exist
+	 */
+	static int[] reserve(PooledConnection conn, String sequence, int count) throws SQLException {
+		PreparedStatement stmt = conn.prepare(SQL_RESERVE_IDS);
+		stmt.setString(1, sequence);
+		stmt.setInt(2, count);
+		int[] ids = new int[count];
+		int n = 0;
+		ResultSet rs = stmt.executeQuery();
+		try{
+			while (rs.next() && n < count) ids[n++] = rs.getInt(1);
+		}finally{
+			rs.close();
+		}
+		if (n != count) throw new SQLException("Reserved " + n + " of " + count + " ids from " + sequence);
+		return ids;
+	}
+}
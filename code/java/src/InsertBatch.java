@@ -0,0 +1,237 @@
+/*
+ * Inserts many planes, pilots, technicians, customers and reservations in
+ * one transaction.
+ *
+ * The single-row operations of AirlineService cost one round trip per row.
+ * A batch instead reserves the ids of all rows of a table with one query
+ * (IdAllocator.reserve), then sends the rows as JDBC batches.  The
+ * connections of the pool set reWriteBatchedInserts, so the driver turns
+ * each batch into multi-row INSERT ... VALUES statements.
+ *
+ * Rows are validated as they are added, with the same rules as the
+ * single-row operations.  execute() inserts every table in foreign key
+ * order and commits once.  If any row fails, nothing is inserted.
+ * Confirmed reservations take their seats from the flight in the same
+ * transaction.  When a flight does not have enough free seats, the whole
+ * batch fails; it does not oversell.
+ *
+ * A batch is used by one thread and executed once.
+ *
+ * Settings (system properties, see Config):
+ *   dbproject.batch.size  rows sent per JDBC batch (default 1000)
+ */
+
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class InsertBatch {
+	private static final int BATCH_SIZE = Math.max(1, Config.getInt("batch.size", 1000));
+
+	static final String SQL_INSERT_PLANE =
+		"INSERT INTO Plane(id, make, model, age, seats) VALUES (?, ?, ?, ?, ?)";
+	static final String SQL_INSERT_PILOT =
+		"INSERT INTO Pilot(id, fullname, nationality) VALUES (?, ?, ?)";
+	static final String SQL_INSERT_TECHNICIAN =
+		"INSERT INTO Technician(id, full_name) VALUES (?, ?)";
+	static final String SQL_INSERT_CUSTOMER =
+		"INSERT INTO Customer(id, fname, lname, gtype, dob, address, phone, zipcode) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+	static final String SQL_INSERT_RESERVATION =
+		"INSERT INTO Reservation(rnum, cid, fid, status) VALUES (?, ?, ?, ?)";
+	// takes n seats of a flight, but only if that many are still free
+	static final String SQL_TAKE_SEATS =
+		"UPDATE Flight f SET num_sold = f.num_sold + ? " +
+		"FROM FlightInfo i, Plane p " +
+		"WHERE f.fnum = ? AND i.flight_id = f.fnum AND p.id = i.plane_id AND f.num_sold + ? <= p.seats";
+
+	/*
+	 * The rows added for one table, each without its id, and where each
+	 * row's id goes in the result.
+	 */
+	static class Rows {
+		final String sql;
+		final String sequence;
+		final List<Object[]> values = new ArrayList<Object[]>();
+		final List<Integer> positions = new ArrayList<Integer>();
+
+		Rows(String sql, String sequence) {
+			this.sql = sql;
+			this.sequence = sequence;
+		}
+	}
+
+	private final ConnectionPool _pool;
+	//told about the reservations inserted; may be null
+	private final ResultCache _results;
+	// in foreign key order: reservations reference customers
+	private final Rows _planes = new Rows(SQL_INSERT_PLANE, IdAllocator.PLANE);
+	private final Rows _pilots = new Rows(SQL_INSERT_PILOT, IdAllocator.PILOT);
+	private final Rows _technicians = new Rows(SQL_INSERT_TECHNICIAN, IdAllocator.TECHNICIAN);
+	private final Rows _customers = new Rows(SQL_INSERT_CUSTOMER, IdAllocator.CUSTOMER);
+	private final Rows _reservations = new Rows(SQL_INSERT_RESERVATION, IdAllocator.RESERVATION);
+	//seats taken by the confirmed reservations, per flight
+	private final Map<Integer, Integer> _seatsTaken = new TreeMap<Integer, Integer>();
+	private int _size = 0;
+	private boolean _executed = false;
+
+	InsertBatch(ConnectionPool pool, ResultCache results) {
+		this._pool = pool;
+		this._results = results;
+	}
+
+	/**
+	 * Method to add a plane.
+	 *
+	 * @return the position of the plane's id in the result of execute()
+	 */
+	public int addPlane(String make, String model, int age, int seats) {
+		AirlineService.checkPlane(make, model, age, seats);
+		return add(this._planes, make, model, age, seats);
+	}
+
+	/**
+	 * Method to add a pilot.
+	 *
+	 * @return the position of the pilot's id in the result of execute()
+	 */
+	public int addPilot(String fullName, String nationality) {
+		AirlineService.checkPilot(fullName, nationality);
+		return add(this._pilots, fullName, nationality);
+	}
+
+	/**
+	 * Method to add a technician.
+	 *
+	 * @return the position of the technician's id in the result of execute()
+	 */
+	public int addTechnician(String fullName) {
+		AirlineService.checkTechnician(fullName);
+		return add(this._technicians, fullName);
+	}
+
+	/**
+	 * Method to add a customer.
+	 *
+	 * @param gender 'M' or 'F'
+	 * @return the position of the customer's id in the result of execute()
+	 */
+	public int addCustomer(String fname, String lname, char gender, Date dob,
+			String address, String phone, String zipcode) {
+		gender = Character.toUpperCase(gender);
+		AirlineService.checkCustomer(fname, lname, gender, dob);
+		return add(this._customers, fname, lname, gender, dob, address, phone, zipcode);
+	}
+
+	/**
+	 * Method to add a reservation with a known status, e.g. one imported
+	 * from a partner.  The customer must exist before the batch runs.
+	 *
+	 * @param status 'C' (takes a seat of the flight), 'W' or 'R'
+	 * @return the position of the reservation number in the result of execute()
+	 */
+	public int addReservation(int cid, int fnum, char status) {
+		status = Character.toUpperCase(status);
+		AirlineService.checkStatus(status);
+		if (status == Booking.CONFIRMED) {
+			Integer taken = this._seatsTaken.get(fnum);
+			this._seatsTaken.put(fnum, taken == null ? 1 : taken + 1);
+		}
+		return add(this._reservations, cid, fnum, status);
+	}
+
+	/**
+	 * @return number of rows added so far
+	 */
+	public int size() {
+		return this._size;
+	}
+
+	/**
+	 * Method to insert every added row in one transaction.
+	 *
+	 * @return the generated id of each row, in the order the rows were added
+	 * @throws java.sql.SQLException when a row is rejected or a confirmed
+	 *         reservation finds its flight full; nothing is inserted then
+	 */
+	public int[] execute() throws SQLException {
+		if (this._executed) throw new IllegalStateException("Batch already executed");
+		this._executed = true;
+		int[] ids = new int[this._size];
+		if (this._size == 0) return ids;
+
+		long start = System.nanoTime();
+		boolean failed = true;
+		PooledConnection conn = this._pool.borrow();
+		try{
+			conn.connection().setAutoCommit(false);
+			insert(conn, this._planes, ids);
+			insert(conn, this._pilots, ids);
+			insert(conn, this._technicians, ids);
+			insert(conn, this._customers, ids);
+			insert(conn, this._reservations, ids);
+			takeSeats(conn);
+			conn.connection().commit();
+			if (!this._reservations.values.isEmpty() && this._results != null) this._results.changed("Reservation");
+			failed = false;
+			return ids;
+		}catch (SQLException e){
+			conn.failed(e);
+			throw e;
+		}finally{
+			// rolls back an unfinished transaction
+			this._pool.release(conn);
+			Metrics.recordOperation("insertBatch", start, failed ? 0 : this._size, failed);
+		}
+	}
+
+	private int add(Rows rows, Object... values) {
+		if (this._executed) throw new IllegalStateException("Batch already executed");
+		rows.values.add(values);
+		rows.positions.add(this._size);
+		return this._size++;
+	}
+
+	/*
+	 * Reserves the ids of a table's rows with one query, then sends the rows
+	 * in batches of dbproject.batch.size.
+	 */
+	private static void insert(PooledConnection conn, Rows rows, int[] ids) throws SQLException {
+		int n = rows.values.size();
+		if (n == 0) return;
+		int[] reserved = IdAllocator.reserve(conn, rows.sequence, n);
+
+		PreparedStatement stmt = conn.prepare(rows.sql);
+		Object[] params = null;
+		for (int i = 0; i < n; ++i) {
+			Object[] values = rows.values.get(i);
+			if (params == null || params.length != values.length + 1) params = new Object[values.length + 1];
+			params[0] = reserved[i];
+			System.arraycopy(values, 0, params, 1, values.length);
+			DBproject.bind(stmt, params);
+			stmt.addBatch();
+			if ((i + 1) % BATCH_SIZE == 0 || i == n - 1) stmt.executeBatch();
+			ids[rows.positions.get(i)] = reserved[i];
+		}
+	}
+
+	/*
+	 * One statement per flight with confirmed reservations, in flight order
+	 * so concurrent batches lock the Flight rows in the same order.
+	 */
+	private void takeSeats(PooledConnection conn) throws SQLException {
+		if (this._seatsTaken.isEmpty()) return;
+		PreparedStatement stmt = conn.prepare(SQL_TAKE_SEATS);
+		for (Map.Entry<Integer, Integer> e : this._seatsTaken.entrySet()) {
+			stmt.setInt(1, e.getValue());
+			stmt.setInt(2, e.getKey());
+			stmt.setInt(3, e.getValue());
+			if (stmt.executeUpdate() == 0) {
+				throw new SQLException("Flight " + e.getKey() + " does not have " + e.getValue() + " free seats");
+			}
+		}
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * A sequence of connecting flights found by RouteGraph.
+ */
+
+import java.sql.Date;
+import java.time.LocalDate;
+
+public class Itinerary {
+	private final int[] _flights;
+	private final String[] _airports;
+	private final long[] _departures;
+	private final long[] _arrivals;
+	private final long _cost;
+
+	/**
+	 * @param flights flight numbers of the legs, in travel order
+	 * @param airports the airports visited, one more than there are legs
+	 * @param departures departure of each leg, in minutes since 1970-01-01
+	 * @param arrivals arrival of each leg, in minutes since 1970-01-01
+	 * @param cost the summed cost of the legs
+	 */
+	Itinerary(int[] flights, String[] airports, long[] departures, long[] arrivals, long cost) {
+		this._flights = flights;
+		this._airports = airports;
+		this._departures = departures;
+		this._arrivals = arrivals;
+		this._cost = cost;
+	}
+
+	/**
+	 * @return flight numbers of the legs, in travel order
+	 */
+	public int[] flights() {
+		return this._flights.clone();
+	}
+
+	/**
+	 * @return number of connections, one less than the number of legs
+	 */
+	public int stops() {
+		return this._flights.length - 1;
+	}
+
+	/**
+	 * @return the summed cost of the legs
+	 */
+	public long cost() {
+		return this._cost;
+	}
+
+	/**
+	 * @return the departure date of the first leg
+	 */
+	public Date departure() {
+		return date(this._departures[0]);
+	}
+
+	/**
+	 * @return the arrival date of the last leg
+	 */
+	public Date arrival() {
+		return date(this._arrivals[this._arrivals.length - 1]);
+	}
+
+	private static Date date(long minute) {
+		return Date.valueOf(LocalDate.ofEpochDay(Math.floorDiv(minute, 1440)));
+	}
+
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		s.append(this._airports[0]).append(" -> ").append(this._airports[this._airports.length - 1])
+			.append(": ").append(this._flights.length).append(" flight(s), cost ").append(this._cost)
+			.append(", arrives ").append(arrival()).append('\n');
+		for (int i = 0; i < this._flights.length; ++i) {
+			s.append("  flight ").append(this._flights[i]).append('\t')
+				.append(this._airports[i]).append(' ').append(date(this._departures[i]))
+				.append(" -> ").append(this._airports[i + 1]).append(' ').append(date(this._arrivals[i])).append('\n');
+		}
+		return s.toString();
+	}
+}
@@ -0,0 +1,25 @@
+/*
+ * One row of a counting report: a key (plane id, year, ...) and its count.
+ */
+
+public class KeyCount {
+	private final int _key;
+	private final int _count;
+
+	public KeyCount(int key, int count) {
+		this._key = key;
+		this._count = count;
+	}
+
+	public int key() {
+		return this._key;
+	}
+
+	public int count() {
+		return this._count;
+	}
+
+	public String toString() {
+		return this._key + "\t" + this._count;
+	}
+}
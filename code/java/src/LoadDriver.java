@@ -0,0 +1,672 @@
+/*
+ * Headless load driver for the nine menu operations.
+ *
+ * Runs a weighted mix of the operations against AirlineService from many
+ * threads and reports throughput and latency percentiles per operation:
+ *
+ *   addPlane addPilot addFlight addTechnician   menu 1-4, random values
+ *   book                                        menu 5, random customer and flight
+ *   seats                                       menu 6, a flight on its departure day
+ *   perPlane perYear                            menu 7 and 8
+ *   status                                      menu 9, random flight and status
+ *
+ * Keys come from the database ("db"), from a directory of CSVs in the
+ * format of code/data ("../data", or what DataGenerator wrote), or from
+ * the keys DataGenerator produces at a scale without reading anything
+ * ("scale:100").  Random values are drawn uniformly.
+ *
+ * Load is either
+ *   closed  dbproject.load.threads workers each issue their next operation
+ *           when the previous one returns; or
+ *   open    operations arrive at dbproject.load.rate per second (Poisson
+ *           arrivals) whether or not earlier ones have finished, and the
+ *           workers take them in arrival order.
+ * Latency is measured from when an operation was meant to start, not from
+ * when a worker got to it.  A driver that only times the calls it manages
+ * to make stops sending while the system stalls, so the stall is hidden
+ * from the tail (coordinated omission).  Open load always has a schedule.
+ * Closed load with a rate paces each worker at rate/threads and also
+ * measures from its schedule; without a rate there is no schedule to fall
+ * behind, and latency is the service time.  The time spent in the call
+ * alone is reported as well ("service").
+ *
+ * A trace file replays recorded traffic open loop instead: one operation
+ * per line, "<millis since start>,<operation>[,<args>]", where the
+ * optional args are "cid,fnum" for book, "fnum,yyyy-mm-dd" for seats,
+ * "fnum,status" for status and "pilot,plane" for addFlight.  Missing
+ * arguments are drawn at random.
+ *
+ * Settings (system properties, see Config):
+ *   dbproject.load.mix         op=weight list (default: a read-heavy mix, see DEFAULT_MIX)
+ *   dbproject.load.threads     workers (default 16)
+ *   dbproject.load.rate        operations per second, 0 for as fast as possible (default 0)
+ *   dbproject.load.loop        open or closed (default open with a rate, else closed)
+ *   dbproject.load.warmupSec   not recorded (default 5)
+ *   dbproject.load.durationSec recorded (default 30; a trace runs to its end)
+ *   dbproject.load.speed       trace replay speed-up (default 1.0)
+ *   dbproject.load.out         results file, one JSON object per operation
+ *                              (default load-results.json)
+ *
+ * Adds and bookings write rows; run it against a scratch database.
+ *
+ * Examples:
+ *   java -cp lib/*:bin/ -Ddbproject.load.rate=500 LoadDriver flightDB 5432 user db
+ *   java -cp lib/*:bin/ -Ddbproject.load.mix=book=1 LoadDriver flightDB 5432 user ../data
+ *   java -cp lib/*:bin/ LoadDriver flightDB 5432 user scale:100 trace.csv
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class LoadDriver {
+	static final String[] OPS = { "addPlane", "addPilot", "addFlight", "addTechnician", "book", "seats",
+		"perPlane", "perYear", "status" };
+	static final int ADD_PLANE = 0, ADD_PILOT = 1, ADD_FLIGHT = 2, ADD_TECHNICIAN = 3, BOOK = 4, SEATS = 5,
+		PER_PLANE = 6, PER_YEAR = 7, STATUS = 8;
+	static final String DEFAULT_MIX =
+		"addPlane=1,addPilot=1,addFlight=2,addTechnician=1,book=30,seats=40,perPlane=5,perYear=5,status=15";
+
+	/*
+	 * Where the operations get their keys from.
+	 */
+	interface Keys {
+		int customer(SplittableRandom r);
+		int pilot(SplittableRandom r);
+		int plane(SplittableRandom r);
+		//a flight as an index into the flights, for fnum() and departureDay()
+		int flight(SplittableRandom r);
+		int fnum(int flight);
+		long departureDay(int flight);
+		String airport(SplittableRandom r);
+	}
+
+	/*
+	 * Keys read from the database or from CSVs.
+	 */
+	static final class ListedKeys implements Keys {
+		final int[] customers, pilots, planes, fnums;
+		final long[] days;
+		final String[] airports;
+
+		ListedKeys(int[] customers, int[] pilots, int[] planes, int[] fnums, long[] days, String[] airports) {
+			this.customers = customers;
+			this.pilots = pilots;
+			this.planes = planes;
+			this.fnums = fnums;
+			this.days = days;
+			this.airports = airports;
+		}
+
+		public int customer(SplittableRandom r) {
+			return this.customers[r.nextInt(this.customers.length)];
+		}
+
+		public int pilot(SplittableRandom r) {
+			return this.pilots[r.nextInt(this.pilots.length)];
+		}
+
+		public int plane(SplittableRandom r) {
+			return this.planes[r.nextInt(this.planes.length)];
+		}
+
+		public int flight(SplittableRandom r) {
+			return r.nextInt(this.fnums.length);
+		}
+
+		public int fnum(int flight) {
+			return this.fnums[flight];
+		}
+
+		public long departureDay(int flight) {
+			return this.days[flight];
+		}
+
+		public String airport(SplittableRandom r) {
+			return this.airports[r.nextInt(this.airports.length)];
+		}
+	}
+
+	/*
+	 * The dense keys DataGenerator produces at a scale.
+	 */
+	static final class GeneratedKeys implements Keys {
+		final DataGenerator gen;
+
+		GeneratedKeys(double scale) {
+			this.gen = new DataGenerator(scale);
+		}
+
+		public int customer(SplittableRandom r) {
+			return r.nextInt(this.gen._customers);
+		}
+
+		public int pilot(SplittableRandom r) {
+			return r.nextInt(this.gen._pilots);
+		}
+
+		public int plane(SplittableRandom r) {
+			return r.nextInt(this.gen._planes);
+		}
+
+		public int flight(SplittableRandom r) {
+			return r.nextInt(this.gen._flights);
+		}
+
+		public int fnum(int flight) {
+			return flight;
+		}
+
+		public long departureDay(int flight) {
+			return this.gen.departureMinute(flight) / 1440;
+		}
+
+		public String airport(SplittableRandom r) {
+			StringBuilder code = new StringBuilder(5);
+			DataGenerator.airport(r.nextInt(this.gen._airports), code);
+			return code.toString();
+		}
+	}
+
+	/*
+	 * One operation to issue; a and b are its keys, when it has any.
+	 */
+	static final class Call {
+		final int op;
+		final int a, b;
+		final long day;
+		final char status;
+
+		Call(int op, int a, int b, long day, char status) {
+			this.op = op;
+			this.a = a;
+			this.b = b;
+			this.day = day;
+			this.status = status;
+		}
+	}
+
+	/*
+	 * What was measured for one operation.
+	 */
+	static final class OpStats {
+		final Histogram response = new Histogram();
+		final Histogram service = new Histogram();
+		final AtomicLong errors = new AtomicLong();
+		//refused by the service, e.g. a pilot already flying; timed like successes
+		final AtomicLong rejected = new AtomicLong();
+		volatile String lastError = null;
+	}
+
+	private final AirlineService _service;
+	private final Keys _keys;
+	//cumulative weights of OPS
+	private final int[] _mix;
+	private final OpStats[] _stats = new OpStats[OPS.length];
+	private final AtomicLong _notRun = new AtomicLong();
+
+	LoadDriver(AirlineService service, Keys keys, String mix) {
+		this._service = service;
+		this._keys = keys;
+		this._mix = parseMix(mix);
+		for (int i = 0; i < OPS.length; ++i) this._stats[i] = new OpStats();
+	}
+
+	static int op(String name) {
+		for (int i = 0; i < OPS.length; ++i) {
+			if (OPS[i].equalsIgnoreCase(name.trim())) return i;
+		}
+		throw new IllegalArgumentException("Unknown operation " + name + ", expected one of " + Arrays.toString(OPS));
+	}
+
+	static int[] parseMix(String mix) {
+		int[] weights = new int[OPS.length];
+		for (String part : mix.split(",")) {
+			if (part.trim().isEmpty()) continue;
+			int eq = part.indexOf('=');
+			if (eq < 0) throw new IllegalArgumentException("Expected op=weight, got " + part);
+			int w = Integer.parseInt(part.substring(eq + 1).trim());
+			if (w < 0) throw new IllegalArgumentException("Negative weight for " + part);
+			weights[op(part.substring(0, eq))] = w;
+		}
+		int total = 0;
+		int[] cumulative = new int[OPS.length];
+		for (int i = 0; i < OPS.length; ++i) cumulative[i] = total += weights[i];
+		if (total == 0) throw new IllegalArgumentException("The mix has no operation with a weight");
+		return cumulative;
+	}
+
+	/**
+	 * Method to draw the next operation of the mix with random keys.
+	 */
+	Call next(SplittableRandom r) {
+		int pick = r.nextInt(this._mix[OPS.length - 1]);
+		int op = 0;
+		while (this._mix[op] <= pick) ++op;
+		return random(op, r);
+	}
+
+	Call random(int op, SplittableRandom r) {
+		switch (op) {
+		case ADD_FLIGHT:
+			return new Call(op, this._keys.pilot(r), this._keys.plane(r), 0, ' ');
+		case BOOK:
+			return new Call(op, this._keys.customer(r), this._keys.fnum(this._keys.flight(r)), 0, ' ');
+		case SEATS:
+			int flight = this._keys.flight(r);
+			return new Call(op, this._keys.fnum(flight), 0, this._keys.departureDay(flight), ' ');
+		case STATUS:
+			return new Call(op, this._keys.fnum(this._keys.flight(r)), 0, 0,
+				DataGenerator.STATUSES.charAt(r.nextInt(DataGenerator.STATUSES.length())));
+		default:
+			return new Call(op, 0, 0, 0, ' ');
+		}
+	}
+
+	/**
+	 * Method to read one trace line, "<millis>,<operation>[,<args>]".
+	 */
+	Call parse(String[] fields, SplittableRandom r) {
+		int op = op(fields[1]);
+		if (fields.length < 4) return random(op, r);
+		String a = fields[2].trim(), b = fields[3].trim();
+		switch (op) {
+		case ADD_FLIGHT:
+		case BOOK:
+			return new Call(op, Integer.parseInt(a), Integer.parseInt(b), 0, ' ');
+		case SEATS:
+			return new Call(op, Integer.parseInt(a), 0, LocalDate.parse(b).toEpochDay(), ' ');
+		case STATUS:
+			return new Call(op, Integer.parseInt(a), 0, 0, b.charAt(0));
+		default:
+			return random(op, r);
+		}
+	}
+
+	void execute(Call c, SplittableRandom r) throws SQLException {
+		switch (c.op) {
+		case ADD_PLANE:
+			String[] model = DataGenerator.MODELS[r.nextInt(DataGenerator.MODELS.length)];
+			this._service.addPlane(model[0], model[1], r.nextInt(30), 100 + r.nextInt(350));
+			break;
+		case ADD_PILOT:
+			this._service.addPilot(name(r), DataGenerator.pick(DataGenerator.COUNTRIES, r));
+			break;
+		case ADD_FLIGHT:
+			// after the generated data, so new flights mostly do not collide with it
+			long day = DataGenerator.FIRST_DAY + DataGenerator.DAYS + r.nextInt(3650);
+			String from = this._keys.airport(r), to = this._keys.airport(r);
+			this._service.addFlight(100 + r.nextInt(900), 0, r.nextInt(4), date(day), date(day + r.nextInt(2)),
+				to, from.equals(to) ? to + "X" : from, c.a, c.b);
+			break;
+		case ADD_TECHNICIAN:
+			this._service.addTechnician(name(r));
+			break;
+		case BOOK:
+			this._service.bookFlight(c.a, c.b);
+			break;
+		case SEATS:
+			this._service.availableSeats(c.a, date(c.day));
+			break;
+		case PER_PLANE:
+			this._service.repairsPerPlane();
+			break;
+		case PER_YEAR:
+			this._service.repairsPerYear();
+			break;
+		default:
+			this._service.passengersWithStatus(c.a, c.status);
+		}
+	}
+
+	private static String name(SplittableRandom r) {
+		return DataGenerator.pick(DataGenerator.FIRST_NAMES, r) + " " + DataGenerator.pick(DataGenerator.LAST_NAMES, r);
+	}
+
+	private static Date date(long epochDay) {
+		return Date.valueOf(LocalDate.ofEpochDay(epochDay));
+	}
+
+	/*
+	 * Runs one call and records it when it was meant to start in the
+	 * measured period.
+	 */
+	private void issue(Call c, SplittableRandom r, long intended, long measureFrom) {
+		long start = System.nanoTime();
+		boolean rejected = false;
+		Exception error = null;
+		try{
+			execute(c, r);
+		}catch (IllegalArgumentException e){
+			rejected = true;
+		}catch (Exception e){
+			error = e;
+		}
+		long done = System.nanoTime();
+		if (intended < measureFrom) return;
+		OpStats s = this._stats[c.op];
+		if (error != null) {
+			s.errors.incrementAndGet();
+			s.lastError = error.getMessage();
+			return;
+		}
+		if (rejected) s.rejected.incrementAndGet();
+		s.response.record(done - intended);
+		s.service.record(done - start);
+	}
+
+	/**
+	 * Method to run closed loop: every worker issues its next operation when
+	 * the previous one returns, paced at rate/threads when rate > 0.
+	 */
+	void runClosed(final int threads, final double rate, long warmupNanos, long measureNanos) throws InterruptedException {
+		final long start = System.nanoTime();
+		final long measureFrom = start + warmupNanos;
+		final long end = measureFrom + measureNanos;
+		final long interval = rate > 0 ? (long) (threads * 1e9 / rate) : 0;
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; ++t) {
+			final int thread = t;
+			workers[t] = new Thread(new Runnable() {
+				public void run() {
+					SplittableRandom r = new SplittableRandom(thread * 0x9E3779B97F4A7C15L + 1);
+					// staggered, so paced workers do not fire together
+					long intended = start + interval * thread / Math.max(1, threads);
+					while (true) {
+						long now = System.nanoTime();
+						if (interval == 0) intended = now;
+						else if (intended > now) LockSupport.parkNanos(intended - now);
+						if (intended >= end) return;
+						issue(next(r), r, intended, measureFrom);
+						intended += interval;
+					}
+				}
+			}, "load-" + t);
+			workers[t].start();
+		}
+		for (Thread w : workers) w.join();
+	}
+
+	/*
+	 * Open loop source of calls and their intended start times.
+	 */
+	interface Arrivals {
+		//false when there are no more calls
+		boolean next(SplittableRandom r) throws IOException;
+		long intended();
+		Call call();
+	}
+
+	/**
+	 * Method to run open loop: calls are handed to the workers at their
+	 * intended times, however far behind the workers are.
+	 *
+	 * @return the end of the measured period (System.nanoTime())
+	 */
+	long runOpen(int threads, Arrivals arrivals, long measureFrom, long end) throws IOException, InterruptedException {
+		final AtomicInteger n = new AtomicInteger();
+		ExecutorService workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "load-" + n.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		final ThreadLocal<SplittableRandom> randoms = new ThreadLocal<SplittableRandom>() {
+			protected SplittableRandom initialValue() {
+				return new SplittableRandom(Thread.currentThread().getName().hashCode() * 0x9E3779B97F4A7C15L + 1);
+			}
+		};
+		SplittableRandom r = new SplittableRandom(166);
+		long last = measureFrom;
+		while (arrivals.next(r)) {
+			final long intended = arrivals.intended();
+			if (intended >= end) break;
+			long now = System.nanoTime();
+			if (intended > now) LockSupport.parkNanos(intended - now);
+			final Call call = arrivals.call();
+			final long from = measureFrom;
+			workers.execute(new Runnable() {
+				public void run() {
+					issue(call, randoms.get(), intended, from);
+				}
+			});
+			last = intended;
+		}
+		workers.shutdown();
+		if (!workers.awaitTermination(Config.getLong("load.drainSec", 60), TimeUnit.SECONDS)) {
+			this._notRun.addAndGet(workers.shutdownNow().size());
+		}
+		return Math.min(end, Math.max(last, measureFrom));
+	}
+
+	static Arrivals poisson(final LoadDriver driver, final double rate, final long start) {
+		return new Arrivals() {
+			long intended = start;
+			Call call;
+
+			public boolean next(SplittableRandom r) {
+				this.intended += (long) (-Math.log(1.0 - r.nextDouble()) * 1e9 / rate);
+				this.call = driver.next(r);
+				return true;
+			}
+
+			public long intended() {
+				return this.intended;
+			}
+
+			public Call call() {
+				return this.call;
+			}
+		};
+	}
+
+	static Arrivals trace(final LoadDriver driver, final BufferedReader in, final double speed, final long start) {
+		return new Arrivals() {
+			long intended;
+			Call call;
+
+			public boolean next(SplittableRandom r) throws IOException {
+				String line;
+				while ((line = in.readLine()) != null) {
+					line = line.trim();
+					if (line.isEmpty() || line.startsWith("#")) continue;
+					String[] fields = line.split(",");
+					if (fields.length < 2) throw new IOException("Bad trace line: " + line);
+					this.intended = start + (long) (Double.parseDouble(fields[0]) * 1e6 / speed);
+					this.call = driver.parse(fields, r);
+					return true;
+				}
+				return false;
+			}
+
+			public long intended() {
+				return this.intended;
+			}
+
+			public Call call() {
+				return this.call;
+			}
+		};
+	}
+
+	/**
+	 * Method to print the results and append them to dbproject.load.out.
+	 */
+	void report(String loop, int threads, double rate, double seconds) throws IOException {
+		System.out.printf("%s loop, %d threads, %s, %.1f s measured; latency in us from the intended start%n",
+			loop, threads, rate > 0 ? String.format(Locale.ROOT, "%.0f ops/s offered", rate) : "unpaced", seconds);
+		System.out.printf("%-14s %9s %10s %7s %8s %10s %10s %10s %10s %10s %10s %10s%n", "operation", "ops", "ops/s",
+			"errors", "rejected", "mean", "p50", "p90", "p99", "p99.9", "max", "svc p99");
+		String file = Config.getString("load.out", "load-results.json");
+		PrintWriter out = new PrintWriter(new FileWriter(file, true));
+		try{
+			long total = 0;
+			for (int i = 0; i < OPS.length; ++i) {
+				OpStats s = this._stats[i];
+				long ops = s.response.count();
+				if (ops == 0 && s.errors.get() == 0) continue;
+				total += ops;
+				Histogram h = s.response;
+				System.out.printf(Locale.ROOT, "%-14s %9d %10.1f %7d %8d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+					OPS[i], ops, ops / seconds, s.errors.get(), s.rejected.get(), h.mean() / 1e3,
+					h.percentile(50) / 1e3, h.percentile(90) / 1e3, h.percentile(99) / 1e3,
+					h.percentile(99.9) / 1e3, h.max() / 1e3, s.service.percentile(99) / 1e3);
+				if (s.lastError != null) System.out.println("    last error: " + s.lastError);
+				out.println(String.format(Locale.ROOT,
+					"{\"benchmark\": \"load.%s\", \"loop\": \"%s\", \"threads\": %d, \"offeredRate\": %.1f, "
+					+ "\"ops\": %d, \"errors\": %d, \"rejected\": %d, \"seconds\": %.3f, "
+					+ "\"throughput\": %.2f, \"throughputUnit\": \"ops/s\", \"latencyUnit\": \"us\", "
+					+ "\"mean\": %.1f, \"p50\": %.1f, \"p90\": %.1f, \"p99\": %.1f, \"p999\": %.1f, \"max\": %.1f, "
+					+ "\"serviceP50\": %.1f, \"serviceP99\": %.1f, \"timestamp\": %d}",
+					OPS[i], loop, threads, rate, ops, s.errors.get(), s.rejected.get(), seconds, ops / seconds,
+					h.mean() / 1e3, h.percentile(50) / 1e3, h.percentile(90) / 1e3, h.percentile(99) / 1e3,
+					h.percentile(99.9) / 1e3, h.max() / 1e3, s.service.percentile(50) / 1e3,
+					s.service.percentile(99) / 1e3, System.currentTimeMillis()));
+			}
+			System.out.printf(Locale.ROOT, "%-14s %9d %10.1f%n", "total", total, total / seconds);
+		}finally{
+			out.close();
+		}
+		if (this._notRun.get() > 0) {
+			System.out.println("WARNING: " + this._notRun.get() + " operations were still queued when the run was"
+				+ " stopped; the system could not keep up and the tail above is understated");
+		}
+		System.out.println("Results appended to " + file);
+	}
+
+	static Keys keysFromDatabase(DBproject esql) throws SQLException {
+		final int[][] fnums = { new int[1024] };
+		final long[][] days = { new long[1024] };
+		final int[] n = { 0 };
+		esql.executeQueryStreaming("SELECT f.fnum, f.actual_departure_date FROM Flight f "
+			+ "INNER JOIN FlightInfo i ON i.flight_id = f.fnum", new RowHandler() {
+			public void row(Row row) throws SQLException {
+				int i = n[0]++;
+				if (i == fnums[0].length) {
+					fnums[0] = Arrays.copyOf(fnums[0], i * 2);
+					days[0] = Arrays.copyOf(days[0], i * 2);
+				}
+				fnums[0][i] = row.getInt(1);
+				days[0][i] = row.getEpochDay(2);
+			}
+		});
+		if (n[0] == 0) throw new SQLException("No flight has a plane assigned");
+		final List<String> airports = new ArrayList<String>();
+		esql.executeQueryStreaming("SELECT DISTINCT departure_airport FROM Flight LIMIT 1000", new RowHandler() {
+			public void row(Row row) throws SQLException {
+				airports.add(row.getString(1).trim());
+			}
+		});
+		return new ListedKeys(Benchmark.ids(esql, "SELECT id FROM Customer"), Benchmark.ids(esql, "SELECT id FROM Pilot"),
+			Benchmark.ids(esql, "SELECT id FROM Plane"), Arrays.copyOf(fnums[0], n[0]), Arrays.copyOf(days[0], n[0]),
+			airports.toArray(new String[0]));
+	}
+
+	static Keys keysFromCsv(File dir) throws IOException {
+		List<String[]> flights = readCsv(new File(dir, "flights.csv"));
+		int[] fnums = new int[flights.size()];
+		long[] days = new long[flights.size()];
+		List<String> airports = new ArrayList<String>();
+		for (int i = 0; i < fnums.length; ++i) {
+			String[] f = flights.get(i);
+			fnums[i] = Integer.parseInt(f[0].trim());
+			days[i] = LocalDate.parse(f[4].trim().substring(0, 10)).toEpochDay();
+			if (airports.size() < 1000 && !airports.contains(f[7].trim())) airports.add(f[7].trim());
+		}
+		return new ListedKeys(firstColumn(new File(dir, "customer.csv")), firstColumn(new File(dir, "pilots.csv")),
+			firstColumn(new File(dir, "planes.csv")), fnums, days, airports.toArray(new String[0]));
+	}
+
+	private static int[] firstColumn(File file) throws IOException {
+		List<String[]> rows = readCsv(file);
+		int[] ids = new int[rows.size()];
+		for (int i = 0; i < ids.length; ++i) ids[i] = Integer.parseInt(rows.get(i)[0].trim());
+		return ids;
+	}
+
+	private static List<String[]> readCsv(File file) throws IOException {
+		List<String[]> rows = new ArrayList<String[]>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try{
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (!line.trim().isEmpty()) rows.add(line.split(","));
+			}
+		}finally{
+			in.close();
+		}
+		if (rows.isEmpty()) throw new IOException(file + " is empty");
+		return rows;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println("Usage: java [-classpath <classpath>] LoadDriver"
+				+ " <dbname> <port> <user> db|<csv dir>|scale:<n> [trace file]");
+			return;
+		}
+		Class.forName("org.postgresql.Driver");
+		int threads = Math.max(1, Config.getInt("load.threads", 16));
+		double rate = Double.parseDouble(Config.getString("load.rate", "0"));
+		String loop = Config.getString("load.loop", rate > 0 ? "open" : "closed");
+		String traceFile = args.length > 4 ? args[4] : null;
+		if (traceFile != null) loop = "trace";
+		else if (loop.equals("open") && rate <= 0) throw new IllegalArgumentException("open loop needs dbproject.load.rate");
+		else if (!loop.equals("open") && !loop.equals("closed")) throw new IllegalArgumentException("Unknown loop " + loop);
+		long warmup = (long) (Config.getLong("load.warmupSec", 5) * 1e9);
+		long measure = (long) (Config.getLong("load.durationSec", 30) * 1e9);
+
+		if (System.getProperty("dbproject.pool.maxSize") == null) {
+			System.setProperty("dbproject.pool.maxSize", String.valueOf(threads));
+		}
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try{
+			String source = args[3];
+			Keys keys = source.equals("db") ? keysFromDatabase(esql)
+				: source.startsWith("scale:") ? new GeneratedKeys(Double.parseDouble(source.substring(6)))
+				: keysFromCsv(new File(source));
+			LoadDriver driver = new LoadDriver(esql.service(), keys, Config.getString("load.mix", DEFAULT_MIX));
+			long start = System.nanoTime();
+			long measureFrom = start + warmup;
+			double seconds;
+			if (loop.equals("closed")) {
+				driver.runClosed(threads, rate, warmup, measure);
+				seconds = measure / 1e9;
+			} else if (loop.equals("open")) {
+				long end = driver.runOpen(threads, poisson(driver, rate, start), measureFrom, measureFrom + measure);
+				seconds = (end - measureFrom) / 1e9;
+			} else {
+				BufferedReader in = new BufferedReader(new FileReader(traceFile));
+				try{
+					double speed = Double.parseDouble(Config.getString("load.speed", "1.0"));
+					long end = driver.runOpen(threads, trace(driver, in, speed, start), measureFrom, Long.MAX_VALUE);
+					seconds = (end - measureFrom) / 1e9;
+				}finally{
+					in.close();
+				}
+			}
+			driver.report(loop, threads, rate, Math.max(seconds, 1e-3));
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
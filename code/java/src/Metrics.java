@@ -0,0 +1,269 @@
+/*
+ * Latency, row and error counters for every database operation.
+ *
+ * DBproject and BookingEngine report each call with record(sql, ...).  The
+ * SQL text is mapped to a logical operation name.  Statements registered
+ * with name() (the AirlineService and BookingEngine constants) use that
+ * name; other statements are labelled by verb and table, e.g.
+ * "SELECT Reservation".  ConnectionPool reports how long borrow() waited.
+ *
+ * The counters are visible three ways:
+ *   - JMX, as dbproject:type=Operation,name=<operation> and
+ *     dbproject:type=ConnectionPool (e.g. in jconsole).
+ *   - report(), also written every dbproject.metrics.dumpSec seconds.
+ *   - The slow-query log on stderr: any call slower than
+ *     dbproject.metrics.slowQueryMs is logged with its SQL.
+ *
+ * Settings (system properties, see Config):
+ *   dbproject.metrics.slowQueryMs  slow-query threshold, 0 disables the log (default 500)
+ *   dbproject.metrics.dumpSec      period of the text dump, 0 disables it (default 0)
+ *   dbproject.metrics.dumpFile     file the dump is appended to (default: stderr)
+ *   dbproject.metrics.jmx          register the JMX beans (default true)
+ */
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+public final class Metrics {
+
+	/*
+	 * JMX view of the connection pool.  Wait times are in microseconds.
+	 */
+	public interface PoolMBean {
+		int getOpenConnections();
+		int getIdleConnections();
+		int getMaxSize();
+		long getBorrows();
+		long getTimeouts();
+		double getWaitMeanMicros();
+		double getWaitP99Micros();
+		double getWaitMaxMicros();
+	}
+
+	private static final long SLOW_NANOS = TimeUnit.MILLISECONDS.toNanos(Config.getLong("metrics.slowQueryMs", 500));
+	private static final boolean JMX = Config.getBoolean("metrics.jmx", true);
+	//ad-hoc SQL with inlined values would otherwise grow the label map forever
+	private static final int MAX_LABELS = 1024;
+	private static final Pattern TABLE =
+		Pattern.compile("\\b(INSERT\\s+INTO|UPDATE|DELETE\\s+FROM|FROM)\\s+([A-Za-z_][A-Za-z0-9_]*)", Pattern.CASE_INSENSITIVE);
+
+	private static final ConcurrentHashMap<String, String> LABELS = new ConcurrentHashMap<String, String>();
+	private static final ConcurrentHashMap<String, OperationStats> OPERATIONS = new ConcurrentHashMap<String, OperationStats>();
+
+	//time spent in ConnectionPool.borrow(), in nanoseconds
+	static final Histogram POOL_WAIT = new Histogram();
+	static final AtomicLong POOL_TIMEOUTS = new AtomicLong();
+
+	private static ScheduledExecutorService _dumper = null;
+
+	private Metrics() {
+	}
+
+	/**
+	 * Method to give a statement a logical operation name.
+	 *
+	 * @param sql the exact SQL text passed to DBproject
+	 * @param operation the name its calls are counted under
+	 */
+	public static void name(String sql, String operation) {
+		LABELS.put(sql, operation);
+	}
+
+	/**
+	 * Method to record one call.
+	 *
+	 * @param sql the statement that ran
+	 * @param startNanos System.nanoTime() before the connection was borrowed
+	 * @param rows rows returned or affected
+	 * @param failed true when the call threw
+	 */
+	public static void record(String sql, long startNanos, long rows, boolean failed) {
+		record(label(sql), sql, startNanos, rows, failed);
+	}
+
+	/**
+	 * Method to record one call of an operation that runs several
+	 * statements, e.g. a batch or a transaction.
+	 *
+	 * @param operation the operation name
+	 * @param startNanos System.nanoTime() before the connection was borrowed
+	 * @param rows rows returned or affected
+	 * @param failed true when the call threw
+	 */
+	public static void recordOperation(String operation, long startNanos, long rows, boolean failed) {
+		record(operation, null, startNanos, rows, failed);
+	}
+
+	private static void record(String operation, String sql, long startNanos, long rows, boolean failed) {
+		long nanos = System.nanoTime() - startNanos;
+		boolean slow = SLOW_NANOS > 0 && nanos >= SLOW_NANOS;
+		operation(operation).record(nanos, rows, failed, slow);
+		if (slow) {
+			String text = sql == null ? "" : ": " + sql.replaceAll("\\s+", " ").trim();
+			if (text.length() > 200) text = text.substring(0, 200) + "...";
+			System.err.printf("Slow query (%s): %.1f ms, %d rows%s%s%n",
+				operation, nanos / 1e6, Math.max(rows, 0), failed ? ", failed" : "", text);
+		}
+	}
+
+	static String label(String sql) {
+		String label = LABELS.get(sql);
+		if (label != null) return label;
+		Matcher m = TABLE.matcher(sql);
+		String verb = sql.trim().split("\\s+", 2)[0].toUpperCase();
+		if (m.find()) {
+			String clause = m.group(1).toUpperCase();
+			label = (clause.equals("FROM") ? verb : clause.split("\\s+")[0]) + " " + m.group(2);
+		} else {
+			label = verb;
+		}
+		if (LABELS.size() < MAX_LABELS) LABELS.put(sql, label);
+		return label;
+	}
+
+	/**
+	 * @return the counters of an operation, created on first use
+	 */
+	public static OperationStats operation(String name) {
+		OperationStats stats = OPERATIONS.get(name);
+		if (stats != null) return stats;
+		stats = new OperationStats(name);
+		OperationStats existing = OPERATIONS.putIfAbsent(name, stats);
+		if (existing != null) return existing;
+		register("dbproject:type=Operation,name=" + ObjectName.quote(name), stats, OperationStatsMBean.class);
+		return stats;
+	}
+
+	/**
+	 * Method to publish the pool's counters over JMX and start the periodic
+	 * dump, when enabled.
+	 *
+	 * @param pool the pool to report on
+	 */
+	public static synchronized void start(final ConnectionPool pool) {
+		register("dbproject:type=ConnectionPool", new PoolMBean() {
+			public int getOpenConnections() {
+				return pool.openConnections();
+			}
+
+			public int getIdleConnections() {
+				return pool.idleConnections();
+			}
+
+			public int getMaxSize() {
+				return pool.maxSize();
+			}
+
+			public long getBorrows() {
+				return POOL_WAIT.count();
+			}
+
+			public long getTimeouts() {
+				return POOL_TIMEOUTS.get();
+			}
+
+			public double getWaitMeanMicros() {
+				return POOL_WAIT.mean() / 1e3;
+			}
+
+			public double getWaitP99Micros() {
+				return POOL_WAIT.percentile(99) / 1e3;
+			}
+
+			public double getWaitMaxMicros() {
+				return POOL_WAIT.max() / 1e3;
+			}
+		}, PoolMBean.class);
+
+		long period = Config.getLong("metrics.dumpSec", 0);
+		if (period <= 0 || _dumper != null) return;
+		final String file = Config.getString("metrics.dumpFile", null);
+		_dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "metrics-dump");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		_dumper.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				dump(file);
+			}
+		}, period, period, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Method to stop the periodic dump.
+	 */
+	public static synchronized void stop() {
+		if (_dumper != null) _dumper.shutdownNow();
+		_dumper = null;
+	}
+
+	private static void dump(String file) {
+		if (file == null) {
+			System.err.print(report());
+			return;
+		}
+		try{
+			PrintWriter out = new PrintWriter(new FileWriter(file, true));
+			try{
+				out.print(report());
+			}finally{
+				out.close();
+			}
+		}catch (IOException e){
+			System.err.println("Unable to write metrics to " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return every operation's counters, busiest first, and the pool wait
+	 *         times, one line each
+	 */
+	public static String report() {
+		List<OperationStats> ops = new ArrayList<OperationStats>(OPERATIONS.values());
+		Collections.sort(ops, new Comparator<OperationStats>() {
+			public int compare(OperationStats a, OperationStats b) {
+				return Long.compare(b.getCalls(), a.getCalls());
+			}
+		});
+		StringBuilder s = new StringBuilder();
+		s.append(String.format("metrics at %tT%n", System.currentTimeMillis()));
+		for (OperationStats op : ops) s.append(op).append('\n');
+		s.append(String.format("%-28s %9d borrows %d timeouts  mean %9.1f  p99 %9.1f  max %9.1f us%n",
+			"pool wait", POOL_WAIT.count(), POOL_TIMEOUTS.get(), POOL_WAIT.mean() / 1e3,
+			POOL_WAIT.percentile(99) / 1e3, POOL_WAIT.max() / 1e3));
+		return s.toString();
+	}
+
+	private static <T> void register(String name, T bean, Class<T> type) {
+		if (!JMX) return;
+		try{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(name);
+			if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+			server.registerMBean(new StandardMBean(bean, type), objectName);
+		}catch (JMException e){
+			System.err.println("Unable to register " + name + ": " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,21 @@
+/*
+ * Receives PostgreSQL NOTIFY messages for one channel.
+ */
+
+public interface NotificationHandler {
+
+	/**
+	 * Method called for every notification on the channel, on the
+	 * listener thread, in the order the server delivered them.
+	 *
+	 * @param payload the notification payload, possibly empty
+	 */
+	void notified(String payload);
+
+	/**
+	 * Method called after the listener had to reconnect.  Notifications
+	 * sent while it was disconnected are lost, so anything derived from
+	 * them must be rebuilt.
+	 */
+	void reset();
+}
@@ -0,0 +1,142 @@
+/*
+ * Background thread that LISTENs on PostgreSQL channels and dispatches the
+ * notifications to registered handlers.
+ *
+ * The listener holds its own connection outside the pool.  The 42.1 driver
+ * only reads notifications as a side effect of other traffic, so the thread
+ * issues a trivial query every dbproject.notify.pollMs milliseconds (default
+ * 200) and then drains getNotifications().  If the connection drops the
+ * listener reconnects, re-issues every LISTEN and calls reset() on all
+ * handlers.
+ */
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.List;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+public class NotificationListener implements Runnable {
+	private final ConnectionPool _pool;
+	private final long _pollMs = Config.getLong("notify.pollMs", 200);
+	private final Map<String, List<NotificationHandler>> _handlers =
+		new ConcurrentHashMap<String, List<NotificationHandler>>();
+	//channels registered since the listener thread last issued LISTEN
+	private final Queue<String> _pending = new ConcurrentLinkedQueue<String>();
+	private Thread _thread;
+	private volatile boolean _running = true;
+
+	public NotificationListener(ConnectionPool pool) {
+		this._pool = pool;
+	}
+
+	/**
+	 * Method to subscribe a handler to a channel.  The listener thread is
+	 * started by the first subscription.
+	 *
+	 * @param channel the channel name used by pg_notify
+	 * @param handler receives the channel's notifications
+	 */
+	public synchronized void listen(String channel, NotificationHandler handler) {
+		if (!channel.matches("[a-z_][a-z0-9_]*")) {
+			throw new IllegalArgumentException("Invalid channel name: " + channel);
+		}
+		List<NotificationHandler> list = this._handlers.get(channel);
+		if (list == null) {
+			list = new CopyOnWriteArrayList<NotificationHandler>();
+			this._handlers.put(channel, list);
+			this._pending.add(channel);
+		}
+		list.add(handler);
+		if (this._thread == null) {
+			this._thread = new Thread(this, "pg-notify-listener");
+			this._thread.setDaemon(true);
+			this._thread.start();
+		}
+	}
+
+	/**
+	 * Method to stop the listener thread and close its connection.
+	 */
+	public synchronized void close() {
+		this._running = false;
+		if (this._thread != null) this._thread.interrupt();
+	}
+
+	public void run() {
+		Connection conn = null;
+		boolean reconnect = false;
+		while (this._running) {
+			try{
+				if (conn == null) {
+					conn = this._pool.openDedicated();
+					this._pending.clear();
+					for (String channel : this._handlers.keySet()) listen(conn, channel);
+					if (reconnect) {
+						for (List<NotificationHandler> list : this._handlers.values()) {
+							for (NotificationHandler h : list) h.reset();
+						}
+					}
+				}
+				String channel;
+				while ((channel = this._pending.poll()) != null) listen(conn, channel);
+
+				Statement stmt = conn.createStatement();
+				stmt.execute("SELECT 1");
+				stmt.close();
+				PGNotification[] notifications = conn.unwrap(PGConnection.class).getNotifications();
+				if (notifications != null) {
+					for (PGNotification n : notifications) dispatch(n);
+				}
+				Thread.sleep(this._pollMs);
+			}catch (InterruptedException e){
+				break;
+			}catch (SQLException e){
+				System.err.println("Notification listener: " + e.getMessage());
+				closeQuietly(conn);
+				conn = null;
+				reconnect = true;
+				try{
+					Thread.sleep(Math.max(1000, this._pollMs));
+				}catch (InterruptedException ie){
+					break;
+				}
+			}
+		}
+		closeQuietly(conn);
+	}
+
+	private void listen(Connection conn, String channel) throws SQLException {
+		Statement stmt = conn.createStatement();
+		stmt.execute("LISTEN " + channel);
+		stmt.close();
+	}
+
+	private void dispatch(PGNotification n) {
+		List<NotificationHandler> list = this._handlers.get(n.getName());
+		if (list == null) return;
+		String payload = n.getParameter() == null ? "" : n.getParameter();
+		for (NotificationHandler h : list) {
+			try{
+				h.notified(payload);
+			}catch (RuntimeException e){
+				System.err.println("Notification handler for " + n.getName() + " failed: " + e);
+			}
+		}
+	}
+
+	private static void closeQuietly(Connection conn) {
+		if (conn == null) return;
+		try{
+			conn.close();
+		}catch (SQLException e){
+			// ignored.
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Counters of one logical database operation, e.g. "bookFlight" or
+ * "SELECT Reservation": call latency, rows returned and failures.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class OperationStats implements OperationStatsMBean {
+	private final String _name;
+	private final Histogram _latency = new Histogram();
+	private final AtomicLong _rows = new AtomicLong();
+	private final AtomicLong _errors = new AtomicLong();
+	private final AtomicLong _slow = new AtomicLong();
+
+	OperationStats(String name) {
+		this._name = name;
+	}
+
+	/**
+	 * @return the operation's label
+	 */
+	public String name() {
+		return this._name;
+	}
+
+	/**
+	 * @return latencies of the successful and failed calls, in nanoseconds
+	 */
+	public Histogram latency() {
+		return this._latency;
+	}
+
+	void record(long nanos, long rows, boolean failed, boolean slow) {
+		this._latency.record(nanos);
+		if (rows > 0) this._rows.addAndGet(rows);
+		if (failed) this._errors.incrementAndGet();
+		if (slow) this._slow.incrementAndGet();
+	}
+
+	public long getCalls() {
+		return this._latency.count();
+	}
+
+	public long getErrors() {
+		return this._errors.get();
+	}
+
+	public long getSlowCalls() {
+		return this._slow.get();
+	}
+
+	public long getRows() {
+		return this._rows.get();
+	}
+
+	public double getMeanMicros() {
+		return this._latency.mean() / 1e3;
+	}
+
+	public double getP50Micros() {
+		return this._latency.percentile(50) / 1e3;
+	}
+
+	public double getP90Micros() {
+		return this._latency.percentile(90) / 1e3;
+	}
+
+	public double getP99Micros() {
+		return this._latency.percentile(99) / 1e3;
+	}
+
+	public double getP999Micros() {
+		return this._latency.percentile(99.9) / 1e3;
+	}
+
+	public double getMaxMicros() {
+		return this._latency.max() / 1e3;
+	}
+
+	public String toString() {
+		return String.format("%-28s %9d calls %6d err %5d slow %11d rows  mean %9.1f  p50 %9.1f  p99 %9.1f  p99.9 %9.1f  max %9.1f us",
+			this._name, getCalls(), getErrors(), getSlowCalls(), getRows(), getMeanMicros(),
+			getP50Micros(), getP99Micros(), getP999Micros(), getMaxMicros());
+	}
+}
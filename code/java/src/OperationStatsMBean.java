@@ -0,0 +1,17 @@
+/*
+ * JMX view of one database operation's OperationStats.  Latencies are in
+ * microseconds.
+ */
+
+public interface OperationStatsMBean {
+	long getCalls();
+	long getErrors();
+	long getSlowCalls();
+	long getRows();
+	double getMeanMicros();
+	double getP50Micros();
+	double getP90Micros();
+	double getP99Micros();
+	double getP999Micros();
+	double getMaxMicros();
+}
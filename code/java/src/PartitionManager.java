@@ -0,0 +1,495 @@
+/*
+ * Maintains the range partitions of Reservation, Repairs and Schedule (see
+ * sql/create.sql).
+ *
+ * Modes:
+ *   maintain          moves the rows of each DEFAULT partition into
+ *                     partitions of their own, creates the partitions for
+ *                     the current period and the next dbproject.partition.ahead
+ *                     ones, and ANALYZEs the partitioned tables, which
+ *                     autovacuum never does.  Safe to run repeatedly, e.g.
+ *                     nightly from cron.
+ *   detach <table> <before> [--archive <dir>]
+ *                     detaches the partitions of a table that lie wholly
+ *                     before a date (a reservation number for Reservation).
+ *                     They are left behind as plain tables, or with
+ *                     --archive written to <dir>/<partition>.csv and dropped.
+ *                     A Reservation partition that still holds a booking on
+ *                     a flight departing today or later is kept.
+ *   list              prints every partition with its bounds and estimated
+ *                     row count
+ *
+ * Queries only see attached partitions, and those with a bound on the
+ * partition key (a reservation number, a date range) skip the others.
+ * Autovacuum works partition by partition, so once a period is over its
+ * partition is frozen once and then left alone; vacuum and index upkeep
+ * follow the recent partitions only.
+ *
+ * Moving rows out of a DEFAULT partition runs with
+ * session_replication_role = replica, so the row triggers (repair rollups,
+ * seat release) do not count the move as a delete and an insert.  This
+ * needs superuser rights, which the owner of the class cluster has.
+ *
+ * Settings (system properties, see Config):
+ *   dbproject.partition.ahead             future partitions kept per table (default 3)
+ *   dbproject.partition.reservationRange  reservation numbers per partition (default 1000000)
+ *
+ * Example: java -cp lib/*:bin/ PartitionManager flightDB 5432 user maintain
+ *          java -cp lib/*:bin/ PartitionManager flightDB 5432 user detach Repairs 2010-01-01 --archive /tmp/archive
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+
+public class PartitionManager {
+	private static final int AHEAD = Math.max(0, Config.getInt("partition.ahead", 3));
+	private static final long RESERVATION_RANGE = Math.max(1, Config.getLong("partition.reservationRange", 1000000));
+	private static final Pattern BOUNDS = Pattern.compile("FROM \\('?([^')]*)'?\\) TO \\('?([^')]*)'?\\)");
+
+	/*
+	 * How one table is partitioned.  Bounds are kept as the text PostgreSQL
+	 * prints them in, e.g. 2014-01-01 or 1000000.
+	 */
+	static abstract class Scheme {
+		final String table;
+		final String column;
+
+		Scheme(String table, String column) {
+			this.table = table;
+			this.column = column;
+		}
+
+		String defaultPartition() {
+			return this.table.toLowerCase() + "_default";
+		}
+
+		//partition holding the period that starts at lower
+		abstract String name(String lower);
+
+		//start of the period after the one that starts at lower
+		abstract String next(String lower);
+
+		//a bound as an SQL literal
+		abstract String literal(String bound);
+
+		//false for bounds this tool does not write, e.g. MINVALUE
+		abstract boolean isBound(String bound);
+
+		abstract int compare(String a, String b);
+
+		//start of every period with rows in the DEFAULT partition
+		abstract String periodsInDefault();
+
+		//start of the period being written to now
+		abstract String current(Connection conn) throws SQLException;
+	}
+
+	static final class DateScheme extends Scheme {
+		private final int _months;
+
+		DateScheme(String table, String column, int months) {
+			super(table, column);
+			this._months = months;
+		}
+
+		String name(String lower) {
+			LocalDate day = LocalDate.parse(lower);
+			String prefix = this.table.toLowerCase();
+			return this._months == 12 ? String.format("%s_y%d", prefix, day.getYear())
+				: String.format("%s_m%d_%02d", prefix, day.getYear(), day.getMonthValue());
+		}
+
+		String next(String lower) {
+			return LocalDate.parse(lower).plusMonths(this._months).toString();
+		}
+
+		String literal(String bound) {
+			return "'" + LocalDate.parse(bound) + "'";
+		}
+
+		boolean isBound(String bound) {
+			try{
+				LocalDate.parse(bound);
+				return true;
+			}catch (RuntimeException e){
+				return false;
+			}
+		}
+
+		int compare(String a, String b) {
+			return LocalDate.parse(a).compareTo(LocalDate.parse(b));
+		}
+
+		String periodsInDefault() {
+			return "SELECT DISTINCT date_trunc('" + (this._months == 12 ? "year" : "month") + "', " + this.column
+				+ ")::date::text FROM " + defaultPartition() + " ORDER BY 1";
+		}
+
+		String current(Connection conn) {
+			LocalDate today = LocalDate.now();
+			return (this._months == 12 ? today.withDayOfYear(1) : today.withDayOfMonth(1)).toString();
+		}
+	}
+
+	static final class NumberScheme extends Scheme {
+		private final String _sequence;
+		private final long _range;
+
+		NumberScheme(String table, String column, String sequence, long range) {
+			super(table, column);
+			this._sequence = sequence;
+			this._range = range;
+		}
+
+		String name(String lower) {
+			return this.table.toLowerCase() + "_p" + Long.parseLong(lower) / this._range;
+		}
+
+		String next(String lower) {
+			return String.valueOf(Long.parseLong(lower) + this._range);
+		}
+
+		String literal(String bound) {
+			return String.valueOf(Long.parseLong(bound));
+		}
+
+		boolean isBound(String bound) {
+			try{
+				Long.parseLong(bound);
+				return true;
+			}catch (NumberFormatException e){
+				return false;
+			}
+		}
+
+		int compare(String a, String b) {
+			return Long.compare(Long.parseLong(a), Long.parseLong(b));
+		}
+
+		String periodsInDefault() {
+			return "SELECT DISTINCT (" + this.column + "::bigint / " + this._range + " * " + this._range
+				+ ")::text FROM " + defaultPartition() + " ORDER BY 1";
+		}
+
+		String current(Connection conn) throws SQLException {
+			Statement stmt = conn.createStatement();
+			try{
+				ResultSet rs = stmt.executeQuery("SELECT last_value FROM " + this._sequence);
+				rs.next();
+				return String.valueOf(rs.getLong(1) / this._range * this._range);
+			}finally{
+				stmt.close();
+			}
+		}
+	}
+
+	/*
+	 * An attached partition; lower and upper are null for the DEFAULT one.
+	 */
+	static final class Partition {
+		final String name;
+		final String lower;
+		final String upper;
+		final long rows;
+
+		Partition(String name, String lower, String upper, long rows) {
+			this.name = name;
+			this.lower = lower;
+			this.upper = upper;
+			this.rows = rows;
+		}
+	}
+
+	static final Scheme[] SCHEMES = {
+		new NumberScheme("Reservation", "rnum", "reservation_number_seq", RESERVATION_RANGE),
+		new DateScheme("Repairs", "repair_date", 12),
+		new DateScheme("Schedule", "departure_time", 1),
+	};
+
+	private final ConnectionPool _pool;
+
+	public PartitionManager(ConnectionPool pool) {
+		this._pool = pool;
+	}
+
+	/**
+	 * Method to empty the DEFAULT partition of a table into partitions of
+	 * their own, create the partitions ahead of now and refresh the
+	 * planner statistics.
+	 *
+	 * @param scheme the table to maintain
+	 * @throws java.sql.SQLException when a query fails
+	 */
+	public void maintain(Scheme scheme) throws SQLException {
+		PooledConnection conn = this._pool.borrow();
+		try{
+			Connection c = conn.connection();
+			List<String> periods = new ArrayList<String>();
+			Statement stmt = c.createStatement();
+			try{
+				ResultSet rs = stmt.executeQuery(scheme.periodsInDefault());
+				while (rs.next()) periods.add(rs.getString(1));
+			}finally{
+				stmt.close();
+			}
+			String current = scheme.current(c);
+			boolean moved = false;
+			for (String lower : periods) {
+				long rows = moveOutOfDefault(c, scheme, lower);
+				System.out.printf("%s: moved %d rows into %s%n", scheme.table, rows, scheme.name(lower));
+				// a period that is over takes no more writes: freeze it once
+				if (scheme.compare(scheme.next(lower), current) <= 0) execute(c, "VACUUM (FREEZE, ANALYZE) " + scheme.name(lower));
+				moved = true;
+			}
+			if (moved) execute(c, "VACUUM ANALYZE " + scheme.defaultPartition());
+
+			List<Partition> existing = partitions(c, scheme);
+			String lower = current;
+			for (int i = 0; i <= AHEAD; ++i, lower = scheme.next(lower)) {
+				if (find(existing, scheme.name(lower)) != null) continue;
+				execute(c, "CREATE TABLE " + scheme.name(lower) + " PARTITION OF " + scheme.table
+					+ " FOR VALUES FROM (" + scheme.literal(lower) + ") TO (" + scheme.literal(scheme.next(lower)) + ")");
+				System.out.printf("%s: created %s%n", scheme.table, scheme.name(lower));
+			}
+			// autovacuum analyzes the partitions but never the partitioned table
+			execute(c, "ANALYZE " + scheme.table);
+		}catch (SQLException e){
+			conn.failed(e);
+			throw e;
+		}finally{
+			this._pool.release(conn);
+		}
+	}
+
+	/*
+	 * Moves the rows of one period from the DEFAULT partition into a new
+	 * partition, in one transaction.
+	 */
+	private static long moveOutOfDefault(Connection c, Scheme scheme, String lower) throws SQLException {
+		String name = scheme.name(lower);
+		String range = scheme.column + " >= " + scheme.literal(lower) + " AND " + scheme.column + " < " + scheme.literal(scheme.next(lower));
+		c.setAutoCommit(false);
+		Statement stmt = c.createStatement();
+		try{
+			// the rows only move; keep the row triggers from seeing a delete and an insert
+			stmt.execute("SET LOCAL session_replication_role = replica");
+			stmt.execute("CREATE TABLE " + name + " (LIKE " + scheme.table + " INCLUDING DEFAULTS INCLUDING CONSTRAINTS)");
+			int rows = stmt.executeUpdate("WITH moved AS (DELETE FROM " + scheme.defaultPartition() + " WHERE " + range
+				+ " RETURNING *) INSERT INTO " + name + " SELECT * FROM moved");
+			// attaching builds the partition's indexes and foreign keys
+			stmt.execute("ALTER TABLE " + scheme.table + " ATTACH PARTITION " + name
+				+ " FOR VALUES FROM (" + scheme.literal(lower) + ") TO (" + scheme.literal(scheme.next(lower)) + ")");
+			c.commit();
+			return rows;
+		}catch (SQLException e){
+			c.rollback();
+			throw e;
+		}finally{
+			stmt.close();
+			c.setAutoCommit(true);
+		}
+	}
+
+	/**
+	 * Method to detach the partitions of a table that lie wholly before a
+	 * bound.
+	 *
+	 * @param scheme the table
+	 * @param before a date, or a reservation number for Reservation
+	 * @param archive directory to write the detached partitions to before
+	 *        dropping them, or null to keep them as plain tables
+	 * @return number of partitions detached
+	 * @throws java.sql.SQLException when a query fails
+	 * @throws java.io.IOException when an archive file cannot be written
+	 */
+	public int detach(Scheme scheme, String before, File archive) throws SQLException, IOException {
+		if (!scheme.isBound(before)) throw new IllegalArgumentException("bad bound for " + scheme.table + ": " + before);
+		int detached = 0;
+		PooledConnection conn = this._pool.borrow();
+		try{
+			Connection c = conn.connection();
+			for (Partition p : partitions(c, scheme)) {
+				if (p.upper == null || !scheme.isBound(p.upper) || scheme.compare(p.upper, before) > 0) continue;
+				if (scheme.table.equals("Reservation") && count(c, "SELECT count(*) FROM " + p.name
+						+ " r JOIN Flight f ON f.fnum = r.fid WHERE f.actual_departure_date >= CURRENT_DATE") > 0) {
+					System.out.printf("%s: kept %s, it has bookings on flights yet to depart%n", scheme.table, p.name);
+					continue;
+				}
+				c.setAutoCommit(false);
+				Statement stmt = c.createStatement();
+				try{
+					if (scheme.table.equals("Repairs")) {
+						// the rollups keep counting detached repairs; record them for repair_rollup_mismatches()
+						stmt.executeUpdate("INSERT INTO repairs_archived (plane_id, year, repairs)"
+							+ " SELECT plane_id, EXTRACT(YEAR FROM repair_date), count(*) FROM " + p.name + " GROUP BY 1, 2"
+							+ " ON CONFLICT (plane_id, year) DO UPDATE SET repairs = repairs_archived.repairs + excluded.repairs");
+					}
+					stmt.execute("ALTER TABLE " + scheme.table + " DETACH PARTITION " + p.name);
+					// DDL fires no triggers; expire cached results over the table
+					if (count(c, "SELECT count(*) FROM pg_class WHERE relname = 'table_version_"
+							+ scheme.table.toLowerCase() + "'") > 0) {
+						stmt.execute("SELECT bump_table_version('" + scheme.table + "')");
+					}
+					c.commit();
+				}catch (SQLException e){
+					c.rollback();
+					throw e;
+				}finally{
+					stmt.close();
+					c.setAutoCommit(true);
+				}
+				++detached;
+				if (archive == null) {
+					System.out.printf("%s: detached %s (%d rows)%n", scheme.table, p.name, p.rows);
+					continue;
+				}
+				File file = new File(archive, p.name + ".csv");
+				OutputStream out = new FileOutputStream(file);
+				long rows;
+				try{
+					rows = new CopyManager(c.unwrap(BaseConnection.class))
+						.copyOut("COPY " + p.name + " TO STDOUT WITH (FORMAT csv, HEADER)", out);
+				}finally{
+					out.close();
+				}
+				execute(c, "DROP TABLE " + p.name);
+				System.out.printf("%s: archived %s to %s (%d rows)%n", scheme.table, p.name, file, rows);
+			}
+		}catch (SQLException e){
+			conn.failed(e);
+			throw e;
+		}finally{
+			this._pool.release(conn);
+		}
+		return detached;
+	}
+
+	/**
+	 * Method to print the partitions of a table.
+	 *
+	 * @param scheme the table
+	 * @throws java.sql.SQLException when the catalog query fails
+	 */
+	public void list(Scheme scheme) throws SQLException {
+		PooledConnection conn = this._pool.borrow();
+		try{
+			for (Partition p : partitions(conn.connection(), scheme)) {
+				System.out.printf("%-12s %-28s %-12s %-12s %12d rows%n", scheme.table, p.name,
+					p.lower == null ? "DEFAULT" : p.lower, p.upper == null ? "" : p.upper, p.rows);
+			}
+		}catch (SQLException e){
+			conn.failed(e);
+			throw e;
+		}finally{
+			this._pool.release(conn);
+		}
+	}
+
+	/*
+	 * The attached partitions of a table.
+	 */
+	static List<Partition> partitions(Connection c, Scheme scheme) throws SQLException {
+		List<Partition> result = new ArrayList<Partition>();
+		Statement stmt = c.createStatement();
+		try{
+			ResultSet rs = stmt.executeQuery("SELECT p.relname, pg_get_expr(p.relpartbound, p.oid), greatest(p.reltuples, 0)::bigint"
+				+ " FROM pg_inherits i JOIN pg_class p ON p.oid = i.inhrelid"
+				+ " WHERE i.inhparent = '" + scheme.table.toLowerCase() + "'::regclass ORDER BY 1");
+			while (rs.next()) {
+				Matcher m = BOUNDS.matcher(rs.getString(2));
+				result.add(m.find() ? new Partition(rs.getString(1), m.group(1), m.group(2), rs.getLong(3))
+					: new Partition(rs.getString(1), null, null, rs.getLong(3)));
+			}
+		}finally{
+			stmt.close();
+		}
+		return result;
+	}
+
+	private static Partition find(List<Partition> partitions, String name) {
+		for (Partition p : partitions) {
+			if (p.name.equals(name)) return p;
+		}
+		return null;
+	}
+
+	private static long count(Connection c, String sql) throws SQLException {
+		Statement stmt = c.createStatement();
+		try{
+			ResultSet rs = stmt.executeQuery(sql);
+			rs.next();
+			return rs.getLong(1);
+		}finally{
+			stmt.close();
+		}
+	}
+
+	private static void execute(Connection c, String sql) throws SQLException {
+		Statement stmt = c.createStatement();
+		try{
+			stmt.execute(sql);
+		}finally{
+			stmt.close();
+		}
+	}
+
+	static Scheme scheme(String table) {
+		for (Scheme s : SCHEMES) {
+			if (s.table.equalsIgnoreCase(table)) return s;
+		}
+		throw new IllegalArgumentException("not a partitioned table: " + table);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println("Usage: java [-classpath <classpath>] PartitionManager <dbname> <port> <user>"
+				+ " maintain | list | detach <table> <before> [--archive <dir>]");
+			return;
+		}
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		boolean ok = true;
+		try{
+			PartitionManager manager = new PartitionManager(esql.pool());
+			String mode = args[3];
+			if (mode.equals("maintain")) {
+				for (Scheme s : SCHEMES) {
+					try{
+						manager.maintain(s);
+					}catch (SQLException e){
+						// go on with the other tables
+						System.err.println(s.table + ": " + e.getMessage());
+						ok = false;
+					}
+				}
+			} else if (mode.equals("list")) {
+				for (Scheme s : SCHEMES) manager.list(s);
+			} else if (mode.equals("detach") && args.length >= 6) {
+				File archive = args.length >= 8 && args[6].equals("--archive") ? new File(args[7]) : null;
+				if (archive != null && !archive.isDirectory() && !archive.mkdirs()) {
+					throw new IOException("Cannot create " + archive);
+				}
+				manager.detach(scheme(args[4]), args[5], archive);
+			} else {
+				System.err.println("Unknown mode: " + mode);
+				ok = false;
+			}
+		}finally{
+			esql.cleanup();
+		}
+		System.exit(ok ? 0 : 1);
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * A physical database connection owned by a ConnectionPool.
+ */
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+public class PooledConnection {
+	//reference to physical database connection
+	private final Connection _connection;
+	//prepared statements already created on this connection
+	private final StatementCache _statements;
+	//time (System.nanoTime) the connection was last handed back to the pool
+	private long _lastUsed;
+	//set when a connection level error makes the connection unusable
+	private boolean _broken = false;
+
+	PooledConnection(Connection connection) {
+		this._connection = connection;
+		this._statements = new StatementCache(connection);
+		this._lastUsed = System.nanoTime();
+	}
+
+	/**
+	 * @return the underlying JDBC connection
+	 */
+	public Connection connection() {
+		return this._connection;
+	}
+
+	/**
+	 * Method to get a cached prepared statement for the given SQL.
+	 *
+	 * @param sql the SQL text with '?' parameter markers
+	 * @return a prepared statement owned by this connection's cache
+	 * @throws java.sql.SQLException when the statement cannot be prepared
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		return this._statements.prepare(sql);
+	}
+
+	/**
+	 * Method to record a failure seen on this connection.  Errors in the
+	 * SQLSTATE class 08 (connection exception) mean the socket is gone, so
+	 * the pool discards the connection instead of handing it out again.
+	 *
+	 * @param e the error raised while using the connection
+	 */
+	public void failed(SQLException e) {
+		String state = e.getSQLState();
+		if (state != null && state.startsWith("08")) {
+			this._broken = true;
+		}
+	}
+
+	boolean isBroken() {
+		return this._broken;
+	}
+
+	long lastUsed() {
+		return this._lastUsed;
+	}
+
+	void touch() {
+		this._lastUsed = System.nanoTime();
+	}
+
+	void close() {
+		this._statements.clear();
+		try{
+			this._connection.close();
+		}catch (SQLException e){
+			// ignored.
+		}
+	}
+}
@@ -0,0 +1,342 @@
+/*
+ * Sends read-only report queries to streaming replicas.
+ *
+ * dbproject.replicas lists the replicas as host:port pairs.  They serve
+ * the primary's database and user, and each gets a ConnectionPool of its
+ * own.  Every dbproject.replica.checkMs a background thread reads the
+ * primary's WAL position, then asks each replica which position it has
+ * replayed.  The primary positions of recent checks are kept with the time
+ * they were read; a replica is as far behind as the newest of them it has
+ * replayed is old (0 when it has replayed the current one).  Lag is thus
+ * measured against the primary: a replica whose WAL receiver stopped falls
+ * behind as soon as the primary writes, though it has replayed all it
+ * received.  A report query goes to the next replica, round robin, that
+ *   - answered its last check and is still a standby,
+ *   - was at most dbproject.replica.maxLagMs behind, and
+ *   - has replayed this process's last write (read-your-writes).
+ * Otherwise it runs on the primary.  After a booking or update the
+ * primary's WAL position is noted, so a report right after it is not
+ * served by a replica that has not caught up yet.  When that position
+ * cannot be read, the committed write still succeeds; reports then use the
+ * primary until the next check has read a later position.
+ *
+ * Lag is measured at each check, so a replica may be up to maxLagMs +
+ * checkMs behind when it answers.  While the primary's position cannot be
+ * read, no replica is used.  A replica whose connection fails is
+ * skipped until its next good check.  Anything that must see the latest
+ * data (seat checks, bookings, the waitlist, LISTEN) stays on the primary.
+ *
+ * Settings (system properties, see Config):
+ *   dbproject.replicas          comma separated host:port list (default: none)
+ *   dbproject.replica.maxLagMs  staleness bound for replica reads (default 1000)
+ *   dbproject.replica.checkMs   period of the lag check (default 200)
+ *   dbproject.replica.retryMs   wait before trying an unreachable replica again (default 5000)
+ *
+ * To try it locally, start a primary and a replica with
+ * postgresql/startReplica.sh and run with -Ddbproject.replicas=localhost:<port>.
+ */
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ReplicaRouter {
+	static final String SQL_REPLAYED =
+		"SELECT pg_is_in_recovery(), (pg_last_wal_replay_lsn() - '0/0'::pg_lsn)::bigint";
+	static final String SQL_WRITE_LSN =
+		"SELECT (pg_current_wal_lsn() - '0/0'::pg_lsn)::bigint";
+
+	/*
+	 * One replica and what its last check found.
+	 */
+	static final class Replica {
+		final String name;
+		final String url;
+		//opened by the first check that reaches the replica
+		volatile ConnectionPool pool = null;
+		volatile boolean usable = false;
+		volatile long replayedLsn = -1;
+		volatile long lagMs = Long.MAX_VALUE;
+		//System.nanoTime() before which an unreachable replica is not tried
+		volatile long retryAt = 0;
+		final AtomicLong reads = new AtomicLong();
+
+		Replica(String name, String url) {
+			this.name = name;
+			this.url = url;
+		}
+	}
+
+	private final List<Replica> _replicas;
+	//the primary, whose WAL position the replicas are measured against
+	private final ConnectionPool _primary;
+	//{ System.nanoTime(), primary WAL position } of recent checks, oldest
+	//first; used by the checker thread only
+	private final ArrayDeque<long[]> _samples = new ArrayDeque<long[]>();
+	private final long _keepNanos;
+	private final String _user;
+	private final String _passwd;
+	private final long _maxLagMs;
+	private final long _retryNanos;
+	private final ScheduledExecutorService _checker;
+	private final AtomicInteger _next = new AtomicInteger();
+	//primary WAL position after this process's last write
+	private final AtomicLong _writeLsn = new AtomicLong(-1);
+	//writes whose WAL position could not be read; reports use the primary
+	//until a check reads a position taken after them
+	private final AtomicLong _unnotedWrites = new AtomicLong();
+	private final AtomicLong _primaryReads = new AtomicLong();
+	private final AtomicLong _readYourWrites = new AtomicLong();
+
+	/**
+	 * Method to build a router for the replicas in dbproject.replicas.
+	 *
+	 * @param primary the pool of the primary
+	 * @param dbname the database, as on the primary
+	 * @param user the database user
+	 * @param passwd the database password
+	 * @return the router, or null when no replicas are configured
+	 */
+	public static ReplicaRouter fromConfig(ConnectionPool primary, String dbname, String user, String passwd) {
+		String list = Config.getString("replicas", null);
+		if (list == null) return null;
+		List<Replica> replicas = new ArrayList<Replica>();
+		for (String hostPort : list.split(",")) {
+			hostPort = hostPort.trim();
+			if (hostPort.isEmpty()) continue;
+			replicas.add(new Replica(hostPort, "jdbc:postgresql://" + hostPort + "/" + dbname));
+		}
+		return replicas.isEmpty() ? null : new ReplicaRouter(primary, replicas, user, passwd);
+	}
+
+	ReplicaRouter(ConnectionPool primary, List<Replica> replicas, String user, String passwd) {
+		this._primary = primary;
+		this._replicas = Collections.unmodifiableList(replicas);
+		this._user = user;
+		this._passwd = passwd;
+		this._maxLagMs = Config.getLong("replica.maxLagMs", 1000);
+		this._retryNanos = TimeUnit.MILLISECONDS.toNanos(Config.getLong("replica.retryMs", 5000));
+		this._checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "replica-check");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long period = Math.max(10, Config.getLong("replica.checkMs", 200));
+		// older positions only show a replica is too far behind to use
+		this._keepNanos = TimeUnit.MILLISECONDS.toNanos(this._maxLagMs + 2 * period);
+		// check once before the first query
+		checkAll();
+		this._checker.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				checkAll();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Method to pick the replica for a report query.
+	 *
+	 * @return the pool of a fresh enough replica, or null to use the primary
+	 */
+	public ConnectionPool choose() {
+		if (this._unnotedWrites.get() > 0) {
+			this._primaryReads.incrementAndGet();
+			this._readYourWrites.incrementAndGet();
+			return null;
+		}
+		long writeLsn = this._writeLsn.get();
+		int n = this._replicas.size();
+		int first = this._next.getAndIncrement();
+		boolean behindWrite = false;
+		for (int i = 0; i < n; ++i) {
+			Replica r = this._replicas.get(Math.floorMod(first + i, n));
+			ConnectionPool pool = r.pool;
+			if (pool == null || !r.usable || r.lagMs > this._maxLagMs) continue;
+			if (r.replayedLsn < writeLsn) {
+				behindWrite = true;
+				continue;
+			}
+			r.reads.incrementAndGet();
+			return pool;
+		}
+		this._primaryReads.incrementAndGet();
+		if (behindWrite) this._readYourWrites.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Method to note a write so later reports see it.  Call it on the
+	 * connection that made the write, after it committed.  The write is
+	 * not undone by a failure here: the error is logged, the connection is
+	 * marked with it, and reports use the primary until the next check.
+	 *
+	 * @param conn the primary connection
+	 */
+	public void noteWrite(PooledConnection conn) {
+		try{
+			Statement stmt = conn.connection().createStatement();
+			try{
+				ResultSet rs = stmt.executeQuery(SQL_WRITE_LSN);
+				rs.next();
+				raiseWriteLsn(rs.getLong(1));
+			}finally{
+				stmt.close();
+			}
+		}catch (SQLException e){
+			conn.failed(e);
+			this._unnotedWrites.incrementAndGet();
+			System.err.println("Cannot read the WAL position of a write, reading reports from the primary: "
+				+ e.getMessage());
+		}
+	}
+
+	private void raiseWriteLsn(long lsn) {
+		long seen;
+		while (lsn > (seen = this._writeLsn.get()) && !this._writeLsn.compareAndSet(seen, lsn)) {
+		}
+	}
+
+	/**
+	 * Method to stop using a replica until its next good check.
+	 *
+	 * @param pool the pool returned by choose()
+	 * @param e why its query failed
+	 */
+	public void failed(ConnectionPool pool, SQLException e) {
+		for (Replica r : this._replicas) {
+			if (r.pool == pool && r.usable) {
+				r.usable = false;
+				System.err.println("Replica " + r.name + " failed, reading from the primary: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @return true for errors that mean the connection or server is gone,
+	 *         after which the query is worth retrying on the primary
+	 */
+	static boolean isConnectionError(SQLException e) {
+		String state = e.getSQLState();
+		return state != null && (state.startsWith("08") || state.equals("57P01") || state.equals("57P03"));
+	}
+
+	private void checkAll() {
+		long now = System.nanoTime();
+		boolean measured = false;
+		// writes counted before the read are older than the position it returns
+		long unnoted = this._unnotedWrites.get();
+		try{
+			long lsn = primaryLsn();
+			this._samples.addLast(new long[] { now, lsn });
+			measured = true;
+			if (unnoted > 0) {
+				raiseWriteLsn(lsn);
+				this._unnotedWrites.addAndGet(-unnoted);
+			}
+		}catch (SQLException e){
+			System.err.println("Cannot read the primary's WAL position, not using replicas: " + e.getMessage());
+		}
+		while (this._samples.size() > 1 && now - this._samples.peekFirst()[0] > this._keepNanos) {
+			this._samples.pollFirst();
+		}
+		for (Replica r : this._replicas) check(r, now, measured);
+	}
+
+	private long primaryLsn() throws SQLException {
+		PooledConnection conn = this._primary.borrow();
+		try{
+			ResultSet rs = conn.prepare(SQL_WRITE_LSN).executeQuery();
+			try{
+				rs.next();
+				return rs.getLong(1);
+			}finally{
+				rs.close();
+			}
+		}catch (SQLException e){
+			conn.failed(e);
+			throw e;
+		}finally{
+			this._primary.release(conn);
+		}
+	}
+
+	/*
+	 * Milliseconds from the newest primary position the replica has
+	 * replayed to now, or Long.MAX_VALUE when it has replayed none kept.
+	 */
+	private long lagMs(long replayed, long now) {
+		Iterator<long[]> newestFirst = this._samples.descendingIterator();
+		while (newestFirst.hasNext()) {
+			long[] sample = newestFirst.next();
+			if (sample[1] <= replayed) return TimeUnit.NANOSECONDS.toMillis(now - sample[0]);
+		}
+		return Long.MAX_VALUE;
+	}
+
+	private void check(Replica r, long now, boolean measured) {
+		if (System.nanoTime() - r.retryAt < 0) return;
+		try{
+			if (r.pool == null) r.pool = new ConnectionPool(r.url, this._user, this._passwd);
+			PooledConnection conn = r.pool.borrow();
+			try{
+				Statement stmt = conn.connection().createStatement();
+				try{
+					ResultSet rs = stmt.executeQuery(SQL_REPLAYED);
+					rs.next();
+					boolean standby = rs.getBoolean(1);
+					r.replayedLsn = rs.getLong(2);
+					r.lagMs = measured ? lagMs(r.replayedLsn, now) : Long.MAX_VALUE;
+					if (!standby && r.usable) System.err.println("Replica " + r.name + " is no longer a standby");
+					r.usable = standby;
+				}finally{
+					stmt.close();
+				}
+			}catch (SQLException e){
+				conn.failed(e);
+				throw e;
+			}finally{
+				r.pool.release(conn);
+			}
+		}catch (SQLException e){
+			if (r.usable) System.err.println("Replica " + r.name + " unreachable: " + e.getMessage());
+			r.usable = false;
+			r.retryAt = System.nanoTime() + this._retryNanos;
+		}
+	}
+
+	/**
+	 * @return reads per replica and on the primary, one line
+	 */
+	public String stats() {
+		StringBuilder s = new StringBuilder("replica reads:");
+		for (Replica r : this._replicas) {
+			s.append(' ').append(r.name).append('=').append(r.reads.get());
+			s.append(!r.usable ? " (down)" : r.lagMs == Long.MAX_VALUE ? " (lag unknown)" : String.format(" (lag %d ms)", r.lagMs));
+		}
+		return s.append(String.format(", primary=%d (%d for read-your-writes)",
+			this._primaryReads.get(), this._readYourWrites.get())).toString();
+	}
+
+	/**
+	 * Method to stop the checks and close the replica pools.
+	 */
+	public void close() {
+		this._checker.shutdownNow();
+		for (Replica r : this._replicas) {
+			if (r.pool != null) r.pool.close();
+		}
+	}
+}
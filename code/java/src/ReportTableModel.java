@@ -0,0 +1,378 @@
+/*
+ * Lazily loaded table model for reports too long to read in one go.
+ *
+ * Menu options 7 and 8 used to read the whole report and paste it into a
+ * text area.  This model reads only the row count up front; rows are read
+ * a page at a time when the JTable first asks for a cell of that page,
+ * i.e. as the user scrolls.  Pages are read with keyset pagination:
+ *
+ *   SELECT ... FROM relation WHERE (sort, key) > (?, ?)
+ *   ORDER BY sort, key LIMIT pageSize
+ *
+ * seeking past the last row of the page before, so a page costs an index
+ * descent plus one page of rows however deep it is.  The model remembers
+ * the last (sort, key) of every page it has read, even after the page
+ * itself is evicted.  A page further on than that (the user dragged the
+ * scroll bar) is read with an OFFSET from the nearest remembered page, and
+ * its neighbours seek from it as usual.
+ *
+ * Clicking a column header sorts by that column on the server.  Only the
+ * most recently used pages are kept.  Pages are read on one background
+ * thread per model, most recently requested first, so a fast scroll does
+ * not queue up reads of pages the user has already passed.  Cells not read
+ * yet show empty.
+ *
+ * The relation and column names are pasted into the SQL, so they must come
+ * from code, never from the user.  The sort columns must be NOT NULL and
+ * the key column unique.
+ *
+ * Settings (system properties, see Config):
+ *   dbproject.report.pageSize     rows per page (default 200)
+ *   dbproject.report.cachedPages  pages kept in memory (default 16)
+ */
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import javax.swing.JTable;
+import javax.swing.SwingUtilities;
+import javax.swing.table.AbstractTableModel;
+
+public class ReportTableModel extends AbstractTableModel {
+	private static final long serialVersionUID = 1L;
+
+	private static final int PAGE_SIZE = Math.max(1, Config.getInt("report.pageSize", 200));
+	private static final int CACHED_PAGES = Math.max(2, Config.getInt("report.cachedPages", 16));
+	private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+	private final DBproject _esql;
+	private final String _relation;
+	private final String[] _columns;
+	private final String[] _headers;
+	//index of the unique column that breaks ties between equal sort values
+	private final int _key;
+	private final ExecutorService _fetcher;
+	private volatile Consumer<Throwable> _onError = null;
+
+	//the fields below are guarded by this
+	private int _rowCount = 0;
+	private int _sortColumn;
+	private boolean _ascending;
+	//bumped when the order changes, so reads under the old order are dropped
+	private int _generation = 0;
+	//set when a read failed; no more reads until the order changes or load()
+	private boolean _failed = false;
+	private boolean _fetching = false;
+	private final LinkedHashMap<Integer, Object[][]> _pages = new LinkedHashMap<Integer, Object[][]>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<Integer, Object[][]> eldest) {
+			return size() > CACHED_PAGES;
+		}
+	};
+	//page -> {sort value, key value} of its last row, under the current order
+	private final TreeMap<Integer, Object[]> _bounds = new TreeMap<Integer, Object[]>();
+	//pages asked for but not read yet, most recent last
+	private final LinkedHashSet<Integer> _wanted = new LinkedHashSet<Integer>();
+
+	/**
+	 * @param esql the database to read from
+	 * @param relation the table or view to show
+	 * @param columns the columns to show
+	 * @param headers the column titles, one per column
+	 * @param key index of a unique column in columns
+	 * @param sortColumn index of the column to sort by at first
+	 * @param ascending true to sort ascending at first
+	 */
+	public ReportTableModel(DBproject esql, String relation, String[] columns, String[] headers,
+			int key, int sortColumn, boolean ascending) {
+		if (!IDENTIFIER.matcher(relation).matches()) throw new IllegalArgumentException("bad relation name " + relation);
+		for (String column : columns) {
+			if (!IDENTIFIER.matcher(column).matches()) throw new IllegalArgumentException("bad column name " + column);
+		}
+		if (headers.length != columns.length) throw new IllegalArgumentException("one header per column expected");
+		this._esql = esql;
+		this._relation = relation;
+		this._columns = columns.clone();
+		this._headers = headers.clone();
+		this._key = key;
+		this._sortColumn = sortColumn;
+		this._ascending = ascending;
+		this._fetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "report-" + ReportTableModel.this._relation);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Method to set what is told about failed page reads.
+	 *
+	 * @param onError called on the event thread with the error
+	 */
+	public void setErrorHandler(Consumer<Throwable> onError) {
+		this._onError = onError;
+	}
+
+	/**
+	 * Method to count the rows and read the first page.  Blocks, so call it
+	 * off the event thread.  Calling it again reloads the report.
+	 *
+	 * @return this model
+	 * @throws java.sql.SQLException when either query fails
+	 */
+	public ReportTableModel load() throws SQLException {
+		List<List<String>> count = this._esql.executeReportQuery("SELECT count(*) FROM " + this._relation);
+		int generation, sortColumn;
+		boolean ascending;
+		synchronized (this) {
+			generation = ++this._generation;
+			sortColumn = this._sortColumn;
+			ascending = this._ascending;
+			this._rowCount = Integer.parseInt(count.get(0).get(0));
+			this._failed = false;
+			this._pages.clear();
+			this._bounds.clear();
+			this._wanted.clear();
+		}
+		Object[][] first = read(0, sortColumn, ascending, null);
+		synchronized (this) {
+			if (generation == this._generation) store(0, sortColumn, first);
+		}
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				fireTableDataChanged();
+			}
+		});
+		return this;
+	}
+
+	/**
+	 * Method to sort the report on the server.  Call it on the event thread.
+	 *
+	 * @param column index of the column to sort by
+	 * @param ascending true to sort ascending
+	 */
+	public void sortBy(int column, boolean ascending) {
+		synchronized (this) {
+			++this._generation;
+			this._sortColumn = column;
+			this._ascending = ascending;
+			this._failed = false;
+			this._pages.clear();
+			this._bounds.clear();
+			this._wanted.clear();
+		}
+		// the header shows the sort order
+		fireTableStructureChanged();
+	}
+
+	/**
+	 * Method to sort by a column when its header is clicked; clicking the
+	 * sorted column again reverses the order.
+	 *
+	 * @param table a table showing this model
+	 */
+	public void sortOnHeaderClick(final JTable table) {
+		table.getTableHeader().addMouseListener(new MouseAdapter() {
+			public void mouseClicked(MouseEvent e) {
+				int column = table.convertColumnIndexToModel(table.columnAtPoint(e.getPoint()));
+				if (column < 0) return;
+				boolean ascending;
+				synchronized (ReportTableModel.this) {
+					ascending = column == _sortColumn ? !_ascending : true;
+				}
+				sortBy(column, ascending);
+			}
+		});
+	}
+
+	/**
+	 * Method to stop the background reads once the table is closed.
+	 */
+	public void close() {
+		this._fetcher.shutdownNow();
+	}
+
+	public synchronized int getRowCount() {
+		return this._rowCount;
+	}
+
+	public int getColumnCount() {
+		return this._columns.length;
+	}
+
+	public synchronized String getColumnName(int column) {
+		if (column != this._sortColumn) return this._headers[column];
+		return this._headers[column] + (this._ascending ? " \u25B2" : " \u25BC");
+	}
+
+	public Object getValueAt(int row, int column) {
+		int page = row / PAGE_SIZE;
+		Object[][] rows;
+		synchronized (this) {
+			rows = this._pages.get(page);
+			if (rows == null) {
+				want(page);
+				return null;
+			}
+		}
+		int i = row % PAGE_SIZE;
+		return i < rows.length ? rows[i][column] : null;
+	}
+
+	/*
+	 * Queues a page for reading.  Caller holds the lock.
+	 */
+	private void want(int page) {
+		if (this._failed) return;
+		this._wanted.remove(page);
+		this._wanted.add(page);
+		// the oldest requests are for pages long scrolled past
+		Iterator<Integer> oldest = this._wanted.iterator();
+		while (this._wanted.size() > CACHED_PAGES) {
+			oldest.next();
+			oldest.remove();
+		}
+		if (this._fetching) return;
+		this._fetching = true;
+		this._fetcher.execute(new Runnable() {
+			public void run() {
+				fetch();
+			}
+		});
+	}
+
+	/*
+	 * Reads wanted pages, newest request first, until none are left.
+	 */
+	private void fetch() {
+		while (true) {
+			int page = -1, generation, sortColumn;
+			boolean ascending;
+			Map.Entry<Integer, Object[]> bound;
+			synchronized (this) {
+				for (int p : this._wanted) page = p;
+				if (page < 0) {
+					this._fetching = false;
+					return;
+				}
+				this._wanted.remove(page);
+				if (this._pages.containsKey(page)) continue;
+				generation = this._generation;
+				sortColumn = this._sortColumn;
+				ascending = this._ascending;
+				bound = this._bounds.lowerEntry(page);
+			}
+			final Object[][] rows;
+			try{
+				rows = read(page, sortColumn, ascending, bound);
+			}catch (final SQLException e){
+				synchronized (this) {
+					this._failed = true;
+					this._fetching = false;
+					this._wanted.clear();
+				}
+				final Consumer<Throwable> onError = this._onError;
+				if (onError == null) {
+					System.err.println("Unable to read " + this._relation + ": " + e.getMessage());
+				} else {
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							onError.accept(e);
+						}
+					});
+				}
+				return;
+			}
+			final int first = page * PAGE_SIZE;
+			final int last;
+			synchronized (this) {
+				if (generation != this._generation) continue;
+				store(page, sortColumn, rows);
+				last = Math.min(first + PAGE_SIZE, this._rowCount) - 1;
+			}
+			if (last < first) continue;
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					fireTableRowsUpdated(first, last);
+				}
+			});
+		}
+	}
+
+	/*
+	 * Caches a page and remembers where it ends.  Caller holds the lock.
+	 */
+	private void store(int page, int sortColumn, Object[][] rows) {
+		this._pages.put(page, rows);
+		if (rows.length == 0) return;
+		Object[] last = rows[rows.length - 1];
+		this._bounds.put(page, new Object[] { last[sortColumn], last[this._key] });
+	}
+
+	/*
+	 * Reads one page, seeking past the end of the nearest page before it
+	 * that was read under the same order.
+	 */
+	private Object[][] read(int page, int sortColumn, boolean ascending, Map.Entry<Integer, Object[]> bound) throws SQLException {
+		List<Object> params = new ArrayList<Object>(4);
+		if (bound != null) {
+			if (sortColumn != this._key) params.add(bound.getValue()[0]);
+			params.add(bound.getValue()[1]);
+		}
+		params.add(PAGE_SIZE);
+		int skip = (page - (bound == null ? 0 : bound.getKey() + 1)) * PAGE_SIZE;
+		if (skip > 0) params.add(skip);
+
+		final int width = this._columns.length;
+		final List<Object[]> rows = new ArrayList<Object[]>(PAGE_SIZE);
+		this._esql.executeReportQueryStreaming(query(sortColumn, ascending, bound != null, skip > 0), PAGE_SIZE, new RowHandler() {
+			public void row(Row row) throws SQLException {
+				Object[] values = new Object[width];
+				for (int i = 0; i < width; ++i) values[i] = row.getObject(i + 1);
+				rows.add(values);
+			}
+		}, params.toArray());
+		return rows.toArray(new Object[rows.size()][]);
+	}
+
+	/*
+	 * Builds the page query for an order; the seek and offset are optional.
+	 */
+	String query(int sortColumn, boolean ascending, boolean seek, boolean offset) {
+		String sort = this._columns[sortColumn];
+		String key = this._columns[this._key];
+		String direction = ascending ? "" : " DESC";
+		StringBuilder sql = new StringBuilder("SELECT ");
+		for (int i = 0; i < this._columns.length; ++i) {
+			if (i > 0) sql.append(", ");
+			sql.append(this._columns[i]);
+		}
+		sql.append(" FROM ").append(this._relation);
+		if (seek) {
+			String op = ascending ? " > " : " < ";
+			if (sortColumn == this._key) sql.append(" WHERE ").append(key).append(op).append('?');
+			else sql.append(" WHERE (").append(sort).append(", ").append(key).append(')').append(op).append("(?, ?)");
+		}
+		sql.append(" ORDER BY ").append(sort).append(direction);
+		if (sortColumn != this._key) sql.append(", ").append(key).append(direction);
+		sql.append(" LIMIT ?");
+		if (offset) sql.append(" OFFSET ?");
+		return sql.toString();
+	}
+}
@@ -0,0 +1,410 @@
+/*
+ * Cache of query results, invalidated by table version counters.
+ *
+ * Reports such as the repair counts and the passenger status counts are
+ * asked for over and over while the tables behind them rarely change.
+ * Results are kept here, keyed by the normalized SQL (whitespace and case
+ * outside string literals folded) plus the parameter values.  Each entry
+ * records the tables its query reads and their versions when it ran.
+ *
+ * Versions come from sql/migrations/010_table_versions.sql: a statement
+ * writing a versioned table bumps the table's sequence, and the new value
+ * arrives on channel table_version once it commits.  Writes made through
+ * this process bump the local version as soon as they commit, so a report
+ * right after them never sees the old result: executeUpdate calls wrote(),
+ * and BookingEngine, InsertBatch and WaitlistPromoter call changed() for
+ * the reservations they write.  An entry is
+ * used only while every table it read is still at the recorded version;
+ * otherwise it is dropped and the query runs again.  Another process's
+ * write is seen once its notification arrives, as with SeatCache.
+ *
+ * Only plain SELECTs are cached whose FROM / JOIN lists name versioned
+ * tables alone; anything that writes, calls a volatile function, or reads
+ * an unversioned table, view or function goes straight to the database.
+ * When replicas serve reports, entries also expire after
+ * dbproject.replica.maxLagMs + dbproject.replica.checkMs, since a replica
+ * may have answered with data older than the versions recorded.
+ *
+ * Results are shared between callers and cannot be modified.  The cache
+ * holds at most dbproject.resultCache.maxRows rows, evicting the least
+ * recently used entries; results over dbproject.resultCache.maxEntryRows
+ * rows are not kept.
+ *
+ * Settings (system properties, see Config):
+ *   dbproject.resultCache.maxRows      rows kept in total, 0 to disable (default 100000)
+ *   dbproject.resultCache.maxEntryRows largest result kept (default 10000)
+ */
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class ResultCache implements NotificationHandler {
+	static final String CHANNEL = "table_version";
+	static final String SQL_VERSIONS =
+		"SELECT substr(sequencename, 15), coalesce(last_value, 0) FROM pg_sequences " +
+		"WHERE sequencename LIKE 'table\\_version\\_%'";
+
+	// on the scan form, where string literals are blanked
+	private static final Pattern READ_TABLES = Pattern.compile(
+		"\\b(?:from|join)\\s+([a-z_][\\w.]*)(?:\\s+(?:as\\s+)?[a-z_]\\w*)?((?:\\s*,\\s*[a-z_][\\w.]*(?:\\s+(?:as\\s+)?[a-z_]\\w*)?)*)");
+	private static final Pattern LIST_ITEM = Pattern.compile("[a-z_][\\w.]*");
+	private static final Pattern WRITTEN_TABLES = Pattern.compile(
+		"\\b(?:insert\\s+into|update|delete\\s+from|truncate(?:\\s+table)?)\\s+(?:only\\s+)?([a-z_][\\w.]*)");
+	//ad-hoc SQL with inlined values would otherwise grow the plan map forever
+	private static final int MAX_PLANS = 1024;
+	private static final Pattern NOT_CACHEABLE = Pattern.compile(
+		"\\b(?:insert|update|delete|truncate|for\\s+share|nextval|setval|currval|now|random|clock_timestamp|"
+		+ "statement_timestamp|timeofday|current_date|current_time|current_timestamp|localtime|localtimestamp|"
+		+ "pg_\\w+|txid_\\w+)\\b");
+
+	/*
+	 * A versioned table.  stamp changes with every version seen and every
+	 * local write.
+	 */
+	static final class Table {
+		final AtomicLong stamp = new AtomicLong();
+		final AtomicLong version;
+
+		Table(long version) {
+			this.version = new AtomicLong(version);
+		}
+	}
+
+	/*
+	 * Normalized SQL plus parameter values.
+	 */
+	static final class Key {
+		final String sql;
+		final Object[] params;
+		final int hash;
+
+		Key(String sql, Object[] params) {
+			this.sql = sql;
+			this.params = params.clone();
+			this.hash = 31 * sql.hashCode() + Arrays.hashCode(this.params);
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return this.hash == k.hash && this.sql.equals(k.sql) && Arrays.equals(this.params, k.params);
+		}
+
+		public int hashCode() {
+			return this.hash;
+		}
+	}
+
+	static final class Entry {
+		final Object value;
+		final int rows;
+		final Table[] tables;
+		final long[] stamps;
+		//System.nanoTime() after which the entry is not used; 0 for never
+		final long expires;
+
+		Entry(Object value, int rows, Table[] tables, long[] stamps, long expires) {
+			this.value = value;
+			this.rows = rows;
+			this.tables = tables;
+			this.stamps = stamps;
+			this.expires = expires;
+		}
+
+		boolean current() {
+			for (int i = 0; i < this.tables.length; ++i) {
+				if (this.tables[i].stamp.get() != this.stamps[i]) return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * A lookup: either the cached result, or what finish() needs to store
+	 * the result once the query has run.
+	 */
+	public static final class Ticket {
+		final Key key;
+		final Table[] tables;
+		final long[] stamps;
+		final long epoch;
+		private final Object _hit;
+
+		Ticket(Key key, Table[] tables, long[] stamps, long epoch, Object hit) {
+			this.key = key;
+			this.tables = tables;
+			this.stamps = stamps;
+			this.epoch = epoch;
+			this._hit = hit;
+		}
+
+		/**
+		 * @return the cached result, or null when the query must run
+		 */
+		public Object hit() {
+			return this._hit;
+		}
+	}
+
+	private final int _maxRows;
+	private final int _maxEntryRows;
+	private final long _ttlNanos;
+	private final Map<String, Table> _tables = new ConcurrentHashMap<String, Table>();
+	//normalized SQL to the tables it reads, null when not cacheable
+	private final Map<String, Table[]> _plans = new ConcurrentHashMap<String, Table[]>();
+	private static final Table[] NOT_CACHED = new Table[0];
+
+	//guarded by this
+	private final LinkedHashMap<Key, Entry> _entries = new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+	private int _rows = 0;
+	//bumped when everything is dropped, so results read before are not stored
+	private volatile long _epoch = 0;
+
+	private final AtomicLong _hits = new AtomicLong();
+	private final AtomicLong _misses = new AtomicLong();
+	private final AtomicLong _bypassed = new AtomicLong();
+	private final AtomicLong _invalidated = new AtomicLong();
+	private final AtomicLong _expired = new AtomicLong();
+	private final AtomicLong _evictions = new AtomicLong();
+
+	/**
+	 * Method to build the cache and read the versioned tables.
+	 *
+	 * @param esql the database, for the current table versions
+	 * @param replicated true when report queries may run on replicas
+	 * @throws java.sql.SQLException when the versions cannot be read
+	 */
+	public ResultCache(DBproject esql, boolean replicated) throws SQLException {
+		this._maxRows = Math.max(0, Config.getInt("resultCache.maxRows", 100000));
+		this._maxEntryRows = Math.max(1, Config.getInt("resultCache.maxEntryRows", 10000));
+		this._ttlNanos = !replicated ? 0 : TimeUnit.MILLISECONDS.toNanos(
+			Config.getLong("replica.maxLagMs", 1000) + Config.getLong("replica.checkMs", 200));
+		if (this._maxRows == 0) return;
+		for (List<String> row : esql.executeQueryAndReturnResult(SQL_VERSIONS)) {
+			this._tables.put(row.get(0), new Table(Long.parseLong(row.get(1))));
+		}
+	}
+
+	/**
+	 * Method to look a query up.
+	 *
+	 * @return a ticket holding the cached result or, on a miss, to pass to
+	 *         finish() with the result; null when the query is not cached
+	 */
+	public Ticket begin(String sql, Object... params) {
+		if (this._maxRows == 0) return null;
+		String key = normalize(sql, false);
+		Table[] tables = this._plans.get(key);
+		if (tables == null) {
+			tables = plan(normalize(sql, true));
+			if (this._plans.size() < MAX_PLANS) this._plans.put(key, tables);
+		}
+		if (tables == NOT_CACHED) {
+			this._bypassed.incrementAndGet();
+			return null;
+		}
+		Key k = new Key(key, params);
+		long epoch = this._epoch;
+		// the stamps are taken before the query runs, so a write that
+		// commits while it runs leaves the stored result outdated
+		long[] stamps = new long[tables.length];
+		for (int i = 0; i < tables.length; ++i) stamps[i] = tables[i].stamp.get();
+		synchronized (this) {
+			Entry e = this._entries.get(k);
+			if (e != null) {
+				if (e.expires != 0 && System.nanoTime() - e.expires > 0) {
+					this._expired.incrementAndGet();
+					remove(k, e);
+				} else if (!e.current()) {
+					this._invalidated.incrementAndGet();
+					remove(k, e);
+				} else {
+					this._hits.incrementAndGet();
+					return new Ticket(k, tables, stamps, epoch, e.value);
+				}
+			}
+		}
+		this._misses.incrementAndGet();
+		return new Ticket(k, tables, stamps, epoch, null);
+	}
+
+	/**
+	 * Method to store the result of a query looked up with begin().
+	 *
+	 * @param ticket the ticket from begin(); nothing happens when null
+	 * @param value the result; must not be modified afterwards
+	 * @param rows size of the result, for the bound on cached rows
+	 */
+	public void finish(Ticket ticket, Object value, int rows) {
+		if (ticket == null || ticket.hit() != null || rows > this._maxEntryRows) return;
+		Entry e = new Entry(value, Math.max(1, rows), ticket.tables, ticket.stamps,
+			this._ttlNanos == 0 ? 0 : System.nanoTime() + this._ttlNanos);
+		synchronized (this) {
+			if (ticket.epoch != this._epoch || !e.current()) return;
+			Entry old = this._entries.put(ticket.key, e);
+			if (old != null) this._rows -= old.rows;
+			this._rows += e.rows;
+			Iterator<Map.Entry<Key, Entry>> eldest = this._entries.entrySet().iterator();
+			while (this._rows > this._maxRows && eldest.hasNext()) {
+				Entry victim = eldest.next().getValue();
+				eldest.remove();
+				this._rows -= victim.rows;
+				this._evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Method to note a write made through this process, so cached results
+	 * over the written tables are not used any more.
+	 *
+	 * @param sql the statement that was executed
+	 */
+	public void wrote(String sql) {
+		if (this._maxRows == 0) return;
+		Matcher m = WRITTEN_TABLES.matcher(normalize(sql, true));
+		while (m.find()) changed(m.group(1));
+	}
+
+	/**
+	 * Method to note that this process changed a table.
+	 *
+	 * @param table the table name, in any case
+	 */
+	public void changed(String table) {
+		Table t = this._tables.get(tableName(table.toLowerCase()));
+		if (t != null) t.stamp.incrementAndGet();
+	}
+
+	public void notified(String payload) {
+		int colon = payload.lastIndexOf(':');
+		try{
+			Table t = this._tables.get(payload.substring(0, Math.max(colon, 0)));
+			if (t == null) return;
+			long version = Long.parseLong(payload.substring(colon + 1));
+			long seen;
+			while (version > (seen = t.version.get())) {
+				if (t.version.compareAndSet(seen, version)) {
+					t.stamp.incrementAndGet();
+					return;
+				}
+			}
+		}catch (NumberFormatException e){
+			clear();
+		}
+	}
+
+	public void reset() {
+		clear();
+	}
+
+	/**
+	 * Method to drop every cached result.
+	 */
+	public synchronized void clear() {
+		++this._epoch;
+		this._invalidated.addAndGet(this._entries.size());
+		this._entries.clear();
+		this._rows = 0;
+	}
+
+	/**
+	 * Method to freeze a result before it is cached and shared.
+	 */
+	static List<List<String>> freeze(List<List<String>> rows) {
+		List<List<String>> frozen = new ArrayList<List<String>>(rows.size());
+		for (List<String> row : rows) frozen.add(Collections.unmodifiableList(row));
+		return Collections.unmodifiableList(frozen);
+	}
+
+	/**
+	 * @return a one line summary of the cache counters
+	 */
+	public synchronized String stats() {
+		long hits = this._hits.get(), lookups = hits + this._misses.get();
+		return String.format("result cache: %d entries, %d/%d rows, %d hits, %d misses, %d invalidated, %d expired, "
+			+ "%d evictions, %d not cacheable, hit ratio %.1f%%",
+			this._entries.size(), this._rows, this._maxRows, hits, this._misses.get(), this._invalidated.get(),
+			this._expired.get(), this._evictions.get(), this._bypassed.get(),
+			lookups == 0 ? 0.0 : 100.0 * hits / lookups);
+	}
+
+	private void remove(Key k, Entry e) {
+		this._entries.remove(k);
+		this._rows -= e.rows;
+	}
+
+	/*
+	 * The versioned tables a query reads, or NOT_CACHED.
+	 */
+	private Table[] plan(String scan) {
+		if (!(scan.startsWith("select ") || scan.startsWith("with ")) || NOT_CACHEABLE.matcher(scan).find()) {
+			return NOT_CACHED;
+		}
+		Set<Table> tables = new LinkedHashSet<Table>();
+		Matcher m = READ_TABLES.matcher(scan);
+		while (m.find()) {
+			List<String> names = new ArrayList<String>();
+			names.add(m.group(1));
+			// the rest of a comma list, each name maybe followed by an alias
+			for (String item : m.group(2).split(",")) {
+				Matcher name = LIST_ITEM.matcher(item);
+				if (name.find()) names.add(name.group());
+			}
+			for (String name : names) {
+				Table t = this._tables.get(tableName(name));
+				// a view, function, CTE or table nobody bumps
+				if (t == null) return NOT_CACHED;
+				tables.add(t);
+			}
+		}
+		return tables.isEmpty() ? NOT_CACHED : tables.toArray(new Table[0]);
+	}
+
+	private static String tableName(String name) {
+		return name.startsWith("public.") ? name.substring(7) : name;
+	}
+
+	/*
+	 * SQL with whitespace runs folded to one space and everything outside
+	 * string literals in lower case.  For the scan form the literals'
+	 * contents are dropped as well.
+	 */
+	static String normalize(String sql, boolean scan) {
+		StringBuilder out = new StringBuilder(sql.length());
+		boolean literal = false, space = false;
+		for (int i = 0; i < sql.length(); ++i) {
+			char c = sql.charAt(i);
+			if (literal) {
+				if (c == '\'') literal = false;
+				if (!scan || c == '\'') out.append(c);
+				continue;
+			}
+			if (Character.isWhitespace(c)) {
+				space = true;
+				continue;
+			}
+			if (space && out.length() > 0) out.append(' ');
+			space = false;
+			if (c == '\'') literal = true;
+			out.append(Character.toLowerCase(c));
+		}
+		int end = out.length();
+		while (end > 0 && out.charAt(end - 1) == ';') --end;
+		out.setLength(end);
+		return out.toString();
+	}
+}
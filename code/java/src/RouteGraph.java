@@ -0,0 +1,393 @@
+/*
+ * In-memory graph of all flights for route searches.
+ *
+ * Airport codes are numbered densely and each flight is stored in
+ * primitive arrays (origin, destination, departure, arrival, cost), with
+ * two index arrays that order the flights by departure and by arrival.
+ * Searching connections in SQL needs a recursive join per extra leg.  Here
+ * a query is a few linear scans over these arrays, one per allowed leg:
+ *
+ *   earliestArrival  round k knows the earliest time each airport can be
+ *                    left after k flights and relaxes every flight
+ *                    departing from a reached airport.
+ *   cheapest         round k knows the cheapest way to arrive by each
+ *                    flight using k legs.  Walking the flights in
+ *                    departure order, while merging in the arrivals that
+ *                    leave time to connect, gives the cheapest feasible
+ *                    way to board every flight with one more leg.
+ *
+ * A connection needs dbproject.route.minConnectionMinutes between the
+ * arrival of one leg and the departure of the next.  Flight only stores
+ * dates, so times are whole days; the default of 0 allows same-day
+ * connections.
+ *
+ * Queries read an immutable snapshot of the arrays.  addFlight() builds a
+ * new snapshot, so a flight inserted through AirlineService.addFlight is
+ * searchable at once without reloading, and queries never wait for it.
+ *
+ * Settings (system properties, see Config):
+ *   dbproject.route.minConnectionMinutes  minimum connection time (default 0)
+ *   dbproject.route.maxStops              default stop limit of the menu search (default 2)
+ */
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+public class RouteGraph {
+	static final String SQL_LOAD =
+		"SELECT fnum, departure_airport, arrival_airport, actual_departure_date, actual_arrival_date, cost FROM Flight";
+
+	private static final long INF = Long.MAX_VALUE / 4;
+
+	/*
+	 * The flights at one point in time.  Never modified once published.
+	 */
+	static final class Snapshot {
+		final Map<String, Integer> ids;
+		final String[] airports;
+		final int size;
+		final int[] fnum, from, to, cost;
+		final long[] dep, arr;
+		//flight indexes ordered by departure and by arrival
+		final int[] byDep, byArr;
+
+		Snapshot(Map<String, Integer> ids, String[] airports, int size, int[] fnum, int[] from, int[] to,
+				int[] cost, long[] dep, long[] arr, int[] byDep, int[] byArr) {
+			this.ids = ids;
+			this.airports = airports;
+			this.size = size;
+			this.fnum = fnum;
+			this.from = from;
+			this.to = to;
+			this.cost = cost;
+			this.dep = dep;
+			this.arr = arr;
+			this.byDep = byDep;
+			this.byArr = byArr;
+		}
+	}
+
+	private final long _minConnection = Math.max(0, Config.getLong("route.minConnectionMinutes", 0));
+	private volatile Snapshot _snapshot;
+
+	public RouteGraph() {
+		this._snapshot = new Snapshot(new HashMap<String, Integer>(), new String[0], 0,
+			new int[0], new int[0], new int[0], new int[0], new long[0], new long[0], new int[0], new int[0]);
+	}
+
+	/**
+	 * Method to replace the graph with every flight in the database.
+	 *
+	 * @param esql the database to read from
+	 * @return number of flights loaded
+	 * @throws java.sql.SQLException when the flights cannot be read
+	 */
+	public synchronized int load(DBproject esql) throws SQLException {
+		final Map<String, Integer> ids = new HashMap<String, Integer>();
+		final String[][] airports = { new String[64] };
+		final int[][] ints = { new int[1024], new int[1024], new int[1024], new int[1024] };
+		final long[][] longs = { new long[1024], new long[1024] };
+		final int[] n = { 0 };
+		esql.executeQueryStreaming(SQL_LOAD, new RowHandler() {
+			public void row(Row row) throws SQLException {
+				long dep = row.getEpochDay(4), arr = row.getEpochDay(5);
+				if (dep == Long.MIN_VALUE || arr == Long.MIN_VALUE || arr < dep) return;
+				int i = n[0]++;
+				if (i == ints[0].length) {
+					for (int k = 0; k < ints.length; ++k) ints[k] = Arrays.copyOf(ints[k], i * 2);
+					for (int k = 0; k < longs.length; ++k) longs[k] = Arrays.copyOf(longs[k], i * 2);
+				}
+				ints[0][i] = row.getInt(1);
+				ints[1][i] = airportId(ids, airports, row.getString(2));
+				ints[2][i] = airportId(ids, airports, row.getString(3));
+				ints[3][i] = row.getInt(6);
+				longs[0][i] = dep * 1440;
+				longs[1][i] = arr * 1440;
+			}
+		});
+		int size = n[0];
+		long[] dep = Arrays.copyOf(longs[0], size), arr = Arrays.copyOf(longs[1], size);
+		this._snapshot = new Snapshot(ids, Arrays.copyOf(airports[0], ids.size()), size,
+			Arrays.copyOf(ints[0], size), Arrays.copyOf(ints[1], size), Arrays.copyOf(ints[2], size),
+			Arrays.copyOf(ints[3], size), dep, arr, order(dep, size), order(arr, size));
+		return size;
+	}
+
+	private static int airportId(Map<String, Integer> ids, String[][] airports, String code) {
+		code = code.trim().toUpperCase();
+		Integer id = ids.get(code);
+		if (id == null) {
+			id = ids.size();
+			ids.put(code, id);
+			if (id == airports[0].length) airports[0] = Arrays.copyOf(airports[0], id * 2);
+			airports[0][id] = code;
+		}
+		return id;
+	}
+
+	/*
+	 * Flight indexes sorted by the given times.
+	 */
+	private static int[] order(final long[] times, int size) {
+		Integer[] boxed = new Integer[size];
+		for (int i = 0; i < size; ++i) boxed[i] = i;
+		Arrays.sort(boxed, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Long.compare(times[a], times[b]);
+			}
+		});
+		int[] order = new int[size];
+		for (int i = 0; i < size; ++i) order[i] = boxed[i];
+		return order;
+	}
+
+	/**
+	 * Method to add one flight, e.g. right after it was inserted.  Costs
+	 * one copy of the arrays; bulk changes should call load() instead.  A
+	 * flight the graph already has (read by load()) is not added again.
+	 */
+	public synchronized void addFlight(int fnum, String departureAirport, String arrivalAirport,
+			Date departure, Date arrival, int cost) {
+		if (arrival.before(departure)) return;
+		Snapshot s = this._snapshot;
+		for (int i = 0; i < s.size; ++i) {
+			if (s.fnum[i] == fnum) return;
+		}
+		Map<String, Integer> ids = new HashMap<String, Integer>(s.ids);
+		String[][] airports = { Arrays.copyOf(s.airports, s.airports.length + 2) };
+		int from = airportId(ids, airports, departureAirport);
+		int to = airportId(ids, airports, arrivalAirport);
+
+		int n = s.size;
+		int[] fnums = Arrays.copyOf(s.fnum, n + 1), froms = Arrays.copyOf(s.from, n + 1);
+		int[] tos = Arrays.copyOf(s.to, n + 1), costs = Arrays.copyOf(s.cost, n + 1);
+		long[] dep = Arrays.copyOf(s.dep, n + 1), arr = Arrays.copyOf(s.arr, n + 1);
+		fnums[n] = fnum;
+		froms[n] = from;
+		tos[n] = to;
+		costs[n] = cost;
+		dep[n] = departure.toLocalDate().toEpochDay() * 1440;
+		arr[n] = arrival.toLocalDate().toEpochDay() * 1440;
+
+		this._snapshot = new Snapshot(ids, Arrays.copyOf(airports[0], ids.size()), n + 1, fnums, froms, tos, costs,
+			dep, arr, insertSorted(s.byDep, dep, n), insertSorted(s.byArr, arr, n));
+	}
+
+	/*
+	 * Copy of a sorted index with flight i inserted after the flights with
+	 * the same time.
+	 */
+	private static int[] insertSorted(int[] order, long[] times, int i) {
+		int at = upperBound(order, order.length, times, times[i]);
+		int[] result = new int[order.length + 1];
+		System.arraycopy(order, 0, result, 0, at);
+		result[at] = i;
+		System.arraycopy(order, at, result, at + 1, order.length - at);
+		return result;
+	}
+
+	/*
+	 * First position in order whose time is greater than t.
+	 */
+	private static int upperBound(int[] order, int size, long[] times, long t) {
+		int lo = 0, hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (times[order[mid]] <= t) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	/*
+	 * First position in order whose time is at least t.
+	 */
+	private static int lowerBound(int[] order, int size, long[] times, long t) {
+		int lo = 0, hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (times[order[mid]] < t) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * @return number of flights in the graph
+	 */
+	public int size() {
+		return this._snapshot.size;
+	}
+
+	/**
+	 * @return number of distinct airports in the graph
+	 */
+	public int airports() {
+		return this._snapshot.airports.length;
+	}
+
+	/**
+	 * Method to find the itinerary that arrives first.
+	 *
+	 * @param from departure airport code
+	 * @param to arrival airport code
+	 * @param notBefore the first day the trip may start
+	 * @param maxStops connections allowed (0 for direct flights only)
+	 * @return the earliest arriving itinerary, or null when there is none
+	 */
+	public Itinerary earliestArrival(String from, String to, Date notBefore, int maxStops) {
+		Snapshot s = this._snapshot;
+		Integer o = s.ids.get(from.trim().toUpperCase()), d = s.ids.get(to.trim().toUpperCase());
+		if (o == null || d == null || o.equals(d) || maxStops < 0) return null;
+		long start = notBefore.toLocalDate().toEpochDay() * 1440;
+		int rounds = maxStops + 1;
+
+		//ready[a]: earliest time a flight may leave a, after the rounds so far
+		long[] ready = new long[s.airports.length];
+		Arrays.fill(ready, INF);
+		ready[o] = start;
+		int[][] via = new int[rounds][];
+		int first = lowerBound(s.byDep, s.size, s.dep, start);
+		int done = 0;
+		for (int k = 0; k < rounds; ++k) {
+			long[] next = ready.clone();
+			int[] leg = new int[s.airports.length];
+			Arrays.fill(leg, -1);
+			boolean changed = false;
+			for (int i = first; i < s.size; ++i) {
+				int f = s.byDep[i];
+				if (ready[s.from[f]] > s.dep[f]) continue;
+				long t = s.arr[f] + this._minConnection;
+				if (t < next[s.to[f]]) {
+					next[s.to[f]] = t;
+					leg[s.to[f]] = f;
+					changed = true;
+				}
+			}
+			ready = next;
+			via[k] = leg;
+			done = k + 1;
+			if (!changed) break;
+		}
+		if (ready[d] == INF) return null;
+
+		int[] legs = new int[rounds];
+		int n = 0;
+		int a = d;
+		for (int k = done - 1; a != o && k >= 0; --k) {
+			int f = via[k][a];
+			if (f < 0) continue;
+			legs[n++] = f;
+			a = s.from[f];
+		}
+		return a == o ? itinerary(s, legs, n) : null;
+	}
+
+	/**
+	 * Method to find the cheapest itinerary.
+	 *
+	 * @param from departure airport code
+	 * @param to arrival airport code
+	 * @param notBefore the first day the trip may start
+	 * @param maxStops connections allowed (0 for direct flights only)
+	 * @return the cheapest itinerary, or null when there is none
+	 */
+	public Itinerary cheapest(String from, String to, Date notBefore, int maxStops) {
+		Snapshot s = this._snapshot;
+		Integer o = s.ids.get(from.trim().toUpperCase()), d = s.ids.get(to.trim().toUpperCase());
+		if (o == null || d == null || o.equals(d) || maxStops < 0) return null;
+		long start = notBefore.toLocalDate().toEpochDay() * 1440;
+		int rounds = maxStops + 1;
+		int first = lowerBound(s.byDep, s.size, s.dep, start);
+
+		//cost[f]: cheapest trip that ends with flight f, using the rounds so far
+		long[] cost = new long[s.size];
+		Arrays.fill(cost, INF);
+		for (int i = first; i < s.size; ++i) {
+			int f = s.byDep[i];
+			if (s.from[f] == o) cost[f] = s.cost[f];
+		}
+		//previous[k][f]: the leg before f when round k improved f, else -1
+		int[][] previous = new int[rounds][];
+		long[] cheapestAt = new long[s.airports.length];
+		int[] cheapestVia = new int[s.airports.length];
+		int done = 1;
+		for (int k = 1; k < rounds; ++k) {
+			long[] next = cost.clone();
+			int[] prev = new int[s.size];
+			Arrays.fill(prev, -1);
+			Arrays.fill(cheapestAt, INF);
+			boolean changed = false;
+			int p = 0;
+			for (int i = first; i < s.size; ++i) {
+				int f = s.byDep[i];
+				// every flight that lands in time to connect to f
+				while (p < s.size && s.arr[s.byArr[p]] + this._minConnection <= s.dep[f]) {
+					int g = s.byArr[p++];
+					if (cost[g] < cheapestAt[s.to[g]]) {
+						cheapestAt[s.to[g]] = cost[g];
+						cheapestVia[s.to[g]] = g;
+					}
+				}
+				long c = cheapestAt[s.from[f]];
+				if (c == INF || s.from[f] == o) continue;
+				c += s.cost[f];
+				if (c < next[f]) {
+					next[f] = c;
+					prev[f] = cheapestVia[s.from[f]];
+					changed = true;
+				}
+			}
+			cost = next;
+			previous[k] = prev;
+			done = k + 1;
+			if (!changed) break;
+		}
+
+		int best = -1;
+		for (int f = 0; f < s.size; ++f) {
+			if (s.to[f] == d && cost[f] < INF && (best < 0 || cost[f] < cost[best]
+					|| (cost[f] == cost[best] && s.arr[f] < s.arr[best]))) {
+				best = f;
+			}
+		}
+		if (best < 0) return null;
+
+		int[] legs = new int[rounds];
+		int n = 0;
+		int f = best;
+		int k = done - 1;
+		while (true) {
+			legs[n++] = f;
+			while (k > 0 && previous[k][f] < 0) --k;
+			if (k == 0) break;
+			f = previous[k][f];
+			--k;
+		}
+		return itinerary(s, legs, n);
+	}
+
+	/*
+	 * legs holds the flights from the last to the first.
+	 */
+	private static Itinerary itinerary(Snapshot s, int[] legs, int n) {
+		int[] flights = new int[n];
+		String[] airports = new String[n + 1];
+		long[] dep = new long[n], arr = new long[n];
+		long cost = 0;
+		for (int i = 0; i < n; ++i) {
+			int f = legs[n - 1 - i];
+			flights[i] = s.fnum[f];
+			airports[i] = s.airports[s.from[f]];
+			airports[i + 1] = s.airports[s.to[f]];
+			dep[i] = s.dep[f];
+			arr[i] = s.arr[f];
+			cost += s.cost[f];
+		}
+		return new Itinerary(flights, airports, dep, arr, cost);
+	}
+}
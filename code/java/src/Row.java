@@ -0,0 +1,120 @@
+/*
+ * Read-only view of the current row of a streamed query.
+ *
+ * The same Row object is reused for every row, so handlers must copy out
+ * the values they need before returning.  Columns are numbered from 1, as
+ * in JDBC.  getChar and getEpochDay decode the driver's raw column bytes
+ * so the hot scan loops do not allocate a String or Date per cell.
+ */
+
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+public final class Row {
+	private final ResultSet _rs;
+
+	Row(ResultSet rs) {
+		this._rs = rs;
+	}
+
+	public int getInt(int column) throws SQLException {
+		return this._rs.getInt(column);
+	}
+
+	public long getLong(int column) throws SQLException {
+		return this._rs.getLong(column);
+	}
+
+	public double getDouble(int column) throws SQLException {
+		return this._rs.getDouble(column);
+	}
+
+	/**
+	 * @return the first character of a CHAR column, or 0 when it is NULL
+	 */
+	public char getChar(int column) throws SQLException {
+		byte[] raw = this._rs.getBytes(column);
+		if (raw == null || raw.length == 0) return 0;
+		if (raw[0] >= 0) return (char) raw[0];
+		// multi-byte first character: let the driver decode it
+		String value = this._rs.getString(column);
+		return value.charAt(0);
+	}
+
+	public Date getDate(int column) throws SQLException {
+		return this._rs.getDate(column);
+	}
+
+	/**
+	 * @return the column as days since 1970-01-01, or Long.MIN_VALUE when NULL
+	 */
+	public long getEpochDay(int column) throws SQLException {
+		byte[] raw = this._rs.getBytes(column);
+		if (raw == null) return Long.MIN_VALUE;
+		if (raw.length == 4) {
+			// binary transfer: int4 days since 2000-01-01
+			int days = ((raw[0] & 0xff) << 24) | ((raw[1] & 0xff) << 16) | ((raw[2] & 0xff) << 8) | (raw[3] & 0xff);
+			if (days != Integer.MAX_VALUE && days != Integer.MIN_VALUE) return days + PG_EPOCH_DAY;
+		} else if (raw.length == 10 && raw[4] == '-' && raw[7] == '-') {
+			// text transfer, ISO DateStyle: YYYY-MM-DD
+			int year = digits(raw, 0, 4), month = digits(raw, 5, 2), day = digits(raw, 8, 2);
+			if (year >= 0 && month >= 0 && day >= 0) return epochDay(year, month, day);
+		}
+		// infinity, BC or five-digit years: take the slow path
+		Date value = this._rs.getDate(column);
+		return value == null ? Long.MIN_VALUE : value.toLocalDate().toEpochDay();
+	}
+
+	public String getString(int column) throws SQLException {
+		return this._rs.getString(column);
+	}
+
+	/**
+	 * @return the column as the driver's default Java type, or null when NULL
+	 */
+	public Object getObject(int column) throws SQLException {
+		return this._rs.getObject(column);
+	}
+
+	/**
+	 * @return true when the last column read was SQL NULL
+	 */
+	public boolean wasNull() throws SQLException {
+		return this._rs.wasNull();
+	}
+
+	/** 2000-01-01, the zero of PostgreSQL's binary date format, in epoch days */
+	private static final long PG_EPOCH_DAY = 10957;
+
+	/**
+	 * Method to parse len ASCII digits starting at off
+	 * @return the value, or -1 if a byte is not a digit
+	 */
+	private static int digits(byte[] raw, int off, int len) {
+		int value = 0;
+		for (int i = off; i < off + len; i++) {
+			int d = raw[i] - '0';
+			if (d < 0 || d > 9) return -1;
+			value = value * 10 + d;
+		}
+		return value;
+	}
+
+	/**
+	 * Method to convert a proleptic Gregorian date to days since 1970-01-01
+	 * without allocating, using the same arithmetic as LocalDate.toEpochDay
+	 */
+	private static long epochDay(int year, int month, int day) {
+		long y = year;
+		long total = 365 * y;
+		total += (y + 3) / 4 - (y + 99) / 100 + (y + 399) / 400;
+		total += (367 * month - 362) / 12;
+		total += day - 1;
+		if (month > 2) {
+			total--;
+			if (!((year & 3) == 0 && (year % 100 != 0 || year % 400 == 0))) total--;
+		}
+		return total - 719528;
+	}
+}
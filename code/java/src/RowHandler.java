@@ -0,0 +1,16 @@
+/*
+ * Callback receiving the rows of a streamed query one at a time.
+ */
+
+import java.sql.SQLException;
+
+public interface RowHandler {
+
+	/**
+	 * Method called once per row, in result order.
+	 *
+	 * @param row the current row; only valid until this call returns
+	 * @throws java.sql.SQLException to abort the query
+	 */
+	void row(Row row) throws SQLException;
+}
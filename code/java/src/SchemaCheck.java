@@ -0,0 +1,165 @@
+/*
+ * Checks on the physical schema that should hold on any data size.
+ *
+ * Modes:
+ *   plans [--as-is]  EXPLAINs the SQL behind each of the nine menu operations
+ *                    and fails if any plan contains a sequential scan.  By
+ *                    default enable_seqscan is turned off for the check, so
+ *                    the planner only falls back to a Seq Scan when no usable
+ *                    index exists; this is what it would choose on large
+ *                    tables.  With --as-is the planner runs unmodified, which
+ *                    is the meaningful check against a full-size database.
+ *   rollups          recounts Repairs and compares the result with the
+ *                    repairs_per_plane / repairs_per_year counters
+ *   assignments      lists every pilot or plane booked on two flights on
+ *                    overlapping days (see AssignmentIndex)
+ *
+ * Exits with status 1 when a check fails.
+ *
+ * Example: java -cp lib/*:bin/ SchemaCheck flightDB 5432 user plans
+ */
+
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SchemaCheck {
+
+	/*
+	 * A statement to EXPLAIN together with sample parameter values.
+	 */
+	static class Probe {
+		final String name;
+		final String sql;
+		final Object[] params;
+
+		Probe(String name, String sql, Object... params) {
+			this.name = name;
+			this.sql = sql;
+			this.params = params;
+		}
+	}
+
+	static List<Probe> menuProbes() {
+		Date day = Date.valueOf("2014-05-01");
+		List<Probe> probes = new ArrayList<Probe>();
+		probes.add(new Probe("1. Add Plane", AirlineService.SQL_ADD_PLANE, 1, "Airbus", "A320", 3, 180));
+		probes.add(new Probe("2. Add Pilot", AirlineService.SQL_ADD_PILOT, 1, "Jane Doe", "France"));
+		probes.add(new Probe("3. Add Flight", AirlineService.SQL_ADD_FLIGHT, 1, 300, 0, 1, day, day, "AAAAA", "BBBBB", 1, 1));
+		probes.add(new Probe("4. Add Technician", AirlineService.SQL_ADD_TECHNICIAN, 1, "John Doe"));
+		probes.add(new Probe("5. Book Flight", BookingEngine.SQL_BOOK, 1, 1, 1, 1));
+		probes.add(new Probe("5. Book Flight (customer)", AirlineService.SQL_ADD_CUSTOMER,
+			1, "Jane", "Doe", 'F', day, "1 Main St", "5550100", "92521"));
+		probes.add(new Probe("6. Available seats", SeatCache.SQL_LOAD, 1));
+		probes.add(new Probe("7. Repairs per plane", AirlineService.SQL_REPAIRS_PER_PLANE));
+		probes.add(new Probe("8. Repairs per year", AirlineService.SQL_REPAIRS_PER_YEAR));
+		probes.add(new Probe("9. Passengers with status", AirlineService.SQL_PASSENGERS_WITH_STATUS, 1, "C"));
+		return probes;
+	}
+
+	/**
+	 * Method to EXPLAIN every probe and report the ones that scan a table
+	 * sequentially.
+	 *
+	 * @param pool the pool to borrow a connection from
+	 * @param asIs false to run the check with enable_seqscan turned off
+	 * @return true when no plan contains a sequential scan
+	 * @throws java.sql.SQLException when a statement cannot be explained
+	 */
+	static boolean checkPlans(ConnectionPool pool, boolean asIs) throws SQLException {
+		boolean ok = true;
+		PooledConnection conn = pool.borrow();
+		try{
+			// nothing here is meant to persist; release() rolls back
+			conn.connection().setAutoCommit(false);
+			if (!asIs) {
+				Statement stmt = conn.connection().createStatement();
+				stmt.execute("SET LOCAL enable_seqscan = off");
+				stmt.close();
+			}
+			for (Probe probe : menuProbes()) {
+				PreparedStatement stmt = conn.connection().prepareStatement("EXPLAIN " + probe.sql);
+				DBproject.bind(stmt, probe.params);
+				ResultSet rs = stmt.executeQuery();
+				StringBuilder plan = new StringBuilder();
+				while (rs.next()) plan.append("    ").append(rs.getString(1)).append('\n');
+				stmt.close();
+
+				boolean seqScan = plan.indexOf("Seq Scan") >= 0;
+				System.out.println((seqScan ? "FAIL " : "ok   ") + probe.name);
+				if (seqScan) {
+					System.out.print(plan);
+					ok = false;
+				}
+			}
+		}catch (SQLException e){
+			conn.failed(e);
+			throw e;
+		}finally{
+			pool.release(conn);
+		}
+		return ok;
+	}
+
+	/**
+	 * Method to compare the repair rollups with a full recount.
+	 *
+	 * @param esql the database to check
+	 * @return true when every counter matches
+	 * @throws java.sql.SQLException when the recount fails
+	 */
+	static boolean checkRollups(DBproject esql) throws SQLException {
+		List<List<String>> rows = esql.executeQueryAndReturnResult(
+			"SELECT rollup, key, stored, actual FROM repair_rollup_mismatches() ORDER BY rollup, key");
+		for (List<String> r : rows) {
+			System.out.println("FAIL " + r.get(0) + " " + r.get(1) + ": stored " + r.get(2) + ", actual " + r.get(3));
+		}
+		if (rows.isEmpty()) System.out.println("ok   repair rollups match Repairs");
+		return rows.isEmpty();
+	}
+
+	/**
+	 * Method to look for pilots and planes booked twice at the same time.
+	 *
+	 * @param esql the database to check
+	 * @return true when there is no conflict
+	 * @throws java.sql.SQLException when the assignments cannot be read
+	 */
+	static boolean checkAssignments(DBproject esql) throws SQLException {
+		List<AssignmentIndex.Conflict> conflicts = esql.assignments().audit();
+		for (AssignmentIndex.Conflict c : conflicts) System.out.println("FAIL " + c);
+		if (conflicts.isEmpty()) System.out.println("ok   no pilot or plane is booked twice");
+		return conflicts.isEmpty();
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println("Usage: java [-classpath <classpath>] SchemaCheck"
+				+ " <dbname> <port> <user> plans [--as-is] | rollups | assignments");
+			return;
+		}
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		boolean ok;
+		try{
+			String mode = args[3];
+			if (mode.equals("plans")) {
+				ok = checkPlans(esql.pool(), args.length > 4 && args[4].equals("--as-is"));
+			} else if (mode.equals("rollups")) {
+				ok = checkRollups(esql);
+			} else if (mode.equals("assignments")) {
+				ok = checkAssignments(esql);
+			} else {
+				System.err.println("Unknown mode: " + mode);
+				ok = false;
+			}
+		}finally{
+			esql.cleanup();
+		}
+		System.exit(ok ? 0 : 1);
+	}
+}
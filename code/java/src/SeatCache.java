@@ -0,0 +1,339 @@
+/*
+ * In-process cache of seat availability per flight.
+ *
+ * Entries hold the plane capacity, seats sold and departure day of a flight
+ * in parallel int arrays; an open addressing hash index maps flight numbers
+ * to slots and an intrusive doubly linked list over the slots keeps LRU
+ * order, so lookups neither allocate nor box.
+ *
+ * The cache is kept current three ways:
+ *   - bookings made through this process drop the flight, so the next
+ *     lookup reads it again;
+ *   - the triggers in sql/migrations/003_seat_notify.sql send the new
+ *     num_sold of a Flight on channel seat_change ("fnum:num_sold"), or just
+ *     the flight number when anything else about it changed ("fnum"), or
+ *     "*" when a plane's capacity changed;
+ *   - on a listener reconnect everything is dropped.
+ * Notifications arrive in commit order, so the last num_sold seen is the
+ * newest.  A booking's own num_sold may reach the cache after a newer
+ * notification, which is why bookings drop the flight instead of storing
+ * it.
+ *
+ * A miss reads the flight outside the lock.  Every change seen bumps a
+ * stamp for the flight (striped by its hash bucket, so flights not cached
+ * have one too); when the stamp moved while the flight was read, what was
+ * read may be older than the change and is returned but not stored.
+ *
+ * Settings (system properties, see Config):
+ *   dbproject.seatCache.size  maximum number of flights cached (default 4096)
+ */
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+public class SeatCache implements NotificationHandler {
+	//returned by available() when the flight does not depart on the given day
+	public static final int WRONG_DATE = Integer.MIN_VALUE;
+
+	static final String CHANNEL = "seat_change";
+	static final String SQL_LOAD =
+		"SELECT p.seats, f.num_sold, f.actual_departure_date " +
+		"FROM ((FlightInfo i INNER JOIN Flight f ON i.flight_id = f.fnum) " +
+		"INNER JOIN Plane p ON p.id = i.plane_id) WHERE f.fnum = ?";
+
+	private static final int NIL = -1;
+
+	private final DBproject _esql;
+	private final int _capacity;
+
+	//slot arrays
+	private final int[] _fnum;
+	private final int[] _seats;
+	private final int[] _sold;
+	private final int[] _day;
+	private final int[] _prev;
+	private final int[] _next;
+	//hash index: slot + 1, 0 for an empty bucket
+	private final int[] _index;
+	private final int _mask;
+	//per hash bucket, bumped by every change seen for the flights hashing there
+	private final long[] _stamps;
+
+	private int _size = 0;
+	private int _head = NIL; //most recently used
+	private int _tail = NIL; //least recently used
+
+	private long _hits = 0;
+	private long _misses = 0;
+	private long _evictions = 0;
+	private long _invalidations = 0;
+
+	public SeatCache(DBproject esql, int capacity) {
+		this._esql = esql;
+		this._capacity = Math.max(1, capacity);
+		this._fnum = new int[this._capacity];
+		this._seats = new int[this._capacity];
+		this._sold = new int[this._capacity];
+		this._day = new int[this._capacity];
+		this._prev = new int[this._capacity];
+		this._next = new int[this._capacity];
+		int buckets = Integer.highestOneBit(this._capacity * 2 - 1) << 1;
+		this._index = new int[buckets];
+		this._mask = buckets - 1;
+		this._stamps = new long[buckets];
+	}
+
+	/**
+	 * Method to get the free seats of a flight, loading it from the
+	 * database on a miss.
+	 *
+	 * @param fnum the flight number
+	 * @return plane seats minus seats sold
+	 * @throws java.sql.SQLException when the flight has no plane assigned
+	 *         or the lookup fails
+	 */
+	public int available(int fnum) throws SQLException {
+		long stamp;
+		synchronized (this) {
+			int slot = find(fnum);
+			if (slot != NIL) {
+				++this._hits;
+				touch(slot);
+				return this._seats[slot] - this._sold[slot];
+			}
+			++this._misses;
+			stamp = this._stamps[hash(fnum) & this._mask];
+		}
+		int[] loaded = load(fnum, stamp);
+		return loaded[0] - loaded[1];
+	}
+
+	/**
+	 * Method to get the free seats of a flight on a departure date.
+	 *
+	 * @param fnum the flight number
+	 * @param departure the departure date
+	 * @return plane seats minus seats sold, or WRONG_DATE when the flight
+	 *         does not depart on that date
+	 * @throws java.sql.SQLException when the flight has no plane assigned
+	 *         or the lookup fails
+	 */
+	public int available(int fnum, Date departure) throws SQLException {
+		int day = (int) departure.toLocalDate().toEpochDay();
+		long stamp;
+		synchronized (this) {
+			int slot = find(fnum);
+			if (slot != NIL) {
+				++this._hits;
+				touch(slot);
+				return this._day[slot] == day ? this._seats[slot] - this._sold[slot] : WRONG_DATE;
+			}
+			++this._misses;
+			stamp = this._stamps[hash(fnum) & this._mask];
+		}
+		int[] loaded = load(fnum, stamp);
+		return loaded[2] == day ? loaded[0] - loaded[1] : WRONG_DATE;
+	}
+
+	/**
+	 * Method to record the seats sold on a flight as sent by its trigger.
+	 * Only for values seen in commit order (notifications).
+	 *
+	 * @param fnum the flight number
+	 * @param sold the flight's num_sold after the change
+	 */
+	public synchronized void setSold(int fnum, int sold) {
+		++this._stamps[hash(fnum) & this._mask];
+		int slot = find(fnum);
+		if (slot != NIL) this._sold[slot] = sold;
+	}
+
+	/**
+	 * Method to drop one flight from the cache.
+	 *
+	 * @param fnum the flight number
+	 */
+	public synchronized void invalidate(int fnum) {
+		++this._stamps[hash(fnum) & this._mask];
+		int slot = find(fnum);
+		if (slot != NIL) {
+			remove(slot);
+			++this._invalidations;
+		}
+	}
+
+	/**
+	 * Method to drop every flight from the cache.
+	 */
+	public synchronized void clear() {
+		for (int b = 0; b < this._stamps.length; ++b) ++this._stamps[b];
+		Arrays.fill(this._index, 0);
+		this._invalidations += this._size;
+		this._size = 0;
+		this._head = this._tail = NIL;
+	}
+
+	public void notified(String payload) {
+		if (payload.equals("*")) {
+			clear();
+			return;
+		}
+		try{
+			int colon = payload.indexOf(':');
+			if (colon < 0) {
+				invalidate(Integer.parseInt(payload));
+			} else {
+				int fnum = Integer.parseInt(payload.substring(0, colon));
+				setSold(fnum, Integer.parseInt(payload.substring(colon + 1)));
+			}
+		}catch (NumberFormatException e){
+			clear();
+		}
+	}
+
+	public void reset() {
+		clear();
+	}
+
+	/**
+	 * @return a one line summary of the cache counters
+	 */
+	public synchronized String stats() {
+		long total = this._hits + this._misses;
+		return String.format("seat cache: %d/%d flights, %d hits, %d misses, %d evictions, %d invalidations, hit ratio %.1f%%",
+			this._size, this._capacity, this._hits, this._misses, this._evictions, this._invalidations,
+			total == 0 ? 0.0 : 100.0 * this._hits / total);
+	}
+
+	public synchronized long hits() {
+		return this._hits;
+	}
+
+	public synchronized long misses() {
+		return this._misses;
+	}
+
+	/*
+	 * Reads one flight from the database and stores it, evicting the least
+	 * recently used flight when the cache is full.  Nothing is stored when
+	 * the flight's stamp is no longer the one taken at the miss.  Returns
+	 * the seats, sold and departure day that were read.
+	 */
+	private int[] load(int fnum, long stamp) throws SQLException {
+		List<List<String>> rows = this._esql.executeQueryAndReturnResult(SQL_LOAD, fnum);
+		if (rows.isEmpty()) throw new SQLException("Flight " + fnum + " not found or has no plane assigned");
+		int seats = Integer.parseInt(rows.get(0).get(0));
+		int sold = Integer.parseInt(rows.get(0).get(1));
+		int day = (int) Date.valueOf(rows.get(0).get(2)).toLocalDate().toEpochDay();
+
+		synchronized (this) {
+			if (this._stamps[hash(fnum) & this._mask] != stamp) return new int[] { seats, sold, day };
+			int slot = find(fnum);
+			if (slot == NIL) {
+				if (this._size == this._capacity) {
+					slot = this._tail;
+					remove(slot);
+					++this._evictions;
+				}
+				slot = this._size++;
+				this._fnum[slot] = fnum;
+				insertIndex(slot);
+				linkFirst(slot);
+			} else {
+				touch(slot);
+			}
+			this._seats[slot] = seats;
+			this._sold[slot] = sold;
+			this._day[slot] = day;
+			return new int[] { seats, sold, day };
+		}
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private int find(int fnum) {
+		int b = hash(fnum) & this._mask;
+		while (this._index[b] != 0) {
+			int slot = this._index[b] - 1;
+			if (this._fnum[slot] == fnum) return slot;
+			b = (b + 1) & this._mask;
+		}
+		return NIL;
+	}
+
+	private void insertIndex(int slot) {
+		int b = hash(this._fnum[slot]) & this._mask;
+		while (this._index[b] != 0) b = (b + 1) & this._mask;
+		this._index[b] = slot + 1;
+	}
+
+	/*
+	 * Removes a slot from the index and the LRU list and moves the last slot
+	 * into its place so the slots stay dense.
+	 */
+	private void remove(int slot) {
+		deleteIndex(slot);
+		unlink(slot);
+		int last = --this._size;
+		if (slot != last) {
+			deleteIndex(last);
+			boolean wasHead = this._head == last, wasTail = this._tail == last;
+			int p = this._prev[last], n = this._next[last];
+			this._fnum[slot] = this._fnum[last];
+			this._seats[slot] = this._seats[last];
+			this._sold[slot] = this._sold[last];
+			this._day[slot] = this._day[last];
+			this._prev[slot] = p;
+			this._next[slot] = n;
+			if (p != NIL) this._next[p] = slot;
+			if (n != NIL) this._prev[n] = slot;
+			if (wasHead) this._head = slot;
+			if (wasTail) this._tail = slot;
+			insertIndex(slot);
+		}
+	}
+
+	/*
+	 * Backward shift deletion keeps linear probing chains unbroken.
+	 */
+	private void deleteIndex(int slot) {
+		int b = hash(this._fnum[slot]) & this._mask;
+		while (this._index[b] != slot + 1) b = (b + 1) & this._mask;
+		int hole = b;
+		b = (b + 1) & this._mask;
+		while (this._index[b] != 0) {
+			int home = hash(this._fnum[this._index[b] - 1]) & this._mask;
+			if (((b - home) & this._mask) >= ((b - hole) & this._mask)) {
+				this._index[hole] = this._index[b];
+				hole = b;
+			}
+			b = (b + 1) & this._mask;
+		}
+		this._index[hole] = 0;
+	}
+
+	private void touch(int slot) {
+		if (this._head == slot) return;
+		unlink(slot);
+		linkFirst(slot);
+	}
+
+	private void linkFirst(int slot) {
+		this._prev[slot] = NIL;
+		this._next[slot] = this._head;
+		if (this._head != NIL) this._prev[this._head] = slot;
+		this._head = slot;
+		if (this._tail == NIL) this._tail = slot;
+	}
+
+	private void unlink(int slot) {
+		int p = this._prev[slot], n = this._next[slot];
+		if (p != NIL) this._next[p] = n; else this._head = n;
+		if (n != NIL) this._prev[n] = p; else this._tail = p;
+	}
+}
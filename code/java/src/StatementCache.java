@@ -0,0 +1,122 @@
+/*
+ * Per-connection LRU cache of PreparedStatements keyed by SQL text.
+ *
+ * Reusing the same PreparedStatement object is what lets the PostgreSQL
+ * driver switch to a named server-side prepared statement once it has been
+ * executed dbproject.statementCache.prepareThreshold times, so the server
+ * parses and plans each query once per connection instead of once per call.
+ *
+ * Settings (system properties, see Config):
+ *   dbproject.statementCache.size              statements kept per connection (default 64)
+ *   dbproject.statementCache.prepareThreshold  executions before a server-side prepare (default 3)
+ */
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.postgresql.PGStatement;
+
+public class StatementCache {
+	//counters shared by the caches of every pooled connection
+	private static final AtomicLong HITS = new AtomicLong();
+	private static final AtomicLong MISSES = new AtomicLong();
+	private static final AtomicLong EVICTIONS = new AtomicLong();
+
+	private static final int SIZE = Math.max(1, Config.getInt("statementCache.size", 64));
+	private static final int PREPARE_THRESHOLD = Config.getInt("statementCache.prepareThreshold", 3);
+
+	private final Connection _connection;
+	//access ordered, so the eldest entry is the least recently used statement
+	private final LinkedHashMap<String, PreparedStatement> _statements =
+		new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+
+	StatementCache(Connection connection) {
+		this._connection = connection;
+	}
+
+	/**
+	 * Method to get a prepared statement for the given SQL, creating it on
+	 * a miss.  The statement stays owned by the cache: callers close the
+	 * result sets they open but never the statement itself.
+	 *
+	 * @param sql the SQL text with '?' parameter markers
+	 * @return a prepared statement bound to this cache's connection
+	 * @throws java.sql.SQLException when the statement cannot be prepared
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement stmt = this._statements.get(sql);
+		if (stmt != null && !stmt.isClosed()) {
+			HITS.incrementAndGet();
+			stmt.clearParameters();
+			return stmt;
+		}
+		MISSES.incrementAndGet();
+		stmt = this._connection.prepareStatement(sql);
+		stmt.unwrap(PGStatement.class).setPrepareThreshold(PREPARE_THRESHOLD);
+		this._statements.put(sql, stmt);
+		evictOverflow();
+		return stmt;
+	}
+
+	/**
+	 * Method to close every cached statement.
+	 */
+	void clear() {
+		for (PreparedStatement stmt : this._statements.values()) {
+			closeQuietly(stmt);
+		}
+		this._statements.clear();
+	}
+
+	private void evictOverflow() {
+		Iterator<Map.Entry<String, PreparedStatement>> it = this._statements.entrySet().iterator();
+		while (this._statements.size() > SIZE && it.hasNext()) {
+			closeQuietly(it.next().getValue());
+			it.remove();
+			EVICTIONS.incrementAndGet();
+		}
+	}
+
+	private static void closeQuietly(PreparedStatement stmt) {
+		try{
+			stmt.close();
+		}catch (SQLException e){
+			// ignored.
+		}
+	}
+
+	/**
+	 * @return number of lookups served by an already prepared statement
+	 */
+	public static long hits() {
+		return HITS.get();
+	}
+
+	/**
+	 * @return number of lookups that had to prepare a new statement
+	 */
+	public static long misses() {
+		return MISSES.get();
+	}
+
+	/**
+	 * @return number of statements closed to keep a cache within its size
+	 */
+	public static long evictions() {
+		return EVICTIONS.get();
+	}
+
+	/**
+	 * @return a one line summary of the cache counters
+	 */
+	public static String stats() {
+		long hits = hits(), misses = misses();
+		long total = hits + misses;
+		return String.format("statement cache: %d hits, %d misses, %d evictions, hit ratio %.1f%%",
+			hits, misses, evictions(), total == 0 ? 0.0 : 100.0 * hits / total);
+	}
+}
@@ -0,0 +1,293 @@
+/*
+ * Confirms waitlisted reservations when their flight gains free seats.
+ *
+ * sql/migrations/005_waitlist.sql gives a seat back when a confirmed
+ * reservation is cancelled and sends the flight number on channel
+ * "waitlist".  It does the same when a flight gets a bigger plane.  Each
+ * such flight is handed to one of dbproject.waitlist.threads worker
+ * threads, chosen by flight number.  One flight's promotions therefore
+ * run one at a time, in order, while different flights are promoted in
+ * parallel.  Notifications for a flight that is already queued are
+ * merged into the queued pass.
+ *
+ * A pass locks the Flight row, confirms the oldest waitlisted reservations
+ * (lowest rnum first) up to the number of free seats, and adds them to
+ * num_sold.  Each transaction promotes at most dbproject.waitlist.batchSize
+ * passengers, so the row lock is never held for long; a pass keeps going
+ * until the seats or the waitlist run out.  Bookings that take a seat lock
+ * the same row, so a promotion never oversells, and a booking made while
+ * passengers wait is waitlisted behind them, so freed seats go out first
+ * come, first served.  A booking can still see passengers that a pass is
+ * confirming at that moment and be waitlisted on a flight with free seats;
+ * the migration's insert trigger then sends the flight on "waitlist" too.
+ *
+ * Notifications sent while the listener was disconnected are lost, so
+ * reset() sweeps every flight that has both free seats and waitlisted
+ * passengers.  The sweep changes bookings, so a new promoter only runs it
+ * when dbproject.waitlist.sweepOnStart is set; the interactive app calls
+ * reset() itself at startup, and tools that merely open a DBproject leave
+ * the data alone.
+ *
+ * Settings (system properties, see Config):
+ *   dbproject.waitlist.threads       worker threads (default 4)
+ *   dbproject.waitlist.batchSize     passengers promoted per transaction (default 100)
+ *   dbproject.waitlist.sweepOnStart  sweep all flights on construction (default false)
+ */
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class WaitlistPromoter implements NotificationHandler {
+	public static final String CHANNEL = "waitlist";
+
+	// locks the flight and returns its free seats
+	static final String SQL_LOCK_FLIGHT =
+		"SELECT p.seats - f.num_sold FROM Flight f " +
+		"JOIN FlightInfo i ON i.flight_id = f.fnum JOIN Plane p ON p.id = i.plane_id " +
+		"WHERE f.fnum = ? FOR UPDATE OF f";
+	static final String SQL_PROMOTE =
+		"UPDATE Reservation r SET status = 'C' " +
+		"FROM (SELECT rnum FROM Reservation WHERE fid = ? AND status = 'W' ORDER BY rnum LIMIT ?) w " +
+		"WHERE r.rnum = w.rnum";
+	static final String SQL_TAKE_SEATS =
+		"UPDATE Flight SET num_sold = num_sold + ? WHERE fnum = ?";
+	static final String SQL_WAITING_FLIGHTS =
+		"SELECT f.fnum FROM Flight f " +
+		"JOIN FlightInfo i ON i.flight_id = f.fnum JOIN Plane p ON p.id = i.plane_id " +
+		"WHERE f.num_sold < p.seats " +
+		"AND EXISTS (SELECT 1 FROM Reservation r WHERE r.fid = f.fnum AND r.status = 'W')";
+
+	private final ConnectionPool _pool;
+	//told about every promotion, so cached reports are not used after it; may be null
+	private final ResultCache _results;
+	private final int _batchSize = Math.max(1, Config.getInt("waitlist.batchSize", 100));
+	private final ExecutorService[] _workers;
+	//flights waiting for a pass, with the time their first notification came in
+	private final ConcurrentHashMap<Integer, Long> _queued = new ConcurrentHashMap<Integer, Long>();
+
+	private final long _started = System.nanoTime();
+	private final AtomicLong _promoted = new AtomicLong();
+	private final AtomicLong _transactions = new AtomicLong();
+	private final AtomicLong _passes = new AtomicLong();
+	private final AtomicLong _failures = new AtomicLong();
+	//time from a flight's first queued notification to the end of its pass
+	private final AtomicLong _lagCount = new AtomicLong();
+	private final AtomicLong _lagTotal = new AtomicLong();
+	private final AtomicLong _lagMax = new AtomicLong();
+
+	public WaitlistPromoter(ConnectionPool pool, ResultCache results) {
+		this._pool = pool;
+		this._results = results;
+		this._workers = new ExecutorService[Math.max(1, Config.getInt("waitlist.threads", 4))];
+		for (int i = 0; i < this._workers.length; ++i) {
+			final String name = "waitlist-" + i;
+			this._workers[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, name);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		if (Config.getBoolean("waitlist.sweepOnStart", false)) reset();
+	}
+
+	/**
+	 * Method to queue a promotion pass for the flight in the payload.
+	 */
+	public void notified(String payload) {
+		try{
+			submit(Integer.parseInt(payload.trim()));
+		}catch (NumberFormatException e){
+			System.err.println("Ignoring waitlist notification: " + payload);
+		}
+	}
+
+	/**
+	 * Method to queue a pass for every flight that has free seats and a
+	 * waitlist.  The query runs on a worker thread.
+	 */
+	public void reset() {
+		try{
+			this._workers[0].execute(new Runnable() {
+				public void run() {
+					try{
+						for (int fnum : waitingFlights()) submit(fnum);
+					}catch (SQLException e){
+						System.err.println("Waitlist sweep failed: " + e.getMessage());
+					}
+				}
+			});
+		}catch (RejectedExecutionException e){
+			// closed.
+		}
+	}
+
+	/**
+	 * Method to queue a promotion pass for a flight.  Does nothing when a
+	 * pass for the flight is already queued.
+	 *
+	 * @param fnum the flight number
+	 */
+	public void submit(final int fnum) {
+		if (this._queued.putIfAbsent(fnum, System.nanoTime()) != null) return;
+		try{
+			this._workers[Math.floorMod(fnum, this._workers.length)].execute(new Runnable() {
+				public void run() {
+					// removed before the pass, so a notification that arrives
+					// during it queues another pass
+					Long since = _queued.remove(fnum);
+					try{
+						promote(fnum);
+					}catch (SQLException e){
+						_failures.incrementAndGet();
+						System.err.println("Waitlist promotion for flight " + fnum + " failed: " + e.getMessage());
+					}
+					if (since != null) recordLag(System.nanoTime() - since);
+				}
+			});
+		}catch (RejectedExecutionException e){
+			this._queued.remove(fnum);
+		}
+	}
+
+	/**
+	 * Method to confirm the oldest waitlisted reservations of a flight while
+	 * it has free seats.  Runs in the calling thread.
+	 *
+	 * @param fnum the flight number
+	 * @return number of reservations confirmed
+	 * @throws java.sql.SQLException when a transaction fails; the passengers
+	 *         promoted by earlier transactions stay confirmed
+	 */
+	public int promote(int fnum) throws SQLException {
+		this._passes.incrementAndGet();
+		int total = 0;
+		while (true) {
+			int promoted = promoteBatch(fnum);
+			total += promoted;
+			// fewer than a full batch means the seats or the waitlist ran out
+			if (promoted < this._batchSize) return total;
+		}
+	}
+
+	/*
+	 * One transaction: at most batchSize passengers.
+	 */
+	private int promoteBatch(int fnum) throws SQLException {
+		long start = System.nanoTime();
+		int promoted = -1;
+		PooledConnection conn = this._pool.borrow();
+		try{
+			Connection c = conn.connection();
+			c.setAutoCommit(false);
+
+			PreparedStatement lock = conn.prepare(SQL_LOCK_FLIGHT);
+			lock.setInt(1, fnum);
+			int free = 0;
+			ResultSet rs = lock.executeQuery();
+			try{
+				if (rs.next()) free = rs.getInt(1);
+			}finally{
+				rs.close();
+			}
+			if (free <= 0) {
+				c.commit();
+				promoted = 0;
+				return 0;
+			}
+
+			PreparedStatement promote = conn.prepare(SQL_PROMOTE);
+			promote.setInt(1, fnum);
+			promote.setInt(2, Math.min(free, this._batchSize));
+			promoted = promote.executeUpdate();
+			if (promoted > 0) {
+				PreparedStatement take = conn.prepare(SQL_TAKE_SEATS);
+				take.setInt(1, promoted);
+				take.setInt(2, fnum);
+				take.executeUpdate();
+			}
+			c.commit();
+			if (promoted > 0 && this._results != null) this._results.changed("Reservation");
+			this._transactions.incrementAndGet();
+			this._promoted.addAndGet(promoted);
+			return promoted;
+		}catch (SQLException e){
+			conn.failed(e);
+			throw e;
+		}finally{
+			this._pool.release(conn);
+			Metrics.recordOperation("promoteWaitlist", start, promoted, promoted < 0);
+		}
+	}
+
+	private List<Integer> waitingFlights() throws SQLException {
+		List<Integer> flights = new ArrayList<Integer>();
+		PooledConnection conn = this._pool.borrow();
+		try{
+			ResultSet rs = conn.prepare(SQL_WAITING_FLIGHTS).executeQuery();
+			try{
+				while (rs.next()) flights.add(rs.getInt(1));
+			}finally{
+				rs.close();
+			}
+			return flights;
+		}catch (SQLException e){
+			conn.failed(e);
+			throw e;
+		}finally{
+			this._pool.release(conn);
+		}
+	}
+
+	private void recordLag(long nanos) {
+		this._lagCount.incrementAndGet();
+		this._lagTotal.addAndGet(nanos);
+		long max;
+		while (nanos > (max = this._lagMax.get()) && !this._lagMax.compareAndSet(max, nanos)) {
+		}
+	}
+
+	/**
+	 * @return number of reservations confirmed since start
+	 */
+	public long promoted() {
+		return this._promoted.get();
+	}
+
+	/**
+	 * @return number of flights waiting for a promotion pass
+	 */
+	public int backlog() {
+		return this._queued.size();
+	}
+
+	/**
+	 * @return a one line summary of the promotion counters
+	 */
+	public String stats() {
+		long lags = this._lagCount.get();
+		double secs = (System.nanoTime() - this._started) / 1e9;
+		return String.format("waitlist: %d promoted (%.1f/s) in %d transactions, %d passes, %d failed, %d queued, "
+			+ "lag mean %.1f ms max %.1f ms",
+			promoted(), promoted() / Math.max(secs, 1e-9), this._transactions.get(), this._passes.get(),
+			this._failures.get(), backlog(), lags == 0 ? 0.0 : this._lagTotal.get() / 1e6 / lags, this._lagMax.get() / 1e6);
+	}
+
+	/**
+	 * Method to stop the worker threads.  Queued passes are dropped.
+	 */
+	public void close() {
+		for (ExecutorService w : this._workers) w.shutdownNow();
+	}
+}
@@ -3,13 +3,21 @@ echo "creating db named ... "$USER"_DB"
 createdb -h localhost -p $PGPORT $USER"_DB"
 pg_ctl status
 
-echo "Copying csv files ... "
-sleep 1
-cp ../data/*.csv /tmp/$USER/myDB/data/.
-
 echo "Initializing tables .. "
 sleep 1
 psql -h localhost -p $PGPORT $USER"_DB" < ../sql/create.sql
 
+echo "Loading csv files ... "
+(cd ../java && ./load.sh $USER"_DB" $PGPORT $USER ../data)
+
 echo "Creating trigger and procedure..."
 psql -h localhost -p $PGPORT $USER"_DB" < ../sql/triggers.sql
+
+echo "Applying migrations..."
+for f in ../sql/migrations/*.sql; do
+	echo "  $f"
+	psql -h localhost -p $PGPORT $USER"_DB" < $f
+done
+
+echo "Splitting partitions..."
+(cd ../java && java -cp lib/*:bin/ PartitionManager $USER"_DB" $PGPORT $USER maintain)
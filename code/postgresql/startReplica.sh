@@ -0,0 +1,24 @@
+#! /bin/bash
+# Starts a streaming replica of the database started by startPostgreSQL.sh,
+# for trying out ReplicaRouter.  Source it from the same shell after
+# startPostgreSQL.sh, so $PGPORT is set.
+# Example: source ./startReplica.sh 1325
+#          cd ../java && java -Ddbproject.replicas=localhost:1325 -cp lib/*:bin/ DBproject $USER"_DB" $PGPORT $USER
+# Stop it with: pg_ctl -D $REPLICA_DATA stop
+REPLICA_PORT=${1:-1325}
+folder=/tmp/$USER
+export REPLICA_DATA=$folder/replicaDB/data
+export REPLICA_SOCKETS=$folder/replicaDB/sockets
+
+#Clear folder
+rm -rf $folder/replicaDB
+mkdir -p $REPLICA_SOCKETS
+
+#Copy the primary; -R makes the copy a standby that streams from it
+pg_basebackup -h localhost -p $PGPORT -D $REPLICA_DATA -R -X stream
+
+#Start the replica
+pg_ctl -o "-c unix_socket_directories=$REPLICA_SOCKETS -p $REPLICA_PORT" -D $REPLICA_DATA -l $folder/replica-logfile -w start
+
+#The primary should list the replica as streaming
+psql -h localhost -p $PGPORT -c "SELECT client_addr, state, replay_lag FROM pg_stat_replication" postgres
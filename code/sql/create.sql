@@ -78,6 +78,17 @@ CREATE TABLE Technician
 ---------------
 ---RELATIONS---
 ---------------
+-- Reservation, Repairs and Schedule grow with history, so they are range
+-- partitioned (PostgreSQL 13 or later):
+--   Reservation by rnum, in blocks of dbproject.partition.reservationRange
+--     numbers.  Numbers are handed out in booking order, so old blocks hold
+--     the reservations of flights long gone.
+--   Repairs by repair_date, one partition per year.
+--   Schedule by departure_time, one partition per month.
+-- Each also has a DEFAULT partition, so an insert never fails for want of a
+-- partition.  java/PartitionManager moves rows out of the DEFAULT
+-- partitions, creates partitions ahead of time and detaches old ones.
+-- The primary key of a partitioned table has to include the partition key.
 
 CREATE TABLE Reservation
 (
@@ -88,7 +99,8 @@ CREATE TABLE Reservation
 	PRIMARY KEY (rnum),
 	FOREIGN KEY (cid) REFERENCES Customer(id),
 	FOREIGN KEY (fid) REFERENCES Flight(fnum)
-);
+) PARTITION BY RANGE (rnum);
+CREATE TABLE reservation_default PARTITION OF Reservation DEFAULT;
 
 CREATE TABLE FlightInfo
 (
@@ -110,11 +122,12 @@ CREATE TABLE Repairs
 	pilot_id INTEGER NOT NULL,
 	plane_id INTEGER NOT NULL,
 	technician_id INTEGER NOT NULL,
-	PRIMARY KEY (rid),
+	PRIMARY KEY (rid, repair_date),
 	FOREIGN KEY (pilot_id) REFERENCES Pilot(id),
 	FOREIGN KEY (plane_id) REFERENCES Plane(id),
 	FOREIGN KEY (technician_id) REFERENCES Technician(id)
-);
+) PARTITION BY RANGE (repair_date);
+CREATE TABLE repairs_default PARTITION OF Repairs DEFAULT;
 
 CREATE TABLE Schedule
 (
@@ -122,99 +135,7 @@ CREATE TABLE Schedule
 	flightNum INTEGER NOT NULL,
 	departure_time DATE NOT NULL,
 	arrival_time DATE NOT NULL,
-	PRIMARY KEY (id),
+	PRIMARY KEY (id, departure_time),
 	FOREIGN KEY (flightNum) REFERENCES Flight(fnum)
-);
-
-----------------------------
--- INSERT DATA STATEMENTS --
-----------------------------
-
-COPY Customer (
-	id,
-	fname,
-	lname,
-	gtype,
-	dob,
-	address,
-	phone,
-	zipcode
-)
-FROM 'customer.csv'
-WITH DELIMITER ',';
-
-COPY Pilot (
-	id,
-	fullname,
-	nationality
-)
-FROM 'pilots.csv'
-WITH DELIMITER ',';
-
-COPY Plane (
-	id,
-	make,
-	model,
-	age,
-	seats
-)
-FROM 'planes.csv'
-WITH DELIMITER ',';
-
-COPY Technician (
-	id,
-	full_name
-)
-FROM 'technician.csv'
-WITH DELIMITER ',';
-
-COPY Flight (
-	fnum,
-	cost,
-	num_sold,
-	num_stops,
-	actual_departure_date,
-	actual_arrival_date,
-	arrival_airport,
-	departure_airport
-)
-FROM 'flights.csv'
-WITH DELIMITER ',';
-
-COPY Reservation (
-	rnum,
-	cid,
-	fid,
-	status
-)
-FROM 'reservation.csv'
-WITH DELIMITER ',';
-
-COPY FlightInfo (
-	fiid,
-	flight_id,
-	pilot_id,
-	plane_id
-)
-FROM 'flightinfo.csv'
-WITH DELIMITER ',';
-
-COPY Repairs (
-	rid,
-	repair_date,
-	repair_code,
-	pilot_id,
-	plane_id,
-	technician_id
-)
-FROM 'repairs.csv'
-WITH DELIMITER ',';
-
-COPY Schedule (
-	id,
-	flightNum,
-	departure_time,
-	arrival_time
-)
-FROM 'schedule.csv'
-WITH DELIMITER ',';
\ No newline at end of file
+) PARTITION BY RANGE (departure_time);
+CREATE TABLE schedule_default PARTITION OF Schedule DEFAULT;
@@ -0,0 +1,43 @@
+-- Migration 001: indexes for the predicates used by the menu operations.
+--
+-- Migrations are applied in file name order by postgresql/createPostgreDB.sh
+-- (after create.sql, the data load and triggers.sql) and can be re-run
+-- safely.  Each one records itself in schema_version.
+
+CREATE TABLE IF NOT EXISTS schema_version
+(
+	version INTEGER NOT NULL,
+	description TEXT NOT NULL,
+	applied_at TIMESTAMP NOT NULL DEFAULT now(),
+	PRIMARY KEY (version)
+);
+
+-- 9. passengers with a given status on a flight
+CREATE INDEX IF NOT EXISTS reservation_fid_status_idx ON Reservation (fid, status);
+-- waitlisted reservations of a flight, oldest first
+CREATE INDEX IF NOT EXISTS reservation_waitlist_idx ON Reservation (fid, rnum) WHERE status = 'W';
+CREATE INDEX IF NOT EXISTS reservation_cid_idx ON Reservation (cid);
+
+-- 5./6. seat lookups join FlightInfo on flight_id and then Plane on plane_id
+CREATE INDEX IF NOT EXISTS flightinfo_flight_plane_idx ON FlightInfo (flight_id, plane_id);
+CREATE INDEX IF NOT EXISTS flightinfo_plane_id_idx ON FlightInfo (plane_id);
+CREATE INDEX IF NOT EXISTS flightinfo_pilot_id_idx ON FlightInfo (pilot_id);
+
+-- flights yet to depart: PartitionManager keeps a Reservation partition
+-- while it has bookings on one (actual_departure_date >= CURRENT_DATE)
+CREATE INDEX IF NOT EXISTS flight_dates_idx ON Flight (actual_departure_date, actual_arrival_date);
+
+-- 7. repairs per plane, 8. repairs per year
+CREATE INDEX IF NOT EXISTS repairs_plane_id_idx ON Repairs (plane_id);
+CREATE INDEX IF NOT EXISTS repairs_year_idx ON Repairs ((EXTRACT(YEAR FROM repair_date)));
+
+CREATE INDEX IF NOT EXISTS schedule_flightnum_idx ON Schedule (flightNum);
+
+ANALYZE Reservation;
+ANALYZE FlightInfo;
+ANALYZE Flight;
+ANALYZE Repairs;
+ANALYZE Schedule;
+
+INSERT INTO schema_version (version, description) VALUES (1, 'indexes for menu queries')
+ON CONFLICT (version) DO NOTHING;
@@ -0,0 +1,90 @@
+-- Migration 002: trigger-maintained repair counters for menu options 7 and 8.
+--
+-- repairs_per_plane and repairs_per_year hold one row per plane / year with
+-- the number of Repairs rows for it.  An AFTER trigger on Repairs keeps them
+-- current on insert, update and delete, so both reports read O(#planes) or
+-- O(#years) rows regardless of repair history.  repair_rollup_mismatches()
+-- recounts Repairs and returns every counter that disagrees.
+
+CREATE TABLE IF NOT EXISTS repairs_per_plane
+(
+	plane_id INTEGER NOT NULL,
+	repairs INTEGER NOT NULL,
+	PRIMARY KEY (plane_id),
+	FOREIGN KEY (plane_id) REFERENCES Plane(id)
+);
+
+CREATE TABLE IF NOT EXISTS repairs_per_year
+(
+	year INTEGER NOT NULL,
+	repairs INTEGER NOT NULL,
+	PRIMARY KEY (year)
+);
+
+-- both reports are ordered by the count
+CREATE INDEX IF NOT EXISTS repairs_per_plane_count_idx ON repairs_per_plane (repairs);
+CREATE INDEX IF NOT EXISTS repairs_per_year_count_idx ON repairs_per_year (repairs);
+
+CREATE OR REPLACE FUNCTION func_repairs_rollup()
+    RETURNS trigger AS
+    $BODY$
+    BEGIN
+    IF TG_OP = 'TRUNCATE' THEN
+        TRUNCATE repairs_per_plane, repairs_per_year;
+        RETURN NULL;
+    END IF;
+    IF TG_OP IN ('DELETE', 'UPDATE') THEN
+        UPDATE repairs_per_plane SET repairs = repairs - 1 WHERE plane_id = old.plane_id;
+        DELETE FROM repairs_per_plane WHERE plane_id = old.plane_id AND repairs <= 0;
+        UPDATE repairs_per_year SET repairs = repairs - 1 WHERE year = EXTRACT(YEAR FROM old.repair_date);
+        DELETE FROM repairs_per_year WHERE year = EXTRACT(YEAR FROM old.repair_date) AND repairs <= 0;
+    END IF;
+    IF TG_OP IN ('INSERT', 'UPDATE') THEN
+        INSERT INTO repairs_per_plane (plane_id, repairs) VALUES (new.plane_id, 1)
+            ON CONFLICT (plane_id) DO UPDATE SET repairs = repairs_per_plane.repairs + 1;
+        INSERT INTO repairs_per_year (year, repairs) VALUES (EXTRACT(YEAR FROM new.repair_date), 1)
+            ON CONFLICT (year) DO UPDATE SET repairs = repairs_per_year.repairs + 1;
+    END IF;
+    RETURN NULL;
+    END;
+    $BODY$
+    LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION repair_rollup_mismatches()
+    RETURNS TABLE (rollup TEXT, key INTEGER, stored INTEGER, actual INTEGER) AS
+    $BODY$
+    SELECT 'plane', coalesce(s.plane_id, a.plane_id), coalesce(s.repairs, 0), coalesce(a.repairs, 0)
+    FROM repairs_per_plane s
+    FULL OUTER JOIN (SELECT plane_id, count(*)::int AS repairs FROM Repairs GROUP BY plane_id) a
+        ON a.plane_id = s.plane_id
+    WHERE s.repairs IS DISTINCT FROM a.repairs
+    UNION ALL
+    SELECT 'year', coalesce(s.year, a.year), coalesce(s.repairs, 0), coalesce(a.repairs, 0)
+    FROM repairs_per_year s
+    FULL OUTER JOIN (SELECT EXTRACT(YEAR FROM repair_date)::int AS year, count(*)::int AS repairs
+                     FROM Repairs GROUP BY 1) a
+        ON a.year = s.year
+    WHERE s.repairs IS DISTINCT FROM a.repairs;
+    $BODY$
+    LANGUAGE sql STABLE;
+
+-- rebuild the counters from scratch while Repairs is held still
+BEGIN;
+LOCK TABLE Repairs IN SHARE MODE;
+
+DROP TRIGGER IF EXISTS repairs_rollup_trigger ON Repairs;
+DROP TRIGGER IF EXISTS repairs_rollup_truncate_trigger ON Repairs;
+CREATE TRIGGER repairs_rollup_trigger AFTER INSERT OR DELETE OR UPDATE OF plane_id, repair_date ON Repairs
+    FOR EACH ROW EXECUTE PROCEDURE func_repairs_rollup();
+CREATE TRIGGER repairs_rollup_truncate_trigger AFTER TRUNCATE ON Repairs
+    FOR EACH STATEMENT EXECUTE PROCEDURE func_repairs_rollup();
+
+TRUNCATE repairs_per_plane, repairs_per_year;
+INSERT INTO repairs_per_plane (plane_id, repairs)
+    SELECT plane_id, count(*) FROM Repairs GROUP BY plane_id;
+INSERT INTO repairs_per_year (year, repairs)
+    SELECT EXTRACT(YEAR FROM repair_date), count(*) FROM Repairs GROUP BY 1;
+
+INSERT INTO schema_version (version, description) VALUES (2, 'repair count rollups')
+ON CONFLICT (version) DO NOTHING;
+COMMIT;
@@ -0,0 +1,64 @@
+-- Migration 003: notify seat availability caches of Flight / FlightInfo / Plane changes.
+--
+-- Payloads on channel seat_change:
+--   'fnum:num_sold'  only num_sold of the flight changed (the new value)
+--   'fnum'           anything else about the flight or its plane assignment changed
+--   '*'              a plane's capacity changed; every cached flight is suspect
+
+CREATE OR REPLACE FUNCTION func_flight_seat_notify()
+    RETURNS trigger AS
+    $BODY$
+    BEGIN
+    IF TG_OP = 'UPDATE' AND new.fnum = old.fnum
+        AND new.actual_departure_date = old.actual_departure_date THEN
+        PERFORM pg_notify('seat_change', new.fnum || ':' || new.num_sold);
+    ELSIF TG_OP = 'UPDATE' THEN
+        PERFORM pg_notify('seat_change', old.fnum::text);
+        PERFORM pg_notify('seat_change', new.fnum::text);
+    ELSE
+        PERFORM pg_notify('seat_change', old.fnum::text);
+    END IF;
+    RETURN NULL;
+    END;
+    $BODY$
+    LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION func_flightinfo_seat_notify()
+    RETURNS trigger AS
+    $BODY$
+    BEGIN
+    IF TG_OP IN ('UPDATE', 'DELETE') THEN
+        PERFORM pg_notify('seat_change', old.flight_id::text);
+    END IF;
+    IF TG_OP IN ('UPDATE', 'INSERT') THEN
+        PERFORM pg_notify('seat_change', new.flight_id::text);
+    END IF;
+    RETURN NULL;
+    END;
+    $BODY$
+    LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION func_plane_seat_notify()
+    RETURNS trigger AS
+    $BODY$
+    BEGIN
+    PERFORM pg_notify('seat_change', '*');
+    RETURN NULL;
+    END;
+    $BODY$
+    LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS flight_seat_notify_trigger ON Flight;
+CREATE TRIGGER flight_seat_notify_trigger AFTER UPDATE OR DELETE ON Flight
+    FOR EACH ROW EXECUTE PROCEDURE func_flight_seat_notify();
+
+DROP TRIGGER IF EXISTS flightinfo_seat_notify_trigger ON FlightInfo;
+CREATE TRIGGER flightinfo_seat_notify_trigger AFTER INSERT OR UPDATE OR DELETE ON FlightInfo
+    FOR EACH ROW EXECUTE PROCEDURE func_flightinfo_seat_notify();
+
+DROP TRIGGER IF EXISTS plane_seat_notify_trigger ON Plane;
+CREATE TRIGGER plane_seat_notify_trigger AFTER UPDATE OF seats ON Plane
+    FOR EACH STATEMENT EXECUTE PROCEDURE func_plane_seat_notify();
+
+INSERT INTO schema_version (version, description) VALUES (3, 'seat change notifications')
+ON CONFLICT (version) DO NOTHING;
@@ -0,0 +1,92 @@
+-- Migration 004: let batch inserts bring their own ids.
+--
+-- InsertBatch (java) reserves a range of ids with one nextval query and
+-- inserts the rows with those ids.  The BEFORE INSERT triggers of
+-- triggers.sql overwrote every id, so they now only fill in a missing one;
+-- the single-row inserts, which leave the id out, are unchanged.
+--
+-- The sequences also hand out values in blocks per session (CACHE) so the
+-- many nextval calls of a large batch do not each update the sequence.
+-- Ids are still unique but may have gaps and are not in commit order.
+
+CREATE OR REPLACE FUNCTION func_pilot()
+    RETURNS trigger AS
+    $BODY$
+    BEGIN
+    IF new.id IS NULL THEN
+        new.id := nextval('pilot_number_seq');
+    END IF;
+    RETURN new;
+    END;
+    $BODY$
+    LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION func_customer()
+    RETURNS trigger AS
+    $BODY$
+    BEGIN
+    IF new.id IS NULL THEN
+        new.id := nextval('customer_number_seq');
+    END IF;
+    RETURN new;
+    END;
+    $BODY$
+    LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION func_plane()
+    RETURNS trigger AS
+    $BODY$
+    BEGIN
+    IF new.id IS NULL THEN
+        new.id := nextval('plane_number_seq');
+    END IF;
+    RETURN new;
+    END;
+    $BODY$
+    LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION func_flight()
+    RETURNS trigger AS
+    $BODY$
+    BEGIN
+    IF new.fnum IS NULL THEN
+        new.fnum := nextval('flight_number_seq');
+    END IF;
+    RETURN new;
+    END;
+    $BODY$
+    LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION func_technician()
+    RETURNS trigger AS
+    $BODY$
+    BEGIN
+    IF new.id IS NULL THEN
+        new.id := nextval('technician_number_seq');
+    END IF;
+    RETURN new;
+    END;
+    $BODY$
+    LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION func_reservation()
+    RETURNS trigger AS
+    $BODY$
+    BEGIN
+    IF new.rnum IS NULL THEN
+        new.rnum := nextval('reservation_number_seq');
+    END IF;
+    RETURN new;
+    END;
+    $BODY$
+    LANGUAGE plpgsql VOLATILE;
+
+ALTER SEQUENCE pilot_number_seq CACHE 100;
+ALTER SEQUENCE customer_number_seq CACHE 100;
+ALTER SEQUENCE plane_number_seq CACHE 100;
+ALTER SEQUENCE flight_number_seq CACHE 100;
+ALTER SEQUENCE technician_number_seq CACHE 100;
+ALTER SEQUENCE reservation_number_seq CACHE 100;
+
+INSERT INTO schema_version (version, description) VALUES (4, 'caller supplied ids for batch inserts')
+ON CONFLICT (version) DO NOTHING;
@@ -0,0 +1,92 @@
+-- Migration 005: free seats on cancellation and wake the waitlist promoter.
+--
+-- num_sold counts the confirmed ('C') reservations of a flight.  When a
+-- confirmed reservation is deleted (cancelled) or loses its 'C' status, its
+-- seat is given back here, in the same transaction.  Whenever a flight may
+-- have gained free seats, its number is sent on channel waitlist; the
+-- WaitlistPromoter (java) then confirms the oldest waitlisted reservations.
+--
+-- A booking is waitlisted while older waitlisted passengers exist, but it
+-- decides that from its statement snapshot, which may still show
+-- passengers a concurrent promotion is confirming.  A waitlisted insert on
+-- a flight with free seats therefore wakes the promoter as well.
+--
+-- Payloads on channel waitlist:
+--   'fnum'  the flight may have free seats for waitlisted passengers
+
+CREATE OR REPLACE FUNCTION func_reservation_release_seat()
+    RETURNS trigger AS
+    $BODY$
+    BEGIN
+    IF old.status <> 'C' THEN
+        RETURN NULL;
+    END IF;
+    IF TG_OP = 'UPDATE' THEN
+        IF new.status = 'C' THEN
+            RETURN NULL;
+        END IF;
+    END IF;
+    UPDATE Flight SET num_sold = num_sold - 1 WHERE fnum = old.fid AND num_sold > 0;
+    PERFORM pg_notify('waitlist', old.fid::text);
+    RETURN NULL;
+    END;
+    $BODY$
+    LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS reservation_release_seat_trigger ON Reservation;
+CREATE TRIGGER reservation_release_seat_trigger AFTER UPDATE OF status OR DELETE ON Reservation
+    FOR EACH ROW EXECUTE PROCEDURE func_reservation_release_seat();
+
+-- a passenger waitlisted behind a promotion that has since freed the queue
+CREATE OR REPLACE FUNCTION func_reservation_waitlist_notify()
+    RETURNS trigger AS
+    $BODY$
+    BEGIN
+    PERFORM pg_notify('waitlist', new.fid::text)
+    FROM Flight f JOIN FlightInfo i ON i.flight_id = f.fnum JOIN Plane p ON p.id = i.plane_id
+    WHERE f.fnum = new.fid AND f.num_sold < p.seats;
+    RETURN NULL;
+    END;
+    $BODY$
+    LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS reservation_waitlist_notify_trigger ON Reservation;
+CREATE TRIGGER reservation_waitlist_notify_trigger AFTER INSERT ON Reservation
+    FOR EACH ROW WHEN (new.status = 'W') EXECUTE PROCEDURE func_reservation_waitlist_notify();
+
+-- a flight moved to another plane may have more seats
+CREATE OR REPLACE FUNCTION func_flightinfo_waitlist_notify()
+    RETURNS trigger AS
+    $BODY$
+    BEGIN
+    IF new.plane_id <> old.plane_id OR new.flight_id <> old.flight_id THEN
+        PERFORM pg_notify('waitlist', new.flight_id::text);
+    END IF;
+    RETURN NULL;
+    END;
+    $BODY$
+    LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS flightinfo_waitlist_notify_trigger ON FlightInfo;
+CREATE TRIGGER flightinfo_waitlist_notify_trigger AFTER UPDATE OF plane_id, flight_id ON FlightInfo
+    FOR EACH ROW EXECUTE PROCEDURE func_flightinfo_waitlist_notify();
+
+-- so may every flight of a plane that gained seats
+CREATE OR REPLACE FUNCTION func_plane_waitlist_notify()
+    RETURNS trigger AS
+    $BODY$
+    BEGIN
+    IF new.seats > old.seats THEN
+        PERFORM pg_notify('waitlist', i.flight_id::text) FROM FlightInfo i WHERE i.plane_id = new.id;
+    END IF;
+    RETURN NULL;
+    END;
+    $BODY$
+    LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS plane_waitlist_notify_trigger ON Plane;
+CREATE TRIGGER plane_waitlist_notify_trigger AFTER UPDATE OF seats ON Plane
+    FOR EACH ROW EXECUTE PROCEDURE func_plane_waitlist_notify();
+
+INSERT INTO schema_version (version, description) VALUES (5, 'seat release and waitlist notifications')
+ON CONFLICT (version) DO NOTHING;
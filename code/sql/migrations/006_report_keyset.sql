@@ -0,0 +1,19 @@
+-- Migration 006: indexes for paging through the repair reports.
+--
+-- ReportTableModel (java) reads menu options 7 and 8 a page at a time,
+-- seeking past the last (repairs, key) it has shown:
+--   WHERE (repairs, plane_id) < (?, ?) ORDER BY repairs DESC, plane_id DESC LIMIT ?
+-- An index on (repairs, key) answers that with one descent in either
+-- direction, and covers the query.  It replaces the repairs-only indexes
+-- of migration 002.
+
+CREATE INDEX IF NOT EXISTS repairs_per_plane_count_key_idx ON repairs_per_plane (repairs, plane_id);
+CREATE INDEX IF NOT EXISTS repairs_per_year_count_key_idx ON repairs_per_year (repairs, year);
+DROP INDEX IF EXISTS repairs_per_plane_count_idx;
+DROP INDEX IF EXISTS repairs_per_year_count_idx;
+
+ANALYZE repairs_per_plane;
+ANALYZE repairs_per_year;
+
+INSERT INTO schema_version (version, description) VALUES (6, 'keyset indexes for the repair reports')
+ON CONFLICT (version) DO NOTHING;
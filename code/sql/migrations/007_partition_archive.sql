@@ -0,0 +1,43 @@
+-- Migration 007: keep the repair rollups checkable once old Repairs
+-- partitions are detached.
+--
+-- PartitionManager (java) detaches Repairs partitions that lie wholly in
+-- the past.  Detaching fires no triggers, so repairs_per_plane and
+-- repairs_per_year keep counting the detached rows and the reports still
+-- cover all history.  Before it detaches a partition the tool adds the
+-- partition's counts to repairs_archived, and repair_rollup_mismatches()
+-- now compares the counters with Repairs plus repairs_archived.
+
+CREATE TABLE IF NOT EXISTS repairs_archived
+(
+	plane_id INTEGER NOT NULL,
+	year INTEGER NOT NULL,
+	repairs INTEGER NOT NULL,
+	PRIMARY KEY (plane_id, year)
+);
+
+CREATE OR REPLACE FUNCTION repair_rollup_mismatches()
+    RETURNS TABLE (rollup TEXT, key INTEGER, stored INTEGER, actual INTEGER) AS
+    $BODY$
+    WITH counted AS (
+        SELECT plane_id, EXTRACT(YEAR FROM repair_date)::int AS year, count(*)::int AS repairs
+        FROM Repairs GROUP BY 1, 2
+        UNION ALL
+        SELECT plane_id, year, repairs FROM repairs_archived
+    )
+    SELECT 'plane', coalesce(s.plane_id, a.plane_id), coalesce(s.repairs, 0), coalesce(a.repairs, 0)
+    FROM repairs_per_plane s
+    FULL OUTER JOIN (SELECT plane_id, sum(repairs)::int AS repairs FROM counted GROUP BY plane_id) a
+        ON a.plane_id = s.plane_id
+    WHERE s.repairs IS DISTINCT FROM a.repairs
+    UNION ALL
+    SELECT 'year', coalesce(s.year, a.year), coalesce(s.repairs, 0), coalesce(a.repairs, 0)
+    FROM repairs_per_year s
+    FULL OUTER JOIN (SELECT year, sum(repairs)::int AS repairs FROM counted GROUP BY year) a
+        ON a.year = s.year
+    WHERE s.repairs IS DISTINCT FROM a.repairs;
+    $BODY$
+    LANGUAGE sql STABLE;
+
+INSERT INTO schema_version (version, description) VALUES (7, 'archived repair counts')
+ON CONFLICT (version) DO NOTHING;
@@ -0,0 +1,31 @@
+-- Migration 008: new rows bring their own ids.
+--
+-- IdAllocator (java) leases blocks of ids from the sequences and every
+-- insert of the application binds its id, so the row-level BEFORE INSERT
+-- triggers of triggers.sql have nothing left to do and are dropped.  The
+-- id columns default to nextval of their sequence instead, so inserts made
+-- by hand without an id still get one.
+
+DROP TRIGGER IF EXISTS pilot_trigger ON Pilot;
+DROP TRIGGER IF EXISTS customer_trigger ON Customer;
+DROP TRIGGER IF EXISTS plane_trigger ON Plane;
+DROP TRIGGER IF EXISTS flight_trigger ON Flight;
+DROP TRIGGER IF EXISTS technician_trigger ON Technician;
+DROP TRIGGER IF EXISTS reservation_trigger ON Reservation;
+
+DROP FUNCTION IF EXISTS func_pilot();
+DROP FUNCTION IF EXISTS func_customer();
+DROP FUNCTION IF EXISTS func_plane();
+DROP FUNCTION IF EXISTS func_flight();
+DROP FUNCTION IF EXISTS func_technician();
+DROP FUNCTION IF EXISTS func_reservation();
+
+ALTER TABLE Pilot ALTER COLUMN id SET DEFAULT nextval('pilot_number_seq');
+ALTER TABLE Customer ALTER COLUMN id SET DEFAULT nextval('customer_number_seq');
+ALTER TABLE Plane ALTER COLUMN id SET DEFAULT nextval('plane_number_seq');
+ALTER TABLE Flight ALTER COLUMN fnum SET DEFAULT nextval('flight_number_seq');
+ALTER TABLE Technician ALTER COLUMN id SET DEFAULT nextval('technician_number_seq');
+ALTER TABLE Reservation ALTER COLUMN rnum SET DEFAULT nextval('reservation_number_seq');
+
+INSERT INTO schema_version (version, description) VALUES (8, 'client allocated ids')
+ON CONFLICT (version) DO NOTHING;
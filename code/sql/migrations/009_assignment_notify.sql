@@ -0,0 +1,70 @@
+-- Migration 009: notify assignment indexes of changed pilot / plane bookings.
+--
+-- AssignmentIndex (java) keeps the days each pilot and plane is busy in
+-- memory.  A flight's busy days come from its Flight dates and its Schedule
+-- rows, its pilot and plane from FlightInfo; when any of these change the
+-- flight is re-read before the next check.
+--
+-- Payloads on channel assignment_change:
+--   'fnum'  the dates, pilot or plane of the flight changed
+
+CREATE OR REPLACE FUNCTION func_flight_assignment_notify()
+    RETURNS trigger AS
+    $BODY$
+    BEGIN
+    PERFORM pg_notify('assignment_change', old.fnum::text);
+    IF TG_OP = 'UPDATE' AND new.fnum <> old.fnum THEN
+        PERFORM pg_notify('assignment_change', new.fnum::text);
+    END IF;
+    RETURN NULL;
+    END;
+    $BODY$
+    LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION func_flightinfo_assignment_notify()
+    RETURNS trigger AS
+    $BODY$
+    BEGIN
+    IF TG_OP IN ('UPDATE', 'DELETE') THEN
+        PERFORM pg_notify('assignment_change', old.flight_id::text);
+    END IF;
+    IF TG_OP IN ('UPDATE', 'INSERT') THEN
+        PERFORM pg_notify('assignment_change', new.flight_id::text);
+    END IF;
+    RETURN NULL;
+    END;
+    $BODY$
+    LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION func_schedule_assignment_notify()
+    RETURNS trigger AS
+    $BODY$
+    BEGIN
+    IF TG_OP IN ('UPDATE', 'DELETE') THEN
+        PERFORM pg_notify('assignment_change', old.flightNum::text);
+    END IF;
+    IF TG_OP IN ('UPDATE', 'INSERT') THEN
+        PERFORM pg_notify('assignment_change', new.flightNum::text);
+    END IF;
+    RETURN NULL;
+    END;
+    $BODY$
+    LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS flight_assignment_notify_trigger ON Flight;
+CREATE TRIGGER flight_assignment_notify_trigger
+    AFTER UPDATE OF fnum, actual_departure_date, actual_arrival_date OR DELETE ON Flight
+    FOR EACH ROW EXECUTE PROCEDURE func_flight_assignment_notify();
+
+DROP TRIGGER IF EXISTS flightinfo_assignment_notify_trigger ON FlightInfo;
+CREATE TRIGGER flightinfo_assignment_notify_trigger AFTER INSERT OR UPDATE OR DELETE ON FlightInfo
+    FOR EACH ROW EXECUTE PROCEDURE func_flightinfo_assignment_notify();
+
+-- on the partitioned parent, so it applies to every partition; the row
+-- moves of PartitionManager run with triggers disabled and are not reported
+DROP TRIGGER IF EXISTS schedule_assignment_notify_trigger ON Schedule;
+CREATE TRIGGER schedule_assignment_notify_trigger AFTER INSERT OR UPDATE OR DELETE ON Schedule
+    FOR EACH ROW EXECUTE PROCEDURE func_schedule_assignment_notify();
+
+INSERT INTO schema_version (version, description) VALUES (9, 'assignment change notifications')
+ON CONFLICT (version) DO NOTHING;
@@ -0,0 +1,64 @@
+-- Migration 010: version counters for the tables behind cached reports.
+--
+-- ResultCache (java) keeps query results and the versions of the tables
+-- they read.  Every statement that writes one of the tables below takes
+-- the next value of the table's version sequence and sends it on channel
+-- table_version when it commits; cached results of an older version are
+-- then recomputed.  Sequences, unlike a counter row, never make two
+-- writers wait for each other.  Statement-level triggers fire once per
+-- statement, so a bulk write costs one bump.
+--
+-- Only statements on the parent of a partitioned table fire its triggers.
+-- DDL does not fire them either; PartitionManager calls
+-- bump_table_version() itself when it detaches a partition.
+--
+-- Payloads on channel table_version:
+--   'table:version'  the table (lower case) changed; version is its new counter
+
+CREATE SEQUENCE IF NOT EXISTS table_version_reservation;
+CREATE SEQUENCE IF NOT EXISTS table_version_repairs;
+CREATE SEQUENCE IF NOT EXISTS table_version_repairs_per_plane;
+CREATE SEQUENCE IF NOT EXISTS table_version_repairs_per_year;
+
+CREATE OR REPLACE FUNCTION bump_table_version(name TEXT)
+    RETURNS bigint AS
+    $BODY$
+    DECLARE
+        version bigint;
+    BEGIN
+    version := nextval(('table_version_' || lower(name))::regclass);
+    PERFORM pg_notify('table_version', lower(name) || ':' || version);
+    RETURN version;
+    END;
+    $BODY$
+    LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION func_table_version_bump()
+    RETURNS trigger AS
+    $BODY$
+    BEGIN
+    PERFORM bump_table_version(TG_TABLE_NAME);
+    RETURN NULL;
+    END;
+    $BODY$
+    LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS reservation_version_trigger ON Reservation;
+CREATE TRIGGER reservation_version_trigger AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Reservation
+    FOR EACH STATEMENT EXECUTE PROCEDURE func_table_version_bump();
+
+DROP TRIGGER IF EXISTS repairs_version_trigger ON Repairs;
+CREATE TRIGGER repairs_version_trigger AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Repairs
+    FOR EACH STATEMENT EXECUTE PROCEDURE func_table_version_bump();
+
+-- written by the Repairs triggers of migration 002
+DROP TRIGGER IF EXISTS repairs_per_plane_version_trigger ON repairs_per_plane;
+CREATE TRIGGER repairs_per_plane_version_trigger AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON repairs_per_plane
+    FOR EACH STATEMENT EXECUTE PROCEDURE func_table_version_bump();
+
+DROP TRIGGER IF EXISTS repairs_per_year_version_trigger ON repairs_per_year;
+CREATE TRIGGER repairs_per_year_version_trigger AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON repairs_per_year
+    FOR EACH STATEMENT EXECUTE PROCEDURE func_table_version_bump();
+
+INSERT INTO schema_version (version, description) VALUES (10, 'table version counters')
+ON CONFLICT (version) DO NOTHING;
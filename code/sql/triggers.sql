@@ -6,6 +6,15 @@ CREATE SEQUENCE customer_number_seq START WITH 250;
 CREATE SEQUENCE technician_number_seq START WITH 250;
 CREATE SEQUENCE reservation_number_seq START WITH 9999;
 
+-- Generated data sets (java/DataGenerator) are larger than the shipped one,
+-- so move each sequence past the highest id that was loaded.
+SELECT setval('plane_number_seq', GREATEST(67, (SELECT max(id) + 1 FROM Plane)), false);
+SELECT setval('pilot_number_seq', GREATEST(250, (SELECT max(id) + 1 FROM Pilot)), false);
+SELECT setval('flight_number_seq', GREATEST(2000, (SELECT max(fnum) + 1 FROM Flight)), false);
+SELECT setval('customer_number_seq', GREATEST(250, (SELECT max(id) + 1 FROM Customer)), false);
+SELECT setval('technician_number_seq', GREATEST(250, (SELECT max(id) + 1 FROM Technician)), false);
+SELECT setval('reservation_number_seq', GREATEST(9999, (SELECT max(rnum) + 1 FROM Reservation)), false);
+
 
 CREATE OR REPLACE FUNCTION func_pilot() 
     RETURNS trigger AS 